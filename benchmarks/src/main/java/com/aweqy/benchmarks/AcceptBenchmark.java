@@ -0,0 +1,88 @@
+package com.aweqy.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 接受吞吐基准：模拟中继重启后的重连高峰，每次调用新建一个到服务端口的连接，发送一行工作连接握手，
+ * 等中继回复错误行后关闭，覆盖accept、准入控制、分配线程或事件循环和读取第一行的完整路径
+ * 握手中的隧道令牌不存在，中继不记录日志也不建立隧道，测量的只是接受路径本身
+ *
+ * 默认每个CPU核心一个客户端线程，中继每个核心一个事件循环；用 -p acceptors=1,2,4,8 比较接受器数量，
+ * 在不同核数的机器上或用 taskset -c 0-3 限制可用核数运行，观察吞吐随核数的变化
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Threads(Threads.MAX)
+@Fork(1)
+public class AcceptBenchmark {
+
+    /** 同一进程中多次启动中继时使用不同的端口 */
+    private static final AtomicInteger NEXT_PORT = new AtomicInteger(25000);
+
+    private static final byte[] HANDSHAKE = "WORK:00000000000000000000000000000000\n".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"blocking", "nio"})
+    public String mode;
+
+    @Param({"1", "2", "4"})
+    public int acceptors;
+
+    private int port;
+    private RelayHarness relay;
+
+    @Setup(Level.Trial)
+    public void startRelay() throws Exception {
+        port = NEXT_PORT.getAndIncrement();
+        relay = RelayHarness.start(port, Map.of(
+                "server.io_mode", mode,
+                "server.event_loops", "0",
+                "server.acceptors", String.valueOf(acceptors)));
+    }
+
+    @TearDown(Level.Trial)
+    public void stopRelay() throws Exception {
+        relay.close();
+    }
+
+    @Benchmark
+    public int reconnect() throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            // 用RST关闭，避免大量TIME_WAIT耗尽回环地址上的临时端口
+            socket.setSoLinger(true, 0);
+            OutputStream out = socket.getOutputStream();
+            out.write(HANDSHAKE);
+            InputStream in = socket.getInputStream();
+            int read = 0;
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                read++;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.aweqy.benchmarks;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 合并写压测：比较关闭合并写、合并写不加延迟和加1-2毫秒批处理延迟时的包速率和回显延迟
+ *
+ * 参数：--modes=blocking,nio --variants=off,0,1,2 --players=200 --burst=4 --size=32 --interval=5 --duration=10
+ * 每个玩家每轮连续发送burst个小包再逐个等待回显，模拟一个游戏刻内的多个数据包
+ * 包速率取自/proc/net/snmp中TCP发出的报文段数，包含玩家、中继和隧道客户端三方，只在Linux上可用
+ */
+public class BatchingBenchmark {
+
+    private static final int WARMUP_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = ConcurrentPlayersBenchmark.parseOptions(args);
+        String[] modes = options.getOrDefault("modes", "blocking,nio").split(",");
+        String[] variants = options.getOrDefault("variants", "off,0,1,2").split(",");
+        int players = Integer.parseInt(options.getOrDefault("players", "200"));
+        int burst = Integer.parseInt(options.getOrDefault("burst", "4"));
+        int size = Integer.parseInt(options.getOrDefault("size", "32"));
+        int intervalMillis = Integer.parseInt(options.getOrDefault("interval", "5"));
+        int durationSeconds = Integer.parseInt(options.getOrDefault("duration", "10"));
+
+        System.out.printf("%-9s %-9s %12s %12s %10s %10s %10s %10s%n",
+                "mode", "batching", "packets/s", "echo/s", "pkt/echo", "p50(ms)", "p99(ms)", "max(ms)");
+        int port = 22000;
+        for (String mode : modes) {
+            for (String variant : variants) {
+                Result result = run(mode.trim(), variant.trim(), players, burst, size, intervalMillis,
+                        durationSeconds, port);
+                port += 2;
+                System.out.printf("%-9s %-9s %12.0f %12.0f %10.2f %10.2f %10.2f %10.2f%n", result.mode,
+                        result.variant, result.packetsPerSecond, result.echoPerSecond,
+                        result.packetsPerSecond / result.echoPerSecond, result.p50Millis, result.p99Millis,
+                        result.maxMillis);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static Result run(String mode, String variant, int players, int burst, int size, int intervalMillis,
+                              int durationSeconds, int port) throws Exception {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("server.io_mode", mode);
+        properties.put("forward.write_coalescing", String.valueOf(!variant.equals("off")));
+        properties.put("forward.batch_delay", variant.equals("off") ? "0" : variant);
+
+        try (RelayHarness relay = RelayHarness.start(port, properties);
+             EchoTunnelClient tunnel = EchoTunnelClient.connect(relay.getPort(), port + 1)) {
+            int remotePort = tunnel.getRemotePort();
+            Thread.sleep(200);
+
+            long start = System.currentTimeMillis();
+            long measureFrom = start + WARMUP_MILLIS;
+            long end = measureFrom + durationSeconds * 1000L;
+            List<Future<long[]>> results = new ArrayList<>();
+            long startSegments;
+            try (ExecutorService playerExecutor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < players; i++) {
+                    results.add(playerExecutor.submit(
+                            () -> simulatePlayer(remotePort, burst, size, intervalMillis, measureFrom, end)));
+                }
+                Thread.sleep(Math.max(0, measureFrom - System.currentTimeMillis()));
+                startSegments = readOutSegments();
+            }
+            long endSegments = readOutSegments();
+
+            List<long[]> samples = new ArrayList<>();
+            int total = 0;
+            for (Future<long[]> future : results) {
+                long[] latencies = future.get();
+                samples.add(latencies);
+                total += latencies.length;
+            }
+            long[] merged = new long[total];
+            int offset = 0;
+            for (long[] latencies : samples) {
+                System.arraycopy(latencies, 0, merged, offset, latencies.length);
+                offset += latencies.length;
+            }
+            Arrays.sort(merged);
+
+            double seconds = (System.currentTimeMillis() - measureFrom) / 1000.0;
+            double packetsPerSecond = startSegments < 0 ? -1 : (endSegments - startSegments) / seconds;
+            return new Result(mode, variant, packetsPerSecond, total / (double) durationSeconds,
+                    percentile(merged, 0.50), percentile(merged, 0.99), percentile(merged, 1.0));
+        }
+    }
+
+    /**
+     * 模拟一个玩家：每轮连续发送burst个包，记录每个包从发出到收到回显的时间（纳秒）
+     */
+    private static long[] simulatePlayer(int remotePort, int burst, int size, int intervalMillis,
+                                         long measureFrom, long end) {
+        long[] latencies = new long[1024];
+        int count = 0;
+        byte[] packet = new byte[size];
+        byte[] reply = new byte[size];
+        long[] sentAt = new long[burst];
+        try (Socket socket = new Socket("127.0.0.1", remotePort)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            long now;
+            while ((now = System.currentTimeMillis()) < end) {
+                for (int i = 0; i < burst; i++) {
+                    sentAt[i] = System.nanoTime();
+                    out.write(packet);
+                }
+                for (int i = 0; i < burst; i++) {
+                    in.readFully(reply);
+                    if (now >= measureFrom) {
+                        if (count == latencies.length) {
+                            latencies = Arrays.copyOf(latencies, count * 2);
+                        }
+                        latencies[count++] = System.nanoTime() - sentAt[i];
+                    }
+                }
+                Thread.sleep(intervalMillis);
+            }
+        } catch (IOException | InterruptedException e) {
+            // 连接失败或压测中断，返回已记录的样本
+        }
+        return Arrays.copyOf(latencies, count);
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+
+    /**
+     * 读取本机TCP发出的报文段总数，非Linux系统返回-1
+     */
+    private static long readOutSegments() {
+        try {
+            List<String> lines = Files.readAllLines(Path.of("/proc/net/snmp"));
+            for (int i = 0; i + 1 < lines.size(); i++) {
+                if (lines.get(i).startsWith("Tcp:") && lines.get(i + 1).startsWith("Tcp:")) {
+                    List<String> names = Arrays.asList(lines.get(i).split("\\s+"));
+                    return Long.parseLong(lines.get(i + 1).split("\\s+")[names.indexOf("OutSegs")]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // 非Linux系统
+        }
+        return -1;
+    }
+
+    private record Result(String mode, String variant, double packetsPerSecond, double echoPerSecond,
+                          double p50Millis, double p99Millis, double maxMillis) {
+    }
+}
@@ -0,0 +1,247 @@
+package com.aweqy.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 并发玩家压测：比较平台线程、虚拟线程和nio三种中继模式在大量空闲玩家连接下的线程数和内存占用
+ * 每个模式和玩家数在单独的子进程中运行，上一轮留下的线程和内存不计入下一轮；
+ * 玩家在另一个子进程中模拟，测得的线程数和内存只包含中继和回显隧道客户端
+ *
+ * 参数：--modes=platform,virtual,nio --players=1000,5000,10000 --hold=10 --interval=50
+ * 每个玩家在两个进程中各占用一个文件描述符，10000个玩家时 ulimit -n 至少要10100
+ */
+public class ConcurrentPlayersBenchmark {
+
+    private static final int PACKET_SIZE = 64;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        if (options.containsKey("simulate")) {
+            simulatePlayers(Integer.parseInt(options.get("simulate")), Integer.parseInt(options.get("players")),
+                    Integer.parseInt(options.get("hold")), Integer.parseInt(options.get("interval")));
+            return;
+        }
+        String[] modes = options.getOrDefault("modes", "platform,virtual,nio").split(",");
+        String[] playerCounts = options.getOrDefault("players", "1000,5000,10000").split(",");
+        int holdSeconds = Integer.parseInt(options.getOrDefault("hold", "10"));
+        int intervalMillis = Integer.parseInt(options.getOrDefault("interval", "50"));
+
+        if (options.containsKey("port")) {
+            // 子进程：只运行一个模式和玩家数，输出一行结果
+            Result result = run(modes[0], Integer.parseInt(playerCounts[0]), holdSeconds, intervalMillis,
+                    Integer.parseInt(options.get("port")));
+            System.out.printf("%-9s %8d %10d %10d %10.1f %10.1f %12.0f%n", result.mode, result.players,
+                    result.connected, result.threads, result.heapMb, result.rssMb, result.echoPerSecond);
+            System.exit(0);
+        }
+
+        System.out.printf("%-9s %8s %10s %10s %10s %10s %12s%n",
+                "mode", "players", "connected", "threads", "heap(MB)", "rss(MB)", "echo/s");
+        int port = 21000;
+        for (String mode : modes) {
+            for (String count : playerCounts) {
+                Process process = startSelf("--modes=" + mode.trim(), "--players=" + count.trim(),
+                        "--hold=" + holdSeconds, "--interval=" + intervalMillis, "--port=" + port)
+                        .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                int status = process.waitFor();
+                if (status != 0) {
+                    System.out.printf("%-9s %8s failed with status %d%n", mode.trim(), count.trim(), status);
+                }
+                port += 2;
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * 用同样的类路径启动本类的子进程，标准错误直接输出
+     */
+    private static ProcessBuilder startSelf(String... args) {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(classPath());
+        command.add(ConcurrentPlayersBenchmark.class.getName());
+        command.addAll(List.of(args));
+        return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT);
+    }
+
+    /**
+     * 用exec:java运行时类由Maven的URLClassLoader加载，java.class.path是Maven自己的类路径
+     */
+    private static String classPath() {
+        if (ConcurrentPlayersBenchmark.class.getClassLoader() instanceof URLClassLoader loader) {
+            List<String> entries = new ArrayList<>();
+            for (URL url : loader.getURLs()) {
+                try {
+                    entries.add(Path.of(url.toURI()).toString());
+                } catch (URISyntaxException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return String.join(File.pathSeparator, entries);
+        }
+        return System.getProperty("java.class.path");
+    }
+
+    private static Result run(String mode, int players, int holdSeconds, int intervalMillis, int port) throws Exception {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("server.io_mode", mode.equals("nio") ? "nio" : "blocking");
+        properties.put("server.virtual_threads", String.valueOf(mode.equals("virtual")));
+
+        try (RelayHarness relay = RelayHarness.start(port, properties);
+             EchoTunnelClient tunnel = EchoTunnelClient.connect(relay.getPort(), port + 1)) {
+            int remotePort = tunnel.getRemotePort();
+            Thread.sleep(200);
+
+            Process simulator = startSelf("--simulate=" + remotePort, "--players=" + players,
+                    "--hold=" + holdSeconds, "--interval=" + intervalMillis).start();
+            try {
+                // 子进程保持连接，测完回显速率后输出一行：已连接的玩家数 回显速率
+                BufferedReader reader = new BufferedReader(new InputStreamReader(simulator.getInputStream()));
+                String line = reader.readLine();
+                if (line == null) {
+                    throw new IOException("Player simulator exited with status " + simulator.waitFor());
+                }
+                String[] fields = line.trim().split(" ");
+
+                System.gc();
+                return new Result(mode, players, Integer.parseInt(fields[0]),
+                        ManagementFactory.getThreadMXBean().getThreadCount(),
+                        ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1048576.0,
+                        readRssMb(), Double.parseDouble(fields[1]));
+            } finally {
+                // 关闭子进程的标准输入即结束模拟
+                simulator.getOutputStream().close();
+                if (!simulator.waitFor(30, TimeUnit.SECONDS)) {
+                    simulator.destroyForcibly();
+                }
+            }
+        }
+    }
+
+    /**
+     * 子进程：连接所有玩家，稳定1秒后统计hold秒内的回显速率并输出，保持连接直到标准输入关闭
+     */
+    private static void simulatePlayers(int remotePort, int players, int holdSeconds, int intervalMillis)
+            throws Exception {
+        CountDownLatch connected = new CountDownLatch(players);
+        Semaphore connecting = new Semaphore(200);
+        AtomicLong echoes = new AtomicLong();
+        Queue<Socket> sockets = new ConcurrentLinkedQueue<>();
+        ExecutorService playerExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < players; i++) {
+            playerExecutor.submit(() -> simulatePlayer(remotePort, intervalMillis, connecting, connected, echoes, sockets));
+        }
+
+        connected.await(60, TimeUnit.SECONDS);
+        int connectedPlayers = sockets.size();
+        Thread.sleep(1000);
+        long startEchoes = echoes.get();
+        Thread.sleep(holdSeconds * 1000L);
+        double echoPerSecond = (echoes.get() - startEchoes) / (double) holdSeconds;
+        System.out.println(connectedPlayers + " " + echoPerSecond);
+        System.out.flush();
+
+        while (System.in.read() != -1) {
+            // 等待父进程测量完毕
+        }
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        playerExecutor.shutdownNow();
+        System.exit(0);
+    }
+
+    /**
+     * 模拟一个玩家：连接后按固定间隔发送小包并等待回显
+     */
+    private static void simulatePlayer(int remotePort, int intervalMillis, Semaphore connecting,
+                                       CountDownLatch connected, AtomicLong echoes, Queue<Socket> sockets) {
+        Socket socket;
+        try {
+            connecting.acquire();
+            try {
+                socket = new Socket("127.0.0.1", remotePort);
+            } finally {
+                connecting.release();
+            }
+        } catch (IOException | InterruptedException e) {
+            connected.countDown();
+            return;
+        }
+        sockets.add(socket);
+        connected.countDown();
+
+        byte[] packet = new byte[PACKET_SIZE];
+        byte[] reply = new byte[PACKET_SIZE];
+        try {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            while (!Thread.currentThread().isInterrupted()) {
+                out.write(packet);
+                in.readFully(reply);
+                echoes.incrementAndGet();
+                Thread.sleep(intervalMillis);
+            }
+        } catch (IOException | InterruptedException e) {
+            // 压测结束时连接被关闭
+        }
+    }
+
+    /**
+     * 读取进程常驻内存，非Linux系统返回-1
+     */
+    private static double readRssMb() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) / 1024.0;
+                }
+            }
+        } catch (IOException e) {
+            // 非Linux系统
+        }
+        return -1;
+    }
+
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        return options;
+    }
+
+    private record Result(String mode, int players, int connected, int threads,
+                          double heapMb, double rssMb, double echoPerSecond) {
+    }
+}
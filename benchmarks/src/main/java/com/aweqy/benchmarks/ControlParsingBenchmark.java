@@ -0,0 +1,168 @@
+package com.aweqy.benchmarks;
+
+import com.aweqy.server.AuthRequest;
+import com.aweqy.server.BufferPool;
+import com.aweqy.server.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 控制命令解析微基准：每个隧道连接和重连都要解析一次认证消息，连接风暴时这里在接受线程的关键路径上
+ * 认证之后控制连接上只有二进制帧，nio模式的读取线程逐帧解析，比较分配Frame对象的解码和原地解码的每帧开销
+ * 加 -prof gc 可以看到两者每帧分配的字节数
+ * 只衡量中继的nio读取路径：阻塞模式和客户端从输入流逐帧读取，负载数组本身就是排队转发的数据，仍然每帧分配，
+ * 不在这里比较；帧头字段是定长的，没有改成变长编码
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ControlParsingBenchmark {
+
+    private static final String PASSWORD = "a-reasonably-long-server-password";
+
+    // 不声明为final，避免JIT把解析结果当作常量折叠
+    private String auth = "AUTH:" + PASSWORD + ":TCP:127.0.0.1:25565";
+    private String authWithRemotePort = "AUTH:" + PASSWORD + ":TCP:127.0.0.1:25565:6001";
+    private String malformed = "AUTH:" + PASSWORD + ":TCP:127.0.0.1:not-a-port";
+
+    @Benchmark
+    public AuthRequest parseAndValidate() throws AuthRequest.AuthException {
+        AuthRequest request = AuthRequest.parse(auth);
+        request.validate(PASSWORD);
+        return request;
+    }
+
+    @Benchmark
+    public AuthRequest parseWithRemotePort() throws AuthRequest.AuthException {
+        return AuthRequest.parse(authWithRemotePort);
+    }
+
+    /**
+     * 格式错误的消息：拒绝路径的开销，包括异常的创建
+     */
+    @Benchmark
+    public Object rejectMalformed() {
+        try {
+            return AuthRequest.parse(malformed);
+        } catch (AuthRequest.AuthException e) {
+            return e;
+        }
+    }
+
+    /** 一批帧的数量 */
+    private static final int BATCH = 256;
+
+    /**
+     * 控制连接上的一段帧：以DATA为主，夹杂额度通告、心跳和恢复状态
+     */
+    @State(Scope.Thread)
+    public static class ControlFrames {
+
+        @Param({"small", "mixed", "chunk"})
+        public String sizes;
+
+        ByteBuffer batch;
+        final Frame.Cursor cursor = new Frame.Cursor();
+        final BufferPool pool = new BufferPool(Frame.HEADER_SIZE + 4096);
+        ByteBuffer tail;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            PacketSizes packetSizes = PacketSizes.of(sizes);
+            byte[] payload = new byte[Frame.MAX_PAYLOAD];
+            new Random(1).nextBytes(payload);
+            ByteBuffer[] frames = new ByteBuffer[BATCH];
+            int total = 0;
+            for (int i = 0; i < BATCH; i++) {
+                if (i % 64 == 63) {
+                    frames[i] = Frame.encodeResume(i, i * 1024L, 65536);
+                } else if (i % 16 == 15) {
+                    frames[i] = Frame.encodePing(System.nanoTime());
+                } else if (i % 4 == 3) {
+                    frames[i] = Frame.encodeWindow(i, 32768);
+                } else {
+                    frames[i] = Frame.encode(Frame.DATA, i, payload, 0, packetSizes.next());
+                }
+                total += frames[i].remaining();
+            }
+            // 与nio连接的读缓冲区一样是堆缓冲区
+            batch = ByteBuffer.allocate(total);
+            for (ByteBuffer frame : frames) {
+                batch.put(frame);
+            }
+            batch.flip();
+        }
+
+        /**
+         * 与NioConnection.writeCopy相同的复制：追加到队尾的缓冲池缓冲区，写满后视为已写出归还
+         */
+        ByteBuffer copy(ByteBuffer payload) {
+            while (payload.hasRemaining()) {
+                if (tail == null || tail.limit() == tail.capacity()) {
+                    pool.release(tail);
+                    tail = pool.lease().limit(0);
+                }
+                BufferPool.append(tail, payload);
+            }
+            return tail;
+        }
+    }
+
+    /**
+     * 原来的解码：每帧分配一个Frame和负载数组，负载数组包装后排队写给玩家
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void decodeFrames(ControlFrames frames, Blackhole blackhole) throws IOException {
+        ByteBuffer buffer = frames.batch.duplicate();
+        Frame frame;
+        while ((frame = Frame.decode(buffer)) != null) {
+            switch (frame.getType()) {
+                case Frame.DATA -> blackhole.consume(ByteBuffer.wrap(frame.getPayload()));
+                case Frame.WINDOW -> blackhole.consume(frame.getWindowIncrement());
+                case Frame.PING -> blackhole.consume(frame.getTimestamp());
+                case Frame.RESUME -> blackhole.consume(frame.getResumeReceived() + frame.getResumeGranted());
+                default -> blackhole.consume(frame.getStreamId());
+            }
+        }
+    }
+
+    /**
+     * 原地解码：字段直接从读缓冲区读取，负载从读缓冲区复制到写出队列的缓冲池缓冲区
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void decodeInPlace(ControlFrames frames, Blackhole blackhole) throws IOException {
+        ByteBuffer buffer = frames.batch.duplicate();
+        Frame.Cursor cursor = frames.cursor;
+        while (cursor.next(buffer)) {
+            switch (cursor.getType()) {
+                case Frame.DATA -> blackhole.consume(frames.copy(cursor.payload()));
+                case Frame.WINDOW -> blackhole.consume(cursor.getWindowIncrement());
+                case Frame.PING -> blackhole.consume(cursor.getTimestamp());
+                case Frame.RESUME -> blackhole.consume(cursor.getResumeReceived() + cursor.getResumeGranted());
+                default -> blackhole.consume(cursor.getStreamId());
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.aweqy.benchmarks;
+
+import com.aweqy.server.Frame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 最小化的隧道客户端：认证后把每个流的DATA帧原样回写，相当于客户端和本地回显服务合为一体
+ * 所有流都通过控制连接多路复用，压测只衡量中继本身的开销
+ */
+public class EchoTunnelClient implements AutoCloseable {
+
+    private final Socket socket;
+    private final int remotePort;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Thread thread;
+    // 每个流已回写、还没有通告给中继的字节数，只在回显线程中访问
+    private final Map<Long, Integer> consumed = new HashMap<>();
+
+    private EchoTunnelClient(Socket socket, int remotePort, DataInputStream in, OutputStream out) {
+        this.socket = socket;
+        this.remotePort = remotePort;
+        this.in = in;
+        this.out = out;
+        this.thread = new Thread(this::echo, "echo-tunnel");
+    }
+
+    /**
+     * 连接中继并认证，remotePort为中继对外开放的端口
+     */
+    public static EchoTunnelClient connect(int relayPort, int remotePort) throws IOException {
+        Socket socket = new Socket("127.0.0.1", relayPort);
+        socket.setTcpNoDelay(true);
+        InputStream rawIn = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        out.write(("AUTH:" + RelayHarness.PASSWORD + ":TCP:127.0.0.1:25565:" + remotePort + "\n").getBytes());
+        out.flush();
+
+        String response = readLine(rawIn);
+        if (response == null || !response.startsWith("OK")) {
+            socket.close();
+            throw new IOException("Authentication failed: " + response);
+        }
+        EchoTunnelClient client = new EchoTunnelClient(socket, remotePort, new DataInputStream(rawIn), out);
+        client.thread.start();
+        return client;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        return b == -1 ? null : line.toString();
+    }
+
+    private void echo() {
+        try {
+            Frame frame;
+            while ((frame = Frame.read(in)) != null) {
+                if (frame.getType() == Frame.DATA) {
+                    ByteBuffer reply = Frame.encode(Frame.DATA, frame.getStreamId(), frame.getPayload(), 0, frame.getPayload().length);
+                    out.write(reply.array(), 0, reply.limit());
+                    // 回写后即视为已消费，每满半个初始窗口向中继通告一次额度
+                    int total = consumed.merge(frame.getStreamId(), frame.getPayload().length, Integer::sum);
+                    if (total >= Frame.INITIAL_WINDOW / 2) {
+                        ByteBuffer window = Frame.encodeWindow(frame.getStreamId(), total);
+                        out.write(window.array(), 0, window.limit());
+                        consumed.put(frame.getStreamId(), 0);
+                    }
+                } else if (frame.getType() == Frame.CLOSE) {
+                    consumed.remove(frame.getStreamId());
+                }
+                // 读缓冲区没有更多数据时再刷出，合并同一批次的回写
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // 连接关闭
+        }
+    }
+
+    /**
+     * 中继为本隧道开放的端口，玩家连接到这里
+     */
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,147 @@
+package com.aweqy.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 中继转发基准：在同一进程中启动中继和回显隧道客户端，每个JMH线程是一个玩家，通过回环连接发送数据包并等待回显
+ * 每次调用是一个完整的往返：玩家 -> 中继 -> 隧道客户端 -> 中继 -> 玩家，覆盖两个方向的转发路径
+ *
+ * roundTrip为吞吐量模式，附带packets（每秒往返数）和megabytes（每秒回显的MB数）两个计数
+ * roundTripLatency为采样模式，结果中包含p50/p99等分位数
+ * 用 -p mode=blocking,nio -p sizes=small,mixed,chunk 选择中继模式和数据包大小分布，-t 设置并发玩家数
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ForwardingBenchmark {
+
+    /** 同一进程中多次启动中继时使用不同的端口 */
+    private static final AtomicInteger NEXT_PORT = new AtomicInteger(24000);
+
+    @Param({"blocking", "nio"})
+    public String mode;
+
+    @Param({"true"})
+    public boolean coalescing;
+
+    private int remotePort;
+    private RelayHarness relay;
+    private EchoTunnelClient tunnel;
+
+    @Setup(Level.Trial)
+    public void startRelay() throws Exception {
+        int port = NEXT_PORT.getAndAdd(2);
+        remotePort = port + 1;
+        relay = RelayHarness.start(port, Map.of(
+                "server.io_mode", mode,
+                "forward.write_coalescing", String.valueOf(coalescing)));
+        tunnel = EchoTunnelClient.connect(port, remotePort);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopRelay() throws Exception {
+        tunnel.close();
+        relay.close();
+    }
+
+    /**
+     * 一个玩家连接及其数据包大小序列
+     */
+    @State(Scope.Thread)
+    public static class Player {
+
+        @Param({"small", "mixed", "chunk"})
+        public String sizes;
+
+        private PacketSizes packetSizes;
+        private Socket socket;
+        private OutputStream out;
+        private DataInputStream in;
+        private byte[] packet;
+        private byte[] reply;
+
+        @Setup(Level.Trial)
+        public void connect(ForwardingBenchmark benchmark) throws IOException {
+            packetSizes = PacketSizes.of(sizes);
+            packet = new byte[packetSizes.max()];
+            reply = new byte[packet.length];
+            socket = new Socket("127.0.0.1", benchmark.remotePort);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new DataInputStream(socket.getInputStream());
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            socket.close();
+        }
+
+        /**
+         * 发送一个数据包并等待完整回显，返回包大小
+         */
+        int roundTrip() throws IOException {
+            int size = packetSizes.next();
+            out.write(packet, 0, size);
+            in.readFully(reply, 0, size);
+            return size;
+        }
+    }
+
+    /**
+     * 吞吐量附带的计数，每轮迭代开始时清零
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Traffic {
+
+        public long packets;
+        private long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            packets = 0;
+            bytes = 0;
+        }
+
+        public double megabytes() {
+            return bytes / 1_000_000.0;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void roundTrip(Player player, Traffic traffic) throws IOException {
+        traffic.bytes += player.roundTrip();
+        traffic.packets++;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int roundTripLatency(Player player) throws IOException {
+        return player.roundTrip();
+    }
+}
@@ -0,0 +1,115 @@
+package com.aweqy.benchmarks;
+
+import com.aweqy.server.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 帧编解码微基准：控制连接上每个数据包都要经过一次编码和一次解码
+ * 分数为每秒处理的帧数，乘以分布的平均大小即为吞吐量
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameCodecBenchmark {
+
+    /** 解码时一批帧的数量 */
+    private static final int BATCH = 256;
+
+    @Param({"small", "mixed", "chunk"})
+    public String sizes;
+
+    private PacketSizes packetSizes;
+    private byte[] payload;
+    private ByteBuffer frameBuffer;
+    private ByteBuffer encodedBatch;
+    private byte[] encodedBytes;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        packetSizes = PacketSizes.of(sizes);
+        payload = new byte[Frame.MAX_PAYLOAD];
+        new Random(1).nextBytes(payload);
+        frameBuffer = ByteBuffer.allocateDirect(Frame.HEADER_SIZE + Frame.MAX_PAYLOAD);
+
+        // 预先编码一批帧，解码基准反复从头读取
+        PacketSizes batchSizes = PacketSizes.of(sizes);
+        int total = 0;
+        int[] lengths = new int[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            lengths[i] = batchSizes.next();
+            total += Frame.HEADER_SIZE + lengths[i];
+        }
+        encodedBatch = ByteBuffer.allocate(total);
+        for (int i = 0; i < BATCH; i++) {
+            encodedBatch.put(Frame.encode(Frame.DATA, i + 1, payload, 0, lengths[i]));
+        }
+        encodedBatch.flip();
+        encodedBytes = encodedBatch.array();
+    }
+
+    /**
+     * 阻塞模式和UDP路径：复制负载到新分配的堆缓冲区
+     */
+    @Benchmark
+    public ByteBuffer encodeCopy() {
+        return Frame.encode(Frame.DATA, 42, payload, 0, packetSizes.next());
+    }
+
+    /**
+     * 转发路径：负载已读到帧头之后，只补写帧头
+     */
+    @Benchmark
+    public ByteBuffer encodeInPlace() {
+        frameBuffer.clear().position(Frame.HEADER_SIZE + packetSizes.next());
+        return Frame.encodeInPlace(Frame.DATA, 42, frameBuffer);
+    }
+
+    /**
+     * nio模式：从读缓冲区中连续解码一批帧
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void decodeBuffer(Blackhole blackhole) throws IOException {
+        ByteBuffer buffer = encodedBatch.duplicate();
+        Frame frame;
+        while ((frame = Frame.decode(buffer)) != null) {
+            blackhole.consume(frame);
+        }
+    }
+
+    /**
+     * 阻塞模式：从输入流中逐帧读取一批帧
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void readStream(Blackhole blackhole) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(encodedBytes));
+        Frame frame;
+        while ((frame = Frame.read(in)) != null) {
+            blackhole.consume(frame);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.aweqy.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 数据包大小分布，按名称或自定义规格生成固定种子的大小序列，压测循环中按顺序取用，不调用随机数
+ *
+ * 预置分布：
+ * small - 16-64字节，移动、心跳等小包
+ * mixed - 80%为16-128字节，15%为256-1024字节，5%为4-16KB，接近游戏中的日常流量
+ * chunk - 8-32KB，区块加载时的大包
+ * 也可以写成 fixed:N，或者 大小:权重 的列表，例如 64:70,512:20,8192:10
+ */
+public final class PacketSizes {
+
+    /** 生成的序列长度，必须是2的幂 */
+    private static final int SEQUENCE_LENGTH = 4096;
+
+    private final String spec;
+    private final int[] sizes;
+    private int next;
+
+    private PacketSizes(String spec, int[] sizes) {
+        this.spec = spec;
+        this.sizes = sizes;
+    }
+
+    /**
+     * 按规格生成大小序列，规格无法识别时抛出IllegalArgumentException
+     */
+    public static PacketSizes of(String spec) {
+        List<Range> ranges = parse(spec);
+        int totalWeight = 0;
+        for (Range range : ranges) {
+            totalWeight += range.weight;
+        }
+        Random random = new Random(spec.hashCode());
+        int[] sizes = new int[SEQUENCE_LENGTH];
+        for (int i = 0; i < sizes.length; i++) {
+            int pick = random.nextInt(totalWeight);
+            for (Range range : ranges) {
+                pick -= range.weight;
+                if (pick < 0) {
+                    sizes[i] = range.min + random.nextInt(range.max - range.min + 1);
+                    break;
+                }
+            }
+        }
+        return new PacketSizes(spec, sizes);
+    }
+
+    private static List<Range> parse(String spec) {
+        List<Range> ranges = new ArrayList<>();
+        switch (spec) {
+            case "small" -> ranges.add(new Range(16, 64, 1));
+            case "mixed" -> {
+                ranges.add(new Range(16, 128, 80));
+                ranges.add(new Range(256, 1024, 15));
+                ranges.add(new Range(4096, 16384, 5));
+            }
+            case "chunk" -> ranges.add(new Range(8192, 32768, 1));
+            default -> {
+                if (spec.startsWith("fixed:")) {
+                    int size = Integer.parseInt(spec.substring(6));
+                    ranges.add(new Range(size, size, 1));
+                } else {
+                    for (String part : spec.split(",")) {
+                        String[] pair = part.split(":");
+                        if (pair.length != 2) {
+                            throw new IllegalArgumentException("Invalid packet size spec: " + spec);
+                        }
+                        int size = Integer.parseInt(pair[0].trim());
+                        ranges.add(new Range(size, size, Integer.parseInt(pair[1].trim())));
+                    }
+                }
+            }
+        }
+        for (Range range : ranges) {
+            if (range.min <= 0 || range.max > 65536 || range.weight <= 0) {
+                throw new IllegalArgumentException("Invalid packet size spec: " + spec);
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * 序列中的下一个大小
+     */
+    public int next() {
+        int size = sizes[next];
+        next = (next + 1) & (SEQUENCE_LENGTH - 1);
+        return size;
+    }
+
+    /**
+     * 分布中的最大值，用于预先分配缓冲区
+     */
+    public int max() {
+        int max = 0;
+        for (int size : sizes) {
+            max = Math.max(max, size);
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    private record Range(int min, int max, int weight) {
+    }
+}
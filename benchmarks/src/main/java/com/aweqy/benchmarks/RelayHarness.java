@@ -0,0 +1,72 @@
+package com.aweqy.benchmarks;
+
+import com.aweqy.server.ServerConfig;
+import com.aweqy.server.ServerMain;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+
+/**
+ * 在当前进程中启动中继服务
+ */
+public class RelayHarness implements AutoCloseable {
+
+    public static final String PASSWORD = "bench";
+
+    private final ServerMain server = new ServerMain();
+    private final int port;
+    private final Thread thread;
+
+    private RelayHarness(int port) {
+        this.port = port;
+        this.thread = new Thread(server::start, "relay-main");
+    }
+
+    /**
+     * 按给定配置启动中继服务，等待端口可连接后返回
+     */
+    public static RelayHarness start(int port, Map<String, String> properties) throws IOException, InterruptedException {
+        ServerConfig.setProperty("server.port", String.valueOf(port));
+        ServerConfig.setProperty("server.password", PASSWORD);
+        // 压测衡量中继本身，不受连接数限制
+        ServerConfig.setProperty("server.max_connections", "0");
+        ServerConfig.setProperty("server.max_connections_per_ip", "0");
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            ServerConfig.setProperty(entry.getKey(), entry.getValue());
+        }
+
+        RelayHarness harness = new RelayHarness(port);
+        harness.thread.start();
+        for (int attempt = 0; attempt < 50; attempt++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return harness;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        harness.close();
+        throw new IOException("Relay did not start on port " + port);
+    }
+
+    /**
+     * 中继的控制端口
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * 停止中继，等待主线程退出；被中断时不再等待，保留中断状态
+     */
+    @Override
+    public void close() {
+        server.stop();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
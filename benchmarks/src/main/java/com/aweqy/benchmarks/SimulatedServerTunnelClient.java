@@ -0,0 +1,183 @@
+package com.aweqy.benchmarks;
+
+import com.aweqy.server.Frame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 模拟Minecraft服务端的隧道客户端：玩家发来的每个请求声明自己的长度和期望的响应长度，读完请求后回写相应字节数
+ * 这样玩家可以只发小包而收到区块数据那样的大包，流量方向和真实游戏一致
+ *
+ * 请求格式：int 请求总长度（含8字节头） | int 响应长度 | 填充
+ * 响应受中继通告的发送额度限制，额度用完时排队，收到WINDOW帧后继续发送
+ * 所有流都通过控制连接多路复用，读写都在同一个线程中
+ */
+public class SimulatedServerTunnelClient implements AutoCloseable {
+
+    /** 请求头长度 */
+    public static final int REQUEST_HEADER = 8;
+
+    private static final byte[] ZEROS = new byte[Frame.MAX_PAYLOAD];
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Thread thread;
+    private final Map<Long, Stream> streams = new HashMap<>();
+    // 响应帧的帧头，负载直接取自ZEROS，不为每个响应分配缓冲区
+    private final ByteBuffer dataHeader = ByteBuffer.allocate(Frame.HEADER_SIZE);
+
+    private SimulatedServerTunnelClient(Socket socket, DataInputStream in, OutputStream out) {
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.thread = new Thread(this::serve, "simulated-server");
+    }
+
+    /**
+     * 连接中继并认证，remotePort为中继对外开放的端口
+     */
+    public static SimulatedServerTunnelClient connect(int relayPort, int remotePort) throws IOException {
+        Socket socket = new Socket("127.0.0.1", relayPort);
+        socket.setTcpNoDelay(true);
+        InputStream rawIn = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        out.write(("AUTH:" + RelayHarness.PASSWORD + ":TCP:127.0.0.1:25565:" + remotePort + "\n").getBytes());
+        out.flush();
+
+        String response = readLine(rawIn);
+        if (response == null || !response.startsWith("OK")) {
+            socket.close();
+            throw new IOException("Authentication failed: " + response);
+        }
+        SimulatedServerTunnelClient client = new SimulatedServerTunnelClient(socket, new DataInputStream(rawIn), out);
+        client.thread.start();
+        return client;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        return b == -1 ? null : line.toString();
+    }
+
+    private void serve() {
+        try {
+            Frame frame;
+            while ((frame = Frame.read(in)) != null) {
+                switch (frame.getType()) {
+                    case Frame.OPEN -> streams.put(frame.getStreamId(), new Stream(frame.getStreamId()));
+                    case Frame.DATA -> {
+                        Stream stream = streams.get(frame.getStreamId());
+                        if (stream != null) {
+                            stream.receive(frame.getPayload());
+                        }
+                    }
+                    case Frame.WINDOW -> {
+                        Stream stream = streams.get(frame.getStreamId());
+                        if (stream != null) {
+                            stream.credit += frame.getWindowIncrement();
+                            stream.sendOwed();
+                        }
+                    }
+                    case Frame.CLOSE -> streams.remove(frame.getStreamId());
+                    case Frame.PING -> write(Frame.encode(Frame.PONG, 0, frame.getPayload(), 0, frame.getPayload().length));
+                    default -> {
+                        // 忽略其他帧
+                    }
+                }
+                // 读缓冲区没有更多数据时再刷出，合并同一批次的响应
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // 连接关闭
+        }
+    }
+
+    private void write(ByteBuffer frame) throws IOException {
+        out.write(frame.array(), frame.arrayOffset(), frame.limit());
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * 一个玩家连接：按请求格式解析收到的字节，记录欠下的响应字节数
+     */
+    private class Stream {
+
+        private final long streamId;
+        private final byte[] header = new byte[REQUEST_HEADER];
+        private int headerFill;
+        private int bodyRemaining;
+        // 中继允许发送的字节数
+        private long credit = Frame.INITIAL_WINDOW;
+        // 还没有发出的响应字节数
+        private long owed;
+        // 已消费、还没有通告给中继的字节数
+        private int consumed;
+
+        Stream(long streamId) {
+            this.streamId = streamId;
+        }
+
+        void receive(byte[] payload) throws IOException {
+            int offset = 0;
+            while (offset < payload.length) {
+                if (headerFill < REQUEST_HEADER) {
+                    int count = Math.min(REQUEST_HEADER - headerFill, payload.length - offset);
+                    System.arraycopy(payload, offset, header, headerFill, count);
+                    headerFill += count;
+                    offset += count;
+                    if (headerFill == REQUEST_HEADER) {
+                        ByteBuffer parsed = ByteBuffer.wrap(header);
+                        bodyRemaining = parsed.getInt() - REQUEST_HEADER;
+                        owed += parsed.getInt();
+                    }
+                }
+                int skip = Math.min(bodyRemaining, payload.length - offset);
+                bodyRemaining -= skip;
+                offset += skip;
+                if (headerFill == REQUEST_HEADER && bodyRemaining == 0) {
+                    // 请求读完，开始下一个请求
+                    headerFill = 0;
+                    sendOwed();
+                }
+            }
+            consumed += payload.length;
+            if (consumed >= Frame.INITIAL_WINDOW / 2) {
+                write(Frame.encodeWindow(streamId, consumed));
+                consumed = 0;
+            }
+        }
+
+        void sendOwed() throws IOException {
+            while (owed > 0 && credit > 0) {
+                int length = (int) Math.min(Math.min(owed, credit), ZEROS.length);
+                dataHeader.clear();
+                dataHeader.putInt(length + 9).put(Frame.DATA).putLong(streamId);
+                out.write(dataHeader.array(), 0, Frame.HEADER_SIZE);
+                out.write(ZEROS, 0, length);
+                owed -= length;
+                credit -= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.aweqy.benchmarks;
+
+import com.aweqy.server.LatencyHistogram;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 端到端浸泡测试：在同一进程中启动中继和模拟服务端的隧道客户端，让N个模拟玩家按Minecraft的流量形态持续收发数据
+ * 每个玩家先经历一次登录突发，然后按TPS发送小包，并不定期请求一批区块数据（大包）
+ * 运行期间定期输出吞吐量、延迟分位数、线程数和内存，结束时输出各类请求的延迟分位数和按玩家统计的p99分布
+ *
+ * 参数：--mode=blocking|virtual|nio --players=200 --tunnels=1 --duration=60 --ramp=10 --report=5 --tps=20
+ *      --login-packets=20 --chunk-interval=10 --chunk-packets=16 --chunk-size=16384
+ */
+public class SoakTest {
+
+    /** 请求类型 */
+    private enum Kind {
+        LOGIN, TICK, CHUNK
+    }
+
+    private final int players;
+    private final int tps;
+    private final int loginPackets;
+    private final int chunkIntervalMillis;
+    private final int chunkBytes;
+
+    private final LongAdder connected = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final Stats total = new Stats();
+    // 每个报告周期换一个新的统计窗口
+    private volatile Stats window = new Stats();
+    private final List<int[]> tickHistograms = new ArrayList<>();
+
+    private volatile boolean running = true;
+
+    private SoakTest(Map<String, String> options) {
+        this.players = Integer.parseInt(options.getOrDefault("players", "200"));
+        this.tps = Integer.parseInt(options.getOrDefault("tps", "20"));
+        this.loginPackets = Integer.parseInt(options.getOrDefault("login-packets", "20"));
+        this.chunkIntervalMillis = Integer.parseInt(options.getOrDefault("chunk-interval", "10")) * 1000;
+        this.chunkBytes = Integer.parseInt(options.getOrDefault("chunk-packets", "16"))
+                * Integer.parseInt(options.getOrDefault("chunk-size", "16384"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = ConcurrentPlayersBenchmark.parseOptions(args);
+        String mode = options.getOrDefault("mode", "nio");
+        int tunnels = Integer.parseInt(options.getOrDefault("tunnels", "1"));
+        int durationSeconds = Integer.parseInt(options.getOrDefault("duration", "60"));
+        int rampSeconds = Integer.parseInt(options.getOrDefault("ramp", "10"));
+        int reportSeconds = Integer.parseInt(options.getOrDefault("report", "5"));
+
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("server.io_mode", mode.equals("nio") ? "nio" : "blocking");
+        properties.put("server.virtual_threads", String.valueOf(mode.equals("virtual")));
+
+        SoakTest test = new SoakTest(options);
+        int port = 25000;
+        List<SimulatedServerTunnelClient> clients = new ArrayList<>();
+        try (RelayHarness relay = RelayHarness.start(port, properties)) {
+            int[] remotePorts = new int[tunnels];
+            for (int i = 0; i < tunnels; i++) {
+                remotePorts[i] = port + 1 + i;
+                clients.add(SimulatedServerTunnelClient.connect(relay.getPort(), remotePorts[i]));
+            }
+            Thread.sleep(200);
+            System.out.printf("mode=%s players=%d tunnels=%d duration=%ds ramp=%ds tps=%d%n",
+                    mode, test.players, tunnels, durationSeconds, rampSeconds, test.tps);
+            test.run(remotePorts, durationSeconds, rampSeconds, reportSeconds);
+        } finally {
+            for (SimulatedServerTunnelClient client : clients) {
+                client.close();
+            }
+        }
+        System.exit(test.failures.sum() == 0 ? 0 : 1);
+    }
+
+    private void run(int[] remotePorts, int durationSeconds, int rampSeconds, int reportSeconds) throws Exception {
+        ExecutorService playerExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        long start = System.nanoTime();
+        for (int i = 0; i < players; i++) {
+            int[] tickHistogram = new int[LatencyHistogram.BUCKET_COUNT];
+            tickHistograms.add(tickHistogram);
+            int remotePort = remotePorts[i % remotePorts.length];
+            // 在预热时间内均匀错开各玩家的连接时间
+            long connectAt = start + TimeUnit.SECONDS.toNanos(rampSeconds) * i / Math.max(1, players);
+            playerExecutor.submit(() -> simulatePlayer(remotePort, connectAt, tickHistogram));
+        }
+
+        System.out.printf("%6s %8s %8s %9s %9s %10s %10s %10s %10s %10s %10s %10s %7s%n",
+                "time", "players", "threads", "heap(MB)", "rss(MB)", "req/s", "down MB/s", "up MB/s",
+                "tick p50", "tick p99", "chunk p50", "chunk p99", "errors");
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long lastReport = start;
+        while (System.nanoTime() < end) {
+            long sleepNanos = Math.min(TimeUnit.SECONDS.toNanos(reportSeconds), end - System.nanoTime());
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, sleepNanos));
+            long now = System.nanoTime();
+            Stats finished = window;
+            window = new Stats();
+            report((now - start) / 1e9, (now - lastReport) / 1e9, finished);
+            lastReport = now;
+        }
+
+        running = false;
+        playerExecutor.shutdownNow();
+        playerExecutor.awaitTermination(10, TimeUnit.SECONDS);
+        summarize((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * 模拟一个玩家：登录突发、按TPS发送小包、不定期加载区块
+     */
+    private void simulatePlayer(int remotePort, long connectAt, int[] tickHistogram) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            TimeUnit.NANOSECONDS.sleep(connectAt - System.nanoTime());
+        } catch (InterruptedException e) {
+            return;
+        }
+        try (Socket socket = new Socket("127.0.0.1", remotePort)) {
+            socket.setTcpNoDelay(true);
+            Player player = new Player(socket);
+            connected.increment();
+            try {
+                // 登录：客户端发几个中等大小的包，服务端回送注册表、配方等数据
+                for (int i = 0; i < loginPackets && running; i++) {
+                    player.request(Kind.LOGIN, random.nextInt(64, 513), random.nextInt(1024, 4097));
+                }
+
+                long tickNanos = TimeUnit.SECONDS.toNanos(1) / tps;
+                long nextTick = System.nanoTime();
+                long nextChunk = nextTick + nextChunkDelay(random);
+                while (running) {
+                    long latency = player.request(Kind.TICK, random.nextInt(16, 65), random.nextInt(32, 257));
+                    tickHistogram[LatencyHistogram.bucketOf(latency / 1000)]++;
+                    if (System.nanoTime() >= nextChunk) {
+                        player.request(Kind.CHUNK, random.nextInt(16, 65), chunkBytes);
+                        nextChunk = System.nanoTime() + nextChunkDelay(random);
+                    }
+                    // 按固定频率发送，落后时不补发
+                    nextTick = Math.max(nextTick + tickNanos, System.nanoTime());
+                    TimeUnit.NANOSECONDS.sleep(nextTick - System.nanoTime());
+                }
+            } finally {
+                connected.decrement();
+            }
+        } catch (IOException e) {
+            if (running) {
+                failures.increment();
+            }
+        } catch (InterruptedException e) {
+            // 测试结束
+        }
+    }
+
+    /** 区块加载间隔在配置值的0.5到1.5倍之间随机 */
+    private long nextChunkDelay(ThreadLocalRandom random) {
+        return TimeUnit.MILLISECONDS.toNanos(random.nextLong(chunkIntervalMillis / 2, chunkIntervalMillis * 3L / 2 + 1));
+    }
+
+    private void report(double elapsed, double seconds, Stats stats) {
+        System.out.printf("%5.0fs %8d %8d %9.1f %9.1f %10.0f %10.2f %10.2f %10s %10s %10s %10s %7d%n",
+                elapsed, connected.sum(), ManagementFactory.getThreadMXBean().getThreadCount(),
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1048576.0, readRssMb(),
+                stats.requests.sum() / seconds, stats.downBytes.sum() / seconds / 1e6, stats.upBytes.sum() / seconds / 1e6,
+                formatMicros(stats.latency(Kind.TICK).percentile(0.50)), formatMicros(stats.latency(Kind.TICK).percentile(0.99)),
+                formatMicros(stats.latency(Kind.CHUNK).percentile(0.50)), formatMicros(stats.latency(Kind.CHUNK).percentile(0.99)),
+                failures.sum());
+    }
+
+    private void summarize(double seconds) {
+        System.out.println();
+        System.out.printf("%-6s %10s %10s %10s %10s %10s%n", "kind", "count", "mean", "p50", "p99", "p999");
+        for (Kind kind : Kind.values()) {
+            LatencyHistogram histogram = total.latency(kind);
+            long count = histogram.getCount();
+            System.out.printf("%-6s %10d %10s %10s %10s %10s%n", kind.name().toLowerCase(), count,
+                    formatMicros(count == 0 ? 0 : histogram.getSumMicros() / count),
+                    formatMicros(histogram.percentile(0.50)), formatMicros(histogram.percentile(0.99)),
+                    formatMicros(histogram.percentile(0.999)));
+        }
+
+        // 每个玩家自己的tick p99，再看这些p99的分布，找出被饿死的个别连接
+        long[] playerP99 = tickHistograms.stream()
+                .mapToLong(histogram -> percentile(histogram, 0.99))
+                .filter(p99 -> p99 >= 0)
+                .sorted()
+                .toArray();
+        if (playerP99.length > 0) {
+            System.out.printf("per-player tick p99: median=%s p95=%s worst=%s (%d players)%n",
+                    formatMicros(playerP99[playerP99.length / 2]),
+                    formatMicros(playerP99[(int) Math.min(playerP99.length - 1, Math.ceil(playerP99.length * 0.95) - 1)]),
+                    formatMicros(playerP99[playerP99.length - 1]), playerP99.length);
+        }
+        System.out.printf("requests=%d down=%.1fMB (%.2f MB/s) up=%.1fMB (%.2f MB/s) failures=%d%n",
+                total.requests.sum(), total.downBytes.sum() / 1e6, total.downBytes.sum() / seconds / 1e6,
+                total.upBytes.sum() / 1e6, total.upBytes.sum() / seconds / 1e6, failures.sum());
+    }
+
+    /**
+     * 玩家自己的计数数组上的分位数（微秒），没有记录时返回-1
+     */
+    private static long percentile(int[] histogram, double fraction) {
+        long count = Arrays.stream(histogram).asLongStream().sum();
+        if (count == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return LatencyHistogram.bucketUpperBound(i);
+            }
+        }
+        return LatencyHistogram.bucketUpperBound(histogram.length - 1);
+    }
+
+    private static String formatMicros(long micros) {
+        if (micros < 1000) {
+            return micros + "us";
+        }
+        if (micros < 1_000_000) {
+            return String.format("%.1fms", micros / 1000.0);
+        }
+        return String.format("%.2fs", micros / 1e6);
+    }
+
+    /**
+     * 读取进程常驻内存，非Linux系统返回-1
+     */
+    private static double readRssMb() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) / 1024.0;
+                }
+            }
+        } catch (IOException e) {
+            // 非Linux系统
+        }
+        return -1;
+    }
+
+    /**
+     * 一个玩家连接：发送请求并读完整个响应，返回耗时（纳秒）
+     */
+    private class Player {
+
+        private final OutputStream out;
+        private final DataInputStream in;
+        private final byte[] request = new byte[1024];
+        private final byte[] response = new byte[64 * 1024];
+
+        Player(Socket socket) throws IOException {
+            this.out = socket.getOutputStream();
+            this.in = new DataInputStream(socket.getInputStream());
+        }
+
+        long request(Kind kind, int requestLength, int responseLength) throws IOException {
+            ByteBuffer.wrap(request).putInt(requestLength).putInt(responseLength);
+            long started = System.nanoTime();
+            out.write(request, 0, requestLength);
+            int remaining = responseLength;
+            while (remaining > 0) {
+                int count = Math.min(remaining, response.length);
+                in.readFully(response, 0, count);
+                remaining -= count;
+            }
+            long latency = System.nanoTime() - started;
+
+            Stats current = window;
+            for (Stats stats : new Stats[]{current, total}) {
+                stats.latency(kind).record(latency);
+                stats.requests.increment();
+                stats.upBytes.add(requestLength);
+                stats.downBytes.add(responseLength);
+            }
+            return latency;
+        }
+    }
+
+    /**
+     * 一段时间内的统计
+     */
+    private static class Stats {
+
+        private final LatencyHistogram[] latencies = new LatencyHistogram[Kind.values().length];
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder upBytes = new LongAdder();
+        private final LongAdder downBytes = new LongAdder();
+
+        Stats() {
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = new LatencyHistogram();
+            }
+        }
+
+        LatencyHistogram latency(Kind kind) {
+            return latencies[kind.ordinal()];
+        }
+    }
+}
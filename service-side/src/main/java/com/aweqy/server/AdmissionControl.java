@@ -0,0 +1,218 @@
+package com.aweqy.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 连接准入控制：限制中继的总连接数和单个来源IP的连接数，隧道客户端的控制/工作连接和外部玩家连接都计入
+ * 计数只用CAS更新，不加锁；超出限制的连接在accept之后立即拒绝，不会为其创建处理线程或借用缓冲区
+ * 配置重新加载后限制立即生效，调低限制不会断开已有连接，只拒绝新连接直到数量降到限制以下
+ */
+public class AdmissionControl {
+
+    /** 计数归零后从表中移除前的标记，看到该值的线程需要重新取计数器 */
+    private static final int RETIRED = -1;
+
+    private static volatile AdmissionControl shared;
+
+    private volatile int maxConnections;
+    private volatile int maxPerAddress;
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger[] byKind = new AtomicInteger[Kind.values().length];
+    private final LongAdder[] admitted = new LongAdder[Kind.values().length];
+    private final ConcurrentMap<InetAddress, AtomicInteger> byAddress = new ConcurrentHashMap<>();
+    private final LongAdder rejectedTotal = new LongAdder();
+    private final LongAdder rejectedPerAddress = new LongAdder();
+
+    /**
+     * 限制为0表示不限制
+     */
+    public AdmissionControl(int maxConnections, int maxPerAddress) {
+        this.maxConnections = maxConnections;
+        this.maxPerAddress = maxPerAddress;
+        for (int i = 0; i < byKind.length; i++) {
+            byKind[i] = new AtomicInteger();
+            admitted[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 全局共享的准入控制，首次使用时按当前配置创建
+     */
+    public static AdmissionControl shared() {
+        AdmissionControl admission = shared;
+        if (admission == null) {
+            synchronized (AdmissionControl.class) {
+                admission = shared;
+                if (admission == null) {
+                    admission = new AdmissionControl(
+                            ServerConfig.getInt("server.max_connections", 100),
+                            ServerConfig.getInt("server.max_connections_per_ip", 50));
+                    AdmissionControl created = admission;
+                    ServerConfig.addListener(changed -> created.setLimits(
+                            ServerConfig.getInt("server.max_connections", 100),
+                            ServerConfig.getInt("server.max_connections_per_ip", 50)));
+                    shared = admission;
+                }
+            }
+        }
+        return admission;
+    }
+
+    /**
+     * 为新连接申请名额，超出限制时抛出AdmissionException，异常信息即返回给对端的错误描述
+     * 连接关闭时必须释放返回的Permit
+     */
+    public Permit admit(InetAddress address, Kind kind) throws AdmissionException {
+        if (!increment(total, maxConnections)) {
+            rejectedTotal.increment();
+            throw new AdmissionException("Server is full");
+        }
+        int perAddress = maxPerAddress;
+        if (perAddress > 0 && !incrementAddress(address, perAddress)) {
+            total.decrementAndGet();
+            rejectedPerAddress.increment();
+            throw new AdmissionException("Too many connections from " + address.getHostAddress());
+        }
+        byKind[kind.ordinal()].incrementAndGet();
+        admitted[kind.ordinal()].increment();
+        return new Permit(address, kind, perAddress > 0);
+    }
+
+    /**
+     * 更新连接数限制，0表示不限制；单个IP的计数只对之后接受的连接生效
+     */
+    public void setLimits(int maxConnections, int maxPerAddress) {
+        this.maxConnections = maxConnections;
+        this.maxPerAddress = maxPerAddress;
+    }
+
+    private static boolean increment(AtomicInteger counter, int limit) {
+        while (true) {
+            int current = counter.get();
+            if (limit > 0 && current >= limit) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean incrementAddress(InetAddress address, int limit) {
+        while (true) {
+            AtomicInteger counter = byAddress.get(address);
+            if (counter == null) {
+                AtomicInteger created = new AtomicInteger();
+                counter = byAddress.putIfAbsent(address, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            int current = counter.get();
+            while (current != RETIRED) {
+                if (current >= limit) {
+                    return false;
+                }
+                if (counter.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+                current = counter.get();
+            }
+            // 计数器正在被移除，帮忙移除后换一个新的计数器
+            byAddress.remove(address, counter);
+        }
+    }
+
+    private void release(Permit permit) {
+        byKind[permit.kind.ordinal()].decrementAndGet();
+        if (permit.countedByAddress) {
+            AtomicInteger counter = byAddress.get(permit.address);
+            if (counter.decrementAndGet() == 0 && counter.compareAndSet(0, RETIRED)) {
+                byAddress.remove(permit.address, counter);
+            }
+        }
+        total.decrementAndGet();
+    }
+
+    /** 当前占用名额的连接数 */
+    public int getActive() {
+        return total.get();
+    }
+
+    /** 当前某一类连接的数量 */
+    public int getActive(Kind kind) {
+        return byKind[kind.ordinal()].get();
+    }
+
+    /** 累计接受的某一类连接数 */
+    public long getAdmitted(Kind kind) {
+        return admitted[kind.ordinal()].sum();
+    }
+
+    /** 因总连接数达到上限被拒绝的次数 */
+    public long getRejectedTotal() {
+        return rejectedTotal.sum();
+    }
+
+    /** 因单个IP连接数达到上限被拒绝的次数 */
+    public long getRejectedPerAddress() {
+        return rejectedPerAddress.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionControl{active=" + getActive() + ", tunnels=" + getActive(Kind.TUNNEL)
+                + ", players=" + getActive(Kind.PLAYER) + ", rejectedTotal=" + getRejectedTotal()
+                + ", rejectedPerAddress=" + getRejectedPerAddress() + "}";
+    }
+
+    /**
+     * 连接类型
+     */
+    public enum Kind {
+        /** 隧道客户端的控制连接和工作连接 */
+        TUNNEL,
+        /** 远程端口上的外部玩家连接 */
+        PLAYER
+    }
+
+    /**
+     * 一个连接占用的名额，重复释放只生效一次
+     */
+    public final class Permit {
+
+        private final InetAddress address;
+        private final Kind kind;
+        // 申请时是否计入了单个IP的连接数，限制在连接存续期间可能被修改
+        private final boolean countedByAddress;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(InetAddress address, Kind kind, boolean countedByAddress) {
+            this.address = address;
+            this.kind = kind;
+            this.countedByAddress = countedByAddress;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                AdmissionControl.this.release(this);
+            }
+        }
+    }
+
+    /**
+     * 连接被拒绝异常，拒绝是常见路径，不填充堆栈
+     */
+    public static class AdmissionException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public AdmissionException(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
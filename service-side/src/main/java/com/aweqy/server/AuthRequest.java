@@ -0,0 +1,154 @@
+package com.aweqy.server;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * 客户端认证请求
+ * 格式：AUTH:password:protocol:localAddress:localPort[:remotePort[:options]]
+ * options为逗号分隔的可选功能，例如deflate,resume,host=mc.example.com；只要求功能不指定端口时remotePort写0，旧版服务端会忽略options
+ */
+public class AuthRequest {
+
+    // 共享端口路由的主机名：DNS标签，最长253个字符
+    private static final Pattern HOSTNAME = Pattern.compile("(?=.{1,253}$)[a-z0-9]([a-z0-9-]{0,61}[a-z0-9])?(\\.[a-z0-9]([a-z0-9-]{0,61}[a-z0-9])?)*");
+
+    private final String password;
+    private final String protocol;
+    private final String localAddress;
+    private final int localPort;
+    private final int remotePort;
+    private final List<String> options;
+
+    private AuthRequest(String password, String protocol, String localAddress, int localPort, int remotePort,
+                        List<String> options) {
+        this.password = password;
+        this.protocol = protocol;
+        this.localAddress = localAddress;
+        this.localPort = localPort;
+        this.remotePort = remotePort;
+        this.options = options;
+    }
+
+    /**
+     * 解析认证消息，格式错误时抛出AuthException，异常信息即返回给客户端的错误描述
+     */
+    public static AuthRequest parse(String message) throws AuthException {
+        if (!message.startsWith("AUTH:")) {
+            throw new AuthException("Invalid authentication format");
+        }
+
+        String[] parts = message.substring(5).split(":");
+        if (parts.length < 4) {
+            throw new AuthException("Insufficient authentication data");
+        }
+
+        int localPort;
+        try {
+            localPort = Integer.parseInt(parts[3]);
+        } catch (NumberFormatException e) {
+            throw new AuthException("Invalid port");
+        }
+
+        int remotePort = 0;
+        if (parts.length > 4) {
+            try {
+                remotePort = Integer.parseInt(parts[4]);
+            } catch (NumberFormatException e) {
+                throw new AuthException("Invalid remote port");
+            }
+        }
+
+        List<String> options = parts.length > 5 ? List.of(parts[5].split(",")) : List.of();
+        return new AuthRequest(parts[0], parts[1], parts[2], localPort, remotePort, options);
+    }
+
+    /**
+     * 校验密码、协议和端口
+     */
+    public void validate(String serverPassword) throws AuthException {
+        if (!password.equals(serverPassword)) {
+            throw new AuthException("Invalid password");
+        }
+        if (!protocol.equals("TCP") && !protocol.equals("UDP")) {
+            throw new AuthException("Invalid protocol");
+        }
+        if (localPort <= 0 || localPort > 65535) {
+            throw new AuthException("Invalid port");
+        }
+        String hostname = getHostname();
+        if (hostname != null) {
+            if (!protocol.equals("TCP")) {
+                throw new AuthException("Hostname routing requires TCP");
+            }
+            if (!HOSTNAME.matcher(hostname).matches()) {
+                throw new AuthException("Invalid hostname");
+            }
+        }
+    }
+
+    /**
+     * 客户端身份：来源地址、协议和本地服务，重连时按身份拿回保留的远程端口
+     */
+    public String identity(String clientHost) {
+        return clientHost + "/" + protocol + "/" + localAddress + ":" + localPort;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public String getLocalAddress() {
+        return localAddress;
+    }
+
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    /**
+     * 客户端请求的远程端口，未指定时返回0
+     */
+    public int getRemotePort() {
+        return remotePort;
+    }
+
+    /**
+     * 客户端是否请求了某个可选功能
+     */
+    public boolean hasOption(String option) {
+        return options.contains(option);
+    }
+
+    /**
+     * 带值的可选功能，例如host=mc.example.com，未指定时返回null
+     */
+    public String getOption(String name) {
+        String prefix = name + "=";
+        for (String option : options) {
+            if (option.startsWith(prefix)) {
+                return option.substring(prefix.length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 请求在共享端口上登记的主机名（已规范化），未指定时返回null
+     */
+    public String getHostname() {
+        String hostname = getOption("host");
+        return hostname == null || hostname.isEmpty() ? null : MinecraftHandshake.normalize(hostname);
+    }
+
+    /**
+     * 认证失败异常
+     */
+    public static class AuthException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public AuthException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.aweqy.server;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 转发用的直接缓冲区池：整块分配直接内存（slab）再切分成固定大小的缓冲区，借出后归还复用
+ * 缓冲区大小为帧头加forward.buffer_size，转发时负载直接读到帧头之后，池的容量随同时借出数量的峰值增长
+ * 重新加载配置改变大小时换上新的缓冲池，旧池借出的缓冲区仍然归还到旧池，供还在使用旧池的转发循环复用
+ */
+public class BufferPool {
+
+    /** 每个slab切分出的缓冲区数量 */
+    private static final int SLAB_BUFFERS = 64;
+
+    private static volatile BufferPool shared;
+
+    private final int bufferSize;
+    private final Deque<ByteBuffer> free = new ConcurrentLinkedDeque<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger highWater = new AtomicInteger();
+    // 改变大小前的缓冲池，只保留上一代，更早的缓冲区归还时直接丢弃
+    private volatile BufferPool previous;
+
+    public BufferPool(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * 全局共享的缓冲池，首次使用时按当前配置创建
+     */
+    public static BufferPool shared() {
+        BufferPool pool = shared;
+        if (pool == null) {
+            synchronized (BufferPool.class) {
+                pool = shared;
+                if (pool == null) {
+                    pool = new BufferPool(configuredSize());
+                    ServerConfig.addListener(changed -> {
+                        if (changed.contains("forward.buffer_size")) {
+                            resize();
+                        }
+                    });
+                    shared = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    private static int configuredSize() {
+        return Frame.HEADER_SIZE + Math.min(ServerConfig.getInt("forward.buffer_size", 4096), Frame.MAX_PAYLOAD);
+    }
+
+    /**
+     * 按当前配置的大小换上新的共享缓冲池，之后借出的缓冲区使用新的大小
+     */
+    private static void resize() {
+        synchronized (BufferPool.class) {
+            BufferPool current = shared;
+            int bufferSize = configuredSize();
+            if (current.bufferSize == bufferSize) {
+                return;
+            }
+            BufferPool resized = new BufferPool(bufferSize);
+            resized.previous = current;
+            current.previous = null;
+            shared = resized;
+        }
+    }
+
+    /**
+     * 借出一个已清空的缓冲区，池中没有空闲缓冲区时分配一个新的slab
+     */
+    public ByteBuffer lease() {
+        ByteBuffer buffer = free.pollFirst();
+        if (buffer != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            buffer = allocateSlab();
+        }
+        int used = inUse.incrementAndGet();
+        highWater.accumulateAndGet(used, Math::max);
+        return buffer.clear();
+    }
+
+    /**
+     * 归还缓冲区，上一代缓冲池的缓冲区转交给它，其他不是本池分配的缓冲区（堆缓冲区或大小不同）会被忽略
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        if (buffer.capacity() != bufferSize) {
+            BufferPool older = previous;
+            if (older != null) {
+                older.release(buffer);
+            }
+            return;
+        }
+        inUse.decrementAndGet();
+        // 后进先出，优先复用刚归还、还在CPU缓存中的缓冲区
+        free.offerFirst(buffer);
+    }
+
+    /**
+     * 把data尽量多地追加到buffer的limit之后，不超过容量，返回复制的字节数
+     * buffer的position到limit是排队待写的数据，追加后limit随之后移
+     */
+    public static int append(ByteBuffer buffer, ByteBuffer data) {
+        int end = buffer.limit();
+        int length = Math.min(data.remaining(), buffer.capacity() - end);
+        buffer.limit(end + length).put(end, data, data.position(), length);
+        data.position(data.position() + length);
+        return length;
+    }
+
+    private ByteBuffer allocateSlab() {
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * SLAB_BUFFERS);
+        allocated.addAndGet(SLAB_BUFFERS);
+        for (int i = 1; i < SLAB_BUFFERS; i++) {
+            free.offerLast(slab.slice(i * bufferSize, bufferSize));
+        }
+        return slab.slice(0, bufferSize);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** 从空闲列表直接借到缓冲区的次数 */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** 需要分配新slab的次数 */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** 已分配的缓冲区总数 */
+    public int getAllocated() {
+        return allocated.get();
+    }
+
+    /** 当前借出的缓冲区数量 */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /** 同时借出数量的峰值 */
+    public int getHighWater() {
+        return highWater.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{bufferSize=" + bufferSize + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", allocated=" + getAllocated() + ", inUse=" + getInUse() + ", highWater=" + getHighWater() + "}";
+    }
+}
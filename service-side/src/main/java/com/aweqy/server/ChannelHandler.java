@@ -0,0 +1,20 @@
+package com.aweqy.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * 注册到EventLoop上的通道处理器，SelectionKey的attachment
+ */
+public interface ChannelHandler {
+
+    /**
+     * 处理就绪事件，在所属EventLoop线程中调用
+     */
+    void handle(SelectionKey key) throws IOException;
+
+    /**
+     * 关闭通道并释放资源，handle抛出异常时也会调用
+     */
+    void close();
+}
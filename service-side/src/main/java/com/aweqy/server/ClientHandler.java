@@ -3,547 +3,1141 @@ package com.aweqy.server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
 
-public class ClientHandler implements Runnable {
+/**
+ * 阻塞模式下一条客户端连接的处理器：认证后成为隧道的控制连接，或者作为工作连接、会话恢复连接交给所属隧道
+ * 协商了会话恢复的隧道在控制连接意外断开后挂起，客户端重连后由恢复连接的线程接着读取控制帧
+ */
+public class ClientHandler implements Runnable, HostnameRouter.Route {
 
     private static final Logger logger = LoggerFactory.getLogger(ClientHandler.class);
-    private final Socket clientSocket;
+    
+    /** 恢复时等待仍未断开的旧控制连接挂起隧道的时间 */
+    private static final long PARK_WAIT_MILLIS = 5000;
+    
+    // 当前的控制连接，会话恢复后换成新的连接
+    private volatile Socket clientSocket;
+    private final AdmissionControl.Permit permit;
     private ExecutorService executorService;
-    private boolean authenticated;
+    private volatile boolean authenticated;
     private String clientId;
     private String protocol;
     private String localAddress;
     private int localPort;
     private int remotePort;
     private ServerSocket remoteServerSocket;
+    private boolean portAllocated;
+    private DatagramChannel remoteDatagramChannel;
+    private UdpSessionTable udpSessions;
+    private volatile FrameLink controlLink;
+    private String token;
+    // 工作连接或会话恢复连接，已交给所属隧道
+    private boolean handedOver;
+    private RelayMetrics.Tunnel metrics;
+    // 认证时协商了压缩，每个流各自压缩
+    private boolean compressing;
+    // 在共享端口上登记的主机名，没有登记时为null
+    private String hostname;
+    // 服务器列表状态缓存，UDP隧道或关闭缓存时为null
+    private StatusCache statusCache;
+    // 远程端口上等待第一个数据包（识别状态查询）的时限
+    private final long handshakeTimeout = ServerConfig.getLong("routing.handshake_timeout", 5000);
+    
+    // 已认证的隧道：令牌 -> 控制连接处理器，工作连接通过令牌找到所属隧道
+    private static final Map<String, ClientHandler> tunnels = new ConcurrentHashMap<>();
+    
+    // 协商了会话恢复的隧道：会话令牌 -> 控制连接处理器
+    private static final Map<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+    
+    // 会话恢复：令牌，没有协商时为null
+    private String resumeToken;
+    // 以下状态在持有sessionLock时修改
+    private final ReentrantLock sessionLock = new ReentrantLock();
+    private final Condition parkedCondition = sessionLock.newCondition();
+    // 控制连接断开后挂起，等待客户端恢复
+    private volatile boolean parked;
+    private IdleTimer.Entry parkEntry;
+    // 隧道已关闭
+    private volatile boolean closed;
+    // 客户端主动断开（CLOSE帧，streamId为0），控制连接关闭后不再挂起
+    private volatile boolean goodbye;
+    // 挂起期间到达的玩家连接，恢复后再打开流
+    private final List<ParkedRoute> parkedRoutes = new ArrayList<>();
+    
+    // 关闭定时心跳时再次读取配置的间隔
+    private static final long KEEPALIVE_RECHECK_MILLIS = 5000;
+    
+    // 写出队列的结束标记
+    private static final Chunk END_OF_STREAM = new Chunk(new byte[0], 0);
+    
+    // 维护外部连接的映射：streamId -> 外部连接
+    private final ConnectionRegistry<ExternalStream> externalConnections = new ConnectionRegistry<>();
     
-    // 维护外部连接的映射：clientId -> externalSocket
-    private Map<String, Socket> externalConnections = new ConcurrentHashMap<>();
+    // 每个流的接收窗口，客户端最多发送这么多还没写给外部连接的数据
+    private final int streamWindow = Math.max(Frame.INITIAL_WINDOW, ServerConfig.getInt("forward.stream_window", 262144));
     
-    public ClientHandler(Socket clientSocket) {
+    // 是否合并写出，关闭时每个帧和每段数据都单独写出
+    private final boolean coalescing = ServerConfig.getBoolean("forward.write_coalescing", true);
+    
+    // 隧道在两个方向上的限速，所有流共用，按RelayMetrics.Direction索引
+    private final RateLimiter[] rateLimits = {RateLimiter.forTunnel(), RateLimiter.forTunnel()};
+    
+    // 开启指标端点时统计写给玩家的数据在队列中停留的时间
+    private final boolean timing = RelayMetrics.shared().isEnabled();
+    
+    // 空闲超时，控制连接空闲一半时间后发出探测，流空闲整个时间后关闭，0表示不检测
+    private final LongSupplier idleTimeout = ServerConfig.longValue("server.timeout", 30000);
+    private volatile IdleTimer.Entry idleEntry;
+    // 最近一次探测的时间，只在定时线程中访问
+    private long probeSentAt = Long.MIN_VALUE;
+    // 定时心跳的间隔，回应用于估计往返时间，0表示只在空闲时探测
+    private final LongSupplier keepaliveInterval = ServerConfig.longValue("keepalive.interval", 5000);
+    
+    // 客户端预先建立的空闲工作连接
+    private final Deque<WorkConnection> idleWorkConnections = new ConcurrentLinkedDeque<>();
+    
+    public ClientHandler(Socket clientSocket, AdmissionControl.Permit permit) {
         this.clientSocket = clientSocket;
-        this.executorService = Executors.newCachedThreadPool();
+        this.permit = permit;
+        this.executorService = ServerConfig.newTaskExecutor();
         this.authenticated = false;
-        this.clientId = "client_" + System.currentTimeMillis();
+        this.clientId = "client_" + ConnectionRegistry.nextId();
     }
     
     @Override
     public void run() {
         try {
-            InputStream in = clientSocket.getInputStream();
-            OutputStream out = clientSocket.getOutputStream();
+            // 合并写已经按批次写出，不再需要Nagle算法等待凑包
+            clientSocket.setTcpNoDelay(coalescing);
+            if (idleTimeout.getAsLong() > 0) {
+                idleEntry = IdleTimer.shared().register(IdleTimer.Kind.CONTROL,
+                        () -> idleTimeout.getAsLong() / 2, this::onControlIdle);
+            }
+            InputStream in = new BufferedInputStream(clientSocket.getInputStream());
+            OutputStream out = new BufferedOutputStream(clientSocket.getOutputStream());
+            
+            // 逐字节读取第一行，避免读走后续的帧数据
+            String message = readLine(in);
+            if (message == null) {
+                return;
+            }
+            
+            // 工作连接：交给所属隧道，由当前线程负责读取
+            if (message.startsWith("WORK:")) {
+                // 空闲的工作连接没有流量，由所属隧道的控制连接检测对端是否存活
+                cancelIdleEntry();
+                handedOver = true;
+                handleWorkConnection(message.substring(5).trim(), in, out);
+                return;
+            }
             
-            byte[] buffer = new byte[1024];
+            // 会话恢复：成为挂起隧道的新控制连接，由当前线程负责读取
+            if (message.startsWith("RESUME:")) {
+                cancelIdleEntry();
+                handedOver = true;
+                handleResume(message.substring(7).trim(), in, out);
+                return;
+            }
             
             // 认证阶段
-            if (!authenticate(in, out, buffer)) {
+            controlLink = new FrameLink(clientSocket, executorService);
+            if (!authenticate(message, out)) {
                 logger.warn("Client authentication failed: {}", clientSocket.getInetAddress().getHostAddress());
                 return;
             }
             
-            logger.info("Client authenticated: {}, Protocol: {}, Local Port: {}", clientId, protocol, localPort);
+            logger.info("Client authenticated: {}, Protocol: {}, Local Port: {}, Compression: {}, Hostname: {}, Resumable: {}",
+                    clientId, protocol, localPort, compressing, hostname, resumeToken != null);
+            keepalive();
             
-            // 处理转发请求
-            if (protocol.equals("TCP")) {
-                handleTCPRequests(in, out, buffer);
-            } else if (protocol.equals("UDP")) {
-                handleUDPRequests(in, out, buffer);
-            }
+            // 认证完成后控制连接上只传输帧
+            serveControl(new DataInputStream(in));
             
         } catch (IOException e) {
             logger.error("Error handling client: {}", e.getMessage());
         } finally {
-            cleanup();
+            if (handedOver) {
+                closeQuietly(clientSocket);
+            } else {
+                endSession();
+            }
+            permit.release();
         }
     }
     
     /**
-     * 认证客户端
+     * 读取控制连接上的帧直到连接关闭
      */
-    private boolean authenticate(InputStream in, OutputStream out, byte[] buffer) throws IOException {
-        int read = in.read(buffer);
-        if (read == -1) {
-            return false;
+    private void serveControl(DataInputStream in) throws IOException {
+        if (protocol.equals("TCP")) {
+            handleTCPRequests(in);
+        } else if (protocol.equals("UDP")) {
+            handleUDPRequests(in);
         }
-        
-        String message = new String(buffer, 0, read).trim();
-        if (!message.startsWith("AUTH:")) {
-            out.write("ERROR: Invalid authentication format\n".getBytes());
-            out.flush();
+    }
+    
+    /**
+     * 控制连接结束：协商了会话恢复的隧道在客户端没有主动断开时挂起，否则关闭整个隧道
+     */
+    private void endSession() {
+        sessionLock.lock();
+        try {
+            if (resumeToken != null && !goodbye && !closed && !parked) {
+                park();
+                return;
+            }
+        } finally {
+            sessionLock.unlock();
+        }
+        cleanup();
+    }
+    
+    /**
+     * 控制连接意外断开：保留远程端口、玩家连接和UDP会话，流挂起，等待客户端恢复，在持有sessionLock时调用
+     */
+    private void park() {
+        parked = true;
+        cancelIdleEntry();
+        closeQuietly(clientSocket);
+        for (ExternalStream stream : externalConnections.values()) {
+            FrameLink previous = stream.suspend();
+            if (previous != null && previous != controlLink) {
+                closeQuietly(previous.socket);
+            }
+        }
+        WorkConnection work;
+        while ((work = idleWorkConnections.poll()) != null) {
+            closeQuietly(work.link.socket);
+        }
+        long grace = ServerConfig.getLong("session.grace_period", 30000);
+        parkEntry = IdleTimer.shared().register(IdleTimer.Kind.SESSION, grace, () -> {
+            expire();
             return false;
+        });
+        RelayMetrics.shared().tunnelParked();
+        parkedCondition.signalAll();
+        logger.info("Tunnel {} lost its client connection, holding port {} and {} streams for {} ms",
+                clientId, remotePort, externalConnections.size(), grace);
+    }
+    
+    /**
+     * 挂起超时，客户端没有回来，在定时线程中调用
+     */
+    private void expire() {
+        sessionLock.lock();
+        try {
+            if (!parked) {
+                return;
+            }
+            parked = false;
+        } finally {
+            sessionLock.unlock();
         }
-        
-        String[] parts = message.substring(5).split(":");
-        if (parts.length < 4) {
-            out.write("ERROR: Insufficient authentication data\n".getBytes());
+        RelayMetrics.shared().parkExpired();
+        logger.info("Tunnel {} was not resumed in time", clientId);
+        cleanup();
+    }
+    
+    /**
+     * 处理会话恢复连接：接到挂起的隧道上，并在当前线程读取新控制连接上的帧
+     */
+    private void handleResume(String sessionToken, InputStream in, OutputStream out) throws IOException {
+        ClientHandler tunnel = sessions.get(sessionToken);
+        if (tunnel == null || !tunnel.resumeSession(clientSocket, out)) {
+            RelayMetrics.shared().resumeFailed();
+            logger.warn("Resume rejected for unknown session from {}", clientSocket.getInetAddress().getHostAddress());
+            out.write("ERROR: Unknown session\n".getBytes());
             out.flush();
-            return false;
+            return;
         }
-        
-        String password = parts[0];
-        protocol = parts[1];
-        localAddress = parts[2];
-        localPort = Integer.parseInt(parts[3]);
-        
-        // 验证密码
-        String serverPassword = ServerConfig.getString("server.password", "default_password");
-        if (!password.equals(serverPassword)) {
-            out.write("ERROR: Invalid password\n".getBytes());
+        try {
+            tunnel.serveControl(new DataInputStream(in));
+        } finally {
+            tunnel.endSession();
+        }
+    }
+    
+    /**
+     * 在新的连接上恢复隧道：先发恢复响应和每个挂起的流的状态，再打开挂起期间到达的玩家连接
+     * 客户端先发现断线时中继这边的旧控制连接可能还没断开，先关闭它并等待隧道挂起；会话已过期时返回false
+     */
+    private boolean resumeSession(Socket socket, OutputStream out) throws IOException {
+        List<ParkedRoute> routes;
+        sessionLock.lock();
+        try {
+            if (!parked && !closed) {
+                closeQuietly(clientSocket);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PARK_WAIT_MILLIS);
+                long remaining;
+                while (!parked && !closed && (remaining = deadline - System.nanoTime()) > 0) {
+                    parkedCondition.awaitNanos(remaining);
+                }
+            }
+            if (!parked) {
+                return false;
+            }
+            parked = false;
+            parkEntry.cancel();
+            RelayMetrics.shared().tunnelResumed();
+            socket.setTcpNoDelay(coalescing);
+            clientSocket = socket;
+            controlLink = new FrameLink(socket, executorService);
+            probeSentAt = Long.MIN_VALUE;
+            if (idleTimeout.getAsLong() > 0) {
+                idleEntry = IdleTimer.shared().register(IdleTimer.Kind.CONTROL,
+                        () -> idleTimeout.getAsLong() / 2, this::onControlIdle);
+            }
+            out.write((okResponse("Resumed") + "\n").getBytes());
             out.flush();
+            for (ExternalStream stream : externalConnections.values()) {
+                controlLink.write(stream.resumeFrame());
+            }
+            controlLink.write(Frame.encode(Frame.RESUME, 0));
+            routes = new ArrayList<>(parkedRoutes);
+            parkedRoutes.clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             return false;
+        } finally {
+            sessionLock.unlock();
         }
-        
-        // 验证协议
-        if (!protocol.equals("TCP") && !protocol.equals("UDP")) {
-            out.write("ERROR: Invalid protocol\n".getBytes());
+        logger.info("Tunnel {} resumed from {} with {} streams", clientId,
+                socket.getInetAddress().getHostAddress(), externalConnections.size());
+        for (ParkedRoute route : routes) {
+            openExternal(route.socket(), route.permit(), route.prefix());
+        }
+        return true;
+    }
+    
+    /**
+     * 认证客户端
+     */
+    private boolean authenticate(String message, OutputStream out) throws IOException {
+        AuthRequest request;
+        try {
+            request = AuthRequest.parse(message.trim());
+            request.validate(ServerConfig.getString("server.password", "default_password"));
+        } catch (AuthRequest.AuthException e) {
+            RelayMetrics.shared().authFailed();
+            out.write(("ERROR: " + e.getMessage() + "\n").getBytes());
             out.flush();
             return false;
         }
         
-        // 验证端口
-        if (localPort <= 0 || localPort > 65535) {
-            out.write("ERROR: Invalid port\n".getBytes());
+        protocol = request.getProtocol();
+        localAddress = request.getLocalAddress();
+        localPort = request.getLocalPort();
+        
+        // 分配并同步绑定远程端口，失败时直接在认证响应中返回错误
+        String identity = request.identity(clientSocket.getInetAddress().getHostAddress());
+        try {
+            remotePort = PortAllocator.shared().acquire(identity, request.getRemotePort(), this::bindRemotePort);
+        } catch (PortAllocator.PortException e) {
+            out.write(("ERROR: " + e.getMessage() + "\n").getBytes());
             out.flush();
             return false;
         }
+        portAllocated = true;
         
-        // 处理远程端口
-        if (parts.length > 4) {
-            // 客户端指定了远程端口
-            try {
-                remotePort = Integer.parseInt(parts[4]);
-            } catch (NumberFormatException e) {
-                out.write("ERROR: Invalid remote port\n".getBytes());
+        // 登记共享端口的主机名，同一个主机名只能属于一条隧道
+        if (request.getHostname() != null) {
+            if (!HostnameRouter.shared().isEnabled()) {
+                logger.warn("Client {} requested hostname {} but no shared port is configured", clientId, request.getHostname());
+            } else if (!HostnameRouter.shared().register(request.getHostname(), this)) {
+                out.write("ERROR: Hostname already in use\n".getBytes());
                 out.flush();
                 return false;
+            } else {
+                hostname = request.getHostname();
             }
-        } else {
-            // 自动分配远程端口（从6000开始）
-            remotePort = 6000 + (int)(System.currentTimeMillis() % 1000);
         }
         
-        // 认证成功
+        // 认证成功，令牌用于客户端建立工作连接
         authenticated = true;
-        String response = "OK: Authenticated as " + clientId + " Remote port: " + remotePort;
-        out.write((response + "\n").getBytes());
+        token = SessionToken.generate();
+        tunnels.put(token, this);
+        RelayMetrics.shared().authSucceeded();
+        metrics = RelayMetrics.shared().registerTunnel(clientId, protocol, remotePort, this::activeStreams);
+        compressing = protocol.equals("TCP") && request.hasOption("deflate")
+                && ServerConfig.getBoolean("compression.enabled", true);
+        long statusTtl = ServerConfig.getLong("status.cache_ttl", 5000);
+        if (protocol.equals("TCP") && statusTtl > 0) {
+            statusCache = new StatusCache(statusTtl, metrics.getStatusPings());
+        }
+        if (request.hasOption("resume") && ServerConfig.getLong("session.grace_period", 30000) > 0) {
+            resumeToken = SessionToken.generate();
+            sessions.put(resumeToken, this);
+        }
+        out.write((okResponse("Authenticated") + "\n").getBytes());
         out.flush();
         
         // 启动远程端口转发服务
-        startRemoteForwardingService();
+        if (protocol.equals("TCP")) {
+            startRemoteForwardingService();
+        } else {
+            startUdpForwardingService();
+        }
         
         return true;
     }
     
+    /**
+     * 认证或恢复成功的响应，会话令牌必须在隧道令牌之前，旧版客户端把Token之后的内容都当作隧道令牌
+     */
+    private String okResponse(String verb) {
+        return "OK: " + verb + " as " + clientId + " Remote port: " + remotePort
+                + (compressing ? " Compression: deflate" : "") + (hostname != null ? " Hostname: " + hostname : "")
+                + (resumeToken != null ? " Resume: " + resumeToken : "") + " Token: " + token;
+    }
+    
+    /**
+     * 在分配到的端口上绑定远程监听，TCP通过通道创建，外部连接可以直接读入缓冲池中的直接缓冲区
+     */
+    private void bindRemotePort(int port) throws IOException {
+        if (protocol.equals("TCP")) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            try {
+                serverChannel.bind(new InetSocketAddress(port), ServerConfig.getInt("server.accept_backlog", 128));
+            } catch (IOException e) {
+                serverChannel.close();
+                throw e;
+            }
+            remoteServerSocket = serverChannel.socket();
+        } else {
+            DatagramChannel datagramChannel = DatagramChannel.open();
+            try {
+                datagramChannel.bind(new InetSocketAddress(port));
+            } catch (IOException e) {
+                datagramChannel.close();
+                throw e;
+            }
+            remoteDatagramChannel = datagramChannel;
+        }
+    }
+    
+    /**
+     * 控制连接空闲：握手未完成时直接关闭；已认证时先发出PING探测，探测后仍没有任何帧到达则关闭
+     * 链路拥塞时测得的往返时间随排队延迟增大，探测后等待的时间还没超过它时再探测一次，不把拥塞误判为断线
+     * 在定时线程中调用，写出探测交给任务线程
+     */
+    private boolean onControlIdle() {
+        RelayMetrics.Tunnel tunnel = metrics;
+        if (authenticated && tunnel != null) {
+            long now = IdleTimer.shared().currentTime();
+            boolean answered = idleEntry.getLastActive() >= probeSentAt;
+            if (answered || now - probeSentAt < tunnel.getRtt().getResponseTimeoutMillis()) {
+                if (answered) {
+                    probeSentAt = now;
+                }
+                // 连接正在关闭时任务线程池已停止
+                return submitPing();
+            }
+        }
+        logger.info("Client {} timed out after {} ms without activity", clientId, idleTimeout.getAsLong());
+        closeQuietly(clientSocket);
+        return false;
+    }
+    
+    /**
+     * 在任务线程中发出带时间戳的心跳，隧道正在关闭时返回false
+     */
+    private boolean submitPing() {
+        try {
+            executorService.submit(() -> {
+                try {
+                    controlLink.write(Frame.encodePing(System.nanoTime()));
+                } catch (IOException e) {
+                    logger.debug("Failed to send keepalive: {}", e.getMessage());
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+    
+    /**
+     * 定时心跳：负载忙时控制连接不会空闲，靠它持续测量往返时间；挂起期间不发送，隧道关闭后停止
+     * 在定时线程中调用
+     */
+    private void keepalive() {
+        if (closed) {
+            return;
+        }
+        long interval = keepaliveInterval.getAsLong();
+        if (interval > 0 && !parked && !submitPing()) {
+            return;
+        }
+        KeepaliveTimer.INSTANCE.schedule(this::keepalive, interval > 0 ? interval : KEEPALIVE_RECHECK_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * 心跳回应：回显的是中继发出时的时间戳，得到一个往返时间样本；客户端自己发起的心跳由客户端计算
+     */
+    private void onPong(Frame frame) {
+        if (frame.hasTimestamp()) {
+            metrics.getRtt().sample(System.nanoTime() - frame.getTimestamp());
+        }
+    }
+    
+    /**
+     * 当前的玩家连接或UDP会话数，在指标线程中调用
+     */
+    private int activeStreams() {
+        UdpSessionTable sessions = udpSessions;
+        return sessions != null ? sessions.size() : externalConnections.size();
+    }
+    
+    private void cancelIdleEntry() {
+        if (idleEntry != null) {
+            idleEntry.cancel();
+        }
+    }
+    
+    /**
+     * 读取一行文本，连接关闭时返回null
+     */
+    private String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                return line.toString();
+            }
+            if (line.size() >= 1024) {
+                throw new IOException("Handshake message too long");
+            }
+            line.write(b);
+        }
+        return null;
+    }
+    
     /**
      * 处理TCP转发请求
      */
-    private void handleTCPRequests(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+    private void handleTCPRequests(DataInputStream in) throws IOException {
         logger.info("Starting to handle TCP requests");
-        while (!clientSocket.isClosed()) {
-            try {
-                logger.debug("Waiting for client data...");
-                int read = in.read(buffer);
-                if (read == -1) {
-                    logger.info("Client closed the connection, read returned -1");
-                    break;
+        FrameLink link = controlLink;
+        Frame frame;
+        while ((frame = Frame.read(in)) != null) {
+            dispatchFrame(frame, link);
+        }
+        logger.info("Client closed the connection");
+    }
+    
+    /**
+     * 处理控制连接或工作连接上收到的帧
+     */
+    private void dispatchFrame(Frame frame, FrameLink link) throws IOException {
+        // 控制连接和工作连接上的任何帧都说明客户端还活着
+        if (idleEntry != null) {
+            idleEntry.touch();
+        }
+        switch (frame.getType()) {
+            case Frame.DATA, Frame.DEFLATE -> {
+                // 只转发给帧所属的外部连接，由该流的写出线程写出，慢速玩家不会阻塞这里
+                ExternalStream stream = externalConnections.get(frame.getStreamId());
+                if (stream == null) {
+                    return;
                 }
-                
-                // 尝试将数据解析为字符串，检查是否是命令
-                String message = null;
+                stream.touch();
+                byte[] payload;
                 try {
-                    message = new String(buffer, 0, read).trim();
-                } catch (Exception e) {
-                    // 无法解析为字符串，可能是二进制数据
+                    payload = frame.getType() == Frame.DEFLATE ? stream.inflate(frame.getPayload()) : frame.getPayload();
+                } catch (IOException e) {
+                    logger.warn("Stream {} sent an invalid compressed frame: {}", frame.getStreamId(), e.getMessage());
+                    closeStream(frame.getStreamId(), true);
+                    return;
                 }
-                
-                if (message != null && message.startsWith("CONNECT")) {
-                    handleTCPConnectRequest(message, out);
-                } else if (message != null && message.equals("PING")) {
-                    // 处理心跳请求
-                    logger.debug("Received PING, sending PONG");
-                    out.write("PONG\n".getBytes());
-                    out.flush();
-                } else if (message != null && message.startsWith("CONNECTED")) {
-                    // 处理客户端连接成功响应
-                    logger.debug("Received CONNECTED response: {}", message);
-                    // 客户端已成功连接到本地服务
-                    // 现在可以开始数据转发
-                } else if (message != null && message.startsWith("CONNECT_ERROR")) {
-                    // 处理客户端连接错误响应
-                    logger.debug("Received CONNECT_ERROR response: {}", message);
-                    // 客户端无法连接到本地服务
-                    // 可以记录错误信息并关闭相关连接
-                } else {
-                    // 处理其他数据（来自客户端本地服务的数据或二进制数据）
-                    // 将数据转发到所有外部连接
-                    // 注意：这是一个简化的实现，实际的实现应该根据客户端ID找到对应的外部连接
-                    logger.debug("Received data from client, length: {}", read);
-                    
-                    // 遍历所有外部连接，将数据转发到每个连接
-                    for (Map.Entry<String, Socket> entry : externalConnections.entrySet()) {
-                        String externalClientId = entry.getKey();
-                        Socket externalSocket = entry.getValue();
-                        
-                        try {
-                            OutputStream externalOut = externalSocket.getOutputStream();
-                            externalOut.write(buffer, 0, read);
-                            externalOut.flush();
-                            logger.debug("Forwarded data to external connection: {}", externalClientId);
-                        } catch (IOException e) {
-                            logger.error("Error forwarding data to external connection {}: {}", externalClientId, e.getMessage());
-                            // 关闭并移除失败的外部连接
-                            try {
-                                externalSocket.close();
-                                externalConnections.remove(externalClientId);
-                            } catch (IOException ex) {
-                                // 忽略错误
-                            }
-                        }
-                    }
+                if (!stream.accept(link, payload)) {
+                    logger.warn("Stream {} exceeded its flow control window", frame.getStreamId());
+                    closeStream(frame.getStreamId(), true);
                 }
-            } catch (IOException e) {
-                logger.error("Error reading from client: {}", e.getMessage());
-                break;
             }
+            case Frame.WINDOW -> {
+                ExternalStream stream = externalConnections.get(frame.getStreamId());
+                if (stream != null) {
+                    stream.grant(link, frame.getWindowIncrement());
+                }
+            }
+            case Frame.CLOSE -> {
+                if (frame.getStreamId() == 0) {
+                    // 客户端主动断开，不再挂起等待恢复
+                    goodbye = true;
+                    return;
+                }
+                // 客户端关闭了流（本地服务断开或连接失败），写完已排队的数据后关闭
+                logger.debug("Client closed stream: {}", frame.getStreamId());
+                ExternalStream stream = externalConnections.get(frame.getStreamId());
+                if (stream != null) {
+                    stream.finish();
+                }
+            }
+            case Frame.PING -> {
+                // 处理心跳请求
+                logger.debug("Received PING, sending PONG");
+                link.write(Frame.encode(Frame.PONG, 0, frame.getPayload(), 0, frame.getPayload().length));
+            }
+            case Frame.PONG -> onPong(frame);
+            case Frame.RESUME -> resumeStream(frame, link);
+            default -> logger.debug("Ignoring frame type {} on stream {}", frame.getType(), frame.getStreamId());
         }
-        logger.info("Stopped handling TCP requests");
     }
     
     /**
-     * 处理TCP连接请求
+     * 客户端恢复会话后发来的流状态：续传客户端也保留着的流；列表结束时关闭客户端已经没有的流
      */
-    private void handleTCPConnectRequest(String message, OutputStream out) {
-        String[] parts = message.split(":");
-        if (parts.length < 2) {
-            sendError(out, "Invalid connect request format");
+    private void resumeStream(Frame frame, FrameLink link) throws IOException {
+        if (frame.getStreamId() == 0) {
+            int unresumed = 0;
+            for (ExternalStream stream : externalConnections.values()) {
+                if (stream.isSuspended()) {
+                    // 客户端不知道这个流，不需要通知
+                    closeStream(stream.streamId, false);
+                    unresumed++;
+                }
+            }
+            if (unresumed > 0) {
+                logger.info("Closed {} streams the client no longer has after resuming tunnel {}", unresumed, clientId);
+            }
             return;
         }
-        
-        String remoteClientId = parts[1];
-        logger.info("Received TCP connect request for: {}", remoteClientId);
-        
-        try {
-            // 注意：服务端不能直接连接客户端的本地服务
-            // 正确的流程是：
-            // 1. 外部用户连接到服务端的转发端口
-            // 2. 服务端通知客户端有新的外部连接
-            // 3. 客户端收到通知后连接到本地服务
-            // 4. 客户端将连接状态通知服务端
-            // 5. 服务端和客户端之间建立数据转发
-            
-            // 这里我们只需要通知客户端有新的外部连接
-            // 客户端会在连接到本地服务后发送CONNECTED消息
-            logger.info("Notifying client about external connection: {}", remoteClientId);
-            
-            // 通知客户端有新的外部连接
-            out.write(("CONNECT:" + remoteClientId + "\n").getBytes());
+        ExternalStream stream = externalConnections.get(frame.getStreamId());
+        if (stream == null || !stream.isSuspended()) {
+            // 中继已经关闭了该流，客户端收到中继的列表后自行关闭
+            return;
+        }
+        if (!stream.resume(link, frame.getResumeReceived(), frame.getResumeGranted())) {
+            logger.warn("Stream {} cannot be resumed: unacknowledged data exceeded the replay buffer", frame.getStreamId());
+            link.write(Frame.encode(Frame.CLOSE, frame.getStreamId()));
+            closeStream(frame.getStreamId(), false);
+        }
+    }
+    
+    /**
+     * 处理工作连接：加入所属隧道的空闲池，并在当前线程读取该连接上的帧
+     */
+    private void handleWorkConnection(String tunnelToken, InputStream in, OutputStream out) throws IOException {
+        ClientHandler tunnel = tunnels.get(tunnelToken);
+        if (tunnel == null) {
+            out.write("ERROR: Unknown tunnel\n".getBytes());
             out.flush();
-            
+            return;
+        }
+        tunnel.serveWorkConnection(clientSocket, new DataInputStream(in));
+    }
+    
+    private void serveWorkConnection(Socket socket, DataInputStream in) throws IOException {
+        WorkConnection work = new WorkConnection(new FrameLink(socket, executorService));
+        idleWorkConnections.add(work);
+        logger.debug("Work connection added to tunnel {}, idle: {}", clientId, idleWorkConnections.size());
+        try {
+            Frame frame;
+            while ((frame = Frame.read(in)) != null) {
+                dispatchFrame(frame, work.link);
+            }
         } catch (IOException e) {
-            logger.error("Error handling TCP connect request: {}", e.getMessage());
-            sendError(out, "Failed to handle connect request: " + e.getMessage());
+            logger.debug("Work connection closed: {}", e.getMessage());
+        } finally {
+            // 工作连接断开，流也随之结束；客户端已经关闭的流由写出线程写完排队的数据后自行关闭
+            // 协商了会话恢复时多半是网络中断：挂起整个隧道，客户端恢复会话后一并续传
+            idleWorkConnections.remove(work);
+            ExternalStream stream = work.streamId != 0 ? externalConnections.get(work.streamId) : null;
+            if (stream != null && !stream.finished) {
+                if (resumeToken == null) {
+                    closeStream(work.streamId, false);
+                } else if (stream.suspend(work.link)) {
+                    closeQuietly(clientSocket);
+                }
+            }
         }
     }
     
+    /**
+     * 取出一个可用的空闲工作连接，没有时返回null
+     */
+    private WorkConnection acquireWorkConnection() {
+        WorkConnection work;
+        while ((work = idleWorkConnections.poll()) != null) {
+            if (!work.link.socket.isClosed()) {
+                return work;
+            }
+        }
+        return null;
+    }
+    
     /**
      * 处理UDP转发请求
      */
-    private void handleUDPRequests(InputStream in, OutputStream out, byte[] buffer) throws IOException {
-        while (!clientSocket.isClosed()) {
-            int read = in.read(buffer);
-            if (read == -1) {
-                break;
+    private void handleUDPRequests(DataInputStream in) throws IOException {
+        FrameLink link = controlLink;
+        Frame frame;
+        while ((frame = Frame.read(in)) != null) {
+            if (idleEntry != null) {
+                idleEntry.touch();
             }
-            
-            String message = new String(buffer, 0, read).trim();
-            if (message.startsWith("UDP_DATA")) {
-                handleUDPData(message, out);
-            } else if (message.equals("PING")) {
-                // 处理心跳请求
-                out.write("PONG\n".getBytes());
-                out.flush();
+            switch (frame.getType()) {
+                case Frame.DATA -> handleUDPData(frame);
+                case Frame.CLOSE -> {
+                    if (frame.getStreamId() == 0) {
+                        // 客户端主动断开，不再挂起等待恢复
+                        goodbye = true;
+                    } else {
+                        udpSessions.remove(frame.getStreamId());
+                    }
+                }
+                case Frame.PING -> {
+                    // 处理心跳请求
+                    link.write(Frame.encode(Frame.PONG, 0, frame.getPayload(), 0, frame.getPayload().length));
+                }
+                case Frame.PONG -> onPong(frame);
+                default -> logger.debug("Ignoring frame type {} on stream {}", frame.getType(), frame.getStreamId());
             }
         }
     }
     
     /**
-     * 处理UDP数据
+     * 处理UDP数据：本地服务的响应按streamId发回对应的玩家地址
      */
-    private void handleUDPData(String message, OutputStream out) {
-        String[] parts = message.split(":", 3);
-        if (parts.length < 3) {
-            sendError(out, "Invalid UDP data format");
+    private void handleUDPData(Frame frame) {
+        UdpSessionTable.Session session = udpSessions.get(frame.getStreamId());
+        if (session == null || remoteDatagramChannel == null) {
             return;
         }
-        
-        String remoteClientId = parts[1];
-        byte[] udpData = parts[2].getBytes();
-        
-        logger.debug("Received UDP data from: {}, Length: {}", remoteClientId, udpData.length);
-        
+        session.touch();
         try {
-            // 这里应该实现UDP数据转发逻辑
-            // 由于UDP是无连接的，需要使用DatagramSocket
-            
-            // 模拟UDP响应
-            String response = "UDP_RESPONSE:" + remoteClientId + ":" + new String(udpData);
-            out.write((response + "\n").getBytes());
-            out.flush();
-            
+            remoteDatagramChannel.send(ByteBuffer.wrap(frame.getPayload()), session.getAddress());
+            metrics.sent(frame.getPayload().length);
         } catch (IOException e) {
-            logger.error("Failed to handle UDP data: {}", e.getMessage());
-            sendError(out, "Failed to handle UDP data: " + e.getMessage());
+            logger.debug("Failed to send UDP data to {}: {}", session.getAddress(), e.getMessage());
         }
     }
     
     /**
-     * 启动远程端口转发服务
+     * 启动UDP转发服务：在远程端口接收玩家数据报，每个玩家地址对应一个流
      */
-    private void startRemoteForwardingService() {
+    private void startUdpForwardingService() {
+        udpSessions = new UdpSessionTable(ServerConfig.longValue("udp.session_timeout", 60000),
+                ServerConfig.longValue("udp.max_sessions", 256), this::onUdpSessionExpired);
+        logger.info("Started UDP forwarding service on port: {}", remotePort);
+        
+        // 接收玩家数据报，封装为DATA帧发给客户端
         executorService.submit(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate(Frame.MAX_PAYLOAD);
             try {
-                // 创建远程端口的ServerSocket
-                remoteServerSocket = new ServerSocket(remotePort);
-                logger.info("Started remote forwarding service on port: {}", remotePort);
-                
-                // 循环接受外部连接
-                while (!clientSocket.isClosed()) {
+                while (!closed) {
+                    buffer.clear();
+                    SocketAddress address = remoteDatagramChannel.receive(buffer);
+                    buffer.flip();
+                    if (parked) {
+                        // 挂起期间没有到客户端的连接，按UDP语义丢弃
+                        continue;
+                    }
+                    UdpSessionTable.Session session = udpSessions.get(address);
+                    boolean opened = false;
                     try {
-                        // 接受外部连接
-                        Socket externalSocket = remoteServerSocket.accept();
-                        String externalClientId = "external_" + System.currentTimeMillis();
-                        logger.info("Received external connection: {} on port: {}", externalClientId, remotePort);
-                        
-                        // 通知客户端有新的外部连接
-                        OutputStream out = clientSocket.getOutputStream();
-                        out.write(("CONNECT:" + externalClientId + "\n").getBytes());
-                        out.flush();
-                        
-                        // 将外部连接添加到映射中
-                        externalConnections.put(externalClientId, externalSocket);
-                        
-                        // 启动双向数据转发
-                        // 从外部连接到客户端
-                        executorService.submit(() -> {
+                        if (session == null) {
                             try {
-                                InputStream externalIn = externalSocket.getInputStream();
-                                OutputStream clientOut = clientSocket.getOutputStream();
-                                
-                                byte[] buffer = new byte[4096];
-                                int read;
-                                while ((read = externalIn.read(buffer)) != -1) {
-                                    clientOut.write(buffer, 0, read);
-                                    clientOut.flush();
-                                }
-                            } catch (IOException e) {
-                                logger.debug("Error forwarding data from external to client: {}", e.getMessage());
-                            } finally {
-                                try {
-                                    externalSocket.close();
-                                    // 从映射中移除外部连接
-                                    externalConnections.remove(externalClientId);
-                                } catch (IOException e) {
-                                    // 忽略错误
-                                }
+                                session = udpSessions.create(address);
+                            } catch (AdmissionControl.AdmissionException e) {
+                                // 超出隧道的UDP会话数上限，丢弃新地址的数据报
+                                logger.debug("Dropped UDP datagram from {}: {}", address, e.getMessage());
+                                continue;
                             }
-                        });
-                        
-                        // 注意：从客户端到外部连接的转发会在客户端发送数据时处理
-                        
+                            logger.debug("New UDP session {} from {}", session.getStreamId(), address);
+                            controlLink.write(Frame.encode(Frame.OPEN, session.getStreamId()));
+                        }
+                        opened = true;
+                        session.touch();
+                        metrics.received(buffer.remaining());
+                        controlLink.write(Frame.encode(Frame.DATA, session.getStreamId(), buffer));
                     } catch (IOException e) {
-                        if (!clientSocket.isClosed()) {
-                            logger.error("Error accepting external connection: {}", e.getMessage());
+                        if (resumeToken == null) {
+                            throw e;
+                        }
+                        // 控制连接断开，隧道即将挂起；OPEN没有发出时去掉会话，恢复后重新打开
+                        if (!opened) {
+                            udpSessions.remove(session.getStreamId());
                         }
-                        break;
                     }
                 }
-                
             } catch (IOException e) {
-                logger.error("Failed to start remote forwarding service on port {}: {}", remotePort, e.getMessage());
-                
-                // 通知客户端端口转发服务启动失败
-                try {
-                    OutputStream out = clientSocket.getOutputStream();
-                    out.write(("ERROR:Failed to start forwarding service on port " + remotePort + "\n").getBytes());
-                    out.flush();
-                } catch (IOException ex) {
-                    // 忽略错误
-                }
-            } finally {
-                try {
-                    if (remoteServerSocket != null && !remoteServerSocket.isClosed()) {
-                        remoteServerSocket.close();
-                    }
-                } catch (IOException e) {
-                    logger.error("Error closing remote server socket: {}", e.getMessage());
-                }
+                logger.debug("UDP forwarding stopped: {}", e.getMessage());
             }
         });
     }
     
     /**
-     * 转发外部连接
+     * UDP会话空闲过期，在定时线程中调用，通知客户端关闭流的写出交给任务线程
      */
-    private void forwardExternalConnection(Socket externalSocket, String externalClientId) {
-        executorService.submit(() -> {
-            try {
-                // 注意：服务端不能直接连接客户端的本地服务
-                // 正确的流程是：
-                // 1. 服务端通知客户端有新的外部连接
-                // 2. 客户端收到通知后连接到本地服务
-                // 3. 客户端将连接状态通知服务端
-                // 4. 服务端和客户端之间建立数据转发
-                
-                // 这里我们需要等待客户端的CONNECTED响应
-                // 但为了简化处理，我们先保持外部连接打开
-                // 实际的连接和转发会在客户端响应后处理
-                
-                // 保持外部连接打开，等待客户端的响应
-                logger.info("Waiting for client to connect to local service...");
-                
-                // 注意：这里的代码需要与客户端的实现配合
-                // 客户端会在连接到本地服务后发送CONNECTED消息
-                // 服务端在handleTCPRequests方法中处理这个消息
-                
-            } catch (Exception e) {
-                logger.error("Error in forwardExternalConnection: {}", e.getMessage());
-                
-                // 关闭外部连接
+    private void onUdpSessionExpired(UdpSessionTable.Session session) {
+        logger.debug("UDP session {} expired", session.getStreamId());
+        try {
+            executorService.submit(() -> {
                 try {
-                    externalSocket.close();
-                } catch (IOException ex) {
-                    // 忽略错误
+                    controlLink.write(Frame.encode(Frame.CLOSE, session.getStreamId()));
+                } catch (IOException e) {
+                    // 连接已关闭
                 }
-            }
-        });
+            });
+        } catch (RejectedExecutionException e) {
+            // 连接正在关闭
+        }
     }
     
     /**
-     * 启动双向数据转发
+     * 启动远程端口转发服务
      */
-    private void startBidirectionalForwarding(Socket sourceSocket, Socket targetSocket, String clientId) {
-        // 从源到目标的转发
+    private void startRemoteForwardingService() {
         executorService.submit(() -> {
             try {
-                InputStream sourceIn = sourceSocket.getInputStream();
-                OutputStream targetOut = targetSocket.getOutputStream();
-                
-                byte[] buffer = new byte[4096];
-                int read;
+                // 远程端口已在认证时绑定
+                logger.info("Started remote forwarding service on port: {}", remotePort);
                 
-                while ((read = sourceIn.read(buffer)) != -1) {
-                    targetOut.write(buffer, 0, read);
-                    targetOut.flush();
+                // 循环接受外部连接，挂起期间照常接受，恢复后再打开流
+                while (!closed) {
+                    try {
+                        // 接受外部连接
+                        Socket externalSocket = remoteServerSocket.accept();
+                        AdmissionControl.Permit playerPermit;
+                        try {
+                            playerPermit = AdmissionControl.shared().admit(externalSocket.getInetAddress(), AdmissionControl.Kind.PLAYER);
+                        } catch (AdmissionControl.AdmissionException e) {
+                            // 玩家连接上没有中继协议，直接关闭
+                            logger.debug("Rejected external connection on port {}: {}", remotePort, e.getMessage());
+                            closeQuietly(externalSocket);
+                            continue;
+                        }
+                        if (statusCache == null) {
+                            openExternal(externalSocket, playerPermit, null);
+                        } else {
+                            // 先读第一个数据包识别状态查询，不阻塞接受线程
+                            executorService.submit(() -> readFirstPacket(externalSocket, playerPermit));
+                        }
+                        
+                    } catch (IOException e) {
+                        if (!closed) {
+                            logger.error("Error accepting external connection: {}", e.getMessage());
+                        }
+                        break;
+                    }
                 }
                 
-            } catch (IOException e) {
-                logger.debug("Error in data forwarding ({}): {}", clientId, e.getMessage());
             } finally {
                 try {
-                    sourceSocket.close();
-                    targetSocket.close();
+                    if (remoteServerSocket != null && !remoteServerSocket.isClosed()) {
+                        remoteServerSocket.close();
+                    }
                 } catch (IOException e) {
-                    // 忽略错误
+                    logger.error("Error closing remote server socket: {}", e.getMessage());
                 }
             }
         });
+    }
+    
+    /**
+     * 为玩家连接打开一个流并启动两个方向的转发，prefix为共享端口路由时已读到、需要先发给客户端的数据
+     * 远程端口的接受线程和共享端口的握手任务都会调用
+     */
+    private void openExternal(Socket externalSocket, AdmissionControl.Permit playerPermit, ByteBuffer prefix) {
+        try {
+            externalSocket.setTcpNoDelay(coalescing);
+        } catch (IOException e) {
+            closeQuietly(externalSocket);
+            playerPermit.release();
+            return;
+        }
+        // 状态查询在缓存有效时由中继应答，否则照常转发并用响应刷新缓存
+        StatusCache.Capture capture = null;
+        MinecraftHandshake handshake = statusCache != null && prefix != null ? parseHandshake(prefix) : null;
+        if (handshake != null) {
+            StatusCache.LocalAnswer answer = statusCache.lookup(handshake);
+            if (answer != null) {
+                answerStatus(externalSocket, playerPermit, prefix.position(prefix.position() + handshake.getLength()), answer);
+                return;
+            }
+            if (handshake.getNextState() == MinecraftHandshake.STATUS) {
+                capture = statusCache.capture(handshake);
+            }
+        }
+        long streamId;
+        ExternalStream stream;
+        sessionLock.lock();
+        try {
+            if (parked) {
+                // 等客户端恢复后再打开流，过期时随隧道关闭
+                parkedRoutes.add(new ParkedRoute(externalSocket, playerPermit, prefix));
+                return;
+            }
+            streamId = ConnectionRegistry.nextId();
+            logger.info("Received external connection: {} on port: {}", streamId, externalSocket.getLocalPort());
+            
+            // 优先绑定一个空闲的工作连接，没有时通过控制连接多路复用
+            WorkConnection work = acquireWorkConnection();
+            stream = new ExternalStream(streamId, externalSocket, playerPermit, work);
+            stream.statusCapture = capture;
+            if (work != null) {
+                work.streamId = streamId;
+            }
+            
+            // 将外部连接添加到映射中，挂起隧道时一并挂起
+            externalConnections.put(streamId, stream);
+        } finally {
+            sessionLock.unlock();
+        }
+        try {
+            // 通知客户端打开新的流，并通告比默认初始窗口多出的接收额度
+            stream.send(stream.link, Frame.encode(Frame.OPEN, streamId));
+            if (streamWindow > Frame.INITIAL_WINDOW) {
+                stream.sendWindowUpdate(streamWindow - Frame.INITIAL_WINDOW);
+            }
+        } catch (IOException e) {
+            closeStream(streamId, false);
+            return;
+        }
         
-        // 从目标到源的转发
-        executorService.submit(() -> {
-            try {
-                InputStream targetIn = targetSocket.getInputStream();
-                OutputStream sourceOut = sourceSocket.getOutputStream();
-                
-                byte[] buffer = new byte[4096];
-                int read;
-                
-                while ((read = targetIn.read(buffer)) != -1) {
-                    sourceOut.write(buffer, 0, read);
-                    sourceOut.flush();
+        try {
+            // 从客户端到外部连接的转发
+            executorService.submit(stream::drain);
+            
+            // 从外部连接到客户端的转发
+            executorService.submit(() -> forwardToClient(stream, prefix));
+        } catch (RejectedExecutionException e) {
+            // 隧道正在关闭
+            closeStream(streamId, false);
+        }
+    }
+    
+    /**
+     * 从外部连接到客户端的转发，在任务线程中运行直到任一方向关闭
+     */
+    private void forwardToClient(ExternalStream stream, ByteBuffer prefix) {
+        long streamId = stream.streamId;
+        // 每帧借用一个缓冲区，数据读到帧头之后原地封装成帧，写出后由link归还
+        BufferPool pool = BufferPool.shared();
+        try {
+            SocketChannel externalChannel = stream.socket.getChannel();
+            // 路由时已经读到的数据先发出，同样占用发送额度
+            while (prefix != null && prefix.hasRemaining()) {
+                int allowed = stream.sendWindow.acquire(prefix.remaining());
+                if (allowed == -1) {
+                    return;
                 }
-                
-            } catch (IOException e) {
-                logger.debug("Error in data forwarding ({}): {}", clientId, e.getMessage());
-            } finally {
-                try {
-                    sourceSocket.close();
-                    targetSocket.close();
-                } catch (IOException e) {
-                    // 忽略错误
+                FrameLink link = stream.record(prefix.slice(prefix.position(), allowed));
+                ByteBuffer buffer = pool.lease();
+                buffer.put(Frame.HEADER_SIZE, prefix, prefix.position(), allowed).position(Frame.HEADER_SIZE + allowed);
+                prefix.position(prefix.position() + allowed);
+                stream.touch();
+                metrics.received(allowed);
+                stream.send(link, Frame.encodeInPlace(Frame.DATA, streamId, buffer));
+            }
+            while (true) {
+                // 客户端的接收窗口用完时停止读取外部连接，等待WINDOW帧
+                int allowed = stream.sendWindow.acquire(pool.getBufferSize() - Frame.HEADER_SIZE);
+                if (allowed == -1) {
+                    break;
+                }
+                ByteBuffer buffer = pool.lease();
+                buffer.position(Frame.HEADER_SIZE).limit(Frame.HEADER_SIZE + allowed);
+                int read = externalChannel.read(buffer);
+                if (read == -1) {
+                    pool.release(buffer);
+                    break;
+                }
+                stream.sendWindow.release(allowed - read);
+                stream.touch();
+                metrics.received(read);
+                long wait = stream.toClientLimit.consume(read);
+                FrameLink link = stream.record(buffer.slice(Frame.HEADER_SIZE, read));
+                // 压缩成功时改为发送压缩后的帧，原缓冲区立即归还
+                ByteBuffer compressed = stream.compressor != null && link != null
+                        ? stream.compressor.deflate(buffer.slice(Frame.HEADER_SIZE, read)) : null;
+                if (compressed != null) {
+                    pool.release(buffer);
+                    stream.send(link, Frame.encodeInPlace(Frame.DEFLATE, streamId, compressed));
+                } else {
+                    stream.send(link, Frame.encodeInPlace(Frame.DATA, streamId, buffer));
+                }
+                // 超出限速时暂停读取外部连接，直到欠额补足
+                if (wait > 0) {
+                    metrics.throttled(RelayMetrics.Direction.TO_CLIENT, read);
+                    TimeUnit.NANOSECONDS.sleep(wait);
                 }
             }
-        });
+        } catch (IOException e) {
+            logger.debug("Error forwarding data from external to client: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeStream(streamId, true);
+        }
     }
     
     /**
-     * 启动TCP数据转发
+     * 读取远程端口上玩家连接的第一批数据后打开流，在任务线程中调用
+     * 超时没有数据时照常转发，对端可能是先发数据的其他协议
      */
-    private void startTCPForwarding(Socket localSocket) {
-        executorService.submit(() -> {
+    private void readFirstPacket(Socket externalSocket, AdmissionControl.Permit playerPermit) {
+        byte[] first = new byte[MinecraftHandshake.MAX_LENGTH + 5];
+        int read;
+        try {
+            externalSocket.setSoTimeout((int) handshakeTimeout);
             try {
-                InputStream clientIn = clientSocket.getInputStream();
-                OutputStream localOut = localSocket.getOutputStream();
-                
-                byte[] buffer = new byte[4096];
-                int read;
-                
-                while ((read = clientIn.read(buffer)) != -1) {
-                    localOut.write(buffer, 0, read);
-                    localOut.flush();
+                read = externalSocket.getInputStream().read(first);
+            } catch (SocketTimeoutException e) {
+                read = 0;
+            }
+            externalSocket.setSoTimeout(0);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read == -1) {
+            closeQuietly(externalSocket);
+            playerPermit.release();
+            return;
+        }
+        openExternal(externalSocket, playerPermit, ByteBuffer.wrap(first, 0, read));
+    }
+    
+    private static MinecraftHandshake parseHandshake(ByteBuffer prefix) {
+        try {
+            return MinecraftHandshake.parse(prefix);
+        } catch (IOException e) {
+            // 不是Minecraft连接，照常转发
+            return null;
+        }
+    }
+    
+    /**
+     * 在中继应答状态查询，不打开到客户端的流；data为握手包之后已读到的数据，在任务线程中调用
+     */
+    private void answerStatus(Socket externalSocket, AdmissionControl.Permit playerPermit, ByteBuffer data,
+                              StatusCache.LocalAnswer answer) {
+        try (externalSocket) {
+            externalSocket.setSoTimeout((int) idleTimeout.getAsLong());
+            InputStream in = externalSocket.getInputStream();
+            OutputStream out = externalSocket.getOutputStream();
+            ByteBuffer received = ByteBuffer.allocate(MinecraftHandshake.MAX_LENGTH + 5).put(data);
+            while (true) {
+                ByteBuffer response = answer.answer(received.flip());
+                received.compact();
+                if (response.hasRemaining()) {
+                    out.write(response.array(), 0, response.limit());
                 }
-                
-            } catch (IOException e) {
-                logger.error("Error in client to local forwarding: {}", e.getMessage());
-            } finally {
-                try {
-                    localSocket.close();
-                } catch (IOException e) {
-                    // 忽略
+                if (answer.isFinished()) {
+                    break;
+                }
+                int read = in.read(received.array(), received.position(), received.remaining());
+                if (read == -1) {
+                    break;
                 }
+                received.position(received.position() + read);
             }
-        });
-        
-        executorService.submit(() -> {
+        } catch (IOException e) {
+            logger.debug("Status ping ended: {}", e.getMessage());
+        } finally {
+            playerPermit.release();
+        }
+    }
+    
+    /**
+     * 共享端口上按主机名路由过来的玩家连接，在握手任务线程中调用；阻塞模式下没有SelectionKey
+     */
+    @Override
+    public void route(SocketChannel channel, SelectionKey key, AdmissionControl.Permit playerPermit, ByteBuffer prefix) {
+        if (closed) {
+            // 路由途中隧道已关闭
+            closeQuietly(channel.socket());
+            playerPermit.release();
+            return;
+        }
+        openExternal(channel.socket(), playerPermit, prefix);
+    }
+    
+    /**
+     * 关闭一个外部连接，notifyClient为true时通知客户端关闭对应的流
+     */
+    private void closeStream(long streamId, boolean notifyClient) {
+        ExternalStream stream = externalConnections.remove(streamId);
+        if (stream == null) {
+            return;
+        }
+        stream.sendWindow.close();
+        stream.discard();
+        closeQuietly(stream.socket);
+        stream.permit.release();
+        stream.cancelIdle();
+        stream.end();
+        // 挂起中的流，恢复时客户端从中继的列表中得知它已关闭
+        FrameLink link = stream.link;
+        if (link == null) {
+            return;
+        }
+        if (notifyClient) {
             try {
-                InputStream localIn = localSocket.getInputStream();
-                OutputStream clientOut = clientSocket.getOutputStream();
-                
-                byte[] buffer = new byte[4096];
-                int read;
-                
-                while ((read = localIn.read(buffer)) != -1) {
-                    clientOut.write(buffer, 0, read);
-                    clientOut.flush();
-                }
-                
+                link.write(Frame.encode(Frame.CLOSE, streamId));
             } catch (IOException e) {
-                logger.error("Error in local to client forwarding: {}", e.getMessage());
-            } finally {
-                try {
-                    localSocket.close();
-                } catch (IOException e) {
-                    // 忽略
-                }
+                logger.debug("Failed to send CLOSE for stream {}: {}", streamId, e.getMessage());
             }
-        });
+        }
+        // 工作连接只服务一个流，流结束后关闭
+        if (link != controlLink) {
+            closeQuietly(link.socket);
+        }
+    }
+    
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // 忽略错误
+        }
     }
     
     /**
      * 发送错误信息
      */
-    private void sendError(OutputStream out, String errorMessage) {
+    private void sendError(String errorMessage) {
         try {
-            out.write(("ERROR:" + errorMessage + "\n").getBytes());
-            out.flush();
+            byte[] message = errorMessage.getBytes();
+            controlLink.write(Frame.encode(Frame.ERROR, 0, message, 0, message.length));
         } catch (IOException e) {
             logger.error("Failed to send error message: {}", e.getMessage());
         }
@@ -553,7 +1147,26 @@ public class ClientHandler implements Runnable {
      * 清理资源
      */
     private void cleanup() {
+        closed = true;
+        cancelIdleEntry();
         try {
+            if (resumeToken != null) {
+                sessions.remove(resumeToken);
+                sessionLock.lock();
+                try {
+                    if (parkEntry != null) {
+                        parkEntry.cancel();
+                    }
+                    for (ParkedRoute route : parkedRoutes) {
+                        closeQuietly(route.socket());
+                        route.permit().release();
+                    }
+                    parkedRoutes.clear();
+                } finally {
+                    sessionLock.unlock();
+                }
+            }
+            
             if (!clientSocket.isClosed()) {
                 clientSocket.close();
             }
@@ -563,6 +1176,48 @@ public class ClientHandler implements Runnable {
                 logger.info("Closed remote forwarding service on port: {}", remotePort);
             }
             
+            if (remoteDatagramChannel != null && remoteDatagramChannel.isOpen()) {
+                remoteDatagramChannel.close();
+                udpSessions.clear();
+                logger.info("Closed UDP forwarding service on port: {}", remotePort);
+            }
+            
+            if (portAllocated) {
+                PortAllocator.shared().release(remotePort);
+            }
+            
+            if (token != null) {
+                tunnels.remove(token);
+            }
+            
+            if (hostname != null) {
+                HostnameRouter.shared().unregister(hostname, this);
+            }
+            
+            if (metrics != null) {
+                if (compressing) {
+                    logger.info("Tunnel {} compression: {}", clientId, metrics.getCompression());
+                }
+                RelayMetrics.shared().unregisterTunnel(metrics);
+            }
+            
+            for (ExternalStream stream : externalConnections.values()) {
+                closeQuietly(stream.socket);
+                FrameLink link = stream.link;
+                if (link != null) {
+                    closeQuietly(link.socket);
+                }
+                stream.permit.release();
+                stream.cancelIdle();
+                stream.end();
+            }
+            externalConnections.clear();
+            
+            WorkConnection work;
+            while ((work = idleWorkConnections.poll()) != null) {
+                closeQuietly(work.link.socket);
+            }
+            
             if (!executorService.isShutdown()) {
                 executorService.shutdown();
             }
@@ -573,4 +1228,524 @@ public class ClientHandler implements Runnable {
             logger.error("Error during cleanup: {}", e.getMessage());
         }
     }
+    
+    /**
+     * 可写出帧的连接（控制连接或工作连接），多个转发线程共享时需要整帧互斥写出
+     * 使用ReentrantLock而不是synchronized，虚拟线程阻塞在写操作上时不会占住载体线程
+     * 开启合并写时帧先进入队列，还有线程在等待写出时由最后一个写入者用一次聚集写写出整批帧
+     */
+    private static class FrameLink {
+        
+        /** 一次聚集写最多包含的缓冲区数量 */
+        private static final int MAX_GATHER = 64;
+        /** 排队数据达到该字节数时立即写出 */
+        private static final int MAX_BATCH_BYTES = 64 * 1024;
+        
+        final Socket socket;
+        private final SocketChannel channel;
+        // 所属隧道的任务执行器，延迟写出在其中进行
+        private final ExecutorService executor;
+        private final boolean coalescing = ServerConfig.getBoolean("forward.write_coalescing", true);
+        private final long batchDelay = ServerConfig.getLong("forward.batch_delay", 0);
+        private final ReentrantLock writeLock = new ReentrantLock();
+        // 以下字段只在持有writeLock时访问
+        private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private long queuedBytes;
+        private boolean flushScheduled;
+        // 开启指标时记录每个排队帧的入队时间
+        private final LatencyHistogram writeLatency;
+        private final TimestampQueue enqueuedAt;
+        
+        FrameLink(Socket socket, ExecutorService executor) {
+            this.socket = socket;
+            this.channel = socket.getChannel();
+            this.executor = executor;
+            RelayMetrics metrics = RelayMetrics.shared();
+            this.writeLatency = metrics.getForwardLatency(RelayMetrics.Direction.TO_CLIENT);
+            this.enqueuedAt = metrics.isEnabled() ? new TimestampQueue() : null;
+        }
+        
+        /**
+         * 写出一个帧，直接缓冲区视为从共享缓冲池借出，写出后由本连接归还
+         */
+        void write(ByteBuffer frame) throws IOException {
+            writeLock.lock();
+            try {
+                queue.add(frame);
+                queuedBytes += frame.remaining();
+                if (enqueuedAt != null) {
+                    enqueuedAt.add(System.nanoTime());
+                }
+                if (coalescing && queuedBytes < MAX_BATCH_BYTES) {
+                    // 后面还有线程在等锁，由它们顺带写出本帧
+                    if (writeLock.hasQueuedThreads()) {
+                        return;
+                    }
+                    if (batchDelay > 0) {
+                        scheduleFlush();
+                        return;
+                    }
+                }
+                drain();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        
+        private void scheduleFlush() {
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+            // 写操作可能阻塞，定时线程只负责唤起，写出交给隧道的任务执行器，按server.virtual_threads运行
+            FlushTimer.INSTANCE.schedule(() -> {
+                try {
+                    executor.submit(this::flushDeferred);
+                } catch (RejectedExecutionException e) {
+                    // 隧道已关闭，连接随之关闭，排队的帧不再写出
+                }
+            }, batchDelay, TimeUnit.MILLISECONDS);
+        }
+        
+        private void flushDeferred() {
+            writeLock.lock();
+            try {
+                flushScheduled = false;
+                drain();
+            } catch (IOException e) {
+                logger.debug("Error flushing frames: {}", e.getMessage());
+                closeQuietly(socket);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        
+        private void drain() throws IOException {
+            BufferPool pool = BufferPool.shared();
+            try {
+                while (!queue.isEmpty()) {
+                    int count = 0;
+                    for (ByteBuffer buffer : queue) {
+                        gather[count++] = buffer;
+                        if (count == gather.length) {
+                            break;
+                        }
+                    }
+                    // 阻塞模式的通道，返回前至少写出部分数据
+                    queuedBytes -= channel.write(gather, 0, count);
+                    Arrays.fill(gather, 0, count, null);
+                    long now = enqueuedAt != null ? System.nanoTime() : 0;
+                    while (!queue.isEmpty() && !queue.peek().hasRemaining()) {
+                        pool.release(queue.poll());
+                        if (enqueuedAt != null) {
+                            writeLatency.record(now - enqueuedAt.poll());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // 连接已不可用，丢弃排队的帧
+                ByteBuffer buffer;
+                while ((buffer = queue.poll()) != null) {
+                    pool.release(buffer);
+                }
+                queuedBytes = 0;
+                if (enqueuedAt != null) {
+                    enqueuedAt.clear();
+                }
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * 定时心跳共用的定时器，只负责调度，写出交给各隧道的任务线程
+     */
+    private static final class KeepaliveTimer {
+        
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "keepalive-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * 延迟写出共用的定时器
+     */
+    private static final class FlushTimer {
+        
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "frame-flush-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * 客户端预先建立的工作连接，绑定一个外部连接后专门承载该流
+     */
+    private static class WorkConnection {
+        
+        final FrameLink link;
+        volatile long streamId;
+        
+        WorkConnection(FrameLink link) {
+            this.link = link;
+        }
+    }
+    
+    /**
+     * 外部连接及承载其数据的连接
+     * 协商了会话恢复时记录发往客户端的数据和两个方向的累计字节数，挂起时link为null，恢复后由新的控制连接承载
+     */
+    private class ExternalStream {
+        
+        final long streamId;
+        final Socket socket;
+        final AdmissionControl.Permit permit;
+        volatile FrameLink link;
+        // 以下字段在持有lock时访问，保证恢复时交换的状态与换用的连接一致
+        private final ReentrantLock lock = new ReentrantLock();
+        // 会话恢复：发往客户端、客户端可能还没收到的数据，没有协商时为null
+        private final ReplayBuffer replay;
+        // 从客户端收到的字节数
+        private long received;
+        // 通告给客户端的累计额度（不含初始窗口），其中已经发出的部分
+        private long granted;
+        private long reportedGranted;
+        // 客户端通告的累计额度（不含初始窗口）
+        private long peerGranted;
+        // 发往客户端方向的额度
+        final SendWindow sendWindow = new SendWindow(Frame.INITIAL_WINDOW);
+        // 两个方向的限速，挂在隧道的桶下
+        final RateLimiter toClientLimit = rateLimits[RelayMetrics.Direction.TO_CLIENT.ordinal()].forConnection();
+        private final RateLimiter toPlayerLimit = rateLimits[RelayMetrics.Direction.TO_PLAYER.ordinal()].forConnection();
+        // 客户端发来、还没有写给外部连接的数据
+        private final BlockingQueue<Chunk> pending = new LinkedBlockingQueue<>();
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private final IdleTimer.Entry idleEntry;
+        // 没有协商压缩时为null
+        final StreamCompressor compressor;
+        // 转发给本地服务器的状态查询，记录响应以刷新状态缓存
+        StatusCache.Capture statusCapture;
+        // 客户端已经关闭了流，不会再有新数据和额度通告
+        volatile boolean finished;
+        
+        ExternalStream(long streamId, Socket socket, AdmissionControl.Permit permit, WorkConnection work) {
+            this.streamId = streamId;
+            this.socket = socket;
+            this.permit = permit;
+            this.link = work != null ? work.link : controlLink;
+            this.replay = resumeToken != null
+                    ? new ReplayBuffer(Math.max(Frame.INITIAL_WINDOW, ServerConfig.getInt("session.replay_buffer", 262144))) : null;
+            this.compressor = compressing ? new StreamCompressor(metrics.getCompression()) : null;
+            this.idleEntry = idleTimeout.getAsLong() > 0
+                    ? IdleTimer.shared().register(IdleTimer.Kind.STREAM, idleTimeout, this::onIdle) : null;
+        }
+        
+        /**
+         * 记录一次收发活动
+         */
+        void touch() {
+            if (idleEntry != null) {
+                idleEntry.touch();
+            }
+        }
+        
+        /**
+         * 两个方向都超时没有数据：唤醒读取线程并关闭外部连接，由读取线程通知客户端并清理
+         */
+        private boolean onIdle() {
+            logger.debug("Stream {} timed out after {} ms without activity", streamId, idleTimeout.getAsLong());
+            sendWindow.close();
+            closeQuietly(socket);
+            return false;
+        }
+        
+        void cancelIdle() {
+            if (idleEntry != null) {
+                idleEntry.cancel();
+            }
+        }
+        
+        /**
+         * 解压客户端发来的DEFLATE帧，隧道没有协商压缩时视为协议错误
+         */
+        byte[] inflate(byte[] payload) throws IOException {
+            if (compressor == null) {
+                throw new IOException("Compression was not negotiated");
+            }
+            return compressor.inflate(payload);
+        }
+        
+        /**
+         * 流已关闭：释放压缩状态，结束状态响应的记录
+         */
+        void end() {
+            if (compressor != null) {
+                compressor.end();
+            }
+            if (statusCapture != null) {
+                statusCapture.finish();
+            }
+        }
+        
+        /**
+         * 记录即将发给客户端的数据，返回应当写出帧的连接，挂起时返回null
+         */
+        FrameLink record(ByteBuffer data) {
+            lock.lock();
+            try {
+                if (replay != null) {
+                    replay.append(data);
+                }
+                return link;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * 写出一个帧，target为null（挂起）时直接归还缓冲区
+         * 协商了会话恢复时连接断开不算流的错误：数据还在重发缓冲区中，关闭控制连接让隧道挂起
+         */
+        void send(FrameLink target, ByteBuffer frame) throws IOException {
+            if (target == null) {
+                BufferPool.shared().release(frame);
+                return;
+            }
+            try {
+                target.write(frame);
+            } catch (IOException e) {
+                if (replay == null) {
+                    throw e;
+                }
+                if (suspend(target)) {
+                    logger.debug("Stream {} lost its link: {}", streamId, e.getMessage());
+                    closeQuietly(clientSocket);
+                }
+            }
+        }
+        
+        /**
+         * 向客户端通告新的额度，挂起时先累计，恢复后补发
+         */
+        void sendWindowUpdate(int increment) throws IOException {
+            FrameLink target;
+            lock.lock();
+            try {
+                granted += increment;
+                target = link;
+                if (target != null) {
+                    reportedGranted = granted;
+                }
+            } finally {
+                lock.unlock();
+            }
+            send(target, Frame.encodeWindow(streamId, increment));
+        }
+        
+        /**
+         * 客户端经link发来的数据，来自已经换掉的连接时丢弃，客户端恢复后会重发
+         * 超出通告的窗口时返回false
+         */
+        boolean accept(FrameLink from, byte[] payload) {
+            lock.lock();
+            try {
+                if (from != link) {
+                    return true;
+                }
+                received += payload.length;
+                return enqueue(payload);
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * 客户端经link通告的额度
+         */
+        void grant(FrameLink from, int increment) {
+            lock.lock();
+            try {
+                if (from != link) {
+                    return;
+                }
+                peerGranted += increment;
+                sendWindow.grant(increment);
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * 挂起：不再使用当前连接，返回原来的连接
+         */
+        FrameLink suspend() {
+            lock.lock();
+            try {
+                FrameLink previous = link;
+                link = null;
+                return previous;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * 只在仍由expected承载时挂起，返回是否挂起
+         */
+        boolean suspend(FrameLink expected) {
+            lock.lock();
+            try {
+                if (link != expected) {
+                    return false;
+                }
+                link = null;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        boolean isSuspended() {
+            return link == null;
+        }
+        
+        /**
+         * 恢复时发给客户端的流状态，之后新增的额度在恢复后补发
+         */
+        ByteBuffer resumeFrame() {
+            lock.lock();
+            try {
+                reportedGranted = granted;
+                return Frame.encodeResume(streamId, received, granted);
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * 按客户端的流状态续传：重发客户端没有收到的数据，补上丢失的额度通告，之后由link承载
+         * 没收到的数据已被挤出重发缓冲区时返回false
+         */
+        boolean resume(FrameLink newLink, long peerReceived, long peerGrantedTotal) throws IOException {
+            lock.lock();
+            try {
+                ByteBuffer missing = replay != null ? replay.from(peerReceived) : null;
+                if (missing == null) {
+                    return false;
+                }
+                while (missing.hasRemaining()) {
+                    int length = Math.min(missing.remaining(), Frame.MAX_PAYLOAD);
+                    newLink.write(Frame.encode(Frame.DATA, streamId, missing.slice(missing.position(), length)));
+                    missing.position(missing.position() + length);
+                }
+                if (granted > reportedGranted) {
+                    newLink.write(Frame.encodeWindow(streamId, (int) (granted - reportedGranted)));
+                    reportedGranted = granted;
+                }
+                sendWindow.grant((int) (peerGrantedTotal - peerGranted));
+                peerGranted = peerGrantedTotal;
+                link = newLink;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * 排队等待写出，客户端发送的数据超出通告的窗口时返回false
+         */
+        boolean enqueue(byte[] payload) {
+            if (statusCapture != null) {
+                statusCapture.feed(ByteBuffer.wrap(payload));
+            }
+            if (pendingBytes.addAndGet(payload.length) > streamWindow) {
+                return false;
+            }
+            pending.add(new Chunk(payload, timing ? System.nanoTime() : 0));
+            return true;
+        }
+        
+        /**
+         * 客户端关闭了流，写完已排队的数据后关闭
+         */
+        void finish() {
+            finished = true;
+            pending.add(END_OF_STREAM);
+        }
+        
+        /**
+         * 丢弃排队的数据并让写出线程退出
+         */
+        void discard() {
+            pending.clear();
+            pending.add(END_OF_STREAM);
+        }
+        
+        /**
+         * 写出线程：按顺序把数据写给外部连接，每写出半个窗口向客户端通告一次额度
+         * 超出限速时暂停写出直到欠额补足，客户端用完额度后随之暂停发送
+         */
+        void drain() {
+            int consumed = 0;
+            try {
+                // 队列中还有数据时先写进缓冲区，队列取空时再一次性刷新
+                OutputStream externalOut = new BufferedOutputStream(socket.getOutputStream(), Frame.MAX_PAYLOAD);
+                LatencyHistogram writeLatency = RelayMetrics.shared().getForwardLatency(RelayMetrics.Direction.TO_PLAYER);
+                // 已写进缓冲区、还没有刷新的数据的入队时间
+                TimestampQueue unflushed = new TimestampQueue();
+                Chunk chunk;
+                while ((chunk = pending.take()) != END_OF_STREAM) {
+                    byte[] payload = chunk.payload();
+                    externalOut.write(payload);
+                    touch();
+                    long wait = toPlayerLimit.consume(payload.length);
+                    if (timing) {
+                        unflushed.add(chunk.queuedAt());
+                    }
+                    if (!coalescing || pending.isEmpty() || wait > 0) {
+                        externalOut.flush();
+                        long now = timing ? System.nanoTime() : 0;
+                        long queuedAt;
+                        while ((queuedAt = unflushed.poll()) != -1) {
+                            writeLatency.record(now - queuedAt);
+                        }
+                    }
+                    metrics.sent(payload.length);
+                    pendingBytes.addAndGet(-payload.length);
+                    consumed += payload.length;
+                    if (wait > 0) {
+                        metrics.throttled(RelayMetrics.Direction.TO_PLAYER, payload.length);
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    if (consumed >= streamWindow / 2 && !finished) {
+                        sendWindowUpdate(consumed);
+                        consumed = 0;
+                    }
+                }
+                externalOut.flush();
+                closeStream(streamId, false);
+            } catch (IOException e) {
+                logger.debug("Error forwarding data to external connection {}: {}", streamId, e.getMessage());
+                closeStream(streamId, true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * 挂起期间到达的玩家连接
+     */
+    private record ParkedRoute(Socket socket, AdmissionControl.Permit permit, ByteBuffer prefix) {
+    }
+    
+    /**
+     * 等待写给外部连接的一段数据及其入队时间（纳秒，未开启指标时为0）
+     */
+    private record Chunk(byte[] payload, long queuedAt) {
+    }
 }
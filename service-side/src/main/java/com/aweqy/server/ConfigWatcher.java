@@ -0,0 +1,85 @@
+package com.aweqy.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 监视配置文件所在目录，配置文件被修改或替换后重新加载配置
+ * 编辑器保存一次可能产生多个事件，收到事件后等待一段时间没有新事件再加载，只加载一次
+ */
+public class ConfigWatcher implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConfigWatcher.class);
+
+    /** 最后一个事件之后等待的时间 */
+    private static final long DEBOUNCE_MILLIS = 300;
+
+    private final Path file;
+    private final WatchService watchService;
+    private Thread thread;
+
+    public ConfigWatcher(Path file) throws IOException {
+        this.file = file;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        // 监视目录而不是文件，编辑器先写临时文件再改名替换时也能收到事件
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    public void start() {
+        thread = new Thread(this, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = drain(key);
+                // 合并短时间内的连续事件
+                while ((key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= drain(key);
+                }
+                if (changed) {
+                    ServerConfig.reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // 服务器关闭
+        }
+    }
+
+    /**
+     * 取出一个WatchKey上的事件，返回其中是否有配置文件的变化
+     */
+    private boolean drain(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.error("Error closing config watcher: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.aweqy.server;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 连接注册表：id由全局原子计数器单调递增分配，整个中继内不会重复
+ * 存活连接保存在以原始long为键的开放寻址哈希表中，查找不装箱、不加锁，写入和删除串行执行
+ * 每个数据帧都按streamId经过这里路由
+ */
+public class ConnectionRegistry<T> {
+
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    /** 空槽位的键，id从1开始分配 */
+    private static final long EMPTY = 0;
+    private static final int MIN_CAPACITY = 16;
+
+    private volatile Table table = new Table(MIN_CAPACITY);
+    private volatile int size;
+    // 已使用的槽位数，包括删除后留下的墓碑，只在持有锁时访问
+    private int used;
+
+    /**
+     * 分配一个新的连接id
+     */
+    public static long nextId() {
+        return NEXT_ID.incrementAndGet();
+    }
+
+    /**
+     * 按id查找连接，不存在时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public T get(long id) {
+        Table current = table;
+        long[] keys = current.keys;
+        int mask = keys.length - 1;
+        for (int i = indexFor(id, mask); ; i = (i + 1) & mask) {
+            long key = (long) KEYS.getAcquire(keys, i);
+            if (key == id) {
+                // 槽位被删除或者写入尚未完成时值为null
+                return (T) VALUES.getAcquire(current.values, i);
+            }
+            if (key == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 注册连接，id已存在时替换原来的连接
+     */
+    public synchronized void put(long id, T connection) {
+        if (id == EMPTY || connection == null) {
+            throw new IllegalArgumentException("Invalid connection id or connection");
+        }
+        if ((used + 1) * 2 > table.keys.length) {
+            rehash(size + 1);
+        }
+        Table current = table;
+        long[] keys = current.keys;
+        int mask = keys.length - 1;
+        int tombstone = -1;
+        int i = indexFor(id, mask);
+        for (; ; i = (i + 1) & mask) {
+            long key = keys[i];
+            if (key == id) {
+                if (current.values[i] == null) {
+                    size++;
+                }
+                VALUES.setRelease(current.values, i, connection);
+                return;
+            }
+            if (key == EMPTY) {
+                break;
+            }
+            if (tombstone == -1 && current.values[i] == null) {
+                tombstone = i;
+            }
+        }
+        if (tombstone != -1) {
+            i = tombstone;
+        } else {
+            used++;
+        }
+        // 先写键再写值，读者看到键但值为null时视为不存在
+        KEYS.setRelease(keys, i, id);
+        VALUES.setRelease(current.values, i, connection);
+        size++;
+    }
+
+    /**
+     * 移除连接并返回，不存在时返回null，槽位留作墓碑，下次扩容或重建时清理
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T remove(long id) {
+        Table current = table;
+        long[] keys = current.keys;
+        int mask = keys.length - 1;
+        for (int i = indexFor(id, mask); ; i = (i + 1) & mask) {
+            long key = keys[i];
+            if (key == id) {
+                T connection = (T) current.values[i];
+                if (connection != null) {
+                    VALUES.setRelease(current.values, i, null);
+                    size--;
+                }
+                return connection;
+            }
+            if (key == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 当前所有存活连接的快照
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> values() {
+        Table current = table;
+        List<T> connections = new ArrayList<>(size);
+        for (int i = 0; i < current.values.length; i++) {
+            Object connection = VALUES.getAcquire(current.values, i);
+            if (connection != null) {
+                connections.add((T) connection);
+            }
+        }
+        return connections;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized void clear() {
+        table = new Table(MIN_CAPACITY);
+        size = 0;
+        used = 0;
+    }
+
+    /**
+     * 按存活连接数重建哈希表，丢弃墓碑，新表发布之前读者继续使用旧表
+     */
+    private void rehash(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 4) {
+            capacity <<= 1;
+        }
+        Table current = table;
+        Table rebuilt = new Table(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < current.keys.length; i++) {
+            Object connection = current.values[i];
+            if (connection == null) {
+                continue;
+            }
+            int j = indexFor(current.keys[i], mask);
+            while (rebuilt.keys[j] != EMPTY) {
+                j = (j + 1) & mask;
+            }
+            rebuilt.keys[j] = current.keys[i];
+            rebuilt.values[j] = connection;
+        }
+        used = size;
+        table = rebuilt;
+    }
+
+    private static int indexFor(long id, int mask) {
+        // 斐波那契散列，连续的id分散到不同槽位
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    private static final class Table {
+
+        final long[] keys;
+        final Object[] values;
+
+        Table(int capacity) {
+            this.keys = new long[capacity];
+            this.values = new Object[capacity];
+        }
+    }
+}
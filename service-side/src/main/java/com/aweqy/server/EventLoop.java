@@ -0,0 +1,213 @@
+package com.aweqy.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 单线程事件循环，一个Selector驱动注册在其上的所有通道
+ * 通道的读写和状态只在本线程中访问，其他线程通过execute提交任务
+ */
+public final class EventLoop implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventLoop.class);
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // 定时任务，只在事件循环线程中访问
+    private final PriorityQueue<ScheduledTask> scheduledTasks =
+            new PriorityQueue<>(Comparator.comparingLong(ScheduledTask::deadline));
+    // 本轮写入后等待合并写出的连接，在每轮循环末尾统一刷新
+    private final ArrayDeque<NioConnection> pendingFlushes = new ArrayDeque<>();
+    // 聚集写使用的缓冲区数组，同一时刻只有一个连接在写
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[NioConnection.MAX_GATHER];
+    private volatile boolean running;
+
+    public EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * 当前线程是否为本事件循环线程
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * 提交任务到事件循环线程执行
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 延迟指定毫秒后在事件循环线程中执行任务
+     */
+    public void schedule(Runnable task, long delayMillis) {
+        ScheduledTask scheduled = new ScheduledTask(System.currentTimeMillis() + delayMillis, task);
+        if (inEventLoop()) {
+            scheduledTasks.add(scheduled);
+        } else {
+            execute(() -> scheduledTasks.add(scheduled));
+        }
+    }
+
+    /**
+     * 在本轮循环末尾刷新连接的排队数据，必须在事件循环线程中调用
+     */
+    void flushLater(NioConnection connection) {
+        pendingFlushes.add(connection);
+    }
+
+    ByteBuffer[] gatherBuffers() {
+        return gatherBuffers;
+    }
+
+    /**
+     * 注册通道，必须在事件循环线程中调用
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, ChannelHandler handler) throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(selector, ops, handler);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (!tasks.isEmpty()) {
+                    selector.selectNow();
+                } else if (scheduledTasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    long timeout = scheduledTasks.peek().deadline() - System.currentTimeMillis();
+                    if (timeout > 0) {
+                        selector.select(timeout);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+                processSelectedKeys();
+                runTasks();
+                runScheduledTasks();
+                flushPending();
+            } catch (IOException e) {
+                logger.error("Error in event loop {}: {}", thread.getName(), e.getMessage());
+            }
+        }
+        closeAll();
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+            ChannelHandler handler = (ChannelHandler) key.attachment();
+            if (!key.isValid()) {
+                continue;
+            }
+            try {
+                handler.handle(key);
+            } catch (IOException e) {
+                logger.debug("Channel error: {}", e.getMessage());
+                handler.close();
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error in channel handler", e);
+                handler.close();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error in event loop task", e);
+            }
+        }
+    }
+
+    private void runScheduledTasks() {
+        long now = System.currentTimeMillis();
+        while (!scheduledTasks.isEmpty() && scheduledTasks.peek().deadline() <= now) {
+            try {
+                scheduledTasks.poll().task().run();
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error in scheduled task", e);
+            }
+        }
+    }
+
+    private void flushPending() {
+        NioConnection connection;
+        while ((connection = pendingFlushes.poll()) != null) {
+            try {
+                connection.flushDeferred();
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error flushing connection", e);
+                connection.close();
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            ((ChannelHandler) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.error("Error closing selector: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 停止事件循环，关闭所有注册的通道
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * 事件循环正在停止，关闭中的连接不再保留状态
+     */
+    public boolean isShuttingDown() {
+        return !running;
+    }
+
+    /**
+     * 等待事件循环线程退出
+     */
+    public void awaitTermination() throws InterruptedException {
+        thread.join();
+    }
+
+    private record ScheduledTask(long deadline, Runnable task) {
+    }
+}
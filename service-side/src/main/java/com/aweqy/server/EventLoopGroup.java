@@ -0,0 +1,56 @@
+package com.aweqy.server;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 固定数量的事件循环，新连接按轮询方式分配
+ */
+public class EventLoopGroup {
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public EventLoopGroup(int size, String namePrefix) throws IOException {
+        loops = new EventLoop[size];
+        for (int i = 0; i < size; i++) {
+            loops[i] = new EventLoop(namePrefix + "-" + i);
+        }
+    }
+
+    public void start() {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * 轮询选择下一个事件循环
+     */
+    public EventLoop next() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * 按下标取事件循环，用于把连接固定分配到某个分片
+     */
+    public EventLoop get(int index) {
+        return loops[index];
+    }
+
+    public int size() {
+        return loops.length;
+    }
+
+    public void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    public void awaitTermination() throws InterruptedException {
+        for (EventLoop loop : loops) {
+            loop.awaitTermination();
+        }
+    }
+}
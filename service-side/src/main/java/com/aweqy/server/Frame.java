@@ -0,0 +1,310 @@
+package com.aweqy.server;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 中继与客户端之间的二进制帧
+ * 格式：length(4) | type(1) | streamId(8) | payload，length为type之后的字节数
+ * 认证完成后控制连接上只传输帧，每个外部连接对应一个streamId
+ */
+public class Frame {
+
+    public static final byte DATA = 0;
+    public static final byte OPEN = 1;
+    public static final byte CLOSE = 2;
+    /** 心跳，负载为发送方的单调时间戳(8)，对端用PONG原样返回，发送方据此计算往返时间；旧版本发来的心跳没有负载 */
+    public static final byte PING = 3;
+    public static final byte PONG = 4;
+    public static final byte WINDOW = 5;
+    public static final byte ERROR = 6;
+    /** 压缩的DATA帧，负载为原始长度(4) | zlib数据，只在认证时协商了压缩的隧道上出现 */
+    public static final byte DEFLATE = 7;
+    /**
+     * 会话恢复时交换的流状态，负载为已收到的字节数(8) | 累计通告的额度(8)，对端据此重发丢失的数据、补回丢失的额度
+     * streamId为0、没有负载时表示列表结束，只在认证时协商了会话恢复的隧道上出现
+     */
+    public static final byte RESUME = 8;
+
+    /** 帧头长度 */
+    public static final int HEADER_SIZE = 13;
+    /** 单帧最大负载 */
+    public static final int MAX_PAYLOAD = 64 * 1024;
+    /** 每个流双方默认的初始接收窗口，更大的窗口在流打开后通过WINDOW帧通告 */
+    public static final int INITIAL_WINDOW = 64 * 1024;
+
+    private final byte type;
+    private final long streamId;
+    private final byte[] payload;
+
+    public Frame(byte type, long streamId, byte[] payload) {
+        this.type = type;
+        this.streamId = streamId;
+        this.payload = payload;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public long getStreamId() {
+        return streamId;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * 编码一个帧，返回可直接写出的缓冲区
+     */
+    public static ByteBuffer encode(byte type, long streamId, byte[] payload, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        buffer.putInt(length + 9).put(type).putLong(streamId).put(payload, offset, length);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 编码一个帧，负载取自data的剩余字节
+     */
+    public static ByteBuffer encode(byte type, long streamId, ByteBuffer data) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + data.remaining());
+        buffer.putInt(data.remaining() + 9).put(type).putLong(streamId).put(data);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 负载已写在buffer的HEADER_SIZE之后（position为负载末尾）时，在开头补写帧头并flip，避免复制负载
+     */
+    public static ByteBuffer encodeInPlace(byte type, long streamId, ByteBuffer buffer) {
+        int length = buffer.position() - HEADER_SIZE;
+        buffer.putInt(0, length + 9).put(4, type).putLong(5, streamId);
+        return buffer.flip();
+    }
+
+    /**
+     * 编码一个WINDOW帧，负载为接收方新增的额度（字节数）
+     */
+    public static ByteBuffer encodeWindow(long streamId, int increment) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4);
+        buffer.putInt(13).put(WINDOW).putLong(streamId).putInt(increment);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * WINDOW帧携带的额度增量
+     */
+    public int getWindowIncrement() {
+        return payload.length >= 4 ? ByteBuffer.wrap(payload).getInt() : 0;
+    }
+
+    /**
+     * 编码一个RESUME帧，received为已收到的该流数据字节数，granted为累计向对端通告的额度（含初始窗口之外的通告）
+     */
+    public static ByteBuffer encodeResume(long streamId, long received, long granted) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 16);
+        buffer.putInt(25).put(RESUME).putLong(streamId).putLong(received).putLong(granted);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * RESUME帧中对端已收到的字节数
+     */
+    public long getResumeReceived() {
+        return payload.length >= 16 ? ByteBuffer.wrap(payload).getLong(0) : 0;
+    }
+
+    /**
+     * RESUME帧中对端累计通告的额度
+     */
+    public long getResumeGranted() {
+        return payload.length >= 16 ? ByteBuffer.wrap(payload).getLong(8) : 0;
+    }
+
+    /**
+     * 编码一个PING帧，sentAt为发送时的System.nanoTime()
+     */
+    public static ByteBuffer encodePing(long sentAt) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8);
+        buffer.putInt(17).put(PING).putLong(0).putLong(sentAt);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * PING或PONG帧是否携带时间戳
+     */
+    public boolean hasTimestamp() {
+        return payload.length >= 8;
+    }
+
+    /**
+     * PING或PONG帧携带的发送时间
+     */
+    public long getTimestamp() {
+        return payload.length >= 8 ? ByteBuffer.wrap(payload).getLong() : 0;
+    }
+
+    /**
+     * 编码一个无负载的帧
+     */
+    public static ByteBuffer encode(byte type, long streamId) {
+        return encode(type, streamId, new byte[0], 0, 0);
+    }
+
+    /**
+     * 从阻塞流中读取一个帧，流结束时返回null
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        checkLength(length);
+        byte type = in.readByte();
+        long streamId = in.readLong();
+        byte[] payload = new byte[length - 9];
+        in.readFully(payload);
+        return new Frame(type, streamId, payload);
+    }
+
+    /**
+     * 从缓冲区中解码一个完整的帧，数据不足时返回null且不移动position
+     */
+    public static Frame decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = buffer.getInt(buffer.position());
+        checkLength(length);
+        if (buffer.remaining() < 4 + length) {
+            return null;
+        }
+        buffer.getInt();
+        byte type = buffer.get();
+        long streamId = buffer.getLong();
+        byte[] payload = new byte[length - 9];
+        buffer.get(payload);
+        return new Frame(type, streamId, payload);
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length < 9 || length > MAX_PAYLOAD + 9) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    /**
+     * 在读缓冲区中原地解码帧：不复制负载，也不为每帧创建Frame对象和负载数组，nio模式的每个连接复用一个
+     * 阻塞模式和客户端仍用read()逐帧读取，读出的负载数组直接排队转发
+     * 帧头是固定位置的字段，类型和流ID直接按偏移读取；控制帧的字段（额度、恢复状态、时间戳）同样按偏移读取
+     * next()返回true后到下一次调用之前，负载仍在缓冲区中，调用方要在读缓冲区compact之前处理完（转发时复制到借出的缓冲区）
+     */
+    public static final class Cursor {
+
+        private ByteBuffer buffer;
+        // 负载视图，同一个缓冲区上复用
+        private ByteBuffer view;
+        private byte type;
+        private long streamId;
+        private int payloadOffset;
+        private int payloadLength;
+
+        /**
+         * 解码buffer中的下一个完整帧并把position移到帧尾，数据不足时返回false且不移动position
+         */
+        public boolean next(ByteBuffer buffer) throws IOException {
+            int position = buffer.position();
+            if (buffer.remaining() < 4) {
+                return false;
+            }
+            int length = buffer.getInt(position);
+            checkLength(length);
+            if (buffer.remaining() < 4 + length) {
+                return false;
+            }
+            if (this.buffer != buffer) {
+                this.buffer = buffer;
+                this.view = buffer.duplicate();
+            }
+            type = buffer.get(position + 4);
+            streamId = buffer.getLong(position + 5);
+            payloadOffset = position + HEADER_SIZE;
+            payloadLength = length - 9;
+            buffer.position(payloadOffset + payloadLength);
+            return true;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public long getStreamId() {
+            return streamId;
+        }
+
+        public int getPayloadLength() {
+            return payloadLength;
+        }
+
+        /**
+         * 负载的视图，position到limit为负载，与读缓冲区共享内容，下一次next()后失效
+         */
+        public ByteBuffer payload() {
+            view.limit(payloadOffset + payloadLength).position(payloadOffset);
+            return view;
+        }
+
+        /**
+         * 复制出负载，只用于需要数组的少数帧（压缩帧的解压）
+         */
+        public byte[] getPayload() {
+            byte[] payload = new byte[payloadLength];
+            buffer.get(payloadOffset, payload);
+            return payload;
+        }
+
+        /**
+         * WINDOW帧携带的额度增量
+         */
+        public int getWindowIncrement() {
+            return payloadLength >= 4 ? buffer.getInt(payloadOffset) : 0;
+        }
+
+        /**
+         * RESUME帧中对端已收到的字节数
+         */
+        public long getResumeReceived() {
+            return payloadLength >= 16 ? buffer.getLong(payloadOffset) : 0;
+        }
+
+        /**
+         * RESUME帧中对端累计通告的额度
+         */
+        public long getResumeGranted() {
+            return payloadLength >= 16 ? buffer.getLong(payloadOffset + 8) : 0;
+        }
+
+        /**
+         * PING或PONG帧是否携带时间戳
+         */
+        public boolean hasTimestamp() {
+            return payloadLength >= 8;
+        }
+
+        /**
+         * PING或PONG帧携带的发送时间
+         */
+        public long getTimestamp() {
+            return payloadLength >= 8 ? buffer.getLong(payloadOffset) : 0;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.aweqy.server;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 共享端口的主机名路由表：隧道认证时登记主机名，玩家连接共享端口后按握手包中的服务器地址找到隧道
+ * 路由只在连接开始时查一次，之后的数据与独立端口上的连接走同样的转发路径
+ */
+public class HostnameRouter {
+
+    private static volatile HostnameRouter shared;
+
+    private final int sharedPort;
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private final LongAdder routed = new LongAdder();
+    private final LongAdder unknownHost = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+
+    public HostnameRouter(int sharedPort) {
+        this.sharedPort = sharedPort;
+    }
+
+    /**
+     * 全局共享的路由表，首次使用时按当前配置创建
+     */
+    public static HostnameRouter shared() {
+        HostnameRouter router = shared;
+        if (router == null) {
+            synchronized (HostnameRouter.class) {
+                router = shared;
+                if (router == null) {
+                    router = new HostnameRouter(ServerConfig.getInt("routing.shared_port", 0));
+                    shared = router;
+                }
+            }
+        }
+        return router;
+    }
+
+    /**
+     * 是否配置了共享端口
+     */
+    public boolean isEnabled() {
+        return sharedPort > 0;
+    }
+
+    public int getSharedPort() {
+        return sharedPort;
+    }
+
+    /**
+     * 登记主机名，已被其他隧道占用时返回false
+     */
+    public boolean register(String hostname, Route route) {
+        return routes.putIfAbsent(MinecraftHandshake.normalize(hostname), route) == null;
+    }
+
+    /**
+     * 注销主机名，只移除仍指向该隧道的登记
+     */
+    public void unregister(String hostname, Route route) {
+        routes.remove(MinecraftHandshake.normalize(hostname), route);
+    }
+
+    /**
+     * 按握手包找到隧道，没有登记时返回null
+     */
+    public Route lookup(MinecraftHandshake handshake) {
+        Route route = routes.get(handshake.getHostname());
+        if (route == null) {
+            unknownHost.increment();
+        } else {
+            routed.increment();
+        }
+        return route;
+    }
+
+    /**
+     * 记录一个不是Minecraft握手的连接
+     */
+    public void rejectMalformed() {
+        malformed.increment();
+    }
+
+    public int size() {
+        return routes.size();
+    }
+
+    @Override
+    public String toString() {
+        return "HostnameRouter{hostnames=" + size() + ", routed=" + routed.sum() + ", unknownHost=" + unknownHost.sum()
+                + ", malformed=" + malformed.sum() + "}";
+    }
+
+    /**
+     * 接收路由过来的玩家连接的隧道
+     */
+    public interface Route {
+        /**
+         * 接管玩家连接，prefix为路由时已经读到的数据（握手包及之后的字节），需要先发给客户端
+         * 非阻塞模式下key为通道在调用方事件循环上的注册，阻塞模式下为null；调用后通道和准入名额都归隧道所有
+         */
+        void route(SocketChannel channel, SelectionKey key, AdmissionControl.Permit permit, ByteBuffer prefix);
+    }
+}
@@ -0,0 +1,318 @@
+package com.aweqy.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 空闲超时检测：哈希时间轮，每个槽位是一个双向链表，一个后台线程按固定间隔推进
+ * 连接有活动时只记录最后活动时间（一次volatile写），不移动时间轮中的条目；
+ * 条目到期时再检查最后活动时间，仍然空闲才触发回调，否则按最后活动时间重新挂到对应槽位
+ * 时间轮和链表只在定时线程中访问，其他线程注册的条目先进入队列，下一次推进时加入时间轮
+ * 超时时间在每次检查时重新读取，配置重新加载后已注册的连接也按新的超时计时
+ */
+public class IdleTimer implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(IdleTimer.class);
+
+    /** 每次推进的间隔，也是最后活动时间的精度 */
+    private static final long TICK_MILLIS = 100;
+    /** 槽位数，必须是2的幂 */
+    private static final int WHEEL_SIZE = 512;
+    /** 超时被关闭（不大于0）时再次检查的间隔 */
+    private static final long DISABLED_RECHECK_MILLIS = WHEEL_SIZE * TICK_MILLIS;
+
+    private static volatile IdleTimer shared;
+
+    private final Bucket[] wheel = new Bucket[WHEEL_SIZE];
+    private final Queue<Entry> registrations = new ConcurrentLinkedQueue<>();
+    private final long startTime;
+    private final Thread thread;
+    // 粗粒度时钟，每次推进时更新，连接记录活动时读取
+    private volatile long now;
+    private volatile long ticks;
+    private long tick;
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder[] expired = new LongAdder[Kind.values().length];
+    private final LongAdder probes = new LongAdder();
+
+    private IdleTimer() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new Bucket();
+        }
+        for (int i = 0; i < expired.length; i++) {
+            expired[i] = new LongAdder();
+        }
+        this.startTime = System.currentTimeMillis();
+        this.now = startTime;
+        this.thread = new Thread(this, "idle-timer");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * 全局共享的时间轮，首次使用时启动定时线程
+     */
+    public static IdleTimer shared() {
+        IdleTimer timer = shared;
+        if (timer == null) {
+            synchronized (IdleTimer.class) {
+                timer = shared;
+                if (timer == null) {
+                    timer = new IdleTimer();
+                    timer.thread.start();
+                    shared = timer;
+                }
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * 开始监视一个连接，超过timeoutMillis没有活动时在定时线程中调用listener
+     * 回调中不能做阻塞操作，需要写数据或关闭事件循环上的连接时应提交到对应的线程
+     */
+    public Entry register(Kind kind, long timeoutMillis, IdleListener listener) {
+        return register(kind, () -> timeoutMillis, listener);
+    }
+
+    /**
+     * 开始监视一个连接，超时时间每次检查时从timeout读取，不大于0时暂不超时
+     */
+    public Entry register(Kind kind, LongSupplier timeout, IdleListener listener) {
+        Entry entry = new Entry(kind, timeout, listener);
+        active.incrementAndGet();
+        registrations.add(entry);
+        return entry;
+    }
+
+    @Override
+    public void run() {
+        long next = startTime + TICK_MILLIS;
+        while (true) {
+            long sleep = next - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            now = System.currentTimeMillis();
+            transferRegistrations();
+            expireBucket(wheel[(int) (tick & (WHEEL_SIZE - 1))]);
+            tick++;
+            ticks = tick;
+            next += TICK_MILLIS;
+        }
+    }
+
+    private void transferRegistrations() {
+        Entry entry;
+        while ((entry = registrations.poll()) != null) {
+            if (entry.cancelled) {
+                active.decrementAndGet();
+            } else {
+                schedule(entry, entry.lastActive + entry.timeoutMillis());
+            }
+        }
+    }
+
+    /**
+     * 处理当前槽位：已取消的条目移除，未到轮次的条目轮次减一，到期的条目检查是否真的空闲
+     */
+    private void expireBucket(Bucket bucket) {
+        Entry entry = bucket.head;
+        while (entry != null) {
+            Entry next = entry.next;
+            if (entry.cancelled) {
+                bucket.remove(entry);
+                active.decrementAndGet();
+            } else if (entry.rounds > 0) {
+                entry.rounds--;
+            } else {
+                bucket.remove(entry);
+                long lastActive = entry.lastActive;
+                long timeout = entry.timeout.getAsLong();
+                if (timeout <= 0) {
+                    // 超时已被关闭，稍后再检查配置
+                    schedule(entry, now + DISABLED_RECHECK_MILLIS);
+                } else if (now - lastActive < timeout) {
+                    // 期间有过活动，按最后活动时间重新计时
+                    schedule(entry, lastActive + timeout);
+                } else {
+                    fire(entry);
+                }
+            }
+            entry = next;
+        }
+    }
+
+    private void fire(Entry entry) {
+        boolean keepWatching;
+        try {
+            keepWatching = entry.listener.onIdle();
+        } catch (RuntimeException e) {
+            logger.error("Unexpected error in idle listener", e);
+            keepWatching = false;
+        }
+        if (keepWatching && !entry.cancelled) {
+            probes.increment();
+            schedule(entry, now + entry.timeoutMillis());
+        } else {
+            entry.cancelled = true;
+            active.decrementAndGet();
+            expired[entry.kind.ordinal()].increment();
+        }
+    }
+
+    private void schedule(Entry entry, long deadline) {
+        // 至少放到下一个槽位，避免在处理当前槽位时再次遇到同一个条目
+        long target = Math.max((deadline - startTime) / TICK_MILLIS, tick + 1);
+        long distance = target - tick;
+        entry.rounds = (distance - 1) / WHEEL_SIZE;
+        wheel[(int) (target & (WHEEL_SIZE - 1))].add(entry);
+    }
+
+    /**
+     * 粗粒度的当前时间，与条目记录的最后活动时间可以直接比较
+     */
+    public long currentTime() {
+        return now;
+    }
+
+    /** 时间轮已推进的次数 */
+    public long getTicks() {
+        return ticks;
+    }
+
+    /** 正在监视的连接数 */
+    public int getActive() {
+        return active.get();
+    }
+
+    /** 因空闲被关闭的某类连接总数 */
+    public long getExpired(Kind kind) {
+        return expired[kind.ordinal()].sum();
+    }
+
+    /** 空闲时发出探测、继续监视的次数 */
+    public long getProbes() {
+        return probes.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "IdleTimer{ticks=" + getTicks() + ", active=" + getActive() + ", probes=" + getProbes()
+                + ", expiredControl=" + getExpired(Kind.CONTROL) + ", expiredStream=" + getExpired(Kind.STREAM)
+                + ", expiredUdp=" + getExpired(Kind.UDP) + ", expiredSession=" + getExpired(Kind.SESSION) + "}";
+    }
+
+    /**
+     * 被监视的连接类型
+     */
+    public enum Kind {
+        /** 隧道控制连接 */
+        CONTROL,
+        /** 外部玩家的TCP流 */
+        STREAM,
+        /** UDP玩家会话 */
+        UDP,
+        /** 控制连接断开后挂起、等待客户端恢复的隧道 */
+        SESSION
+    }
+
+    /**
+     * 空闲回调
+     */
+    @FunctionalInterface
+    public interface IdleListener {
+        /**
+         * 连接空闲超时，返回true表示已发出探测、再等待一个超时周期，返回false表示连接已关闭
+         */
+        boolean onIdle();
+    }
+
+    /**
+     * 时间轮中的一个条目，对应一个被监视的连接
+     */
+    public final class Entry {
+
+        private final Kind kind;
+        private final LongSupplier timeout;
+        private final IdleListener listener;
+        private volatile long lastActive;
+        private volatile boolean cancelled;
+        // 以下字段只在定时线程中访问
+        private long rounds;
+        private Entry prev;
+        private Entry next;
+
+        private Entry(Kind kind, LongSupplier timeout, IdleListener listener) {
+            this.kind = kind;
+            this.timeout = timeout;
+            this.listener = listener;
+            this.lastActive = now;
+        }
+
+        /**
+         * 当前的超时时间，超时被关闭时返回再次检查的间隔
+         */
+        private long timeoutMillis() {
+            long millis = timeout.getAsLong();
+            return millis > 0 ? millis : DISABLED_RECHECK_MILLIS;
+        }
+
+        /**
+         * 记录一次活动
+         */
+        public void touch() {
+            lastActive = now;
+        }
+
+        /**
+         * 最后一次活动的时间（毫秒，精度为一次推进的间隔）
+         */
+        public long getLastActive() {
+            return lastActive;
+        }
+
+        /**
+         * 连接已正常关闭，停止监视，条目在所在槽位下次被处理时移除
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private static final class Bucket {
+
+        private Entry head;
+
+        void add(Entry entry) {
+            entry.prev = null;
+            entry.next = head;
+            if (head != null) {
+                head.prev = entry;
+            }
+            head = entry;
+        }
+
+        void remove(Entry entry) {
+            if (entry.prev != null) {
+                entry.prev.next = entry.next;
+            } else {
+                head = entry.next;
+            }
+            if (entry.next != null) {
+                entry.next.prev = entry.prev;
+            }
+            entry.prev = null;
+            entry.next = null;
+        }
+    }
+}
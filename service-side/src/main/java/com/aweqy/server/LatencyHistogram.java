@@ -0,0 +1,119 @@
+package com.aweqy.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟直方图：按微秒记录，分桶方式与HDR直方图相同（对数-线性），每个2的幂区间再均分为8个子桶，相对误差不超过12.5%
+ * 每个桶是一个LongAdder，多个转发线程同时记录时不会争用同一个计数器；超出范围的值记入最后一个桶
+ * 桶包含上界、不含下界，与Prometheus直方图le（小于等于）的含义一致
+ */
+public class LatencyHistogram {
+
+    /** 每个2的幂区间的子桶数，必须是2的幂 */
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+    /** 可以精确记录的最大值为2^MAX_EXPONENT微秒（约33秒） */
+    static final int MAX_EXPONENT = 25;
+    /** 桶的数量，最后一个桶记录超出范围的值 */
+    public static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + 1;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 记录一次延迟（纳秒），向上取整到微秒，正好等于桶上界的延迟不会落入更高的桶
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, (nanos + 999) / 1000);
+        buckets[bucketOf(micros)].increment();
+        count.increment();
+        sumMicros.add(micros);
+    }
+
+    /**
+     * 值所在桶的下标：桶包含上界，按micros - 1定位；不大于SUB_BUCKETS的值每个值一个桶（0和1同在第一个桶），
+     * 更大的值按最高位所在的区间和其后的几位定位
+     * 单线程的调用方可以用它维护自己的计数数组，不必为每个记录者创建LongAdder
+     */
+    public static int bucketOf(long micros) {
+        long value = micros - 1;
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * 桶的上界（含，微秒），最后一个桶记录超出范围的值，它的上界只是名义上的
+     */
+    public static long bucketUpperBound(int index) {
+        int next = index + 1;
+        if (next < SUB_BUCKETS) {
+            return next;
+        }
+        int exponent = next / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + next % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** 所有记录值之和（微秒） */
+    public long getSumMicros() {
+        return sumMicros.sum();
+    }
+
+    /**
+     * 各桶当前的计数，一次读出，据此算出的累计值和总数彼此一致
+     * 记录过程中读取时，总数可能比getCount()的结果少几个正在记录的值
+     */
+    public long[] snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * 估算分位数（微秒），返回所在桶的上界
+     */
+    public long percentile(double fraction) {
+        long[] counts = snapshot();
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return bucketUpperBound(i);
+            }
+        }
+        return bucketUpperBound(BUCKET_COUNT - 1);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", p50=" + percentile(0.50) + "us, p99=" + percentile(0.99)
+                + "us, p999=" + percentile(0.999) + "us";
+    }
+}
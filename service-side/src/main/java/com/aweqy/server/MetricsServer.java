@@ -0,0 +1,275 @@
+package com.aweqy.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 内嵌的指标端点：GET /metrics 以Prometheus文本格式输出中继、准入控制、缓冲池和空闲检测的指标
+ * 使用JDK自带的HTTP服务器，请求在单独的后台线程中处理，不占用转发线程
+ */
+public class MetricsServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(MetricsServer.class);
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private MetricsServer(HttpServer server, ExecutorService executor) {
+        this.server = server;
+        this.executor = executor;
+    }
+
+    /**
+     * 在给定地址上启动指标端点
+     */
+    public static MetricsServer start(String host, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/metrics", MetricsServer::handle);
+        server.start();
+        logger.info("Metrics endpoint started on http://{}:{}/metrics", host, server.getAddress().getPort());
+        return new MetricsServer(server, executor);
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * 生成当前所有指标的文本
+     */
+    static String render() {
+        StringBuilder out = new StringBuilder(4096);
+        RelayMetrics metrics = RelayMetrics.shared();
+
+        header(out, "relay_auth_success_total", "counter", "Successful tunnel authentications");
+        sample(out, "relay_auth_success_total", "", metrics.getAuthSuccesses());
+        header(out, "relay_auth_failures_total", "counter", "Rejected tunnel authentications");
+        sample(out, "relay_auth_failures_total", "", metrics.getAuthFailures());
+        header(out, "relay_tunnel_resumes_total", "counter", "Session resumption attempts by parked tunnel clients");
+        sample(out, "relay_tunnel_resumes_total", "result=\"resumed\"", metrics.getResumes());
+        sample(out, "relay_tunnel_resumes_total", "result=\"unknown_session\"", metrics.getResumeFailures());
+        header(out, "relay_tunnels_parked", "gauge", "Tunnels holding their port and players while waiting for the client to resume");
+        sample(out, "relay_tunnels_parked", "", metrics.getParked());
+
+        header(out, "relay_received_bytes_total", "counter", "Bytes received from players on all tunnels");
+        sample(out, "relay_received_bytes_total", "", metrics.getReceivedBytes());
+        header(out, "relay_sent_bytes_total", "counter", "Bytes written to players on all tunnels");
+        sample(out, "relay_sent_bytes_total", "", metrics.getSentBytes());
+
+        header(out, "relay_tunnels", "gauge", "Authenticated tunnels");
+        sample(out, "relay_tunnels", "", metrics.getTunnels().size());
+        header(out, "relay_tunnel_received_bytes_total", "counter", "Bytes received from players per tunnel");
+        for (RelayMetrics.Tunnel tunnel : metrics.getTunnels()) {
+            sample(out, "relay_tunnel_received_bytes_total", tunnelLabels(tunnel), tunnel.getReceivedBytes());
+        }
+        header(out, "relay_tunnel_sent_bytes_total", "counter", "Bytes written to players per tunnel");
+        for (RelayMetrics.Tunnel tunnel : metrics.getTunnels()) {
+            sample(out, "relay_tunnel_sent_bytes_total", tunnelLabels(tunnel), tunnel.getSentBytes());
+        }
+        header(out, "relay_tunnel_active_streams", "gauge", "Open player streams or UDP sessions per tunnel");
+        for (RelayMetrics.Tunnel tunnel : metrics.getTunnels()) {
+            sample(out, "relay_tunnel_active_streams", tunnelLabels(tunnel), tunnel.getActiveStreams());
+        }
+
+        header(out, "relay_tunnel_rtt_seconds", "gauge",
+                "Smoothed round-trip time to the tunnel client measured by keepalive frames, absent before the first sample");
+        for (RelayMetrics.Tunnel tunnel : metrics.getTunnels()) {
+            RttEstimator rtt = tunnel.getRtt();
+            if (rtt.getSmoothedRtt() >= 0) {
+                seconds(out, "relay_tunnel_rtt_seconds", tunnelLabels(tunnel), rtt.getSmoothedRtt());
+            }
+        }
+        header(out, "relay_tunnel_rtt_jitter_seconds", "gauge", "Smoothed difference between consecutive keepalive round trips");
+        for (RelayMetrics.Tunnel tunnel : metrics.getTunnels()) {
+            RttEstimator rtt = tunnel.getRtt();
+            if (rtt.getSmoothedRtt() >= 0) {
+                seconds(out, "relay_tunnel_rtt_jitter_seconds", tunnelLabels(tunnel), rtt.getJitter());
+            }
+        }
+        header(out, "relay_tunnel_throttled_bytes_total", "counter",
+                "Bytes forwarded past an exhausted rate limit, after which reads or window updates were paused");
+        for (RelayMetrics.Tunnel tunnel : metrics.getTunnels()) {
+            for (RelayMetrics.Direction direction : RelayMetrics.Direction.values()) {
+                sample(out, "relay_tunnel_throttled_bytes_total", directionLabels(tunnel, direction),
+                        tunnel.getThrottledBytes(direction));
+            }
+        }
+        header(out, "relay_tunnel_compression_raw_bytes_total", "counter",
+                "Payload bytes before compression, zero unless the tunnel negotiated compression");
+        for (RelayMetrics.Tunnel tunnel : metrics.getTunnels()) {
+            StreamCompressor.Stats compression = tunnel.getCompression();
+            String toClient = directionLabels(tunnel, RelayMetrics.Direction.TO_CLIENT);
+            String toPlayer = directionLabels(tunnel, RelayMetrics.Direction.TO_PLAYER);
+            sample(out, "relay_tunnel_compression_raw_bytes_total", toClient, compression.getDeflateInput());
+            sample(out, "relay_tunnel_compression_raw_bytes_total", toPlayer, compression.getInflateOutput());
+        }
+        header(out, "relay_tunnel_compression_wire_bytes_total", "counter",
+                "Payload bytes on the client link after compression");
+        for (RelayMetrics.Tunnel tunnel : metrics.getTunnels()) {
+            StreamCompressor.Stats compression = tunnel.getCompression();
+            String toClient = directionLabels(tunnel, RelayMetrics.Direction.TO_CLIENT);
+            String toPlayer = directionLabels(tunnel, RelayMetrics.Direction.TO_PLAYER);
+            sample(out, "relay_tunnel_compression_wire_bytes_total", toClient, compression.getDeflateOutput());
+            sample(out, "relay_tunnel_compression_wire_bytes_total", toPlayer, compression.getInflateInput());
+        }
+        header(out, "relay_tunnel_compression_seconds_total", "counter",
+                "Time spent compressing (to_client) and decompressing (to_player) frames");
+        for (RelayMetrics.Tunnel tunnel : metrics.getTunnels()) {
+            StreamCompressor.Stats compression = tunnel.getCompression();
+            String toClient = directionLabels(tunnel, RelayMetrics.Direction.TO_CLIENT);
+            String toPlayer = directionLabels(tunnel, RelayMetrics.Direction.TO_PLAYER);
+            seconds(out, "relay_tunnel_compression_seconds_total", toClient, compression.getDeflateNanos());
+            seconds(out, "relay_tunnel_compression_seconds_total", toPlayer, compression.getInflateNanos());
+        }
+        header(out, "relay_tunnel_compression_frames_total", "counter",
+                "Frames to the client above the threshold, compressed or sent as is after sampling found them incompressible");
+        for (RelayMetrics.Tunnel tunnel : metrics.getTunnels()) {
+            StreamCompressor.Stats compression = tunnel.getCompression();
+            sample(out, "relay_tunnel_compression_frames_total", tunnelLabels(tunnel) + ",result=\"compressed\"",
+                    compression.getCompressedFrames());
+            sample(out, "relay_tunnel_compression_frames_total", tunnelLabels(tunnel) + ",result=\"skipped\"",
+                    compression.getSkippedFrames());
+        }
+        header(out, "relay_tunnel_status_pings_total", "counter",
+                "Server-list status pings answered from the relay cache, from a stale entry during a refresh, or forwarded");
+        for (RelayMetrics.Tunnel tunnel : metrics.getTunnels()) {
+            StatusCache.Stats pings = tunnel.getStatusPings();
+            sample(out, "relay_tunnel_status_pings_total", tunnelLabels(tunnel) + ",result=\"cached\"", pings.getCached());
+            sample(out, "relay_tunnel_status_pings_total", tunnelLabels(tunnel) + ",result=\"stale\"", pings.getStale());
+            sample(out, "relay_tunnel_status_pings_total", tunnelLabels(tunnel) + ",result=\"upstream\"", pings.getUpstream());
+        }
+
+        header(out, "relay_frame_forward_latency_seconds", "histogram",
+                "Time a frame spends queued on the relay before it is written to the socket");
+        for (RelayMetrics.Direction direction : RelayMetrics.Direction.values()) {
+            histogram(out, "relay_frame_forward_latency_seconds", "direction=\"" + direction.getLabel() + "\"",
+                    metrics.getForwardLatency(direction));
+        }
+
+        AdmissionControl admission = AdmissionControl.shared();
+        header(out, "relay_connections_admitted_total", "counter", "Accepted connections by kind");
+        for (AdmissionControl.Kind kind : AdmissionControl.Kind.values()) {
+            sample(out, "relay_connections_admitted_total", kindLabel(kind), admission.getAdmitted(kind));
+        }
+        header(out, "relay_connections_active", "gauge", "Open connections by kind");
+        for (AdmissionControl.Kind kind : AdmissionControl.Kind.values()) {
+            sample(out, "relay_connections_active", kindLabel(kind), admission.getActive(kind));
+        }
+        header(out, "relay_connections_rejected_total", "counter", "Connections rejected by admission control");
+        sample(out, "relay_connections_rejected_total", "reason=\"server_full\"", admission.getRejectedTotal());
+        sample(out, "relay_connections_rejected_total", "reason=\"per_ip\"", admission.getRejectedPerAddress());
+
+        BufferPool pool = BufferPool.shared();
+        header(out, "relay_buffer_pool_buffers", "gauge", "Pooled forwarding buffers");
+        sample(out, "relay_buffer_pool_buffers", "state=\"allocated\"", pool.getAllocated());
+        sample(out, "relay_buffer_pool_buffers", "state=\"in_use\"", pool.getInUse());
+        header(out, "relay_buffer_pool_high_water", "gauge", "Peak number of buffers leased at once");
+        sample(out, "relay_buffer_pool_high_water", "", pool.getHighWater());
+        header(out, "relay_buffer_pool_leases_total", "counter", "Buffer leases served from the free list or a new slab");
+        sample(out, "relay_buffer_pool_leases_total", "result=\"hit\"", pool.getHits());
+        sample(out, "relay_buffer_pool_leases_total", "result=\"miss\"", pool.getMisses());
+
+        IdleTimer timer = IdleTimer.shared();
+        header(out, "relay_idle_timer_ticks_total", "counter", "Idle timer wheel ticks");
+        sample(out, "relay_idle_timer_ticks_total", "", timer.getTicks());
+        header(out, "relay_idle_timer_entries", "gauge",
+                "Entries on the idle timer wheel, including cancelled ones not yet swept");
+        sample(out, "relay_idle_timer_entries", "", timer.getActive());
+        header(out, "relay_idle_timer_probes_total", "counter", "Idle probes sent to tunnel clients");
+        sample(out, "relay_idle_timer_probes_total", "", timer.getProbes());
+        header(out, "relay_idle_timer_expired_total", "counter", "Connections closed after being idle");
+        for (IdleTimer.Kind kind : IdleTimer.Kind.values()) {
+            sample(out, "relay_idle_timer_expired_total", kindLabel(kind), timer.getExpired(kind));
+        }
+        return out.toString();
+    }
+
+    private static String kindLabel(Enum<?> kind) {
+        return "kind=\"" + kind.name().toLowerCase() + "\"";
+    }
+
+    private static String tunnelLabels(RelayMetrics.Tunnel tunnel) {
+        return "tunnel=\"" + tunnel.getClientId() + "\",protocol=\"" + tunnel.getProtocol()
+                + "\",port=\"" + tunnel.getRemotePort() + "\"";
+    }
+
+    private static String directionLabels(RelayMetrics.Tunnel tunnel, RelayMetrics.Direction direction) {
+        return tunnelLabels(tunnel) + ",direction=\"" + direction.getLabel() + "\"";
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static void seconds(StringBuilder out, String name, String labels, long nanos) {
+        out.append(name).append('{').append(labels).append("} ").append(nanos / 1e9).append('\n');
+    }
+
+    /**
+     * 直方图按2的幂微秒输出累计桶，边界换算为秒
+     * 所有桶、+Inf和_count取自同一次读出的各桶计数，抓取时正在记录也不会出现有限桶大于+Inf
+     */
+    private static void histogram(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        long[] counts = histogram.snapshot();
+        long cumulative = 0;
+        int next = 0;
+        for (int exponent = 0; exponent <= LatencyHistogram.MAX_EXPONENT; exponent++) {
+            long limit = 1L << exponent;
+            // 桶包含上界，2的幂正好是某个桶的上界
+            for (int end = LatencyHistogram.bucketOf(limit); next <= end; next++) {
+                cumulative += counts[next];
+            }
+            out.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(limit / 1_000_000.0).append("\"} ").append(cumulative).append('\n');
+        }
+        for (; next < counts.length; next++) {
+            cumulative += counts[next];
+        }
+        long count = cumulative;
+        out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum{").append(labels).append("} ")
+                .append(histogram.getSumMicros() / 1_000_000.0).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+    }
+}
@@ -0,0 +1,146 @@
+package com.aweqy.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Minecraft客户端连接后发送的第一个数据包（握手包），只解析路由需要的字段
+ * 格式：VarInt 包长度 | VarInt 包ID(0) | VarInt 协议版本 | String 服务器地址 | UShort 端口 | VarInt 下一状态
+ * String为VarInt字节数加UTF-8数据
+ */
+public final class MinecraftHandshake {
+
+    /** 下一状态：服务器列表查询 */
+    public static final int STATUS = 1;
+    /** 下一状态：登录 */
+    public static final int LOGIN = 2;
+
+    /** 握手包（含长度前缀）的最大字节数，地址最多255个字符，每个字符最多4字节 */
+    public static final int MAX_LENGTH = 1100;
+
+    private final int length;
+    private final int protocolVersion;
+    private final String serverAddress;
+    private final int serverPort;
+    private final int nextState;
+
+    private MinecraftHandshake(int length, int protocolVersion, String serverAddress, int serverPort, int nextState) {
+        this.length = length;
+        this.protocolVersion = protocolVersion;
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        this.nextState = nextState;
+    }
+
+    /**
+     * 从buffer的position处解析握手包，不移动position；数据还不完整时返回null，不是握手包时抛出IOException
+     */
+    public static MinecraftHandshake parse(ByteBuffer buffer) throws IOException {
+        Cursor cursor = new Cursor(buffer);
+        int length = cursor.readVarInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length <= 0 || length > MAX_LENGTH) {
+            throw new IOException("Not a Minecraft handshake (length " + length + ")");
+        }
+        if (buffer.remaining() < cursor.offset + length) {
+            return null;
+        }
+        // 包已完整，后面的字段缺失即为格式错误
+        int end = cursor.offset + length;
+        if (cursor.readVarInt() != 0) {
+            throw new IOException("Not a Minecraft handshake (packet id)");
+        }
+        int protocolVersion = cursor.readVarInt();
+        int addressLength = cursor.readVarInt();
+        if (addressLength < 0 || cursor.offset + addressLength + 2 > end) {
+            throw new IOException("Malformed Minecraft handshake (address)");
+        }
+        byte[] address = new byte[addressLength];
+        buffer.get(buffer.position() + cursor.offset, address);
+        cursor.offset += addressLength;
+        int serverPort = Short.toUnsignedInt(buffer.getShort(buffer.position() + cursor.offset));
+        cursor.offset += 2;
+        int nextState = cursor.readVarInt();
+        if (nextState == -1 || cursor.offset > end) {
+            throw new IOException("Malformed Minecraft handshake (next state)");
+        }
+        return new MinecraftHandshake(end, protocolVersion, new String(address, StandardCharsets.UTF_8), serverPort, nextState);
+    }
+
+    /**
+     * 规范化主机名：Forge等加载器会在地址后附加以\0分隔的标记，DNS的末尾点和大小写也不影响路由
+     */
+    public static String normalize(String hostname) {
+        int marker = hostname.indexOf('\0');
+        String host = marker == -1 ? hostname : hostname.substring(0, marker);
+        if (host.endsWith(".")) {
+            host = host.substring(0, host.length() - 1);
+        }
+        return host.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 玩家连接时使用的主机名（已规范化）
+     */
+    public String getHostname() {
+        return normalize(serverAddress);
+    }
+
+    /**
+     * 握手包含长度前缀的字节数，之后是下一状态的数据包
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    public int getNextState() {
+        return nextState;
+    }
+
+    /**
+     * 相对于buffer起始position的读取位置，状态查询的数据包也用它解析
+     */
+    static final class Cursor {
+
+        private final ByteBuffer buffer;
+        private int offset;
+
+        Cursor(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        int getOffset() {
+            return offset;
+        }
+
+        /**
+         * 读取一个VarInt，数据不足时返回-1，超过5字节时抛出IOException
+         */
+        int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (offset >= buffer.remaining()) {
+                    return -1;
+                }
+                byte b = buffer.get(buffer.position() + offset++);
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("VarInt is too long");
+        }
+    }
+}
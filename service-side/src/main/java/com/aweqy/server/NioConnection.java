@@ -0,0 +1,415 @@
+package com.aweqy.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * 非阻塞TCP连接基类，负责读取和排队写出
+ * 开启合并写时，一轮事件处理中写入的数据先排队，在轮末或批处理延迟到期后用一次聚集写写出
+ * 所有方法都必须在所属EventLoop线程中调用
+ */
+public abstract class NioConnection implements ChannelHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioConnection.class);
+
+    /** 一次聚集写最多包含的缓冲区数量 */
+    static final int MAX_GATHER = 64;
+    /** 排队数据达到该字节数时立即写出，不再等待 */
+    static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    protected final EventLoop loop;
+    // 只有会话恢复时会换成新的通道
+    protected SocketChannel channel;
+    protected final ByteBuffer readBuffer;
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    // writeCopy借出的缓冲区，还在队尾时后续的复制追加到它的剩余空间
+    private ByteBuffer copyTail;
+    private final boolean coalescing;
+    private final long batchDelay;
+    private long outboundBytes;
+    private boolean flushPending;
+    // 开启指标时记录每个排队缓冲区的入队时间
+    private final LatencyHistogram writeLatency;
+    private final TimestampQueue enqueuedAt;
+    private AdmissionControl.Permit permit;
+    private SelectionKey key;
+    private boolean closeAfterFlush;
+    private boolean readPaused;
+    private boolean closed;
+
+    protected NioConnection(EventLoop loop, SocketChannel channel, int bufferSize) {
+        this(loop, channel, ByteBuffer.allocate(bufferSize), null);
+    }
+
+    protected NioConnection(EventLoop loop, SocketChannel channel, int bufferSize, RelayMetrics.Direction direction) {
+        this(loop, channel, ByteBuffer.allocate(bufferSize), direction);
+    }
+
+    /**
+     * 使用给定的读缓冲区，来自共享缓冲池的直接缓冲区会在连接关闭时归还
+     * direction不为null且开启指标端点时，统计写出的缓冲区从排队到写入通道的时间
+     */
+    protected NioConnection(EventLoop loop, SocketChannel channel, ByteBuffer readBuffer,
+                            RelayMetrics.Direction direction) {
+        this.loop = loop;
+        this.channel = channel;
+        this.readBuffer = readBuffer;
+        this.coalescing = ServerConfig.getBoolean("forward.write_coalescing", true);
+        this.batchDelay = ServerConfig.getLong("forward.batch_delay", 0);
+        RelayMetrics metrics = RelayMetrics.shared();
+        boolean measured = direction != null && metrics.isEnabled();
+        this.writeLatency = measured ? metrics.getForwardLatency(direction) : null;
+        this.enqueuedAt = measured ? new TimestampQueue() : null;
+    }
+
+    /**
+     * 设置连接占用的准入名额，连接关闭时释放，通道交给其他处理器时随通道转移
+     */
+    public void admit(AdmissionControl.Permit permit) {
+        this.permit = permit;
+    }
+
+    AdmissionControl.Permit getPermit() {
+        return permit;
+    }
+
+    /**
+     * 注册到事件循环并开始读取
+     */
+    public void register() throws IOException {
+        if (coalescing) {
+            // 合并写已经按批次写出，不再需要Nagle算法等待凑包
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        key = loop.register(channel, SelectionKey.OP_READ, this);
+        onRegistered();
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        if (key.isReadable()) {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            deliver();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    private void deliver() throws IOException {
+        readBuffer.flip();
+        onRead(readBuffer);
+        if (closed) {
+            // 读缓冲区已归还缓冲池
+            return;
+        }
+        readBuffer.compact();
+    }
+
+    /**
+     * 处理其他处理器在接管通道前已经读到的数据，比读缓冲区大时分批处理
+     */
+    protected void replay(ByteBuffer data) throws IOException {
+        while (data.hasRemaining() && !closed) {
+            int length = Math.min(data.remaining(), readBuffer.remaining());
+            if (length == 0) {
+                throw new IOException("Read buffer is full");
+            }
+            readBuffer.put(data.slice(data.position(), length));
+            data.position(data.position() + length);
+            deliver();
+        }
+    }
+
+    /**
+     * 处理读到的数据，未消费的剩余字节会保留到下次读取
+     */
+    protected abstract void onRead(ByteBuffer data) throws IOException;
+
+    /**
+     * 已注册到事件循环或接管了注册，需要引用本连接的定时器在这里登记而不是在构造器中，默认不处理
+     */
+    protected void onRegistered() {
+    }
+
+    /**
+     * 数据已写入通道，用于流量控制，默认不处理
+     */
+    protected void onWritten(int bytes) {
+    }
+
+    /**
+     * 暂停读取，读缓冲区中未消费的数据保留到恢复读取时处理
+     */
+    protected void pauseReading() {
+        if (!readPaused) {
+            readPaused = true;
+            updateInterestOps();
+        }
+    }
+
+    /**
+     * 恢复读取，先处理读缓冲区中保留的数据
+     */
+    protected void resumeReading() {
+        if (!readPaused || closed) {
+            return;
+        }
+        readPaused = false;
+        try {
+            deliver();
+        } catch (IOException e) {
+            logger.debug("Error handling buffered data: {}", e.getMessage());
+            close();
+            return;
+        }
+        if (!closed) {
+            updateInterestOps();
+        }
+    }
+
+    /**
+     * 连接关闭后的清理
+     */
+    protected abstract void onClosed();
+
+    /**
+     * 写出数据，写不完的部分排队等待OP_WRITE
+     * 直接缓冲区视为从共享缓冲池借出，写完或连接关闭后自动归还
+     */
+    public void write(ByteBuffer data) {
+        if (closed) {
+            BufferPool.shared().release(data);
+            return;
+        }
+        enqueue(data);
+        outboundBytes += data.remaining();
+        flushOrSchedule();
+    }
+
+    /**
+     * 写出调用方仍然持有的数据（如读缓冲区的视图）：复制到从缓冲池借出的缓冲区排队
+     * 小包追加到队尾缓冲区的剩余空间，不各占一个缓冲区，排队占用的直接内存与排队的字节数相当
+     */
+    public void writeCopy(ByteBuffer data) {
+        if (closed) {
+            return;
+        }
+        BufferPool pool = BufferPool.shared();
+        while (data.hasRemaining()) {
+            if (copyTail == null || outbound.peekLast() != copyTail || copyTail.limit() == copyTail.capacity()) {
+                copyTail = pool.lease().limit(0);
+                enqueue(copyTail);
+            }
+            outboundBytes += BufferPool.append(copyTail, data);
+        }
+        flushOrSchedule();
+    }
+
+    private void enqueue(ByteBuffer data) {
+        outbound.add(data);
+        if (enqueuedAt != null) {
+            enqueuedAt.add(System.nanoTime());
+        }
+    }
+
+    private void flushOrSchedule() {
+        if (coalescing && outboundBytes < MAX_BATCH_BYTES) {
+            scheduleFlush();
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.debug("Error writing to channel: {}", e.getMessage());
+            close();
+        }
+    }
+
+    private void scheduleFlush() {
+        // 已经在等待OP_WRITE时，通道可写后会一并写出
+        if (flushPending || (key != null && key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) != 0)) {
+            return;
+        }
+        flushPending = true;
+        if (batchDelay > 0) {
+            loop.schedule(this::flushDeferred, batchDelay);
+        } else {
+            loop.flushLater(this);
+        }
+    }
+
+    /**
+     * 写出合并等待中的数据
+     */
+    void flushDeferred() {
+        if (!flushPending || closed) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.debug("Error writing to channel: {}", e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * 写完排队数据后关闭连接
+     */
+    public void closeAfterFlush() {
+        if (outbound.isEmpty()) {
+            close();
+        } else {
+            closeAfterFlush = true;
+        }
+    }
+
+    private void flush() throws IOException {
+        flushPending = false;
+        ByteBuffer[] gather = loop.gatherBuffers();
+        while (!outbound.isEmpty()) {
+            int count = 0;
+            long batched = 0;
+            for (ByteBuffer buffer : outbound) {
+                gather[count++] = buffer;
+                batched += buffer.remaining();
+                if (count == gather.length) {
+                    break;
+                }
+            }
+            long written = channel.write(gather, 0, count);
+            Arrays.fill(gather, 0, count, null);
+            if (written > 0) {
+                outboundBytes -= written;
+                onWritten((int) written);
+            }
+            BufferPool pool = BufferPool.shared();
+            long now = enqueuedAt != null ? System.nanoTime() : 0;
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                release(pool, outbound.poll());
+                if (enqueuedAt != null) {
+                    writeLatency.record(now - enqueuedAt.poll());
+                }
+            }
+            if (closed) {
+                return;
+            }
+            if (written < batched) {
+                // 发送缓冲区已满，剩余数据等待OP_WRITE
+                break;
+            }
+        }
+        if (outbound.isEmpty() && closeAfterFlush) {
+            close();
+            return;
+        }
+        updateInterestOps();
+    }
+
+    private void updateInterestOps() {
+        int ops = (readPaused ? 0 : SelectionKey.OP_READ) | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+        if (key != null && key.isValid() && key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * 接管另一个处理器在同一事件循环上注册的通道
+     */
+    public void adopt(SelectionKey key) {
+        this.key = key;
+        key.attach(this);
+        key.interestOps(SelectionKey.OP_READ);
+        onRegistered();
+    }
+
+    /**
+     * 在新的通道上重新开始读写，用于恢复已关闭的控制连接（隧道会话恢复）
+     * 关闭时读缓冲区已归还缓冲池的连接不能恢复，key不为null时接管同一事件循环上的注册
+     */
+    protected void reattach(SocketChannel channel, SelectionKey key, AdmissionControl.Permit permit) throws IOException {
+        if (!closed || readBuffer.isDirect()) {
+            throw new IllegalStateException("Only a closed connection with a heap read buffer can be reattached");
+        }
+        this.channel = channel;
+        this.permit = permit;
+        readBuffer.clear();
+        outboundBytes = 0;
+        flushPending = false;
+        closeAfterFlush = false;
+        readPaused = false;
+        closed = false;
+        if (key != null) {
+            adopt(key);
+        } else {
+            register();
+        }
+    }
+
+    /**
+     * 放弃通道但不关闭，用于把通道交给其他处理器，返回原来的SelectionKey
+     */
+    protected SelectionKey detach() {
+        closed = true;
+        releaseOutbound();
+        return key;
+    }
+
+    private void releaseOutbound() {
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer buffer;
+        while ((buffer = outbound.poll()) != null) {
+            release(pool, buffer);
+        }
+        if (enqueuedAt != null) {
+            enqueuedAt.clear();
+        }
+    }
+
+    private void release(BufferPool pool, ByteBuffer buffer) {
+        if (buffer == copyTail) {
+            // 归还后可能被别处借出，不能再追加
+            copyTail = null;
+        }
+        pool.release(buffer);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // 忽略错误
+        }
+        releaseOutbound();
+        BufferPool.shared().release(readBuffer);
+        if (permit != null) {
+            permit.release();
+        }
+        onClosed();
+    }
+}
@@ -0,0 +1,1023 @@
+package com.aweqy.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * 非阻塞模式下的客户端控制连接，处理认证、控制消息和数据转发
+ * 与ClientHandler的协议保持一致：认证行之后只传输帧
+ * 协商了会话恢复的隧道在控制连接意外断开后挂起：远程端口和玩家连接保留session.grace_period，
+ * 客户端用RESUME行带着会话令牌重连时，新的通道接到原来的隧道上，双方交换RESUME帧后续传每个流
+ */
+public class NioControlConnection extends NioConnection implements HostnameRouter.Route {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioControlConnection.class);
+    /** 关闭定时心跳时再次读取配置的间隔 */
+    private static final long KEEPALIVE_RECHECK_MILLIS = 5000;
+
+    // 已认证的隧道：令牌 -> 控制连接，工作连接通过令牌找到所属隧道
+    private static final Map<String, NioControlConnection> tunnels = new ConcurrentHashMap<>();
+    // 协商了会话恢复的隧道：会话令牌 -> 控制连接，隧道最终关闭时移除
+    private static final Map<String, NioControlConnection> sessions = new ConcurrentHashMap<>();
+
+    private final String clientId;
+    // 读取路径上原地解码帧
+    private final Frame.Cursor cursor = new Frame.Cursor();
+    // 每个流的接收窗口，客户端最多发送这么多还没写给玩家的数据
+    private final int streamWindow = Math.max(Frame.INITIAL_WINDOW, ServerConfig.getInt("forward.stream_window", 262144));
+    private volatile boolean authenticated;
+    private String protocol;
+    private int localPort;
+    private int remotePort;
+    private RemoteListener remoteListener;
+    private UdpListener udpListener;
+    private UdpSessionTable udpSessions;
+    private RelayMetrics.Tunnel metrics;
+    // 隧道在两个方向上的限速，所有流共用，按RelayMetrics.Direction索引
+    private final RateLimiter[] rateLimits = {RateLimiter.forTunnel(), RateLimiter.forTunnel()};
+    // 认证时协商了压缩，每个流各自压缩
+    private boolean compressing;
+    private boolean portAllocated;
+    // 在共享端口上登记的主机名，没有登记时为null
+    private String hostname;
+    // 服务器列表状态缓存，UDP隧道或关闭缓存时为null
+    private StatusCache statusCache;
+    // 远程端口上等待第一个数据包（识别状态查询）的时限
+    private final long handshakeTimeout = ServerConfig.getLong("routing.handshake_timeout", 5000);
+    private String token;
+    // 空闲超时，空闲一半时间后发出探测，0表示不检测
+    private final LongSupplier idleTimeout = ServerConfig.longValue("server.timeout", 30000);
+    private IdleTimer.Entry idleEntry;
+    // 最近一次探测的时间，只在定时线程中访问
+    private long probeSentAt = Long.MIN_VALUE;
+    // 定时心跳的间隔，回应用于估计往返时间，0表示只在空闲时探测
+    private final LongSupplier keepaliveInterval = ServerConfig.longValue("keepalive.interval", 5000);
+    // 会话恢复：令牌，没有协商时为null
+    private String resumeToken;
+    // 控制连接断开后挂起，等待客户端恢复
+    private boolean parked;
+    private IdleTimer.Entry parkEntry;
+    // 客户端主动断开（CLOSE帧，streamId为0），控制连接关闭后不再挂起
+    private boolean goodbye;
+    // 挂起期间到达的玩家连接，恢复后再打开流
+    private final List<ParkedRoute> parkedRoutes = new ArrayList<>();
+
+    // 维护外部连接的映射：streamId -> 外部连接，只在事件循环线程中访问
+    private final ConnectionRegistry<NioExternalConnection> externalConnections = new ConnectionRegistry<>();
+
+    // 客户端预先建立的空闲工作连接，只在事件循环线程中访问
+    private final Deque<NioWorkConnection> idleWorkConnections = new ArrayDeque<>();
+
+    public NioControlConnection(EventLoop loop, SocketChannel channel) {
+        // 控制连接的读缓冲区至少能容纳一个完整的帧
+        super(loop, channel, Frame.HEADER_SIZE + Frame.MAX_PAYLOAD, RelayMetrics.Direction.TO_CLIENT);
+        this.clientId = "client_" + ConnectionRegistry.nextId();
+    }
+
+    /**
+     * 注册后开始空闲检测，会话恢复时重新注册也从这里重新开始
+     */
+    @Override
+    protected void onRegistered() {
+        this.idleEntry = idleTimeout.getAsLong() > 0
+                ? IdleTimer.shared().register(IdleTimer.Kind.CONTROL, () -> idleTimeout.getAsLong() / 2, this::onIdle) : null;
+        probeSentAt = Long.MIN_VALUE;
+    }
+
+    /**
+     * 控制连接空闲：握手未完成时直接关闭；已认证时先发出PING探测，探测后仍没有任何帧到达则关闭
+     * 链路拥塞时测得的往返时间随排队延迟增大，探测后等待的时间还没超过它时再探测一次，不把拥塞误判为断线
+     * 在定时线程中调用，写出和关闭提交到事件循环线程
+     */
+    private boolean onIdle() {
+        RelayMetrics.Tunnel tunnel = metrics;
+        if (authenticated && tunnel != null) {
+            long now = IdleTimer.shared().currentTime();
+            boolean answered = idleEntry.getLastActive() >= probeSentAt;
+            if (answered || now - probeSentAt < tunnel.getRtt().getResponseTimeoutMillis()) {
+                if (answered) {
+                    probeSentAt = now;
+                }
+                loop.execute(this::sendPing);
+                return true;
+            }
+        }
+        logger.info("Client {} timed out after {} ms without activity", clientId, idleTimeout.getAsLong());
+        loop.execute(this::close);
+        return false;
+    }
+
+    private void sendPing() {
+        if (!isClosed()) {
+            write(Frame.encodePing(System.nanoTime()));
+        }
+    }
+
+    /**
+     * 定时心跳：负载忙时控制连接不会空闲，靠它持续测量往返时间；挂起期间不发送，隧道关闭后停止
+     */
+    private void keepalive() {
+        if (isClosed() && !parked) {
+            return;
+        }
+        long interval = keepaliveInterval.getAsLong();
+        if (interval > 0) {
+            sendPing();
+        }
+        loop.schedule(this::keepalive, interval > 0 ? interval : KEEPALIVE_RECHECK_MILLIS);
+    }
+
+    /**
+     * 心跳回应：回显的是中继发出时的时间戳，得到一个往返时间样本；客户端自己发起的心跳由客户端计算
+     */
+    private void onPong(Frame.Cursor frame) {
+        if (frame.hasTimestamp()) {
+            metrics.getRtt().sample(System.nanoTime() - frame.getTimestamp());
+        }
+    }
+
+    private void touch() {
+        if (idleEntry != null) {
+            idleEntry.touch();
+        }
+    }
+
+    @Override
+    protected void onRead(ByteBuffer data) throws IOException {
+        touch();
+        if (!authenticated) {
+            readAuthentication(data);
+            return;
+        }
+
+        if (protocol.equals("TCP")) {
+            handleTCPData(data);
+        } else {
+            handleUDPData(data);
+        }
+    }
+
+    /**
+     * 读取第一行消息：认证消息或工作连接握手
+     */
+    private void readAuthentication(ByteBuffer data) {
+        int end = -1;
+        for (int i = data.position(); i < data.limit(); i++) {
+            if (data.get(i) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            if (data.remaining() == data.capacity()) {
+                write(ByteBuffer.wrap("ERROR: Invalid authentication format\n".getBytes()));
+                closeAfterFlush();
+            }
+            return;
+        }
+
+        byte[] line = new byte[end - data.position()];
+        data.get(line);
+        data.get();
+        String message = new String(line).trim();
+
+        if (message.startsWith("WORK:")) {
+            handOverWorkConnection(message.substring(5).trim());
+            return;
+        }
+
+        if (message.startsWith("RESUME:")) {
+            handOverResume(message.substring(7).trim());
+            return;
+        }
+
+        AuthRequest request;
+        try {
+            request = AuthRequest.parse(message);
+            request.validate(ServerConfig.getString("server.password", "default_password"));
+        } catch (AuthRequest.AuthException e) {
+            RelayMetrics.shared().authFailed();
+            logger.warn("Client authentication failed: {}", channel.socket().getInetAddress().getHostAddress());
+            write(ByteBuffer.wrap(("ERROR: " + e.getMessage() + "\n").getBytes()));
+            closeAfterFlush();
+            return;
+        }
+
+        protocol = request.getProtocol();
+        localPort = request.getLocalPort();
+
+        // 分配并同步绑定远程端口，失败时直接在认证响应中返回错误
+        String identity = request.identity(channel.socket().getInetAddress().getHostAddress());
+        try {
+            remotePort = PortAllocator.shared().acquire(identity, request.getRemotePort(), this::bindRemotePort);
+        } catch (PortAllocator.PortException e) {
+            logger.warn("Failed to assign remote port: {}", e.getMessage());
+            write(ByteBuffer.wrap(("ERROR: " + e.getMessage() + "\n").getBytes()));
+            closeAfterFlush();
+            return;
+        }
+        portAllocated = true;
+
+        // 登记共享端口的主机名，同一个主机名只能属于一条隧道
+        if (request.getHostname() != null) {
+            if (!HostnameRouter.shared().isEnabled()) {
+                logger.warn("Client {} requested hostname {} but no shared port is configured", clientId, request.getHostname());
+            } else if (!HostnameRouter.shared().register(request.getHostname(), this)) {
+                logger.warn("Hostname already in use: {}", request.getHostname());
+                write(ByteBuffer.wrap("ERROR: Hostname already in use\n".getBytes()));
+                closeAfterFlush();
+                return;
+            } else {
+                hostname = request.getHostname();
+            }
+        }
+
+        // 认证成功，令牌用于客户端建立工作连接
+        authenticated = true;
+        token = SessionToken.generate();
+        tunnels.put(token, this);
+        RelayMetrics.shared().authSucceeded();
+        metrics = RelayMetrics.shared().registerTunnel(clientId, protocol, remotePort, this::activeStreams);
+        compressing = protocol.equals("TCP") && request.hasOption("deflate")
+                && ServerConfig.getBoolean("compression.enabled", true);
+        long statusTtl = ServerConfig.getLong("status.cache_ttl", 5000);
+        if (protocol.equals("TCP") && statusTtl > 0) {
+            statusCache = new StatusCache(statusTtl, metrics.getStatusPings());
+        }
+        if (request.hasOption("resume") && ServerConfig.getLong("session.grace_period", 30000) > 0) {
+            resumeToken = SessionToken.generate();
+            sessions.put(resumeToken, this);
+        }
+        write(ByteBuffer.wrap((okResponse("Authenticated") + "\n").getBytes()));
+        logger.info("Client authenticated: {}, Protocol: {}, Local Port: {}, Compression: {}, Hostname: {}, Resumable: {}",
+                clientId, protocol, localPort, compressing, hostname, resumeToken != null);
+
+        if (protocol.equals("TCP")) {
+            startRemoteForwardingService();
+        } else {
+            startUdpForwardingService();
+        }
+        keepalive();
+        // 认证消息之后的剩余数据按帧处理
+        if (data.hasRemaining()) {
+            try {
+                onRead(data);
+            } catch (IOException e) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * 认证或恢复成功的响应，会话令牌必须在隧道令牌之前，旧版客户端把Token之后的内容都当作隧道令牌
+     */
+    private String okResponse(String verb) {
+        return "OK: " + verb + " as " + clientId + " Remote port: " + remotePort
+                + (compressing ? " Compression: deflate" : "") + (hostname != null ? " Hostname: " + hostname : "")
+                + (resumeToken != null ? " Resume: " + resumeToken : "") + " Token: " + token;
+    }
+
+    /**
+     * 处理认证后客户端发来的帧
+     */
+    private void handleTCPData(ByteBuffer data) throws IOException {
+        while (cursor.next(data)) {
+            handleFrame(cursor, this);
+        }
+    }
+
+    /**
+     * 处理控制连接或工作连接上收到的帧，frame指向link的读缓冲区，返回前处理完负载
+     */
+    void handleFrame(Frame.Cursor frame, NioConnection link) {
+        // 工作连接上的帧同样说明客户端还活着
+        if (link != this) {
+            touch();
+        }
+        switch (frame.getType()) {
+            case Frame.DATA, Frame.DEFLATE -> {
+                // 只转发给帧所属的外部连接
+                NioExternalConnection external = externalConnections.get(frame.getStreamId());
+                if (external == null) {
+                    return;
+                }
+                boolean accepted;
+                try {
+                    accepted = frame.getType() == Frame.DEFLATE
+                            ? external.receive(ByteBuffer.wrap(external.inflate(frame.getPayload())))
+                            : external.receiveCopy(frame.payload());
+                } catch (IOException e) {
+                    logger.warn("Stream {} sent an invalid compressed frame: {}", frame.getStreamId(), e.getMessage());
+                    external.close();
+                    return;
+                }
+                if (!accepted) {
+                    logger.warn("Stream {} exceeded its flow control window", frame.getStreamId());
+                    external.close();
+                }
+            }
+            case Frame.WINDOW -> {
+                NioExternalConnection external = externalConnections.get(frame.getStreamId());
+                if (external != null) {
+                    external.grant(frame.getWindowIncrement());
+                }
+            }
+            case Frame.CLOSE -> {
+                if (frame.getStreamId() == 0) {
+                    // 客户端主动断开，不再挂起等待恢复
+                    goodbye = true;
+                    return;
+                }
+                logger.debug("Client closed stream: {}", frame.getStreamId());
+                NioExternalConnection external = externalConnections.remove(frame.getStreamId());
+                if (external != null) {
+                    external.closeAfterFlush();
+                }
+            }
+            case Frame.PING -> {
+                logger.debug("Received PING, sending PONG");
+                link.write(Frame.encode(Frame.PONG, 0, frame.payload()));
+            }
+            case Frame.PONG -> onPong(frame);
+            case Frame.RESUME -> resumeStream(frame);
+            default -> logger.debug("Ignoring frame type {} on stream {}", frame.getType(), frame.getStreamId());
+        }
+    }
+
+    /**
+     * 客户端恢复会话后发来的流状态：续传客户端也保留着的流；列表结束时关闭客户端已经没有的流
+     */
+    private void resumeStream(Frame.Cursor frame) {
+        if (frame.getStreamId() == 0) {
+            List<NioExternalConnection> unresumed = new ArrayList<>();
+            for (NioExternalConnection external : externalConnections.values()) {
+                if (external.isSuspended()) {
+                    unresumed.add(external);
+                }
+            }
+            for (NioExternalConnection external : unresumed) {
+                // 客户端不知道这个流，不需要通知
+                externalConnections.remove(external.getStreamId());
+                external.close();
+            }
+            if (!unresumed.isEmpty()) {
+                logger.info("Closed {} streams the client no longer has after resuming tunnel {}", unresumed.size(), clientId);
+            }
+            return;
+        }
+        NioExternalConnection external = externalConnections.get(frame.getStreamId());
+        if (external == null || !external.isSuspended()) {
+            // 中继已经关闭了该流，客户端收到中继的列表后自行关闭
+            return;
+        }
+        if (!external.resume(this, frame.getResumeReceived(), frame.getResumeGranted())) {
+            logger.warn("Stream {} cannot be resumed: unacknowledged data exceeded the replay buffer", frame.getStreamId());
+            externalConnections.remove(frame.getStreamId());
+            write(Frame.encode(Frame.CLOSE, frame.getStreamId()));
+            external.close();
+        }
+    }
+
+    /**
+     * 工作连接握手：从当前事件循环摘下，交给所属隧道的事件循环
+     * 客户端在收到OPEN之前不会在工作连接上发送数据
+     */
+    private void handOverWorkConnection(String tunnelToken) {
+        NioControlConnection tunnel = tunnels.get(tunnelToken);
+        if (tunnel == null) {
+            write(ByteBuffer.wrap("ERROR: Unknown tunnel\n".getBytes()));
+            closeAfterFlush();
+            return;
+        }
+        SelectionKey key = detach();
+        // 空闲的工作连接没有流量，由所属隧道的控制连接检测对端是否存活
+        if (idleEntry != null) {
+            idleEntry.cancel();
+        }
+        AdmissionControl.Permit permit = getPermit();
+        if (tunnel.loop == loop) {
+            // 同一个事件循环直接替换处理器
+            tunnel.addWorkConnection(channel, key, permit);
+        } else {
+            key.cancel();
+            tunnel.loop.execute(() -> tunnel.addWorkConnection(channel, null, permit));
+        }
+    }
+
+    private void addWorkConnection(SocketChannel workChannel, SelectionKey key, AdmissionControl.Permit permit) {
+        NioWorkConnection work = new NioWorkConnection(loop, workChannel, this);
+        work.admit(permit);
+        if (key != null) {
+            work.adopt(key);
+        }
+        if (isClosed()) {
+            work.close();
+            return;
+        }
+        try {
+            if (key == null) {
+                work.register();
+            }
+        } catch (IOException e) {
+            work.close();
+            return;
+        }
+        idleWorkConnections.add(work);
+        logger.debug("Work connection added to tunnel {}, idle: {}", clientId, idleWorkConnections.size());
+    }
+
+    /**
+     * 工作连接关闭，从空闲池移除，已绑定的外部连接随之关闭
+     */
+    void removeWorkConnection(NioWorkConnection work) {
+        idleWorkConnections.remove(work);
+        NioExternalConnection external = work.getExternal();
+        if (external == null || external.getLink() != work) {
+            // 空闲的工作连接，或者流已挂起、已改由控制连接承载
+            return;
+        }
+        if (resumeToken != null && externalConnections.get(external.getStreamId()) == external) {
+            // 流还没结束工作连接就断了，多半是网络中断：挂起整个隧道，客户端恢复会话后一并续传
+            external.suspend();
+            close();
+            return;
+        }
+        externalConnections.remove(external.getStreamId());
+        external.close();
+    }
+
+    /**
+     * 会话恢复握手：从当前事件循环摘下通道，交给挂起的隧道所在的事件循环
+     * 客户端在收到响应之前不会发送帧
+     */
+    private void handOverResume(String sessionToken) {
+        NioControlConnection tunnel = sessions.get(sessionToken);
+        if (tunnel == null) {
+            RelayMetrics.shared().resumeFailed();
+            logger.warn("Resume rejected for unknown session from {}", channel.socket().getInetAddress().getHostAddress());
+            write(ByteBuffer.wrap("ERROR: Unknown session\n".getBytes()));
+            closeAfterFlush();
+            return;
+        }
+        SelectionKey key = detach();
+        if (idleEntry != null) {
+            idleEntry.cancel();
+        }
+        AdmissionControl.Permit permit = getPermit();
+        if (tunnel.loop == loop) {
+            tunnel.resume(channel, key, permit);
+        } else {
+            key.cancel();
+            tunnel.loop.execute(() -> tunnel.resume(channel, null, permit));
+        }
+    }
+
+    /**
+     * 在新的通道上恢复隧道：先发恢复响应和每个挂起的流的状态，再打开挂起期间到达的玩家连接
+     * 客户端先发现断线时中继这边的旧控制连接可能还没断开，先关闭它让隧道挂起
+     */
+    private void resume(SocketChannel newChannel, SelectionKey key, AdmissionControl.Permit permit) {
+        if (!isClosed()) {
+            close();
+        }
+        if (!parked) {
+            // 恢复途中会话已过期
+            RelayMetrics.shared().resumeFailed();
+            try (newChannel) {
+                newChannel.write(ByteBuffer.wrap("ERROR: Unknown session\n".getBytes()));
+            } catch (IOException e) {
+                // 忽略错误
+            }
+            permit.release();
+            return;
+        }
+        parked = false;
+        parkEntry.cancel();
+        RelayMetrics.shared().tunnelResumed();
+        try {
+            reattach(newChannel, key, permit);
+        } catch (IOException e) {
+            logger.error("Failed to resume tunnel {}: {}", clientId, e.getMessage());
+            close();
+            return;
+        }
+        write(ByteBuffer.wrap((okResponse("Resumed") + "\n").getBytes()));
+        for (NioExternalConnection external : externalConnections.values()) {
+            write(external.resumeFrame());
+        }
+        write(Frame.encode(Frame.RESUME, 0));
+        logger.info("Tunnel {} resumed from {} with {} streams", clientId,
+                newChannel.socket().getInetAddress().getHostAddress(), externalConnections.size());
+        List<ParkedRoute> routes = new ArrayList<>(parkedRoutes);
+        parkedRoutes.clear();
+        for (ParkedRoute route : routes) {
+            openExternal(route.channel(), null, route.permit(), route.prefix());
+        }
+    }
+
+    /**
+     * 控制连接意外断开：保留远程端口、玩家连接和UDP会话，流挂起，等待客户端恢复
+     */
+    private void park() {
+        parked = true;
+        if (idleEntry != null) {
+            idleEntry.cancel();
+        }
+        List<NioWorkConnection> idle = new ArrayList<>(idleWorkConnections);
+        idleWorkConnections.clear();
+        for (NioWorkConnection work : idle) {
+            work.close();
+        }
+        for (NioExternalConnection external : externalConnections.values()) {
+            NioConnection previous = external.suspend();
+            if (previous != null && previous != this) {
+                previous.close();
+            }
+        }
+        long grace = ServerConfig.getLong("session.grace_period", 30000);
+        parkEntry = IdleTimer.shared().register(IdleTimer.Kind.SESSION, grace, () -> {
+            loop.execute(this::expire);
+            return false;
+        });
+        RelayMetrics.shared().tunnelParked();
+        logger.info("Tunnel {} lost its client connection, holding port {} and {} streams for {} ms",
+                clientId, remotePort, externalConnections.size(), grace);
+    }
+
+    /**
+     * 挂起超时，客户端没有回来
+     */
+    private void expire() {
+        if (!parked) {
+            return;
+        }
+        parked = false;
+        RelayMetrics.shared().parkExpired();
+        logger.info("Tunnel {} was not resumed in time", clientId);
+        teardown();
+    }
+
+    /**
+     * 处理UDP隧道的帧：本地服务的响应按streamId发回对应的玩家地址
+     */
+    private void handleUDPData(ByteBuffer data) throws IOException {
+        Frame.Cursor frame = cursor;
+        while (frame.next(data)) {
+            switch (frame.getType()) {
+                case Frame.DATA -> {
+                    UdpSessionTable.Session session = udpSessions.get(frame.getStreamId());
+                    if (session != null && udpListener != null) {
+                        session.touch();
+                        metrics.sent(frame.getPayloadLength());
+                        // 数据报立即发出，直接从读缓冲区发送
+                        udpListener.send(frame.payload(), session.getAddress());
+                    }
+                }
+                case Frame.CLOSE -> udpSessions.remove(frame.getStreamId());
+                case Frame.PING -> write(Frame.encode(Frame.PONG, 0, frame.payload()));
+                case Frame.PONG -> onPong(frame);
+                default -> logger.debug("Ignoring frame type {} on stream {}", frame.getType(), frame.getStreamId());
+            }
+        }
+    }
+
+    /**
+     * 在当前事件循环上监听远程UDP端口，每个玩家地址对应一个流
+     */
+    private void startUdpForwardingService() {
+        udpSessions = new UdpSessionTable(ServerConfig.longValue("udp.session_timeout", 60000),
+                ServerConfig.longValue("udp.max_sessions", 256), session -> {
+            logger.debug("UDP session {} expired", session.getStreamId());
+            loop.execute(() -> {
+                if (!isClosed()) {
+                    write(Frame.encode(Frame.CLOSE, session.getStreamId()));
+                }
+            });
+        });
+        try {
+            loop.register(udpListener.datagramChannel, SelectionKey.OP_READ, udpListener);
+            logger.info("Started UDP forwarding service on port: {}", remotePort);
+        } catch (IOException e) {
+            logger.error("Failed to start UDP forwarding service on port {}: {}", remotePort, e.getMessage());
+            sendError("Failed to start forwarding service on port " + remotePort);
+        }
+    }
+
+    /**
+     * 在当前事件循环上监听远程端口
+     */
+    private void startRemoteForwardingService() {
+        try {
+            loop.register(remoteListener.serverChannel, SelectionKey.OP_ACCEPT, remoteListener);
+            logger.info("Started remote forwarding service on port: {}", remotePort);
+        } catch (IOException e) {
+            logger.error("Failed to start remote forwarding service on port {}: {}", remotePort, e.getMessage());
+            sendError("Failed to start forwarding service on port " + remotePort);
+        }
+    }
+
+    /**
+     * 在分配到的端口上绑定远程监听，注册到事件循环留到认证响应发出之后
+     */
+    private void bindRemotePort(int port) throws IOException {
+        if (protocol.equals("TCP")) {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            try {
+                serverChannel.bind(new InetSocketAddress(port), ServerConfig.getInt("server.accept_backlog", 128));
+            } catch (IOException e) {
+                serverChannel.close();
+                throw e;
+            }
+            remoteListener = new RemoteListener(serverChannel);
+        } else {
+            DatagramChannel datagramChannel = DatagramChannel.open();
+            try {
+                datagramChannel.bind(new InetSocketAddress(port));
+            } catch (IOException e) {
+                datagramChannel.close();
+                throw e;
+            }
+            udpListener = new UdpListener(datagramChannel);
+        }
+    }
+
+    /**
+     * 已读到握手包的玩家连接（共享端口或识别状态查询的远程端口），在调用方的事件循环线程中调用
+     * 同一个事件循环直接接管原来的注册，否则注销后交给隧道的事件循环重新注册
+     */
+    @Override
+    public void route(SocketChannel externalChannel, SelectionKey key, AdmissionControl.Permit permit, ByteBuffer prefix) {
+        if (loop.inEventLoop()) {
+            openExternal(externalChannel, key, permit, prefix);
+        } else {
+            key.cancel();
+            loop.execute(() -> openExternal(externalChannel, null, permit, prefix));
+        }
+    }
+
+    /**
+     * 为玩家连接打开一个流：key不为null时接管同一事件循环上的注册，prefix为路由时已读到、需要先转发的数据
+     */
+    private void openExternal(SocketChannel externalChannel, SelectionKey key, AdmissionControl.Permit permit,
+                              ByteBuffer prefix) {
+        if (isClosed() && !parked) {
+            // 路由途中隧道已关闭
+            try {
+                externalChannel.close();
+            } catch (IOException e) {
+                // 忽略错误
+            }
+            permit.release();
+            return;
+        }
+        // 状态查询在缓存有效时由中继应答，否则照常转发并用响应刷新缓存
+        StatusCache.Capture capture = null;
+        MinecraftHandshake handshake = statusCache != null && prefix != null ? parseHandshake(prefix) : null;
+        if (handshake != null) {
+            StatusCache.LocalAnswer answer = statusCache.lookup(handshake);
+            if (answer != null) {
+                answerStatus(externalChannel, key, permit, prefix.position(prefix.position() + handshake.getLength()), answer);
+                return;
+            }
+            if (handshake.getNextState() == MinecraftHandshake.STATUS) {
+                capture = statusCache.capture(handshake);
+            }
+        }
+        if (parked) {
+            // 等客户端恢复后再打开流，过期时随隧道关闭
+            if (key != null) {
+                key.cancel();
+            }
+            parkedRoutes.add(new ParkedRoute(externalChannel, permit, prefix));
+            return;
+        }
+        long streamId = ConnectionRegistry.nextId();
+        logger.info("Received external connection: {} on port: {}", streamId, externalChannel.socket().getLocalPort());
+
+        // 优先绑定一个空闲的工作连接，没有时通过控制连接多路复用
+        NioWorkConnection work = idleWorkConnections.poll();
+        NioConnection link = work != null ? work : this;
+        NioExternalConnection external = new NioExternalConnection(loop, externalChannel, this, link, streamId,
+                streamWindow, compressing ? new StreamCompressor(metrics.getCompression()) : null,
+                resumeToken != null ? new ReplayBuffer(replayCapacity()) : null);
+        external.admit(permit);
+        if (capture != null) {
+            external.captureStatus(capture);
+        }
+        if (work != null) {
+            work.bind(external);
+        }
+        try {
+            if (key != null) {
+                external.adopt(key);
+            } else {
+                external.register();
+            }
+        } catch (IOException e) {
+            external.close();
+            return;
+        }
+        externalConnections.put(streamId, external);
+
+        // 通知客户端打开新的流，并通告比默认初始窗口多出的接收额度
+        link.write(Frame.encode(Frame.OPEN, streamId));
+        if (streamWindow > Frame.INITIAL_WINDOW) {
+            external.sendWindowUpdate(streamWindow - Frame.INITIAL_WINDOW);
+        }
+        if (prefix != null) {
+            try {
+                external.replay(prefix);
+            } catch (IOException e) {
+                external.close();
+            }
+        }
+    }
+
+    /**
+     * 每个流的重发缓冲区容量，不小于客户端的初始窗口
+     */
+    private static int replayCapacity() {
+        return Math.max(Frame.INITIAL_WINDOW, ServerConfig.getInt("session.replay_buffer", 262144));
+    }
+
+    private static MinecraftHandshake parseHandshake(ByteBuffer prefix) {
+        try {
+            return MinecraftHandshake.parse(prefix);
+        } catch (IOException e) {
+            // 不是Minecraft连接，照常转发
+            return null;
+        }
+    }
+
+    /**
+     * 在中继应答状态查询，不打开到客户端的流；data为握手包之后已读到的数据
+     */
+    private void answerStatus(SocketChannel externalChannel, SelectionKey key, AdmissionControl.Permit permit,
+                              ByteBuffer data, StatusCache.LocalAnswer answer) {
+        NioStatusConnection status = new NioStatusConnection(loop, externalChannel, answer);
+        status.admit(permit);
+        try {
+            if (key != null) {
+                status.adopt(key);
+            } else {
+                status.register();
+            }
+            status.replay(data);
+        } catch (IOException e) {
+            status.close();
+        }
+    }
+
+    /**
+     * 外部连接关闭，仍在映射中说明是玩家一侧断开，需要通知客户端
+     */
+    void removeExternal(NioExternalConnection external) {
+        NioConnection link = external.getLink();
+        if (link == null) {
+            // 挂起中的流，恢复时客户端从中继的列表中得知它已关闭
+            externalConnections.remove(external.getStreamId());
+            return;
+        }
+        if (externalConnections.remove(external.getStreamId()) != null) {
+            link.write(Frame.encode(Frame.CLOSE, external.getStreamId()));
+        }
+        // 工作连接只服务一个流，流结束后关闭
+        if (link != this) {
+            link.closeAfterFlush();
+        }
+    }
+
+    /**
+     * 隧道的指标，认证成功后可用
+     */
+    RelayMetrics.Tunnel getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 隧道在一个方向上的限速
+     */
+    RateLimiter getRateLimiter(RelayMetrics.Direction direction) {
+        return rateLimits[direction.ordinal()];
+    }
+
+    /**
+     * 当前的玩家连接或UDP会话数，在指标线程中调用
+     */
+    private int activeStreams() {
+        UdpSessionTable sessions = udpSessions;
+        return sessions != null ? sessions.size() : externalConnections.size();
+    }
+
+    private void sendError(String errorMessage) {
+        byte[] message = errorMessage.getBytes();
+        write(Frame.encode(Frame.ERROR, 0, message, 0, message.length));
+    }
+
+    /**
+     * 控制连接关闭：协商了会话恢复的隧道在客户端没有主动断开时挂起，否则关闭整个隧道
+     */
+    @Override
+    protected void onClosed() {
+        if (idleEntry != null) {
+            idleEntry.cancel();
+        }
+        if (resumeToken != null && !goodbye && !loop.isShuttingDown()) {
+            park();
+            return;
+        }
+        teardown();
+    }
+
+    /**
+     * 关闭隧道：释放远程端口、令牌和所有玩家连接
+     */
+    private void teardown() {
+        if (resumeToken != null) {
+            sessions.remove(resumeToken);
+        }
+        for (ParkedRoute route : parkedRoutes) {
+            try {
+                route.channel().close();
+            } catch (IOException e) {
+                // 忽略错误
+            }
+            route.permit().release();
+        }
+        parkedRoutes.clear();
+        if (token != null) {
+            tunnels.remove(token);
+        }
+        if (hostname != null) {
+            HostnameRouter.shared().unregister(hostname, this);
+        }
+        if (metrics != null) {
+            if (compressing) {
+                logger.info("Tunnel {} compression: {}", clientId, metrics.getCompression());
+            }
+            RelayMetrics.shared().unregisterTunnel(metrics);
+        }
+        if (portAllocated) {
+            PortAllocator.shared().release(remotePort);
+        }
+        List<NioWorkConnection> idle = new ArrayList<>(idleWorkConnections);
+        idleWorkConnections.clear();
+        for (NioWorkConnection work : idle) {
+            work.close();
+        }
+        if (remoteListener != null) {
+            remoteListener.close();
+            logger.info("Closed remote forwarding service on port: {}", remotePort);
+        }
+        if (udpListener != null) {
+            udpListener.close();
+            udpSessions.clear();
+            logger.info("Closed UDP forwarding service on port: {}", remotePort);
+        }
+        List<NioExternalConnection> externals = externalConnections.values();
+        externalConnections.clear();
+        for (NioExternalConnection external : externals) {
+            external.close();
+        }
+        logger.info("Client connection closed: {}", clientId);
+    }
+
+    /**
+     * 挂起期间到达的玩家连接
+     */
+    private record ParkedRoute(SocketChannel channel, AdmissionControl.Permit permit, ByteBuffer prefix) {
+    }
+
+    /**
+     * 远程UDP端口，接收玩家数据报并封装为DATA帧
+     */
+    private class UdpListener implements ChannelHandler {
+
+        private final DatagramChannel datagramChannel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(Frame.MAX_PAYLOAD);
+
+        UdpListener(DatagramChannel datagramChannel) {
+            this.datagramChannel = datagramChannel;
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            SocketAddress address;
+            while ((address = receive()) != null) {
+                if (parked) {
+                    // 挂起期间没有到客户端的连接，按UDP语义丢弃
+                    continue;
+                }
+                UdpSessionTable.Session session = udpSessions.get(address);
+                if (session == null) {
+                    try {
+                        session = udpSessions.create(address);
+                    } catch (AdmissionControl.AdmissionException e) {
+                        // 超出隧道的UDP会话数上限，丢弃新地址的数据报
+                        logger.debug("Dropped UDP datagram from {}: {}", address, e.getMessage());
+                        continue;
+                    }
+                    logger.debug("New UDP session {} from {}", session.getStreamId(), address);
+                    write(Frame.encode(Frame.OPEN, session.getStreamId()));
+                }
+                session.touch();
+                metrics.received(buffer.remaining());
+                write(Frame.encode(Frame.DATA, session.getStreamId(), buffer));
+            }
+        }
+
+        private SocketAddress receive() throws IOException {
+            buffer.clear();
+            SocketAddress address = datagramChannel.receive(buffer);
+            buffer.flip();
+            return address;
+        }
+
+        /**
+         * 非阻塞发送，发送缓冲区满时按UDP语义丢弃
+         */
+        void send(ByteBuffer data, SocketAddress address) {
+            try {
+                datagramChannel.send(data, address);
+            } catch (IOException e) {
+                logger.debug("Failed to send UDP data to {}: {}", address, e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                datagramChannel.close();
+            } catch (IOException e) {
+                logger.error("Error closing UDP channel: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 远程端口监听器，接受外部玩家连接
+     */
+    private class RemoteListener implements ChannelHandler {
+
+        private final ServerSocketChannel serverChannel;
+
+        RemoteListener(ServerSocketChannel serverChannel) {
+            this.serverChannel = serverChannel;
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            SocketChannel externalChannel;
+            while ((externalChannel = serverChannel.accept()) != null) {
+                AdmissionControl.Permit permit;
+                try {
+                    permit = AdmissionControl.shared().admit(
+                            externalChannel.socket().getInetAddress(), AdmissionControl.Kind.PLAYER);
+                } catch (AdmissionControl.AdmissionException e) {
+                    // 玩家连接上没有中继协议，直接关闭
+                    logger.debug("Rejected external connection on port {}: {}", remotePort, e.getMessage());
+                    externalChannel.close();
+                    continue;
+                }
+                if (statusCache == null) {
+                    openExternal(externalChannel, null, permit, null);
+                    continue;
+                }
+                // 先读第一个数据包识别状态查询，之后经route()回到openExternal
+                NioHandshakeConnection handshake = new NioHandshakeConnection(loop, externalChannel,
+                        NioControlConnection.this, handshakeTimeout);
+                handshake.admit(permit);
+                try {
+                    handshake.register();
+                } catch (IOException e) {
+                    handshake.close();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                logger.error("Error closing remote server channel: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.aweqy.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 外部玩家连接，读到的数据封装为DATA帧，通过控制连接或绑定的工作连接发给客户端
+ * 两个方向都按流做额度控制：客户端的接收窗口用完时暂停读取玩家数据，写给玩家的数据最多排队一个接收窗口
+ * 隧道协商了压缩时发给客户端的数据可能压缩成DEFLATE帧，额度始终按压缩前的字节数计算
+ * 超出限速时暂停读取玩家数据，或暂缓向客户端通告额度让客户端暂停发送，直到令牌桶的欠额补足
+ * 隧道协商了会话恢复时，发给客户端的数据同时记入重放缓冲区；控制连接断开期间流挂起，读到的数据只记录不发送，
+ * 客户端恢复会话后按双方交换的RESUME帧重发对端没收到的数据、补回丢失的额度，再继续转发
+ */
+public class NioExternalConnection extends NioConnection {
+
+    private final NioControlConnection tunnel;
+    // 流挂起等待会话恢复时为null
+    private NioConnection link;
+    private final long streamId;
+    private final int receiveWindow;
+    // 还可以发给客户端的字节数
+    private long sendCredit = Frame.INITIAL_WINDOW;
+    // 客户端发来、还没有写给玩家的字节数
+    private long pendingBytes;
+    // 已写给玩家、还没有通告给客户端的字节数
+    private int consumed;
+    // 两个方向都没有数据超过server.timeout时关闭
+    private IdleTimer.Entry idleEntry;
+    // 没有协商压缩时为null
+    private final StreamCompressor compressor;
+    // 转发给本地服务器的状态查询，记录响应以刷新状态缓存
+    private StatusCache.Capture statusCapture;
+    // 没有协商会话恢复时为null
+    private final ReplayBuffer replay;
+    // 从客户端收到的字节数
+    private long received;
+    // 累计向客户端通告的额度，以及其中已在RESUME帧中告知客户端的部分
+    private long granted;
+    private long reportedGranted;
+    // 累计收到的客户端通告的额度
+    private long peerGranted;
+    // 两个方向的限速，挂在隧道的桶下
+    private final RateLimiter toClientLimit;
+    private final RateLimiter toPlayerLimit;
+    // 超出限速后暂停读取玩家数据、暂缓通告额度，直到对应的时间（System.nanoTime）
+    private boolean readThrottled;
+    private long readThrottledUntil;
+    private boolean grantThrottled;
+    private long grantThrottledUntil;
+
+    public NioExternalConnection(EventLoop loop, SocketChannel channel, NioControlConnection tunnel,
+                                 NioConnection link, long streamId, int receiveWindow, StreamCompressor compressor,
+                                 ReplayBuffer replay) {
+        super(loop, channel, BufferPool.shared().lease(), RelayMetrics.Direction.TO_PLAYER);
+        this.tunnel = tunnel;
+        this.link = link;
+        this.streamId = streamId;
+        this.receiveWindow = receiveWindow;
+        this.compressor = compressor;
+        this.replay = replay;
+        this.toClientLimit = tunnel.getRateLimiter(RelayMetrics.Direction.TO_CLIENT).forConnection();
+        this.toPlayerLimit = tunnel.getRateLimiter(RelayMetrics.Direction.TO_PLAYER).forConnection();
+    }
+
+    @Override
+    protected void onRegistered() {
+        LongSupplier idleTimeout = ServerConfig.longValue("server.timeout", 30000);
+        this.idleEntry = idleTimeout.getAsLong() > 0
+                ? IdleTimer.shared().register(IdleTimer.Kind.STREAM, idleTimeout, this::onIdle) : null;
+    }
+
+    private boolean onIdle() {
+        loop.execute(this::close);
+        return false;
+    }
+
+    private void touch() {
+        if (idleEntry != null) {
+            idleEntry.touch();
+        }
+    }
+
+    /**
+     * 读到的数据复制（或压缩）到从缓冲池借出的帧缓冲区，帧写出后由link归还
+     * 额度不足时剩余数据留在读缓冲区，暂停读取直到客户端通告新的额度；超出限速时暂停读取直到欠额补足
+     */
+    @Override
+    protected void onRead(ByteBuffer data) {
+        touch();
+        BufferPool pool = BufferPool.shared();
+        int forwarded = 0;
+        while (data.hasRemaining() && sendCredit > 0) {
+            int length = (int) Math.min(Math.min(data.remaining(), pool.getBufferSize() - Frame.HEADER_SIZE), sendCredit);
+            if (replay != null) {
+                replay.append(data.slice(data.position(), length));
+            }
+            if (link != null) {
+                ByteBuffer frame = compressor != null ? compressor.deflate(data.slice(data.position(), length)) : null;
+                byte type = Frame.DEFLATE;
+                if (frame == null) {
+                    frame = pool.lease();
+                    frame.put(Frame.HEADER_SIZE, data, data.position(), length).position(Frame.HEADER_SIZE + length);
+                    type = Frame.DATA;
+                }
+                link.write(Frame.encodeInPlace(type, streamId, frame));
+            }
+            data.position(data.position() + length);
+            sendCredit -= length;
+            forwarded += length;
+            tunnel.getMetrics().received(length);
+        }
+        long wait = forwarded > 0 ? toClientLimit.consume(forwarded) : 0;
+        if (wait > 0) {
+            tunnel.getMetrics().throttled(RelayMetrics.Direction.TO_CLIENT, forwarded);
+            readThrottled = true;
+            readThrottledUntil = System.nanoTime() + wait;
+            pauseReading();
+            loop.schedule(this::endReadThrottle, toMillis(wait));
+        } else if (data.hasRemaining()) {
+            pauseReading();
+        }
+    }
+
+    private void endReadThrottle() {
+        long remaining = readThrottledUntil - System.nanoTime();
+        if (remaining > 0) {
+            loop.schedule(this::endReadThrottle, toMillis(remaining));
+            return;
+        }
+        readThrottled = false;
+        if (sendCredit > 0) {
+            resumeReading();
+        }
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos) + 1;
+    }
+
+    /**
+     * 客户端通告了新的额度
+     */
+    public void grant(int increment) {
+        peerGranted += increment;
+        sendCredit += increment;
+        if (sendCredit > 0 && !readThrottled) {
+            resumeReading();
+        }
+    }
+
+    /**
+     * 解压客户端发来的DEFLATE帧，隧道没有协商压缩时视为协议错误
+     */
+    public byte[] inflate(byte[] payload) throws IOException {
+        if (compressor == null) {
+            throw new IOException("Compression was not negotiated");
+        }
+        return compressor.inflate(payload);
+    }
+
+    /**
+     * 记录发给玩家的状态响应
+     */
+    public void captureStatus(StatusCache.Capture capture) {
+        this.statusCapture = capture;
+    }
+
+    /**
+     * 写出客户端发来的数据，超出通告的接收窗口时返回false
+     */
+    public boolean receive(ByteBuffer payload) {
+        if (!admitReceived(payload)) {
+            return false;
+        }
+        write(payload);
+        return true;
+    }
+
+    /**
+     * 同receive，负载仍属于调用方（控制连接读缓冲区的视图），复制后排队
+     */
+    public boolean receiveCopy(ByteBuffer payload) {
+        if (!admitReceived(payload)) {
+            return false;
+        }
+        writeCopy(payload);
+        return true;
+    }
+
+    private boolean admitReceived(ByteBuffer payload) {
+        touch();
+        if (statusCapture != null) {
+            statusCapture.feed(payload);
+        }
+        pendingBytes += payload.remaining();
+        if (pendingBytes > receiveWindow) {
+            return false;
+        }
+        received += payload.remaining();
+        return true;
+    }
+
+    /**
+     * 数据写给玩家后，每满半个窗口向客户端通告一次额度
+     * 超出限速时暂缓通告，客户端用完额度后暂停发送，欠额补足后一次补发
+     */
+    @Override
+    protected void onWritten(int bytes) {
+        tunnel.getMetrics().sent(bytes);
+        pendingBytes -= bytes;
+        consumed += bytes;
+        long wait = toPlayerLimit.consume(bytes);
+        if (wait > 0) {
+            tunnel.getMetrics().throttled(RelayMetrics.Direction.TO_PLAYER, bytes);
+            long until = System.nanoTime() + wait;
+            if (!grantThrottled) {
+                grantThrottled = true;
+                grantThrottledUntil = until;
+                loop.schedule(this::endGrantThrottle, toMillis(wait));
+            } else {
+                grantThrottledUntil = Math.max(grantThrottledUntil, until);
+            }
+        }
+        if (consumed >= receiveWindow / 2 && !grantThrottled) {
+            sendWindowUpdate(consumed);
+            consumed = 0;
+        }
+    }
+
+    private void endGrantThrottle() {
+        long remaining = grantThrottledUntil - System.nanoTime();
+        if (remaining > 0) {
+            loop.schedule(this::endGrantThrottle, toMillis(remaining));
+            return;
+        }
+        grantThrottled = false;
+        if (consumed > 0 && !isClosed()) {
+            sendWindowUpdate(consumed);
+            consumed = 0;
+        }
+    }
+
+    /**
+     * 向客户端通告新的额度，流挂起时只累计，恢复时补发
+     */
+    void sendWindowUpdate(int increment) {
+        granted += increment;
+        if (link != null) {
+            link.write(Frame.encodeWindow(streamId, increment));
+            reportedGranted = granted;
+        }
+    }
+
+    /**
+     * 控制连接断开：流挂起，之后读到的数据只记入重放缓冲区，返回原来承载该流的连接
+     */
+    NioConnection suspend() {
+        NioConnection previous = link;
+        link = null;
+        return previous;
+    }
+
+    public boolean isSuspended() {
+        return link == null;
+    }
+
+    /**
+     * 会话恢复时发给客户端的本流状态
+     */
+    ByteBuffer resumeFrame() {
+        reportedGranted = granted;
+        return Frame.encodeResume(streamId, received, granted);
+    }
+
+    /**
+     * 收到客户端的RESUME帧：改由link承载本流，重发客户端没收到的数据，补回双方丢失的额度通告
+     * 需要重发的数据已被挤出重放缓冲区时返回false，调用方关闭该流
+     */
+    boolean resume(NioConnection link, long peerReceived, long peerGrantedTotal) {
+        ByteBuffer missing = replay != null ? replay.from(peerReceived) : null;
+        if (missing == null) {
+            return false;
+        }
+        this.link = link;
+        sendCredit += peerGrantedTotal - peerGranted;
+        peerGranted = peerGrantedTotal;
+        while (missing.hasRemaining()) {
+            int length = Math.min(missing.remaining(), Frame.MAX_PAYLOAD);
+            link.write(Frame.encode(Frame.DATA, streamId, missing.slice(missing.position(), length)));
+            missing.position(missing.position() + length);
+        }
+        if (granted > reportedGranted) {
+            link.write(Frame.encodeWindow(streamId, (int) (granted - reportedGranted)));
+            reportedGranted = granted;
+        }
+        if (sendCredit > 0 && !readThrottled) {
+            resumeReading();
+        }
+        return true;
+    }
+
+    @Override
+    protected void onClosed() {
+        if (idleEntry != null) {
+            idleEntry.cancel();
+        }
+        if (compressor != null) {
+            compressor.end();
+        }
+        if (statusCapture != null) {
+            statusCapture.finish();
+        }
+        tunnel.removeExternal(this);
+    }
+
+    public long getStreamId() {
+        return streamId;
+    }
+
+    /**
+     * 承载该流的连接：控制连接或绑定的工作连接，挂起时为null
+     */
+    public NioConnection getLink() {
+        return link;
+    }
+}
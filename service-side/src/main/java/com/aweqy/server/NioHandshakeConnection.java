@@ -0,0 +1,118 @@
+package com.aweqy.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 等待握手包的玩家连接，读到后把通道和已读到的数据交给隧道
+ * 共享端口上必须读到完整的握手包才能按主机名路由，不是握手包或超时即关闭；
+ * 隧道自己的远程端口上只为识别状态查询，第一次读到数据或超时后无论是否为握手包都交给隧道照常转发
+ */
+public class NioHandshakeConnection extends NioConnection {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioHandshakeConnection.class);
+
+    // 共享端口按主机名查找隧道，远程端口直接交给所属隧道，二者只有一个不为null
+    private final HostnameRouter router;
+    private final HostnameRouter.Route route;
+    private final long timeoutMillis;
+    private IdleTimer.Entry idleEntry;
+
+    /**
+     * 共享端口上的连接
+     */
+    public NioHandshakeConnection(EventLoop loop, SocketChannel channel, HostnameRouter router, long timeoutMillis) {
+        this(loop, channel, router, null, timeoutMillis);
+    }
+
+    /**
+     * 隧道远程端口上的连接
+     */
+    public NioHandshakeConnection(EventLoop loop, SocketChannel channel, HostnameRouter.Route route, long timeoutMillis) {
+        this(loop, channel, null, route, timeoutMillis);
+    }
+
+    private NioHandshakeConnection(EventLoop loop, SocketChannel channel, HostnameRouter router,
+                                   HostnameRouter.Route route, long timeoutMillis) {
+        // 读缓冲区正好容纳最长的握手包，读满仍不完整即不是Minecraft客户端
+        super(loop, channel, MinecraftHandshake.MAX_LENGTH + 5);
+        this.router = router;
+        this.route = route;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    protected void onRegistered() {
+        // 握手超时只计时一次，期间的读取不刷新
+        this.idleEntry = timeoutMillis > 0
+                ? IdleTimer.shared().register(IdleTimer.Kind.STREAM, timeoutMillis, this::onIdle) : null;
+    }
+
+    /**
+     * 握手超时：共享端口上关闭，远程端口上不再等待，交给隧道转发（对端可能是先发数据的其他协议）
+     */
+    private boolean onIdle() {
+        loop.execute(() -> {
+            if (isClosed()) {
+                return;
+            }
+            if (route != null) {
+                handOver(route, ByteBuffer.allocate(0));
+            } else {
+                close();
+            }
+        });
+        return false;
+    }
+
+    @Override
+    protected void onRead(ByteBuffer data) {
+        if (route != null) {
+            handOver(route, data);
+            return;
+        }
+        MinecraftHandshake handshake;
+        try {
+            handshake = MinecraftHandshake.parse(data);
+        } catch (IOException e) {
+            logger.debug("Rejected connection on shared port: {}", e.getMessage());
+            router.rejectMalformed();
+            close();
+            return;
+        }
+        if (handshake == null) {
+            return;
+        }
+        HostnameRouter.Route target = router.lookup(handshake);
+        if (target == null) {
+            logger.debug("No tunnel for hostname {} on shared port", handshake.getHostname());
+            close();
+            return;
+        }
+        handOver(target, data);
+    }
+
+    /**
+     * 读到的数据原样转给隧道，之后不再解析
+     */
+    private void handOver(HostnameRouter.Route target, ByteBuffer data) {
+        ByteBuffer prefix = ByteBuffer.allocate(data.remaining()).put(data).flip();
+        SelectionKey key = detach();
+        if (idleEntry != null) {
+            idleEntry.cancel();
+        }
+        target.route(channel, key, getPermit(), prefix);
+    }
+
+    @Override
+    protected void onClosed() {
+        if (idleEntry != null) {
+            idleEntry.cancel();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.aweqy.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基于Selector的中继服务
+ * 控制连接按轮询分配到事件循环，每条隧道的远程端口和外部连接都在同一个事件循环中处理
+ * 开启多个接受器时用SO_REUSEPORT在服务端口上打开多个监听通道，每个接受器在自己的事件循环上接受连接，
+ * 只把隧道分配给自己分片内的事件循环，接受器之间不共享状态
+ */
+public class NioRelayServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioRelayServer.class);
+
+    private final EventLoopGroup group;
+    private final int port;
+    private final List<Acceptor> acceptors = new ArrayList<>();
+
+    public NioRelayServer(EventLoopGroup group, int port) {
+        this.group = group;
+        this.port = port;
+    }
+
+    /**
+     * 绑定服务端口，返回实际打开的接受器数量（系统不支持SO_REUSEPORT时为1）
+     * 接受器i在第i个事件循环上接受连接，并负责下标除以接受器数量余i的所有事件循环
+     */
+    public int bind(int count) throws IOException {
+        List<ServerSocketChannel> channels = ReusePort.bind(port, count, ServerConfig.getInt("server.accept_backlog", 128));
+        int loops = group.size();
+        for (int i = 0; i < channels.size(); i++) {
+            List<EventLoop> shard = new ArrayList<>();
+            for (int j = i; j < loops; j += channels.size()) {
+                shard.add(group.get(j));
+            }
+            if (shard.isEmpty()) {
+                // 接受器比事件循环多，多出的接受器与其他接受器共用事件循环
+                shard.add(group.get(i % loops));
+            }
+            acceptors.add(new Acceptor(channels.get(i), shard.toArray(new EventLoop[0])));
+        }
+        for (Acceptor acceptor : acceptors) {
+            acceptor.register();
+        }
+        return acceptors.size();
+    }
+
+    /**
+     * 拒绝连接：新接受的通道还是阻塞模式，发送缓冲区是空的，错误行一次写完后关闭
+     */
+    private static void reject(SocketChannel channel, String message) {
+        logger.warn("Rejected connection from {}: {}", channel.socket().getInetAddress().getHostAddress(), message);
+        try (channel) {
+            channel.write(ByteBuffer.wrap(("ERROR: " + message + "\n").getBytes()));
+        } catch (IOException e) {
+            // 忽略错误
+        }
+    }
+
+    public void close() {
+        for (Acceptor acceptor : acceptors) {
+            acceptor.close();
+        }
+    }
+
+    /**
+     * 一个监听通道及其分片内的事件循环，第一个事件循环同时负责接受连接
+     */
+    private static final class Acceptor implements ChannelHandler {
+
+        private final ServerSocketChannel serverChannel;
+        private final EventLoop[] shard;
+        // 只在接受连接的事件循环线程中访问
+        private int next;
+
+        Acceptor(ServerSocketChannel serverChannel, EventLoop[] shard) {
+            this.serverChannel = serverChannel;
+            this.shard = shard;
+        }
+
+        void register() {
+            EventLoop acceptLoop = shard[0];
+            acceptLoop.execute(() -> {
+                try {
+                    acceptLoop.register(serverChannel, SelectionKey.OP_ACCEPT, this);
+                } catch (IOException e) {
+                    logger.error("Failed to register server channel: {}", e.getMessage());
+                    close();
+                }
+            });
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                // 超出连接数限制时立即拒绝，不分配事件循环和缓冲区
+                AdmissionControl.Permit permit;
+                try {
+                    permit = AdmissionControl.shared().admit(channel.socket().getInetAddress(), AdmissionControl.Kind.TUNNEL);
+                } catch (AdmissionControl.AdmissionException e) {
+                    reject(channel, e.getMessage());
+                    continue;
+                }
+                logger.info("New client connected: {}", channel.socket().getInetAddress().getHostAddress());
+                EventLoop loop = shard[Math.floorMod(next++, shard.length)];
+                NioControlConnection connection = new NioControlConnection(loop, channel);
+                connection.admit(permit);
+                loop.execute(() -> {
+                    try {
+                        connection.register();
+                    } catch (IOException e) {
+                        logger.error("Failed to register client connection: {}", e.getMessage());
+                        connection.close();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (serverChannel.isOpen()) {
+                    serverChannel.close();
+                }
+            } catch (IOException e) {
+                logger.error("Error closing server channel: {}", e.getMessage());
+            }
+        }
+    }
+}
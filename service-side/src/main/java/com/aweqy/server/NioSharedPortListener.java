@@ -0,0 +1,82 @@
+package com.aweqy.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 非阻塞模式的共享端口：接受的玩家连接按轮询分配到事件循环，由NioHandshakeConnection读取握手包，
+ * 按主机名找到隧道后把通道交给隧道所在的事件循环
+ */
+public class NioSharedPortListener implements ChannelHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioSharedPortListener.class);
+
+    private final EventLoopGroup group;
+    private final HostnameRouter router;
+    private ServerSocketChannel serverChannel;
+
+    public NioSharedPortListener(EventLoopGroup group, HostnameRouter router) {
+        this.group = group;
+        this.router = router;
+    }
+
+    /**
+     * 绑定共享端口，在下一个事件循环上接受连接
+     */
+    public void bind() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(router.getSharedPort()), ServerConfig.getInt("server.accept_backlog", 128));
+        EventLoop acceptLoop = group.next();
+        acceptLoop.execute(() -> {
+            try {
+                acceptLoop.register(serverChannel, SelectionKey.OP_ACCEPT, this);
+            } catch (IOException e) {
+                logger.error("Failed to register shared port channel: {}", e.getMessage());
+                close();
+            }
+        });
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+        long handshakeTimeout = ServerConfig.getLong("routing.handshake_timeout", 5000);
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            AdmissionControl.Permit permit;
+            try {
+                permit = AdmissionControl.shared().admit(channel.socket().getInetAddress(), AdmissionControl.Kind.PLAYER);
+            } catch (AdmissionControl.AdmissionException e) {
+                logger.debug("Rejected connection on shared port: {}", e.getMessage());
+                channel.close();
+                continue;
+            }
+            EventLoop loop = group.next();
+            NioHandshakeConnection connection = new NioHandshakeConnection(loop, channel, router, handshakeTimeout);
+            connection.admit(permit);
+            loop.execute(() -> {
+                try {
+                    connection.register();
+                } catch (IOException e) {
+                    connection.close();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error closing shared port channel: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.aweqy.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.function.LongSupplier;
+
+/**
+ * 在中继应答的状态查询连接：不打开到客户端的流，应答完Ping后关闭
+ */
+public class NioStatusConnection extends NioConnection {
+
+    private final StatusCache.LocalAnswer answer;
+    private IdleTimer.Entry idleEntry;
+
+    public NioStatusConnection(EventLoop loop, SocketChannel channel, StatusCache.LocalAnswer answer) {
+        // 路由时读到的数据会整体回放，读缓冲区与握手阶段一样大
+        super(loop, channel, MinecraftHandshake.MAX_LENGTH + 5);
+        this.answer = answer;
+    }
+
+    @Override
+    protected void onRegistered() {
+        LongSupplier idleTimeout = ServerConfig.longValue("server.timeout", 30000);
+        this.idleEntry = idleTimeout.getAsLong() > 0
+                ? IdleTimer.shared().register(IdleTimer.Kind.STREAM, idleTimeout, this::onIdle) : null;
+    }
+
+    private boolean onIdle() {
+        loop.execute(this::close);
+        return false;
+    }
+
+    @Override
+    protected void onRead(ByteBuffer data) {
+        ByteBuffer response;
+        try {
+            response = answer.answer(data);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (response.hasRemaining()) {
+            write(response);
+        }
+        if (answer.isFinished()) {
+            closeAfterFlush();
+        }
+    }
+
+    @Override
+    protected void onClosed() {
+        if (idleEntry != null) {
+            idleEntry.cancel();
+        }
+    }
+}
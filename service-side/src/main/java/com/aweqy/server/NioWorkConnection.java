@@ -0,0 +1,47 @@
+package com.aweqy.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 客户端预先建立的工作连接，空闲时留在隧道的池中，绑定一个外部连接后专门承载该流的帧
+ */
+public class NioWorkConnection extends NioConnection {
+
+    private final NioControlConnection tunnel;
+    private NioExternalConnection external;
+    private final Frame.Cursor cursor = new Frame.Cursor();
+
+    public NioWorkConnection(EventLoop loop, SocketChannel channel, NioControlConnection tunnel) {
+        super(loop, channel, Frame.HEADER_SIZE + Frame.MAX_PAYLOAD, RelayMetrics.Direction.TO_CLIENT);
+        this.tunnel = tunnel;
+    }
+
+    /**
+     * 绑定外部连接
+     */
+    public void bind(NioExternalConnection external) {
+        this.external = external;
+    }
+
+    public NioExternalConnection getExternal() {
+        return external;
+    }
+
+    @Override
+    protected void onRead(ByteBuffer data) {
+        try {
+            while (cursor.next(data)) {
+                tunnel.handleFrame(cursor, this);
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    @Override
+    protected void onClosed() {
+        tunnel.removeWorkConnection(this);
+    }
+}
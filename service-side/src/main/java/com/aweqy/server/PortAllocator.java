@@ -0,0 +1,308 @@
+package com.aweqy.server;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 远程端口分配器：用两级位图记录配置范围内端口的占用，空闲端口按循环首次适配分配
+ * 隧道关闭后端口会为同一客户端身份保留一段时间，客户端重连时拿回原来的端口
+ */
+public class PortAllocator {
+
+    /** 自动分配时绑定失败的最大重试次数 */
+    private static final int BIND_ATTEMPTS = 8;
+
+    private static volatile PortAllocator shared;
+
+    private final int firstPort;
+    private final int lastPort;
+    private long reservationMillis;
+    // 每一位对应一个端口，1表示已占用或保留
+    private final long[] used;
+    // 每一位对应used中的一个字，1表示该字还有空闲端口
+    private final long[] summary;
+    private final Map<Integer, Reservation> reservations = new HashMap<>();
+    private final Map<String, Integer> portsByIdentity = new HashMap<>();
+    private int cursor;
+
+    public PortAllocator(int firstPort, int lastPort, long reservationMillis) {
+        if (firstPort < 1 || lastPort > 65535 || firstPort > lastPort) {
+            throw new IllegalArgumentException("Invalid port range: " + firstPort + "-" + lastPort);
+        }
+        this.firstPort = firstPort;
+        this.lastPort = lastPort;
+        this.reservationMillis = reservationMillis;
+        int size = lastPort - firstPort + 1;
+        this.used = new long[(size + 63) >>> 6];
+        this.summary = new long[(used.length + 63) >>> 6];
+        // 范围之外的位标记为已占用，之后不需要再检查边界
+        for (int i = size; i < used.length << 6; i++) {
+            used[i >>> 6] |= 1L << i;
+        }
+        for (int word = 0; word < used.length; word++) {
+            updateSummary(word);
+        }
+    }
+
+    /**
+     * 全局共享的分配器，首次使用时按当前配置创建
+     */
+    public static PortAllocator shared() {
+        PortAllocator allocator = shared;
+        if (allocator == null) {
+            synchronized (PortAllocator.class) {
+                allocator = shared;
+                if (allocator == null) {
+                    allocator = new PortAllocator(
+                            ServerConfig.getInt("remote.port_start", 6000),
+                            ServerConfig.getInt("remote.port_end", 6999),
+                            ServerConfig.getLong("remote.port_reservation", 300000));
+                    // 端口范围决定位图大小，只有保留时间随配置重新加载更新
+                    PortAllocator created = allocator;
+                    ServerConfig.addListener(changed -> created.setReservation(
+                            ServerConfig.getLong("remote.port_reservation", 300000)));
+                    shared = allocator;
+                }
+            }
+        }
+        return allocator;
+    }
+
+    /**
+     * 为隧道分配并绑定远程端口，requestedPort为0时自动分配
+     * 绑定在返回前同步完成，失败时抛出PortException，异常信息即返回给客户端的错误描述
+     */
+    public int acquire(String identity, int requestedPort, Binder binder) throws PortException {
+        if (requestedPort > 0) {
+            if (!claim(requestedPort, identity)) {
+                throw new PortException("Remote port " + requestedPort + " is already in use");
+            }
+            try {
+                binder.bind(requestedPort);
+                return requestedPort;
+            } catch (IOException e) {
+                discard(requestedPort);
+                throw new PortException("Failed to bind remote port " + requestedPort + ": " + e.getMessage());
+            }
+        }
+
+        for (int attempt = 0; attempt < BIND_ATTEMPTS; attempt++) {
+            int port = allocate(identity);
+            if (port == -1) {
+                throw new PortException("No free remote port available");
+            }
+            try {
+                binder.bind(port);
+                return port;
+            } catch (IOException e) {
+                // 端口被其他进程占用，换下一个空闲端口
+                discard(port);
+            }
+        }
+        throw new PortException("Failed to bind a remote port");
+    }
+
+    /**
+     * 自动分配端口：优先返回该身份保留的端口，没有空闲端口时返回-1
+     */
+    public synchronized int allocate(String identity) {
+        Integer sticky = portsByIdentity.get(identity);
+        if (sticky != null) {
+            Reservation reservation = reservations.get(sticky);
+            if (!reservation.active) {
+                reservation.active = true;
+                return sticky;
+            }
+        }
+        int index = findFree();
+        if (index == -1) {
+            expireReservations(System.currentTimeMillis());
+            index = findFree();
+            if (index == -1) {
+                return -1;
+            }
+        }
+        int port = firstPort + index;
+        markUsed(index);
+        reserve(port, identity);
+        return port;
+    }
+
+    /**
+     * 占用客户端指定的端口，被其他身份占用或保留时返回false，范围之外的端口不做记录
+     */
+    public synchronized boolean claim(int port, String identity) {
+        if (port < firstPort || port > lastPort) {
+            return true;
+        }
+        Reservation reservation = reservations.get(port);
+        if (reservation != null) {
+            boolean expired = !reservation.active && reservation.expiresAt <= System.currentTimeMillis();
+            if (reservation.active || (!reservation.identity.equals(identity) && !expired)) {
+                return false;
+            }
+            reservation.active = true;
+            if (!reservation.identity.equals(identity)) {
+                portsByIdentity.remove(reservation.identity, port);
+                reservation.identity = identity;
+                portsByIdentity.put(identity, port);
+            }
+            return true;
+        }
+        markUsed(port - firstPort);
+        reserve(port, identity);
+        return true;
+    }
+
+    /**
+     * 隧道关闭，端口为原身份保留remote.port_reservation毫秒
+     */
+    public synchronized void release(int port) {
+        Reservation reservation = reservations.get(port);
+        if (reservation == null) {
+            return;
+        }
+        // 同一身份后来又建立了隧道时，旧端口不再作为保留端口
+        if (reservationMillis <= 0 || !Integer.valueOf(port).equals(portsByIdentity.get(reservation.identity))) {
+            free(port);
+            return;
+        }
+        reservation.active = false;
+        reservation.expiresAt = System.currentTimeMillis() + reservationMillis;
+    }
+
+    /**
+     * 更新之后关闭的隧道的端口保留时间，已经在保留中的端口不变
+     */
+    public synchronized void setReservation(long reservationMillis) {
+        this.reservationMillis = reservationMillis;
+    }
+
+    /**
+     * 立即释放端口，不保留
+     */
+    public synchronized void discard(int port) {
+        if (reservations.containsKey(port)) {
+            free(port);
+        }
+    }
+
+    /**
+     * 当前占用或保留的端口数
+     */
+    public synchronized int getAllocatedCount() {
+        return reservations.size();
+    }
+
+    private void reserve(int port, String identity) {
+        Reservation previous = reservations.get(portsByIdentity.getOrDefault(identity, -1));
+        // 同一身份同时有多个隧道时，只把最新的端口作为重连时的保留端口
+        if (previous != null && !previous.active) {
+            free(previous.port);
+        }
+        reservations.put(port, new Reservation(port, identity));
+        portsByIdentity.put(identity, port);
+    }
+
+    private void free(int port) {
+        Reservation reservation = reservations.remove(port);
+        portsByIdentity.remove(reservation.identity, port);
+        int index = port - firstPort;
+        used[index >>> 6] &= ~(1L << index);
+        updateSummary(index >>> 6);
+    }
+
+    private void expireReservations(long now) {
+        Iterator<Reservation> iterator = reservations.values().iterator();
+        while (iterator.hasNext()) {
+            Reservation reservation = iterator.next();
+            if (!reservation.active && reservation.expiresAt <= now) {
+                iterator.remove();
+                portsByIdentity.remove(reservation.identity, reservation.port);
+                int index = reservation.port - firstPort;
+                used[index >>> 6] &= ~(1L << index);
+                updateSummary(index >>> 6);
+            }
+        }
+    }
+
+    /**
+     * 从游标开始循环查找空闲端口：先看游标所在的字，再通过summary跳到下一个有空闲位的字
+     */
+    private int findFree() {
+        int word = cursor >>> 6;
+        long free = ~used[word] & (-1L << (cursor & 63));
+        if (free == 0) {
+            word = nextWordWithFree(word + 1 == used.length ? 0 : word + 1);
+            if (word == -1) {
+                return -1;
+            }
+            free = ~used[word];
+        }
+        int index = (word << 6) + Long.numberOfTrailingZeros(free);
+        cursor = (index + 1) % (used.length << 6);
+        return index;
+    }
+
+    private int nextWordWithFree(int from) {
+        int summaryIndex = from >>> 6;
+        for (int i = 0; i <= summary.length; i++) {
+            long bits = summary[summaryIndex];
+            if (i == 0) {
+                bits &= -1L << (from & 63);
+            }
+            if (bits != 0) {
+                return (summaryIndex << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            summaryIndex = summaryIndex + 1 == summary.length ? 0 : summaryIndex + 1;
+        }
+        return -1;
+    }
+
+    private void markUsed(int index) {
+        used[index >>> 6] |= 1L << index;
+        updateSummary(index >>> 6);
+    }
+
+    private void updateSummary(int word) {
+        if (used[word] == -1L) {
+            summary[word >>> 6] &= ~(1L << word);
+        } else {
+            summary[word >>> 6] |= 1L << word;
+        }
+    }
+
+    /**
+     * 在分配到的端口上绑定监听
+     */
+    @FunctionalInterface
+    public interface Binder {
+        void bind(int port) throws IOException;
+    }
+
+    /**
+     * 端口分配或绑定失败异常
+     */
+    public static class PortException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public PortException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Reservation {
+
+        final int port;
+        String identity;
+        boolean active = true;
+        long expiresAt;
+
+        Reservation(int port, String identity) {
+            this.port = port;
+            this.identity = identity;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.aweqy.server;
+
+/**
+ * 令牌桶限速：每秒补充rate个令牌（字节），最多积累burst个，转发一个字节消耗一个
+ * 允许透支：已经读到的数据整批放行，令牌不足的部分记为欠额，调用方暂停读取或暂缓通告额度直到欠额补足，
+ * 因此排队的数据不会超过一次读取或一个接收窗口
+ * 流的桶挂在隧道的桶下，消耗时逐级扣减，等待时间取最长的一级
+ * 速率和突发量缓存在Limits中，重新加载配置时更新，之后的消耗立即按新值计算；速率为0表示不限速，
+ * 各级都不限速时消耗不加锁，直接返回
+ */
+public class RateLimiter {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private static final Limits TUNNEL = new Limits("limit.tunnel_rate", "limit.tunnel_burst");
+    private static final Limits CONNECTION = new Limits("limit.connection_rate", "limit.connection_burst");
+
+    static {
+        ServerConfig.addListener(changed -> {
+            TUNNEL.reload();
+            CONNECTION.reload();
+        });
+    }
+
+    private final Limits limits;
+    private final RateLimiter parent;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    private RateLimiter(Limits limits, RateLimiter parent) {
+        this.limits = limits;
+        this.parent = parent;
+        // 从满桶开始
+        this.tokens = limits.capacity();
+    }
+
+    /**
+     * 一个隧道所有流在一个方向上共用的桶
+     */
+    public static RateLimiter forTunnel() {
+        return new RateLimiter(TUNNEL, null);
+    }
+
+    /**
+     * 隧道中一个外部连接在一个方向上的桶
+     */
+    public RateLimiter forConnection() {
+        return new RateLimiter(CONNECTION, this);
+    }
+
+    /**
+     * 消耗bytes个令牌，返回欠额补足前需要等待的纳秒数，不需要等待时返回0
+     */
+    public long consume(int bytes) {
+        if (limits.rate <= 0 && (parent == null || parent.limits.rate <= 0)) {
+            return 0;
+        }
+        long wait = take(bytes);
+        return parent != null ? Math.max(wait, parent.consume(bytes)) : wait;
+    }
+
+    private synchronized long take(int bytes) {
+        long now = System.nanoTime();
+        long perSecond = limits.rate;
+        long capacity = limits.capacity();
+        if (perSecond <= 0) {
+            // 不限速，恢复限速时从满桶开始
+            tokens = capacity;
+            refilledAt = now;
+            return 0;
+        }
+        tokens = Math.min(capacity, tokens + (double) (now - refilledAt) * perSecond / NANOS_PER_SECOND);
+        refilledAt = now;
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * NANOS_PER_SECOND / perSecond);
+    }
+
+    /**
+     * 一级桶的速率和突发量，从配置解析后缓存，转发路径上不再解析配置
+     */
+    private static final class Limits {
+
+        private final String rateKey;
+        private final String burstKey;
+        private volatile long rate;
+        private volatile long burst;
+
+        Limits(String rateKey, String burstKey) {
+            this.rateKey = rateKey;
+            this.burstKey = burstKey;
+            reload();
+        }
+
+        void reload() {
+            rate = ServerConfig.getLong(rateKey, 0);
+            burst = ServerConfig.getLong(burstKey, 0);
+        }
+
+        /**
+         * burst不大于0时取一秒的速率
+         */
+        long capacity() {
+            long size = burst;
+            return size > 0 ? size : Math.max(0, rate);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.aweqy.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * 中继的运行指标：认证和会话恢复次数、每个隧道的收发字节数和活跃流数量、帧转发延迟直方图
+ * 转发线程只更新各自隧道持有的LongAdder，隧道表只在认证成功和连接关闭时修改；活跃流数量在抓取时从连接表读取
+ */
+public class RelayMetrics {
+
+    private static volatile RelayMetrics shared;
+
+    private final boolean enabled;
+    private final LongAdder authSuccesses = new LongAdder();
+    private final LongAdder authFailures = new LongAdder();
+    private final LongAdder resumes = new LongAdder();
+    private final LongAdder resumeFailures = new LongAdder();
+    private final AtomicInteger parked = new AtomicInteger();
+    private final ConcurrentMap<String, Tunnel> tunnels = new ConcurrentHashMap<>();
+    // 已关闭隧道累计的字节数，抓取时加上存活隧道的计数得到总量
+    private final LongAdder closedReceived = new LongAdder();
+    private final LongAdder closedSent = new LongAdder();
+    private final LatencyHistogram[] forwardLatency = new LatencyHistogram[Direction.values().length];
+
+    public RelayMetrics(boolean enabled) {
+        this.enabled = enabled;
+        for (int i = 0; i < forwardLatency.length; i++) {
+            forwardLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * 全局共享的指标，首次使用时按当前配置创建
+     */
+    public static RelayMetrics shared() {
+        RelayMetrics metrics = shared;
+        if (metrics == null) {
+            synchronized (RelayMetrics.class) {
+                metrics = shared;
+                if (metrics == null) {
+                    metrics = new RelayMetrics(ServerConfig.getBoolean("metrics.enabled", false));
+                    shared = metrics;
+                }
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * 是否开启了指标端点，关闭时转发路径不记录每帧的排队时间
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void authSucceeded() {
+        authSuccesses.increment();
+    }
+
+    public void authFailed() {
+        authFailures.increment();
+    }
+
+    public long getAuthSuccesses() {
+        return authSuccesses.sum();
+    }
+
+    public long getAuthFailures() {
+        return authFailures.sum();
+    }
+
+    /**
+     * 控制连接断开，隧道挂起等待恢复
+     */
+    public void tunnelParked() {
+        parked.incrementAndGet();
+    }
+
+    /**
+     * 挂起的隧道被客户端恢复
+     */
+    public void tunnelResumed() {
+        parked.decrementAndGet();
+        resumes.increment();
+    }
+
+    /**
+     * 挂起的隧道超时后关闭
+     */
+    public void parkExpired() {
+        parked.decrementAndGet();
+    }
+
+    /**
+     * 恢复请求的会话令牌不存在或已过期
+     */
+    public void resumeFailed() {
+        resumeFailures.increment();
+    }
+
+    public long getResumes() {
+        return resumes.sum();
+    }
+
+    public long getResumeFailures() {
+        return resumeFailures.sum();
+    }
+
+    /** 当前挂起等待恢复的隧道数 */
+    public int getParked() {
+        return parked.get();
+    }
+
+    /**
+     * 登记一个认证成功的隧道，activeStreams在抓取时调用，必须可以在其他线程中安全读取
+     */
+    public Tunnel registerTunnel(String clientId, String protocol, int remotePort, IntSupplier activeStreams) {
+        Tunnel tunnel = new Tunnel(clientId, protocol, remotePort, activeStreams);
+        tunnels.put(clientId, tunnel);
+        return tunnel;
+    }
+
+    /**
+     * 隧道关闭，字节数并入总量
+     */
+    public void unregisterTunnel(Tunnel tunnel) {
+        if (tunnels.remove(tunnel.clientId, tunnel)) {
+            closedReceived.add(tunnel.received.sum());
+            closedSent.add(tunnel.sent.sum());
+        }
+    }
+
+    public Collection<Tunnel> getTunnels() {
+        return tunnels.values();
+    }
+
+    /** 所有隧道从玩家收到的字节数，包括已关闭的隧道 */
+    public long getReceivedBytes() {
+        long total = closedReceived.sum();
+        for (Tunnel tunnel : tunnels.values()) {
+            total += tunnel.getReceivedBytes();
+        }
+        return total;
+    }
+
+    /** 所有隧道发给玩家的字节数，包括已关闭的隧道 */
+    public long getSentBytes() {
+        long total = closedSent.sum();
+        for (Tunnel tunnel : tunnels.values()) {
+            total += tunnel.getSentBytes();
+        }
+        return total;
+    }
+
+    /**
+     * 帧从进入写出队列到写入套接字的时间
+     */
+    public LatencyHistogram getForwardLatency(Direction direction) {
+        return forwardLatency[direction.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        return "RelayMetrics{tunnels=" + tunnels.size() + ", authSuccesses=" + getAuthSuccesses()
+                + ", authFailures=" + getAuthFailures() + ", resumes=" + getResumes() + ", receivedBytes=" + getReceivedBytes()
+                + ", sentBytes=" + getSentBytes() + ", toClient={" + getForwardLatency(Direction.TO_CLIENT)
+                + "}, toPlayer={" + getForwardLatency(Direction.TO_PLAYER) + "}}";
+    }
+
+    /**
+     * 转发方向
+     */
+    public enum Direction {
+        /** 玩家数据封装成帧后写给隧道客户端 */
+        TO_CLIENT("to_client"),
+        /** 客户端发来的数据写给玩家 */
+        TO_PLAYER("to_player");
+
+        private final String label;
+
+        Direction(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * 一个隧道的指标
+     */
+    public static final class Tunnel {
+
+        private final String clientId;
+        private final String protocol;
+        private final int remotePort;
+        private final IntSupplier activeStreams;
+        private final LongAdder received = new LongAdder();
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder[] throttled = {new LongAdder(), new LongAdder()};
+        private final StreamCompressor.Stats compression = new StreamCompressor.Stats();
+        private final StatusCache.Stats statusPings = new StatusCache.Stats();
+        private final RttEstimator rtt = new RttEstimator();
+
+        private Tunnel(String clientId, String protocol, int remotePort, IntSupplier activeStreams) {
+            this.clientId = clientId;
+            this.protocol = protocol;
+            this.remotePort = remotePort;
+            this.activeStreams = activeStreams;
+        }
+
+        /**
+         * 从玩家收到数据
+         */
+        public void received(long bytes) {
+            received.add(bytes);
+        }
+
+        /**
+         * 数据已写给玩家
+         */
+        public void sent(long bytes) {
+            sent.add(bytes);
+        }
+
+        /**
+         * 转发的数据超出了限速，之后暂停了读取或额度通告
+         */
+        public void throttled(Direction direction, long bytes) {
+            throttled[direction.ordinal()].add(bytes);
+        }
+
+        public String getClientId() {
+            return clientId;
+        }
+
+        public String getProtocol() {
+            return protocol;
+        }
+
+        public int getRemotePort() {
+            return remotePort;
+        }
+
+        public int getActiveStreams() {
+            return activeStreams.getAsInt();
+        }
+
+        public long getReceivedBytes() {
+            return received.sum();
+        }
+
+        public long getSentBytes() {
+            return sent.sum();
+        }
+
+        /**
+         * 超出限速、被延后转发的字节数
+         */
+        public long getThrottledBytes(Direction direction) {
+            return throttled[direction.ordinal()].sum();
+        }
+
+        /**
+         * 隧道所有流的压缩统计，没有协商压缩时全为0
+         */
+        public StreamCompressor.Stats getCompression() {
+            return compression;
+        }
+
+        /**
+         * 隧道的服务器列表状态查询统计，没有开启状态缓存时全为0
+         */
+        public StatusCache.Stats getStatusPings() {
+            return statusPings;
+        }
+
+        /**
+         * 中继到客户端的往返时间，由中继发出的心跳测得
+         */
+        public RttEstimator getRtt() {
+            return rtt;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.aweqy.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 一个流最近发给对端的数据，会话恢复时按对端已收到的字节数重发其后的部分
+ * 环形字节数组，随数据增加按需扩容到容量上限，超出时挤掉最早的数据；
+ * 容量不小于对端的接收窗口时，对端还没收到的数据一定还在缓冲区中
+ * 不是线程安全的，由所属流的锁或事件循环线程保护
+ */
+public class ReplayBuffer {
+
+    private static final int INITIAL_SIZE = 4096;
+
+    private final int capacity;
+    private byte[] data;
+    private int head;
+    private int size;
+    // 累计记录的字节数，即下一个字节在流中的偏移
+    private long end;
+
+    public ReplayBuffer(int capacity) {
+        this.capacity = capacity;
+        this.data = new byte[Math.min(capacity, INITIAL_SIZE)];
+    }
+
+    /**
+     * 记录发出的数据，不移动src的position
+     */
+    public void append(ByteBuffer src) {
+        int length = src.remaining();
+        end += length;
+        int offset = src.position();
+        if (length >= capacity) {
+            // 只保留最后capacity字节
+            grow(capacity);
+            src.get(offset + length - capacity, data, 0, capacity);
+            head = 0;
+            size = capacity;
+            return;
+        }
+        if (size + length > data.length && data.length < capacity) {
+            grow(Math.min(capacity, Math.max(size + length, data.length * 2)));
+        }
+        int overflow = size + length - data.length;
+        if (overflow > 0) {
+            head = (head + overflow) % data.length;
+            size -= overflow;
+        }
+        int tail = (head + size) % data.length;
+        int first = Math.min(length, data.length - tail);
+        src.get(offset, data, tail, first);
+        src.get(offset + first, data, 0, length - first);
+        size += length;
+    }
+
+    private void grow(int length) {
+        if (length <= data.length) {
+            return;
+        }
+        byte[] grown = new byte[length];
+        int first = Math.min(size, data.length - head);
+        System.arraycopy(data, head, grown, 0, first);
+        System.arraycopy(data, 0, grown, first, size - first);
+        data = grown;
+        head = 0;
+    }
+
+    /**
+     * 累计记录的字节数
+     */
+    public long end() {
+        return end;
+    }
+
+    /**
+     * 取出从流偏移offset到末尾的数据（复制），offset之前的数据对端已经收到，随之丢弃
+     * offset之前还没收到的数据已被挤出，或offset超过已记录的字节数时返回null，该流无法恢复
+     */
+    public ByteBuffer from(long offset) {
+        long start = end - size;
+        if (offset < start || offset > end) {
+            return null;
+        }
+        int skip = (int) (offset - start);
+        if (skip > 0) {
+            head = (head + skip) % data.length;
+            size -= skip;
+        }
+        byte[] missing = new byte[size];
+        int first = Math.min(size, data.length - head);
+        System.arraycopy(data, head, missing, 0, first);
+        System.arraycopy(data, 0, missing, first, size - first);
+        return ByteBuffer.wrap(missing);
+    }
+}
@@ -0,0 +1,65 @@
+package com.aweqy.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 用SO_REUSEPORT在同一端口上打开多个监听通道，由内核按连接的四元组哈希把新连接分散到各个通道，
+ * 每个通道由自己的线程接受连接，重启后的重连高峰不再挤在一个accept循环上
+ * 只有Linux会在多个通道之间分配连接，其他系统退回单个通道
+ */
+public final class ReusePort {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReusePort.class);
+
+    private ReusePort() {
+    }
+
+    /**
+     * 当前系统能否用SO_REUSEPORT分散连接
+     */
+    public static boolean isSupported() {
+        if (!System.getProperty("os.name", "").toLowerCase().contains("linux")) {
+            return false;
+        }
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 在port上打开count个监听通道，不支持时只打开一个；任一通道绑定失败时关闭已打开的通道
+     */
+    public static List<ServerSocketChannel> bind(int port, int count, int backlog) throws IOException {
+        if (count > 1 && !isSupported()) {
+            logger.warn("SO_REUSEPORT is not supported on this system, using a single acceptor on port {}", port);
+            count = 1;
+        }
+        List<ServerSocketChannel> channels = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channels.add(channel);
+                if (count > 1) {
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channel.bind(new InetSocketAddress(port), backlog);
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel channel : channels) {
+                channel.close();
+            }
+            throw e;
+        }
+        return channels;
+    }
+}
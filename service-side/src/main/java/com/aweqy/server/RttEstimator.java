@@ -0,0 +1,70 @@
+package com.aweqy.server;
+
+/**
+ * 隧道的往返时间估计：PING帧携带发送时的单调时间戳，对端用PONG原样返回，收到时得到一个样本
+ * 平滑RTT和偏差按RFC 6298计算（α=1/8，β=1/4），抖动按RFC 3550取相邻样本之差的平滑值（1/16）
+ * 在读取线程中更新，指标线程和空闲检测的定时线程读取
+ */
+public class RttEstimator {
+
+    private volatile long smoothed = -1;
+    private volatile long variance;
+    private volatile long jitter;
+    private long previous = -1;
+    private volatile long samples;
+
+    /**
+     * 记录一个样本（纳秒），时钟异常得到的负值忽略
+     */
+    public synchronized void sample(long rttNanos) {
+        if (rttNanos < 0) {
+            return;
+        }
+        if (smoothed < 0) {
+            smoothed = rttNanos;
+            variance = rttNanos / 2;
+        } else {
+            variance += (Math.abs(smoothed - rttNanos) - variance) / 4;
+            smoothed += (rttNanos - smoothed) / 8;
+        }
+        if (previous >= 0) {
+            jitter += (Math.abs(rttNanos - previous) - jitter) / 16;
+        }
+        previous = rttNanos;
+        samples++;
+    }
+
+    /**
+     * 平滑RTT（纳秒），还没有样本时返回-1
+     */
+    public long getSmoothedRtt() {
+        return smoothed;
+    }
+
+    /**
+     * RTT的平均偏差（纳秒）
+     */
+    public long getVariance() {
+        return variance;
+    }
+
+    /**
+     * 相邻样本之差的平滑值（纳秒）
+     */
+    public long getJitter() {
+        return jitter;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * 对端响应通常不会晚于这个时间（毫秒）：平滑RTT加四倍偏差，还没有样本时返回0
+     * 链路拥塞时RTT和偏差随排队延迟增大，等待也随之延长
+     */
+    public long getResponseTimeoutMillis() {
+        long rtt = smoothed;
+        return rtt < 0 ? 0 : (rtt + 4 * variance) / 1_000_000;
+    }
+}
@@ -0,0 +1,75 @@
+package com.aweqy.server;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 阻塞模式下一个流的发送额度：读取源连接前先取得额度，额度用完时暂停读取，收到对端的WINDOW帧后补充
+ * 使用ReentrantLock而不是synchronized，虚拟线程等待额度时不会占住载体线程
+ */
+public class SendWindow {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private long credit;
+    private boolean closed;
+
+    public SendWindow(long initialCredit) {
+        this.credit = initialCredit;
+    }
+
+    /**
+     * 等待额度并取出最多max字节，窗口关闭时返回-1
+     */
+    public int acquire(int max) throws InterruptedException {
+        lock.lock();
+        try {
+            while (credit <= 0 && !closed) {
+                available.await();
+            }
+            if (closed) {
+                return -1;
+            }
+            int granted = (int) Math.min(credit, max);
+            credit -= granted;
+            return granted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 归还取出但没有用完的额度
+     */
+    public void release(int unused) {
+        if (unused > 0) {
+            grant(unused);
+        }
+    }
+
+    /**
+     * 对端通告了新的额度
+     */
+    public void grant(int increment) {
+        lock.lock();
+        try {
+            credit += increment;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 流结束，唤醒等待额度的读取线程
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -6,21 +6,50 @@ import org.slf4j.LoggerFactory;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
 
+/**
+ * 服务器配置：配置项保存在不可变的快照中，重新加载时整体替换，读取不加锁
+ * 从当前目录加载的配置文件可以由ConfigWatcher监视，修改后重新加载并通知已注册的组件
+ */
 public class ServerConfig {
 
     private static final Logger logger = LoggerFactory.getLogger(ServerConfig.class);
-    private static final Properties properties = new Properties();
     private static final String CONFIG_FILE = "server.properties";
+    /** 只在启动时读取、修改后需要重启才生效的配置项 */
+    private static final Set<String> RESTART_KEYS = Set.of(
+            "server.port", "server.acceptors", "server.io_mode", "server.event_loops", "server.virtual_threads",
+            "metrics.enabled", "metrics.bind_address", "metrics.port", "routing.shared_port",
+            "remote.port_start", "remote.port_end", "config.watch");
+
+    private static volatile Map<String, String> snapshot = Map.of();
+    // 嵌入式启动时通过setProperty覆盖的配置项，重新加载后仍然生效
+    private static final Map<String, String> overrides = new HashMap<>();
+    private static final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    // 从当前目录加载时为配置文件路径，从classpath加载或使用默认值时为null
+    private static volatile Path configFile;
     
     /**
      * 加载配置文件
      */
     public static void load() {
+        Properties properties = new Properties();
         // 1. 首先尝试从当前目录加载配置文件
         try (FileInputStream fis = new FileInputStream(CONFIG_FILE)) {
             properties.load(fis);
+            configFile = Path.of(CONFIG_FILE).toAbsolutePath();
+            publish(properties);
             logger.info("Config loaded successfully from current directory: {}", CONFIG_FILE);
             return;
         } catch (IOException e) {
@@ -31,6 +60,7 @@ public class ServerConfig {
         try (InputStream is = ServerConfig.class.getClassLoader().getResourceAsStream(CONFIG_FILE)) {
             if (is != null) {
                 properties.load(is);
+                publish(properties);
                 logger.info("Config loaded successfully from classpath: {}", CONFIG_FILE);
                 return;
             }
@@ -40,26 +70,138 @@ public class ServerConfig {
         
         // 3. 如果都加载失败，使用默认值
         logger.warn("No config file found, using default values");
-        setDefaultValues();
+        setDefaultValues(properties);
+        publish(properties);
+    }
+    
+    /**
+     * 重新读取当前目录的配置文件，替换快照并通知监听器，返回发生变化的配置项
+     * 读取失败或文件为空（编辑器保存时可能先清空文件）时保留当前配置
+     */
+    public static Set<String> reload() {
+        Path file = configFile;
+        if (file == null) {
+            return Set.of();
+        }
+        Properties properties = new Properties();
+        try (InputStream is = new FileInputStream(file.toFile())) {
+            properties.load(is);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Failed to reload config, keeping current values: {}", e.getMessage());
+            return Set.of();
+        }
+        if (properties.isEmpty()) {
+            logger.warn("Config file {} is empty, keeping current values", file);
+            return Set.of();
+        }
+        Map<String, String> previous = snapshot;
+        Map<String, String> current = publish(properties);
+        Set<String> changed = new TreeSet<>();
+        for (String key : previous.keySet()) {
+            if (!Objects.equals(previous.get(key), current.get(key))) {
+                changed.add(key);
+            }
+        }
+        for (String key : current.keySet()) {
+            if (!previous.containsKey(key)) {
+                changed.add(key);
+            }
+        }
+        if (changed.isEmpty()) {
+            return changed;
+        }
+        logger.info("Config reloaded, changed: {}", changed);
+        for (String key : changed) {
+            if (RESTART_KEYS.contains(key)) {
+                logger.warn("Config change to {} takes effect after restart", key);
+            }
+        }
+        for (ChangeListener listener : listeners) {
+            try {
+                listener.onChange(changed);
+            } catch (RuntimeException e) {
+                logger.error("Error applying reloaded config", e);
+            }
+        }
+        return changed;
+    }
+    
+    /**
+     * 用读到的配置加上覆盖项生成新的快照
+     */
+    private static synchronized Map<String, String> publish(Properties properties) {
+        Map<String, String> values = new HashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            values.put(key, properties.getProperty(key));
+        }
+        values.putAll(overrides);
+        Map<String, String> published = Map.copyOf(values);
+        snapshot = published;
+        return published;
+    }
+    
+    /**
+     * 配置文件路径，没有从当前目录加载时为null
+     */
+    public static Path getConfigFile() {
+        return configFile;
+    }
+    
+    /**
+     * 注册配置变化的监听器，在重新加载的线程中调用
+     */
+    public static void addListener(ChangeListener listener) {
+        listeners.add(listener);
     }
     
     /**
      * 设置默认配置值
      */
-    private static void setDefaultValues() {
+    private static void setDefaultValues(Properties properties) {
         properties.setProperty("server.port", "8080");
         properties.setProperty("server.password", "default_password");
         properties.setProperty("server.max_connections", "100");
+        properties.setProperty("server.max_connections_per_ip", "50");
+        properties.setProperty("server.accept_backlog", "128");
+        properties.setProperty("server.acceptors", "1");
         properties.setProperty("server.timeout", "30000");
         properties.setProperty("forward.buffer_size", "4096");
+        properties.setProperty("forward.stream_window", "262144");
+        properties.setProperty("forward.write_coalescing", "true");
+        properties.setProperty("forward.batch_delay", "0");
         properties.setProperty("log.level", "info");
+        properties.setProperty("server.io_mode", "blocking");
+        properties.setProperty("server.event_loops", "0");
+        properties.setProperty("server.virtual_threads", "false");
+        properties.setProperty("udp.session_timeout", "60000");
+        properties.setProperty("udp.max_sessions", "256");
+        properties.setProperty("remote.port_start", "6000");
+        properties.setProperty("remote.port_end", "6999");
+        properties.setProperty("remote.port_reservation", "300000");
+        properties.setProperty("metrics.enabled", "false");
+        properties.setProperty("metrics.bind_address", "127.0.0.1");
+        properties.setProperty("metrics.port", "9225");
+        properties.setProperty("compression.enabled", "true");
+        properties.setProperty("compression.threshold", "256");
+        properties.setProperty("compression.level", "1");
+        properties.setProperty("routing.shared_port", "0");
+        properties.setProperty("routing.handshake_timeout", "5000");
+        properties.setProperty("status.cache_ttl", "5000");
+        properties.setProperty("session.grace_period", "30000");
+        properties.setProperty("session.replay_buffer", "262144");
+        properties.setProperty("keepalive.interval", "5000");
+        properties.setProperty("limit.tunnel_rate", "0");
+        properties.setProperty("limit.tunnel_burst", "0");
+        properties.setProperty("limit.connection_rate", "0");
+        properties.setProperty("limit.connection_burst", "0");
+        properties.setProperty("config.watch", "true");
     }
     
     /**
      * 获取字符串配置项
      */
     public static String getString(String key, String defaultValue) {
-        return properties.getProperty(key, defaultValue);
+        return snapshot.getOrDefault(key, defaultValue);
     }
     
     /**
@@ -67,7 +209,7 @@ public class ServerConfig {
      */
     public static int getInt(String key, int defaultValue) {
         try {
-            return Integer.parseInt(properties.getProperty(key));
+            return Integer.parseInt(snapshot.get(key));
         } catch (NumberFormatException | NullPointerException e) {
             return defaultValue;
         }
@@ -77,11 +219,32 @@ public class ServerConfig {
      * 获取布尔配置项
      */
     public static boolean getBoolean(String key, boolean defaultValue) {
-        try {
-            return Boolean.parseBoolean(properties.getProperty(key));
-        } catch (NullPointerException e) {
-            return defaultValue;
-        }
+        String value = snapshot.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+    
+    /**
+     * 设置配置项，用于嵌入式启动时覆盖配置文件
+     */
+    public static synchronized void setProperty(String key, String value) {
+        overrides.put(key, value);
+        Map<String, String> values = new HashMap<>(snapshot);
+        values.put(key, value);
+        snapshot = Map.copyOf(values);
+    }
+    
+    /**
+     * 阻塞模式下每个连接和转发任务是否运行在虚拟线程上
+     */
+    public static boolean useVirtualThreads() {
+        return getBoolean("server.virtual_threads", false);
+    }
+    
+    /**
+     * 创建连接任务的线程池：虚拟线程模式下每个任务一个虚拟线程，否则使用平台线程的缓存线程池
+     */
+    public static ExecutorService newTaskExecutor() {
+        return useVirtualThreads() ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
     }
     
     /**
@@ -89,9 +252,27 @@ public class ServerConfig {
      */
     public static long getLong(String key, long defaultValue) {
         try {
-            return Long.parseLong(properties.getProperty(key));
+            return Long.parseLong(snapshot.get(key));
         } catch (NumberFormatException | NullPointerException e) {
             return defaultValue;
         }
     }
+    
+    /**
+     * 长整型配置项的实时读取器，每次调用都读取当前快照，供长期存活的组件跟随重新加载的配置
+     */
+    public static LongSupplier longValue(String key, long defaultValue) {
+        return () -> getLong(key, defaultValue);
+    }
+    
+    /**
+     * 配置变化的监听器
+     */
+    @FunctionalInterface
+    public interface ChangeListener {
+        /**
+         * 新的快照已生效，changedKeys为值发生变化（含新增和删除）的配置项
+         */
+        void onChange(Set<String> changedKeys);
+    }
 }
@@ -6,58 +6,83 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class ServerMain {
 
     private static final Logger logger = LoggerFactory.getLogger(ServerMain.class);
     private static final int DEFAULT_PORT = 8080;
     
-    private ServerSocket serverSocket;
+    // 每个接受器一个监听套接字，开启SO_REUSEPORT时共用同一个端口
+    private final List<ServerSocket> serverSockets = new CopyOnWriteArrayList<>();
     private ExecutorService executorService;
+    private EventLoopGroup eventLoopGroup;
+    private NioRelayServer nioServer;
+    private SharedPortListener sharedPortListener;
+    private NioSharedPortListener nioSharedPortListener;
+    private MetricsServer metricsServer;
+    private ConfigWatcher configWatcher;
     private boolean running;
     
     public static void main(String[] args) {
         logger.info("Starting server...");
+        // 加载配置
+        ServerConfig.load();
         ServerMain server = new ServerMain();
         server.start();
     }
     
     public void start() {
         try {
-            // 加载配置
-            ServerConfig.load();
-            
             int port = ServerConfig.getInt("server.port", DEFAULT_PORT);
+            int acceptors = Math.max(1, ServerConfig.getInt("server.acceptors", 1));
+            
+            // 配置文件修改后重新加载，不需要重启
+            if (ServerConfig.getConfigFile() != null && ServerConfig.getBoolean("config.watch", true)) {
+                configWatcher = new ConfigWatcher(ServerConfig.getConfigFile());
+                configWatcher.start();
+                logger.info("Watching {} for changes", ServerConfig.getConfigFile());
+            }
+            
+            if (RelayMetrics.shared().isEnabled()) {
+                metricsServer = MetricsServer.start(ServerConfig.getString("metrics.bind_address", "127.0.0.1"),
+                        ServerConfig.getInt("metrics.port", 9225));
+            }
+            
+            if ("nio".equalsIgnoreCase(ServerConfig.getString("server.io_mode", "blocking"))) {
+                startNio(port, acceptors);
+                return;
+            }
             
-            // 创建服务器套接字
-            serverSocket = new ServerSocket(port);
-            executorService = Executors.newCachedThreadPool();
+            // 创建服务器套接字，通过通道创建使接受的连接可以使用聚集写
+            for (ServerSocketChannel channel : ReusePort.bind(port, acceptors, ServerConfig.getInt("server.accept_backlog", 128))) {
+                serverSockets.add(channel.socket());
+            }
+            executorService = ServerConfig.newTaskExecutor();
             running = true;
             
-            logger.info("Server started on port {}", port);
+            logger.info("Server started on port {} ({} threads, {} acceptors)", port,
+                    ServerConfig.useVirtualThreads() ? "virtual" : "platform", serverSockets.size());
             logger.info("Server password: {}", ServerConfig.getString("server.password", "not_set"));
             
-            // 主循环，接受客户端连接
-            while (running) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    logger.info("New client connected: {}", clientSocket.getInetAddress().getHostAddress());
-                    
-                    // 为每个客户端创建一个处理器
-                    ClientHandler handler = new ClientHandler(clientSocket);
-                    executorService.submit(handler);
-                    
-                } catch (IOException e) {
-                    if (!running) {
-                        logger.info("Server socket closed");
-                    } else {
-                        logger.error("Error accepting client connection", e);
-                    }
-                }
+            // 共享端口按握手包中的主机名把玩家分配给隧道
+            HostnameRouter router = HostnameRouter.shared();
+            if (router.isEnabled()) {
+                sharedPortListener = new SharedPortListener(router, executorService);
+                sharedPortListener.bind();
+                executorService.submit(sharedPortListener);
+                logger.info("Hostname routing on shared port {}", router.getSharedPort());
             }
             
+            // 其他接受器各占一个任务线程，主线程运行第一个接受器
+            for (ServerSocket acceptor : serverSockets.subList(1, serverSockets.size())) {
+                executorService.submit(() -> acceptLoop(acceptor));
+            }
+            acceptLoop(serverSockets.get(0));
+            
         } catch (IOException e) {
             logger.error("Failed to start server", e);
         } finally {
@@ -65,21 +90,132 @@ public class ServerMain {
         }
     }
     
+    /**
+     * 接受循环：接受客户端连接，为每个连接创建处理器
+     */
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (running) {
+            try {
+                Socket clientSocket = serverSocket.accept();
+                
+                // 超出连接数限制时立即拒绝，不创建处理器
+                AdmissionControl.Permit permit;
+                try {
+                    permit = AdmissionControl.shared().admit(clientSocket.getInetAddress(), AdmissionControl.Kind.TUNNEL);
+                } catch (AdmissionControl.AdmissionException e) {
+                    reject(clientSocket, e.getMessage());
+                    continue;
+                }
+                logger.info("New client connected: {}", clientSocket.getInetAddress().getHostAddress());
+                
+                // 为每个客户端创建一个处理器
+                ClientHandler handler = new ClientHandler(clientSocket, permit);
+                executorService.submit(handler);
+                
+            } catch (IOException e) {
+                if (!running) {
+                    logger.info("Server socket closed");
+                } else if (serverSocket.isClosed()) {
+                    return;
+                } else {
+                    logger.error("Error accepting client connection", e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * 非阻塞模式：固定数量的事件循环线程处理所有连接
+     */
+    private void startNio(int port, int acceptors) throws IOException {
+        int eventLoops = ServerConfig.getInt("server.event_loops", 0);
+        if (eventLoops <= 0) {
+            eventLoops = Runtime.getRuntime().availableProcessors();
+        }
+        
+        eventLoopGroup = new EventLoopGroup(eventLoops, "event-loop");
+        eventLoopGroup.start();
+        nioServer = new NioRelayServer(eventLoopGroup, port);
+        acceptors = nioServer.bind(acceptors);
+        running = true;
+        
+        logger.info("Server started on port {} (nio, {} event loops, {} acceptors)", port, eventLoops, acceptors);
+        logger.info("Server password: {}", ServerConfig.getString("server.password", "not_set"));
+        
+        HostnameRouter router = HostnameRouter.shared();
+        if (router.isEnabled()) {
+            nioSharedPortListener = new NioSharedPortListener(eventLoopGroup, router);
+            nioSharedPortListener.bind();
+            logger.info("Hostname routing on shared port {}", router.getSharedPort());
+        }
+        
+        try {
+            eventLoopGroup.awaitTermination();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * 拒绝连接：在接受线程中直接写出错误行后关闭，新连接的发送缓冲区是空的，写出不会阻塞
+     */
+    private static void reject(Socket socket, String message) {
+        logger.warn("Rejected connection from {}: {}", socket.getInetAddress().getHostAddress(), message);
+        try (socket) {
+            socket.getOutputStream().write(("ERROR: " + message + "\n").getBytes());
+        } catch (IOException e) {
+            // 忽略错误
+        }
+    }
+    
     public void stop() {
         running = false;
         
-        try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
+        if (nioServer != null) {
+            nioServer.close();
+        }
+        
+        if (nioSharedPortListener != null) {
+            nioSharedPortListener.close();
+        }
+        
+        if (sharedPortListener != null) {
+            sharedPortListener.close();
+        }
+        
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        
+        if (configWatcher != null) {
+            configWatcher.close();
+        }
+        
+        if (eventLoopGroup != null) {
+            eventLoopGroup.shutdown();
+        }
+        
+        for (ServerSocket serverSocket : serverSockets) {
+            try {
+                if (!serverSocket.isClosed()) {
+                    serverSocket.close();
+                }
+            } catch (IOException e) {
+                logger.error("Error closing server socket", e);
             }
-        } catch (IOException e) {
-            logger.error("Error closing server socket", e);
         }
         
         if (executorService != null && !executorService.isShutdown()) {
             executorService.shutdown();
         }
         
+        logger.info("Buffer pool stats: {}", BufferPool.shared());
+        logger.info("Admission stats: {}", AdmissionControl.shared());
+        logger.info("Idle timer stats: {}", IdleTimer.shared());
+        logger.info("Relay stats: {}", RelayMetrics.shared());
+        if (HostnameRouter.shared().isEnabled()) {
+            logger.info("Routing stats: {}", HostnameRouter.shared());
+        }
         logger.info("Server stopped");
     }
 }
@@ -0,0 +1,24 @@
+package com.aweqy.server;
+
+import java.security.SecureRandom;
+import java.util.HexFormat;
+
+/**
+ * 隧道会话令牌，认证成功后下发给客户端
+ */
+public class SessionToken {
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private SessionToken() {
+    }
+
+    /**
+     * 生成一个128位的随机令牌
+     */
+    public static String generate() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+}
@@ -0,0 +1,125 @@
+package com.aweqy.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 阻塞模式的共享端口：每个玩家连接在任务线程中读取握手包，按主机名找到隧道后交给隧道转发
+ * 握手包在超时时间内没有读完时关闭连接，避免慢速连接一直占用任务线程
+ */
+public class SharedPortListener implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SharedPortListener.class);
+
+    private final HostnameRouter router;
+    private final ExecutorService executorService;
+    private ServerSocketChannel serverChannel;
+
+    public SharedPortListener(HostnameRouter router, ExecutorService executorService) {
+        this.router = router;
+        this.executorService = executorService;
+    }
+
+    /**
+     * 绑定共享端口
+     */
+    public void bind() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(router.getSharedPort()), ServerConfig.getInt("server.accept_backlog", 128));
+    }
+
+    @Override
+    public void run() {
+        while (serverChannel.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    logger.error("Error accepting connection on shared port: {}", e.getMessage());
+                }
+                break;
+            }
+            AdmissionControl.Permit permit;
+            try {
+                permit = AdmissionControl.shared().admit(channel.socket().getInetAddress(), AdmissionControl.Kind.PLAYER);
+            } catch (AdmissionControl.AdmissionException e) {
+                logger.debug("Rejected connection on shared port: {}", e.getMessage());
+                closeQuietly(channel);
+                continue;
+            }
+            executorService.submit(() -> handshake(channel, permit));
+        }
+    }
+
+    /**
+     * 读取握手包并路由，读到的所有字节随连接一起交给隧道
+     */
+    private void handshake(SocketChannel channel, AdmissionControl.Permit permit) {
+        long handshakeTimeout = ServerConfig.getLong("routing.handshake_timeout", 5000);
+        IdleTimer.Entry timeout = handshakeTimeout > 0 ? IdleTimer.shared().register(IdleTimer.Kind.STREAM, handshakeTimeout, () -> {
+            closeQuietly(channel);
+            return false;
+        }) : null;
+        boolean routed = false;
+        try {
+            // 缓冲区正好容纳最长的握手包，读满仍不完整即不是Minecraft客户端
+            ByteBuffer buffer = ByteBuffer.allocate(MinecraftHandshake.MAX_LENGTH + 5);
+            MinecraftHandshake handshake;
+            while ((handshake = MinecraftHandshake.parse(buffer.duplicate().flip())) == null) {
+                if (!buffer.hasRemaining() || channel.read(buffer) == -1) {
+                    return;
+                }
+            }
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            HostnameRouter.Route route = router.lookup(handshake);
+            if (route == null) {
+                logger.debug("No tunnel for hostname {} on shared port", handshake.getHostname());
+                return;
+            }
+            routed = true;
+            route.route(channel, null, permit, buffer.flip());
+        } catch (IOException e) {
+            // 超时关闭也会在这里结束
+            logger.debug("Rejected connection on shared port: {}", e.getMessage());
+            if (channel.isOpen()) {
+                router.rejectMalformed();
+            }
+        } finally {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            if (!routed) {
+                closeQuietly(channel);
+                permit.release();
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // 忽略错误
+        }
+    }
+
+    public void close() {
+        try {
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            logger.error("Error closing shared port channel: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.aweqy.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一条隧道的服务器列表状态缓存
+ * 玩家的多人游戏界面每次刷新都会发起状态查询：握手包（下一状态为1）、状态请求、Ping，
+ * 有效期内的查询由中继用缓存的状态响应应答，Ping也在中继原样返回，不占用客户端上行，也不唤醒本地服务器
+ * 缓存过期后只有一个查询照常转发给本地服务器，从它的响应中刷新缓存，刷新完成前其他查询仍使用旧的响应
+ * 不同版本的客户端可能得到不同的响应，缓存按握手包中的协议版本区分
+ * 协议版本由玩家任意填写，最多缓存MAX_VERSIONS个版本（最近最少使用的先淘汰），
+ * 每个有效期内只为一个新版本转发查询，其余新版本用最近刷新的响应应答，随机版本号既撑不大缓存也绕不过缓存
+ */
+public class StatusCache {
+
+    /** 状态响应包的最大字节数，JSON最多32767个字符，含服务器图标时也在这个范围内 */
+    static final int MAX_RESPONSE = 128 * 1024;
+    /** 缓存的协议版本数上限 */
+    static final int MAX_VERSIONS = 8;
+
+    private final long ttlMillis;
+    private final Stats stats;
+    // 按访问顺序排列，只在持有entries的锁时访问
+    private final Map<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+            return size() > MAX_VERSIONS;
+        }
+    };
+    // 最近一次刷新得到的响应，应答还没有缓存的协议版本
+    private volatile byte[] newest;
+    // 上一次为新协议版本建立缓存项的时间
+    private long versionAddedAt;
+
+    public StatusCache(long ttlMillis, Stats stats) {
+        this.ttlMillis = ttlMillis;
+        this.stats = stats;
+    }
+
+    /**
+     * 握手包是状态查询且可以在中继应答时返回应答器；返回null时连接照常转发，
+     * 状态查询还会通过capture()返回的Capture刷新缓存
+     */
+    public LocalAnswer lookup(MinecraftHandshake handshake) {
+        if (handshake.getNextState() != MinecraftHandshake.STATUS) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(handshake.getProtocolVersion());
+            if (entry == null) {
+                byte[] fallback = newest;
+                if (versionAddedAt != 0 && now - versionAddedAt < ttlMillis) {
+                    if (fallback != null) {
+                        stats.cached.increment();
+                        return new LocalAnswer(fallback);
+                    }
+                    // 还没有任何响应，照常转发但不建立缓存项
+                    stats.upstream.increment();
+                    return null;
+                }
+                versionAddedAt = now;
+                entry = new Entry();
+                entries.put(handshake.getProtocolVersion(), entry);
+            }
+        }
+        synchronized (entry) {
+            if (entry.response != null && now - entry.storedAt < ttlMillis) {
+                stats.cached.increment();
+                return new LocalAnswer(entry.response);
+            }
+            // 同一时间只有一个查询去刷新，刷新超过一个有效期还没完成时允许下一个查询重试
+            if (entry.response != null && entry.refreshingSince != 0 && now - entry.refreshingSince < ttlMillis) {
+                stats.stale.increment();
+                return new LocalAnswer(entry.response);
+            }
+            entry.refreshingSince = now;
+        }
+        stats.upstream.increment();
+        return null;
+    }
+
+    /**
+     * 为转发给本地服务器的状态查询记录响应，这个协议版本没有缓存项时返回null
+     */
+    public Capture capture(MinecraftHandshake handshake) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(handshake.getProtocolVersion());
+        }
+        return entry != null ? new Capture(this, entry) : null;
+    }
+
+    /**
+     * 状态查询的统计，保存在隧道指标中
+     */
+    public static final class Stats {
+
+        private final LongAdder cached = new LongAdder();
+        private final LongAdder stale = new LongAdder();
+        private final LongAdder upstream = new LongAdder();
+
+        /** 用有效期内的缓存应答的查询数 */
+        public long getCached() {
+            return cached.sum();
+        }
+
+        /** 刷新期间用过期缓存应答的查询数 */
+        public long getStale() {
+            return stale.sum();
+        }
+
+        /** 转发给本地服务器的查询数 */
+        public long getUpstream() {
+            return upstream.sum();
+        }
+    }
+
+    private static final class Entry {
+        private byte[] response;
+        private long storedAt;
+        private long refreshingSince;
+    }
+
+    /**
+     * 从转发的状态查询中记录本地服务器返回的第一个数据包（状态响应），流结束前必须调用finish
+     */
+    public static final class Capture {
+
+        private final StatusCache cache;
+        private final Entry entry;
+        private ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        private Capture(StatusCache cache, Entry entry) {
+            this.cache = cache;
+            this.entry = entry;
+        }
+
+        /**
+         * 记录发给玩家的数据，不移动data的position
+         */
+        public synchronized void feed(ByteBuffer data) {
+            if (received == null) {
+                return;
+            }
+            byte[] bytes = new byte[data.remaining()];
+            data.get(data.position(), bytes);
+            received.writeBytes(bytes);
+
+            ByteBuffer packet = ByteBuffer.wrap(received.toByteArray());
+            MinecraftHandshake.Cursor cursor = new MinecraftHandshake.Cursor(packet);
+            int length;
+            try {
+                length = cursor.readVarInt();
+            } catch (IOException e) {
+                finish();
+                return;
+            }
+            if (length == -1) {
+                return;
+            }
+            int total = cursor.getOffset() + length;
+            if (length <= 0 || total > MAX_RESPONSE) {
+                finish();
+                return;
+            }
+            if (packet.remaining() < total) {
+                return;
+            }
+            // 状态响应的包ID为0
+            if (packet.get(cursor.getOffset()) == 0) {
+                byte[] response = new byte[total];
+                packet.get(0, response);
+                synchronized (entry) {
+                    entry.response = response;
+                    entry.storedAt = System.currentTimeMillis();
+                }
+                cache.newest = response;
+            }
+            finish();
+        }
+
+        /**
+         * 结束记录，没有记录到完整的响应时放弃这次刷新，下一个查询重新转发
+         */
+        public synchronized void finish() {
+            if (received == null) {
+                return;
+            }
+            received = null;
+            synchronized (entry) {
+                entry.refreshingSince = 0;
+            }
+        }
+    }
+
+    /**
+     * 在中继应答一个状态查询：状态请求返回缓存的响应，Ping原样返回，之后连接即可关闭
+     */
+    public static final class LocalAnswer {
+
+        private final byte[] response;
+        private boolean finished;
+
+        private LocalAnswer(byte[] response) {
+            this.response = response;
+        }
+
+        /**
+         * 消费玩家发来的完整数据包（握手包之后的部分），返回要写给玩家的数据，没有时为空缓冲区
+         * 状态查询中只会出现状态请求和Ping，其他数据包抛出IOException
+         */
+        public ByteBuffer answer(ByteBuffer data) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            while (!finished && data.hasRemaining()) {
+                // 状态请求的长度为1，Ping为9（包ID和8字节的负载），长度前缀都只有一个字节
+                int length = data.get(data.position());
+                if (length != 1 && length != 9) {
+                    throw new IOException("Unexpected status packet length " + length);
+                }
+                if (data.remaining() < length + 1) {
+                    break;
+                }
+                int packetId = data.get(data.position() + 1);
+                if (packetId == 0 && length == 1) {
+                    out.writeBytes(response);
+                } else if (packetId == 1 && length == 9) {
+                    byte[] ping = new byte[length + 1];
+                    data.get(data.position(), ping);
+                    out.writeBytes(ping);
+                    finished = true;
+                } else {
+                    throw new IOException("Unexpected status packet " + packetId);
+                }
+                data.position(data.position() + length + 1);
+            }
+            return ByteBuffer.wrap(out.toByteArray());
+        }
+
+        /**
+         * Ping已应答，写完即可关闭连接
+         */
+        public boolean isFinished() {
+            return finished;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.aweqy.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 一个流的压缩状态：发往客户端的数据压缩成DEFLATE帧，客户端发来的DEFLATE帧在这里解压
+ * 每帧独立压缩（Deflater每次reset），接收方不依赖之前的帧；Deflater和Inflater在流的整个生命周期内复用，第一次用到时才创建
+ *
+ * Minecraft会自己压缩超过阈值的数据包，这些数据再压缩也不会变小，只浪费CPU
+ * 因此按抽样的压缩率决定是否继续压缩：一帧压缩后没有明显变小时，之后的SKIP_FRAMES帧直接原样发送，再抽样一次
+ */
+public class StreamCompressor {
+
+    /** 抽样发现数据不可压缩后原样发送的帧数 */
+    private static final int SKIP_FRAMES = 32;
+    /** 压缩后超过原始大小的这个比例即视为不可压缩 */
+    private static final double INCOMPRESSIBLE_RATIO = 0.9;
+
+    private final int threshold;
+    private final int level;
+    private final Stats stats;
+    private Deflater deflater;
+    private Inflater inflater;
+    private int skip;
+    private boolean ended;
+
+    public StreamCompressor(Stats stats) {
+        // 负载至少要比长度前缀和zlib的头尾大，否则不可能变小
+        this.threshold = Math.max(64, ServerConfig.getInt("compression.threshold", 256));
+        this.level = Math.min(Deflater.BEST_COMPRESSION, Math.max(Deflater.BEST_SPEED,
+                ServerConfig.getInt("compression.level", 1)));
+        this.stats = stats;
+    }
+
+    /**
+     * 压缩payload的剩余字节（不移动其position），值得压缩时返回从缓冲池借出的帧缓冲区，
+     * 负载写在HEADER_SIZE之后，调用方用Frame.encodeInPlace补写DEFLATE帧头；否则返回null，调用方原样发送DATA帧
+     */
+    public synchronized ByteBuffer deflate(ByteBuffer payload) {
+        int length = payload.remaining();
+        stats.deflateInput.add(length);
+        if (ended || length < threshold || skip > 0) {
+            if (skip > 0 && length >= threshold) {
+                skip--;
+                stats.skippedFrames.increment();
+            }
+            stats.deflateOutput.add(length);
+            return null;
+        }
+
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer frame = pool.lease();
+        // 压缩结果加上4字节的原始长度必须比原始数据小，放不下即说明不值得压缩
+        // 重新加载配置后缓冲池可能变小，输出同样不能超出借到的缓冲区
+        ByteBuffer output = frame.duplicate().position(Frame.HEADER_SIZE + 4)
+                .limit(Math.min(Frame.HEADER_SIZE + length - 1, frame.capacity()));
+        long start = System.nanoTime();
+        deflater.reset();
+        deflater.setInput(payload.duplicate());
+        deflater.finish();
+        while (!deflater.finished() && output.hasRemaining()) {
+            deflater.deflate(output);
+        }
+        stats.deflateNanos.add(System.nanoTime() - start);
+
+        int compressed = output.position() - Frame.HEADER_SIZE;
+        if (!deflater.finished() || compressed > length * INCOMPRESSIBLE_RATIO) {
+            skip = SKIP_FRAMES;
+        }
+        if (!deflater.finished()) {
+            pool.release(frame);
+            stats.skippedFrames.increment();
+            stats.deflateOutput.add(length);
+            return null;
+        }
+        stats.compressedFrames.increment();
+        stats.deflateOutput.add(compressed);
+        return frame.putInt(Frame.HEADER_SIZE, length).position(Frame.HEADER_SIZE + compressed);
+    }
+
+    /**
+     * 解压DEFLATE帧的负载，数据损坏时抛出IOException；流已关闭时返回空数组
+     */
+    public synchronized byte[] inflate(byte[] payload) throws IOException {
+        if (ended) {
+            return new byte[0];
+        }
+        if (payload.length < 4) {
+            throw new IOException("Truncated compressed frame");
+        }
+        int length = ByteBuffer.wrap(payload).getInt();
+        if (length <= 0 || length > Frame.MAX_PAYLOAD) {
+            throw new IOException("Invalid compressed frame length: " + length);
+        }
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        byte[] output = new byte[length];
+        long start = System.nanoTime();
+        try {
+            inflater.reset();
+            inflater.setInput(payload, 4, payload.length - 4);
+            int inflated = inflater.inflate(output);
+            if (inflated != length || !inflater.finished()) {
+                throw new IOException("Compressed frame does not match its declared length");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame: " + e.getMessage());
+        } finally {
+            stats.inflateNanos.add(System.nanoTime() - start);
+        }
+        stats.inflateInput.add(payload.length);
+        stats.inflateOutput.add(length);
+        return output;
+    }
+
+    /**
+     * 流关闭时释放zlib的本地内存，之后的调用不再压缩
+     */
+    public synchronized void end() {
+        ended = true;
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 一个隧道所有流的压缩统计
+     */
+    public static final class Stats {
+
+        // 发往客户端方向：进入压缩器的原始字节数和实际发出的负载字节数
+        private final LongAdder deflateInput = new LongAdder();
+        private final LongAdder deflateOutput = new LongAdder();
+        private final LongAdder deflateNanos = new LongAdder();
+        private final LongAdder compressedFrames = new LongAdder();
+        private final LongAdder skippedFrames = new LongAdder();
+        // 客户端发来方向：收到的压缩负载字节数和解压后的字节数
+        private final LongAdder inflateInput = new LongAdder();
+        private final LongAdder inflateOutput = new LongAdder();
+        private final LongAdder inflateNanos = new LongAdder();
+
+        public long getDeflateInput() {
+            return deflateInput.sum();
+        }
+
+        public long getDeflateOutput() {
+            return deflateOutput.sum();
+        }
+
+        /** 压缩耗费的时间（纳秒），压缩是纯计算，近似为CPU时间 */
+        public long getDeflateNanos() {
+            return deflateNanos.sum();
+        }
+
+        public long getCompressedFrames() {
+            return compressedFrames.sum();
+        }
+
+        /** 不可压缩而原样发送的帧数，不含小于阈值的帧 */
+        public long getSkippedFrames() {
+            return skippedFrames.sum();
+        }
+
+        public long getInflateInput() {
+            return inflateInput.sum();
+        }
+
+        public long getInflateOutput() {
+            return inflateOutput.sum();
+        }
+
+        public long getInflateNanos() {
+            return inflateNanos.sum();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("toClient=%d->%d bytes (ratio %.2f, %d compressed, %d skipped, %.1f ms), "
+                            + "fromClient=%d->%d bytes (ratio %.2f, %.1f ms)",
+                    getDeflateInput(), getDeflateOutput(), ratio(getDeflateOutput(), getDeflateInput()),
+                    getCompressedFrames(), getSkippedFrames(), getDeflateNanos() / 1e6,
+                    getInflateOutput(), getInflateInput(), ratio(getInflateInput(), getInflateOutput()),
+                    getInflateNanos() / 1e6);
+        }
+
+        private static double ratio(long compressed, long raw) {
+            return raw == 0 ? 1 : (double) compressed / raw;
+        }
+    }
+}
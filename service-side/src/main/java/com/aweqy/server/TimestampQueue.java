@@ -0,0 +1,43 @@
+package com.aweqy.server;
+
+/**
+ * 与写出队列一一对应的入队时间队列（纳秒），用于统计帧在写出队列中停留的时间
+ * long数组实现的环形队列，不装箱；不是线程安全的，由所属写出队列的锁或线程保护
+ */
+public class TimestampQueue {
+
+    private long[] times = new long[16];
+    private int head;
+    private int size;
+
+    public void add(long time) {
+        if (size == times.length) {
+            long[] grown = new long[times.length * 2];
+            for (int i = 0; i < size; i++) {
+                grown[i] = times[(head + i) & (times.length - 1)];
+            }
+            times = grown;
+            head = 0;
+        }
+        times[(head + size) & (times.length - 1)] = time;
+        size++;
+    }
+
+    /**
+     * 取出最早的时间，队列为空时返回-1
+     */
+    public long poll() {
+        if (size == 0) {
+            return -1;
+        }
+        long time = times[head];
+        head = (head + 1) & (times.length - 1);
+        size--;
+        return time;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+}
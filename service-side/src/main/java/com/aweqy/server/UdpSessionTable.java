@@ -0,0 +1,125 @@
+package com.aweqy.server;
+
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * UDP隧道的会话表：每个玩家地址对应一个流，超过空闲时间没有数据的会话由时间轮移除
+ * UDP没有握手，来源地址可以伪造，会话不计入全局的连接数限制，只受每个隧道的会话数上限约束，
+ * 伪造的数据报最多占满一个隧道的会话表，不会挤占其他隧道和TCP连接的名额
+ */
+public class UdpSessionTable {
+
+    /**
+     * 一个玩家地址的UDP会话
+     */
+    public static class Session {
+
+        private final long streamId;
+        private final SocketAddress address;
+        private IdleTimer.Entry idleEntry;
+
+        Session(long streamId, SocketAddress address) {
+            this.streamId = streamId;
+            this.address = address;
+        }
+
+        public long getStreamId() {
+            return streamId;
+        }
+
+        public SocketAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * 记录一次收发活动
+         */
+        public void touch() {
+            if (idleEntry != null) {
+                idleEntry.touch();
+            }
+        }
+    }
+
+    private final Map<SocketAddress, Session> byAddress = new ConcurrentHashMap<>();
+    private final ConnectionRegistry<Session> byStream = new ConnectionRegistry<>();
+    private final LongSupplier timeout;
+    private final LongSupplier maxSessions;
+    private final Consumer<Session> onExpired;
+
+    /**
+     * onExpired在会话过期移除后于定时线程中调用，不能阻塞；空闲时间每次检查时从timeout读取，
+     * 会话数上限每次创建会话时从maxSessions读取，0表示不限制
+     */
+    public UdpSessionTable(LongSupplier timeout, LongSupplier maxSessions, Consumer<Session> onExpired) {
+        this.timeout = timeout;
+        this.maxSessions = maxSessions;
+        this.onExpired = onExpired;
+    }
+
+    public Session get(SocketAddress address) {
+        return byAddress.get(address);
+    }
+
+    public Session get(long streamId) {
+        return byStream.get(streamId);
+    }
+
+    /**
+     * 为新的玩家地址创建会话，分配新的streamId，超出会话数上限时抛出AdmissionException
+     * 只在隧道接收数据报的线程中调用
+     */
+    public Session create(SocketAddress address) throws AdmissionControl.AdmissionException {
+        long max = maxSessions.getAsLong();
+        if (max > 0 && byStream.size() >= max) {
+            throw new AdmissionControl.AdmissionException("Too many UDP sessions");
+        }
+        long streamId = ConnectionRegistry.nextId();
+        Session session = new Session(streamId, address);
+        if (timeout.getAsLong() > 0) {
+            session.idleEntry = IdleTimer.shared().register(IdleTimer.Kind.UDP, timeout, () -> {
+                if (remove(streamId)) {
+                    onExpired.accept(session);
+                }
+                return false;
+            });
+        }
+        // 会话在登记到表中之前完成初始化，其他线程查到会话时一定能看到idleEntry
+        byAddress.put(address, session);
+        byStream.put(streamId, session);
+        return session;
+    }
+
+    /**
+     * 移除会话，返回是否存在
+     */
+    public boolean remove(long streamId) {
+        Session session = byStream.remove(streamId);
+        if (session == null) {
+            return false;
+        }
+        byAddress.remove(session.address, session);
+        if (session.idleEntry != null) {
+            session.idleEntry.cancel();
+        }
+        return true;
+    }
+
+    public int size() {
+        return byStream.size();
+    }
+
+    public void clear() {
+        for (Session session : byStream.values()) {
+            if (session.idleEntry != null) {
+                session.idleEntry.cancel();
+            }
+        }
+        byAddress.clear();
+        byStream.clear();
+    }
+}
@@ -0,0 +1,175 @@
+package com.aweqy.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 准入计数：总数和单IP上限、重复释放、并发申请不超限
+ */
+class AdmissionControlTest {
+
+    private static final InetAddress FIRST = address(10, 0, 0, 1);
+    private static final InetAddress SECOND = address(10, 0, 0, 2);
+
+    private static InetAddress address(int a, int b, int c, int d) {
+        try {
+            return InetAddress.getByAddress(new byte[]{(byte) a, (byte) b, (byte) c, (byte) d});
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    void rejectsWhenServerIsFull() throws AdmissionControl.AdmissionException {
+        AdmissionControl admission = new AdmissionControl(2, 0);
+        admission.admit(FIRST, AdmissionControl.Kind.TUNNEL);
+        admission.admit(SECOND, AdmissionControl.Kind.PLAYER);
+
+        AdmissionControl.AdmissionException e = assertThrows(AdmissionControl.AdmissionException.class,
+                () -> admission.admit(SECOND, AdmissionControl.Kind.PLAYER));
+        assertEquals("Server is full", e.getMessage());
+        assertEquals(1, admission.getRejectedTotal());
+        assertEquals(2, admission.getActive());
+    }
+
+    @Test
+    void rejectsTooManyConnectionsFromOneAddress() throws AdmissionControl.AdmissionException {
+        AdmissionControl admission = new AdmissionControl(0, 2);
+        admission.admit(FIRST, AdmissionControl.Kind.PLAYER);
+        admission.admit(FIRST, AdmissionControl.Kind.PLAYER);
+
+        assertThrows(AdmissionControl.AdmissionException.class,
+                () -> admission.admit(FIRST, AdmissionControl.Kind.PLAYER));
+        admission.admit(SECOND, AdmissionControl.Kind.PLAYER);
+        assertEquals(1, admission.getRejectedPerAddress());
+        // 被单IP上限拒绝的连接不占用总数
+        assertEquals(3, admission.getActive());
+    }
+
+    @Test
+    void releaseFreesSlotOnlyOnce() throws AdmissionControl.AdmissionException {
+        AdmissionControl admission = new AdmissionControl(1, 1);
+        AdmissionControl.Permit permit = admission.admit(FIRST, AdmissionControl.Kind.TUNNEL);
+        permit.release();
+        permit.release();
+
+        assertEquals(0, admission.getActive());
+        assertEquals(0, admission.getActive(AdmissionControl.Kind.TUNNEL));
+        AdmissionControl.Permit again = admission.admit(FIRST, AdmissionControl.Kind.TUNNEL);
+        assertThrows(AdmissionControl.AdmissionException.class,
+                () -> admission.admit(SECOND, AdmissionControl.Kind.TUNNEL));
+        again.release();
+    }
+
+    @Test
+    void countsConnectionsByKind() throws AdmissionControl.AdmissionException {
+        AdmissionControl admission = new AdmissionControl(0, 0);
+        AdmissionControl.Permit tunnel = admission.admit(FIRST, AdmissionControl.Kind.TUNNEL);
+        admission.admit(SECOND, AdmissionControl.Kind.PLAYER);
+        admission.admit(SECOND, AdmissionControl.Kind.PLAYER);
+        tunnel.release();
+
+        assertEquals(0, admission.getActive(AdmissionControl.Kind.TUNNEL));
+        assertEquals(2, admission.getActive(AdmissionControl.Kind.PLAYER));
+        assertEquals(1, admission.getAdmitted(AdmissionControl.Kind.TUNNEL));
+        assertEquals(2, admission.getAdmitted(AdmissionControl.Kind.PLAYER));
+    }
+
+    @Test
+    void loweredLimitAppliesToNewConnectionsOnly() throws AdmissionControl.AdmissionException {
+        AdmissionControl admission = new AdmissionControl(0, 0);
+        AdmissionControl.Permit first = admission.admit(FIRST, AdmissionControl.Kind.PLAYER);
+        admission.admit(FIRST, AdmissionControl.Kind.PLAYER);
+        admission.setLimits(1, 0);
+
+        assertThrows(AdmissionControl.AdmissionException.class,
+                () -> admission.admit(SECOND, AdmissionControl.Kind.PLAYER));
+        first.release();
+        assertThrows(AdmissionControl.AdmissionException.class,
+                () -> admission.admit(SECOND, AdmissionControl.Kind.PLAYER));
+        assertEquals(1, admission.getActive());
+    }
+
+    @Test
+    void permitAdmittedBeforePerAddressLimitIsReleasedCleanly() throws AdmissionControl.AdmissionException {
+        // 申请时没有单IP限制的名额，限制打开后释放不会让该IP的计数变成负数
+        AdmissionControl admission = new AdmissionControl(0, 0);
+        AdmissionControl.Permit unlimited = admission.admit(FIRST, AdmissionControl.Kind.PLAYER);
+        admission.setLimits(0, 1);
+        AdmissionControl.Permit limited = admission.admit(FIRST, AdmissionControl.Kind.PLAYER);
+        unlimited.release();
+
+        assertThrows(AdmissionControl.AdmissionException.class,
+                () -> admission.admit(FIRST, AdmissionControl.Kind.PLAYER));
+        limited.release();
+        admission.admit(FIRST, AdmissionControl.Kind.PLAYER);
+    }
+
+    @Test
+    void concurrentAdmissionsNeverExceedLimits() throws InterruptedException {
+        // 多个线程同时申请和释放同一IP的名额，计数器归零后被移除、再重新创建，任何时刻都不能超过上限
+        int limit = 3;
+        AdmissionControl admission = new AdmissionControl(0, limit);
+        AtomicInteger held = new AtomicInteger();
+        AtomicInteger maxHeld = new AtomicInteger();
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 20_000; i++) {
+                    AdmissionControl.Permit permit;
+                    try {
+                        permit = admission.admit(FIRST, AdmissionControl.Kind.PLAYER);
+                    } catch (AdmissionControl.AdmissionException e) {
+                        continue;
+                    }
+                    maxHeld.accumulateAndGet(held.incrementAndGet(), Math::max);
+                    held.decrementAndGet();
+                    permit.release();
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertTrue(maxHeld.get() <= limit, "held " + maxHeld.get());
+        assertEquals(0, admission.getActive());
+        assertEquals(0, admission.getActive(AdmissionControl.Kind.PLAYER));
+        // 计数全部归还后，该IP可以重新用满上限
+        List<AdmissionControl.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < limit; i++) {
+            assertTrue(tryAdmit(admission, permits));
+        }
+        assertFalse(tryAdmit(admission, permits));
+    }
+
+    private static boolean tryAdmit(AdmissionControl admission, List<AdmissionControl.Permit> permits) {
+        try {
+            permits.add(admission.admit(FIRST, AdmissionControl.Kind.PLAYER));
+            return true;
+        } catch (AdmissionControl.AdmissionException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.aweqy.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 开放寻址注册表：扩容、墓碑复用和并发读取
+ */
+class ConnectionRegistryTest {
+
+    @Test
+    void putGetRemove() {
+        ConnectionRegistry<String> registry = new ConnectionRegistry<>();
+        registry.put(1, "a");
+        registry.put(2, "b");
+
+        assertEquals("a", registry.get(1));
+        assertEquals("b", registry.get(2));
+        assertNull(registry.get(3));
+        assertEquals(2, registry.size());
+
+        assertEquals("a", registry.remove(1));
+        assertNull(registry.get(1));
+        assertNull(registry.remove(1));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    void putReplacesExistingConnection() {
+        ConnectionRegistry<String> registry = new ConnectionRegistry<>();
+        registry.put(7, "old");
+        registry.put(7, "new");
+
+        assertEquals("new", registry.get(7));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    void rejectsEmptyKeyAndNullConnection() {
+        ConnectionRegistry<String> registry = new ConnectionRegistry<>();
+
+        assertThrows(IllegalArgumentException.class, () -> registry.put(0, "a"));
+        assertThrows(IllegalArgumentException.class, () -> registry.put(1, null));
+    }
+
+    @Test
+    void growsPastInitialCapacity() {
+        ConnectionRegistry<Long> registry = new ConnectionRegistry<>();
+        for (long id = 1; id <= 10_000; id++) {
+            registry.put(id, id);
+        }
+
+        assertEquals(10_000, registry.size());
+        for (long id = 1; id <= 10_000; id++) {
+            assertEquals(id, registry.get(id));
+        }
+        assertNull(registry.get(10_001));
+    }
+
+    @Test
+    void removingFromProbeChainKeepsLaterEntriesReachable() {
+        // 删除留下墓碑，同一探测链上后面的条目仍然能找到
+        // 连续的id经斐波那契散列后几乎不冲突，这里用随机id制造探测链
+        for (int count = 2; count <= 200; count++) {
+            Random random = new Random(count);
+            long[] ids = randomIds(random, count);
+            ConnectionRegistry<Long> registry = new ConnectionRegistry<>();
+            for (long id : ids) {
+                registry.put(id, id);
+            }
+            for (int i = 0; i < count; i += 2) {
+                registry.remove(ids[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                if (i % 2 == 0) {
+                    assertNull(registry.get(ids[i]), "removed id " + ids[i]);
+                } else {
+                    assertEquals(ids[i], registry.get(ids[i]), "kept id " + ids[i]);
+                }
+            }
+            assertEquals(count / 2, registry.size());
+        }
+    }
+
+    @Test
+    void insertingAfterRemovalDoesNotDuplicateLaterEntries() {
+        // 新条目可以复用探测链上靠前的墓碑，但链上后面已有同一id时必须更新原条目
+        // 7个条目时还不扩容，16个槽位上探测链很常见
+        for (int seed = 0; seed < 500; seed++) {
+            long[] ids = randomIds(new Random(seed), 7);
+            ConnectionRegistry<String> registry = new ConnectionRegistry<>();
+            for (long id : ids) {
+                registry.put(id, "first");
+            }
+            long removed = ids[seed % ids.length];
+            registry.remove(removed);
+            for (long id : ids) {
+                if (id != removed) {
+                    registry.put(id, "second");
+                }
+            }
+
+            assertEquals(ids.length - 1, registry.size(), "seed " + seed);
+            assertEquals(ids.length - 1, registry.values().size(), "seed " + seed);
+            for (long id : ids) {
+                assertEquals(id == removed ? null : "second", registry.get(id));
+            }
+        }
+    }
+
+    private static long[] randomIds(Random random, int count) {
+        Set<Long> seen = new HashSet<>();
+        long[] ids = new long[count];
+        for (int i = 0; i < count; ) {
+            long id = random.nextLong();
+            if (id != 0 && seen.add(id)) {
+                ids[i++] = id;
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    void churnReusesTombstonesInsteadOfFillingTable() {
+        // 存活连接很少但id不断变化，墓碑不回收时表会被占满，查找不存在的id不会终止
+        ConnectionRegistry<Long> registry = new ConnectionRegistry<>();
+        long next = 1;
+        for (int round = 0; round < 100_000; round++) {
+            registry.put(next, next);
+            if (round >= 4) {
+                assertEquals(next - 4, registry.remove(next - 4));
+            }
+            next++;
+        }
+
+        assertEquals(4, registry.size());
+        for (long id = next - 4; id < next; id++) {
+            assertEquals(id, registry.get(id));
+        }
+        assertNull(registry.get(next - 5));
+        assertNull(registry.get(next + 100));
+    }
+
+    @Test
+    void reinsertingRemovedIdCountsOnce() {
+        ConnectionRegistry<String> registry = new ConnectionRegistry<>();
+        registry.put(5, "a");
+        registry.remove(5);
+        registry.put(5, "b");
+
+        assertEquals("b", registry.get(5));
+        assertEquals(1, registry.size());
+        assertEquals(List.of("b"), registry.values());
+    }
+
+    @Test
+    void valuesSkipsRemovedEntries() {
+        ConnectionRegistry<Long> registry = new ConnectionRegistry<>();
+        for (long id = 1; id <= 50; id++) {
+            registry.put(id, id);
+        }
+        for (long id = 1; id <= 50; id += 3) {
+            registry.remove(id);
+        }
+
+        Set<Long> expected = new HashSet<>();
+        for (long id = 1; id <= 50; id++) {
+            if ((id - 1) % 3 != 0) {
+                expected.add(id);
+            }
+        }
+        assertEquals(expected, new HashSet<>(registry.values()));
+    }
+
+    @Test
+    void clearEmptiesRegistry() {
+        ConnectionRegistry<String> registry = new ConnectionRegistry<>();
+        registry.put(1, "a");
+        registry.put(2, "b");
+        registry.clear();
+
+        assertTrue(registry.isEmpty());
+        assertNull(registry.get(1));
+        registry.put(1, "c");
+        assertEquals("c", registry.get(1));
+    }
+
+    @Test
+    void nextIdIsIncreasing() {
+        long first = ConnectionRegistry.nextId();
+        long second = ConnectionRegistry.nextId();
+
+        assertTrue(first > 0);
+        assertTrue(second > first);
+    }
+
+    @Test
+    void readersAlwaysSeeStableEntriesWhileWriterRehashes() throws InterruptedException {
+        // 读者不加锁，写者不断插入、删除并触发扩容和重建，一直存在的条目任何时刻都要能读到
+        ConnectionRegistry<Long> registry = new ConnectionRegistry<>();
+        long stableCount = 64;
+        for (long id = 1; id <= stableCount; id++) {
+            registry.put(id, id);
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[2];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                while (running.get() && failure.get() == null) {
+                    for (long id = 1; id <= stableCount; id++) {
+                        Long value = registry.get(id);
+                        if (value == null || value != id) {
+                            failure.set("id " + id + " read as " + value);
+                            return;
+                        }
+                    }
+                }
+            });
+            readers[r].start();
+        }
+
+        long next = 1_000;
+        for (int round = 0; round < 20; round++) {
+            long from = next;
+            for (int i = 0; i < 5_000; i++) {
+                registry.put(next, next);
+                next++;
+            }
+            for (long id = from; id < next; id++) {
+                assertEquals(id, registry.remove(id));
+            }
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertNull(failure.get(), failure.get());
+        assertEquals(stableCount, registry.size());
+    }
+}
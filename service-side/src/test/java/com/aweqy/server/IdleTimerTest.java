@@ -0,0 +1,109 @@
+package com.aweqy.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 时间轮空闲检测：到期触发、活动续期、取消、探测后继续监视
+ * 使用共享的定时线程和真实时间，精度为一次推进（100毫秒），断言留有余量
+ */
+class IdleTimerTest {
+
+    private static final IdleTimer TIMER = IdleTimer.shared();
+
+    @Test
+    void firesAfterTimeout() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        TIMER.register(IdleTimer.Kind.STREAM, 300, () -> {
+            fired.countDown();
+            return false;
+        });
+
+        assertTrue(fired.await(3, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+    }
+
+    @Test
+    void activityPostponesExpiry() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        IdleTimer.Entry entry = TIMER.register(IdleTimer.Kind.STREAM, 400, () -> {
+            fired.countDown();
+            return false;
+        });
+        for (int i = 0; i < 12; i++) {
+            Thread.sleep(100);
+            entry.touch();
+        }
+        assertEquals(1, fired.getCount());
+
+        assertTrue(fired.await(3, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void cancelledEntryNeverFires() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        IdleTimer.Entry entry = TIMER.register(IdleTimer.Kind.STREAM, 200, () -> {
+            fired.countDown();
+            return false;
+        });
+        entry.cancel();
+
+        assertFalse(fired.await(800, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void probingListenerIsCalledAgainUntilItCloses() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch closed = new CountDownLatch(1);
+        long probesBefore = TIMER.getProbes();
+        TIMER.register(IdleTimer.Kind.CONTROL, 200, () -> {
+            if (calls.incrementAndGet() < 3) {
+                return true;
+            }
+            closed.countDown();
+            return false;
+        });
+
+        assertTrue(closed.await(3, TimeUnit.SECONDS));
+        Thread.sleep(500);
+        assertEquals(3, calls.get());
+        assertTrue(TIMER.getProbes() - probesBefore >= 2);
+    }
+
+    @Test
+    void disabledTimeoutDoesNotFire() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        IdleTimer.Entry entry = TIMER.register(IdleTimer.Kind.UDP, () -> 0, () -> {
+            fired.countDown();
+            return false;
+        });
+
+        assertFalse(fired.await(800, TimeUnit.MILLISECONDS));
+        entry.cancel();
+    }
+
+    @Test
+    void failingListenerDoesNotStopTimer() throws InterruptedException {
+        CountDownLatch failed = new CountDownLatch(1);
+        TIMER.register(IdleTimer.Kind.STREAM, 100, () -> {
+            failed.countDown();
+            throw new IllegalStateException("listener failure");
+        });
+        assertTrue(failed.await(3, TimeUnit.SECONDS));
+
+        CountDownLatch fired = new CountDownLatch(1);
+        TIMER.register(IdleTimer.Kind.STREAM, 100, () -> {
+            fired.countDown();
+            return false;
+        });
+        assertTrue(fired.await(3, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,105 @@
+package com.aweqy.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 直方图分桶边界：桶包含上界，与Prometheus的le一致
+ */
+class LatencyHistogramTest {
+
+    private static final int OVERFLOW = LatencyHistogram.BUCKET_COUNT - 1;
+
+    @Test
+    void everyValueFallsBetweenNeighbouringUpperBounds() {
+        for (long micros = 0; micros <= (1L << LatencyHistogram.MAX_EXPONENT); micros += micros < 100_000 ? 1 : 997) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            assertTrue(bucket < OVERFLOW, "value " + micros + " overflowed");
+            assertTrue(micros <= LatencyHistogram.bucketUpperBound(bucket), "value " + micros + " above its bucket");
+            if (bucket > 0) {
+                assertTrue(micros > LatencyHistogram.bucketUpperBound(bucket - 1), "value " + micros + " below its bucket");
+            }
+        }
+    }
+
+    @Test
+    void powersOfTwoAreBucketUpperBounds() {
+        for (int exponent = 0; exponent <= LatencyHistogram.MAX_EXPONENT; exponent++) {
+            long limit = 1L << exponent;
+            int bucket = LatencyHistogram.bucketOf(limit);
+
+            assertEquals(limit, LatencyHistogram.bucketUpperBound(bucket), "2^" + exponent);
+            assertEquals(bucket + 1, LatencyHistogram.bucketOf(limit + 1), "2^" + exponent + " + 1");
+        }
+    }
+
+    @Test
+    void smallValuesHaveOwnBuckets() {
+        assertEquals(0, LatencyHistogram.bucketOf(0));
+        assertEquals(0, LatencyHistogram.bucketOf(1));
+        assertEquals(1, LatencyHistogram.bucketOf(2));
+        assertEquals(7, LatencyHistogram.bucketOf(8));
+        assertEquals(1, LatencyHistogram.bucketUpperBound(0));
+        assertEquals(8, LatencyHistogram.bucketUpperBound(7));
+    }
+
+    @Test
+    void negativeValuesGoToFirstBucket() {
+        assertEquals(0, LatencyHistogram.bucketOf(-5));
+    }
+
+    @Test
+    void valuesAboveRangeGoToOverflowBucket() {
+        assertEquals(OVERFLOW, LatencyHistogram.bucketOf((1L << LatencyHistogram.MAX_EXPONENT) + 1));
+        assertEquals(OVERFLOW, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    void bucketWidthIsWithinOneEighthOfValue() {
+        for (int bucket = 8; bucket < OVERFLOW; bucket++) {
+            long upper = LatencyHistogram.bucketUpperBound(bucket);
+            long lower = LatencyHistogram.bucketUpperBound(bucket - 1);
+            assertTrue((upper - lower) * 8 <= lower, "bucket " + bucket + " (" + lower + ", " + upper + "]");
+        }
+    }
+
+    @Test
+    void recordRoundsUpToWholeMicroseconds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1024微秒正好是桶的上界，多1纳秒即进入下一个桶
+        histogram.record(1_024_000);
+        histogram.record(1_024_001);
+
+        long[] counts = histogram.snapshot();
+        int bucket = LatencyHistogram.bucketOf(1024);
+        assertEquals(1, counts[bucket]);
+        assertEquals(1, counts[bucket + 1]);
+        assertEquals(2, histogram.getCount());
+        assertEquals(2049, histogram.getSumMicros());
+    }
+
+    @Test
+    void sampleAtPowerOfTwoCountsInThatBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1024_000);
+
+        long[] counts = histogram.snapshot();
+        int bucket = LatencyHistogram.bucketOf(1024);
+        assertEquals(1, counts[bucket]);
+        assertEquals(1024, LatencyHistogram.bucketUpperBound(bucket));
+    }
+
+    @Test
+    void percentileReturnsBucketUpperBound() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketOf(50)), histogram.percentile(0.50));
+        assertEquals(LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketOf(99)), histogram.percentile(0.99));
+        assertEquals(0, new LatencyHistogram().percentile(0.5));
+    }
+}
@@ -0,0 +1,202 @@
+package com.aweqy.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 位图端口分配：分配、保留、释放和绑定失败时的重试
+ */
+class PortAllocatorTest {
+
+    private static final long HOUR = 3_600_000;
+
+    @Test
+    void allocatesEveryPortInRangeOnce() {
+        // 范围跨过多个summary字，且不是64的整数倍
+        PortAllocator allocator = new PortAllocator(1000, 5999, HOUR);
+        Set<Integer> ports = new HashSet<>();
+        for (int i = 0; i < 5000; i++) {
+            int port = allocator.allocate("client-" + i);
+            assertTrue(port >= 1000 && port <= 5999, "port " + port);
+            assertTrue(ports.add(port), "duplicate port " + port);
+        }
+
+        assertEquals(-1, allocator.allocate("one-more"));
+        assertEquals(5000, allocator.getAllocatedCount());
+    }
+
+    @Test
+    void releasedPortIsReservedForSameIdentity() {
+        PortAllocator allocator = new PortAllocator(6000, 6009, HOUR);
+        int port = allocator.allocate("alice");
+        allocator.release(port);
+
+        for (int i = 0; i < 9; i++) {
+            assertNotEquals(port, allocator.allocate("other-" + i));
+        }
+        assertEquals(-1, allocator.allocate("bob"));
+        assertEquals(port, allocator.allocate("alice"));
+    }
+
+    @Test
+    void reservedPortCannotBeClaimedByAnotherIdentity() {
+        PortAllocator allocator = new PortAllocator(6000, 6009, HOUR);
+        assertTrue(allocator.claim(6005, "alice"));
+        assertFalse(allocator.claim(6005, "bob"));
+
+        allocator.release(6005);
+        assertFalse(allocator.claim(6005, "bob"));
+        assertTrue(allocator.claim(6005, "alice"));
+        // 端口正在使用时同一身份也不能再占用
+        assertFalse(allocator.claim(6005, "alice"));
+    }
+
+    @Test
+    void expiredReservationCanBeClaimedByAnotherIdentity() throws InterruptedException {
+        PortAllocator allocator = new PortAllocator(6000, 6009, 1);
+        assertTrue(allocator.claim(6005, "alice"));
+        allocator.release(6005);
+        Thread.sleep(10);
+
+        assertTrue(allocator.claim(6005, "bob"));
+        allocator.release(6005);
+        // 端口转给了bob，alice不再有保留端口
+        assertNotEquals(6005, allocator.allocate("alice"));
+    }
+
+    @Test
+    void expiredReservationsAreReclaimedWhenRangeIsFull() throws InterruptedException {
+        PortAllocator allocator = new PortAllocator(6000, 6003, 1);
+        List<Integer> ports = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ports.add(allocator.allocate("client-" + i));
+        }
+        assertEquals(-1, allocator.allocate("late"));
+
+        allocator.release(ports.get(2));
+        Thread.sleep(10);
+
+        assertEquals(ports.get(2), allocator.allocate("late"));
+    }
+
+    @Test
+    void releaseWithoutReservationFreesImmediately() {
+        PortAllocator allocator = new PortAllocator(6000, 6000, 0);
+        int port = allocator.allocate("alice");
+        allocator.release(port);
+
+        assertEquals(0, allocator.getAllocatedCount());
+        assertEquals(port, allocator.allocate("bob"));
+    }
+
+    @Test
+    void discardFreesPortWithoutReservation() {
+        PortAllocator allocator = new PortAllocator(6000, 6000, HOUR);
+        int port = allocator.allocate("alice");
+        allocator.discard(port);
+
+        assertEquals(port, allocator.allocate("bob"));
+    }
+
+    @Test
+    void newerPortReplacesOlderReservationOfSameIdentity() {
+        PortAllocator allocator = new PortAllocator(6000, 6009, HOUR);
+        int first = allocator.allocate("alice");
+        allocator.release(first);
+        assertTrue(allocator.claim(6009, "alice"));
+        allocator.release(6009);
+
+        // 只有最新的端口作为保留端口，旧端口已释放给其他身份
+        assertEquals(6009, allocator.allocate("alice"));
+        assertTrue(allocator.claim(first, "bob"));
+    }
+
+    @Test
+    void freedPortIsFoundAfterCursorWrapsAround() {
+        PortAllocator allocator = new PortAllocator(6000, 6099, 0);
+        List<Integer> ports = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ports.add(allocator.allocate("client-" + i));
+        }
+        allocator.release(ports.get(3));
+
+        assertEquals(ports.get(3), allocator.allocate("next"));
+        assertEquals(-1, allocator.allocate("full"));
+    }
+
+    @Test
+    void portsOutsideRangeAreNotTracked() {
+        PortAllocator allocator = new PortAllocator(6000, 6009, HOUR);
+
+        assertTrue(allocator.claim(25565, "alice"));
+        assertTrue(allocator.claim(25565, "bob"));
+        assertEquals(0, allocator.getAllocatedCount());
+    }
+
+    @Test
+    void acquireSkipsPortsThatFailToBind() throws PortAllocator.PortException {
+        PortAllocator allocator = new PortAllocator(6000, 6009, HOUR);
+        List<Integer> attempted = new ArrayList<>();
+        int port = allocator.acquire("alice", 0, candidate -> {
+            attempted.add(candidate);
+            if (attempted.size() < 3) {
+                throw new IOException("Address already in use");
+            }
+        });
+
+        assertEquals(3, attempted.size());
+        assertEquals(attempted.get(2), port);
+        // 绑定失败的端口没有留下保留
+        assertEquals(1, allocator.getAllocatedCount());
+    }
+
+    @Test
+    void acquireGivesUpAfterRepeatedBindFailures() {
+        PortAllocator allocator = new PortAllocator(6000, 6099, HOUR);
+        PortAllocator.PortException e = assertThrows(PortAllocator.PortException.class,
+                () -> allocator.acquire("alice", 0, candidate -> {
+                    throw new IOException("Address already in use");
+                }));
+
+        assertEquals("Failed to bind a remote port", e.getMessage());
+        assertEquals(0, allocator.getAllocatedCount());
+    }
+
+    @Test
+    void acquireRequestedPortFailsWhenTaken() throws PortAllocator.PortException {
+        PortAllocator allocator = new PortAllocator(6000, 6009, HOUR);
+        allocator.acquire("alice", 6003, candidate -> { });
+
+        PortAllocator.PortException e = assertThrows(PortAllocator.PortException.class,
+                () -> allocator.acquire("bob", 6003, candidate -> { }));
+        assertEquals("Remote port 6003 is already in use", e.getMessage());
+    }
+
+    @Test
+    void acquireRequestedPortReleasesItWhenBindFails() {
+        PortAllocator allocator = new PortAllocator(6000, 6009, HOUR);
+        assertThrows(PortAllocator.PortException.class, () -> allocator.acquire("alice", 6003, candidate -> {
+            throw new IOException("Permission denied");
+        }));
+
+        assertTrue(allocator.claim(6003, "bob"));
+    }
+
+    @Test
+    void rejectsInvalidRange() {
+        assertThrows(IllegalArgumentException.class, () -> new PortAllocator(0, 10, HOUR));
+        assertThrows(IllegalArgumentException.class, () -> new PortAllocator(7000, 6000, HOUR));
+        assertThrows(IllegalArgumentException.class, () -> new PortAllocator(60000, 70000, HOUR));
+    }
+}
@@ -0,0 +1,205 @@
+package com.aweqy.mctopcl;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 中继与客户端之间的二进制帧
+ * 格式：length(4) | type(1) | streamId(8) | payload，length为type之后的字节数
+ * 认证完成后控制连接上只传输帧，每个外部连接对应一个streamId
+ * 与服务端com.aweqy.server.Frame的格式保持一致
+ */
+public class Frame {
+
+    public static final byte DATA = 0;
+    public static final byte OPEN = 1;
+    public static final byte CLOSE = 2;
+    /** 心跳，负载为发送方的单调时间戳(8)，对端用PONG原样返回，发送方据此计算往返时间；旧版本发来的心跳没有负载 */
+    public static final byte PING = 3;
+    public static final byte PONG = 4;
+    public static final byte WINDOW = 5;
+    public static final byte ERROR = 6;
+    /** 压缩的DATA帧，负载为原始长度(4) | zlib数据，只在认证时协商了压缩的隧道上出现 */
+    public static final byte DEFLATE = 7;
+    /**
+     * 会话恢复时交换的流状态，负载为已收到的字节数(8) | 累计通告的额度(8)，对端据此重发丢失的数据、补回丢失的额度
+     * streamId为0、没有负载时表示列表结束，只在认证时协商了会话恢复的隧道上出现
+     */
+    public static final byte RESUME = 8;
+
+    /** 帧头长度 */
+    public static final int HEADER_SIZE = 13;
+    /** 单帧最大负载 */
+    public static final int MAX_PAYLOAD = 64 * 1024;
+    /** 每个流双方默认的初始接收窗口，更大的窗口在流打开后通过WINDOW帧通告 */
+    public static final int INITIAL_WINDOW = 64 * 1024;
+
+    private final byte type;
+    private final long streamId;
+    private final byte[] payload;
+
+    public Frame(byte type, long streamId, byte[] payload) {
+        this.type = type;
+        this.streamId = streamId;
+        this.payload = payload;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public long getStreamId() {
+        return streamId;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * 编码一个帧，返回可直接写出的缓冲区
+     */
+    public static ByteBuffer encode(byte type, long streamId, byte[] payload, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        buffer.putInt(length + 9).put(type).putLong(streamId).put(payload, offset, length);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 编码一个帧，负载取自data的剩余字节
+     */
+    public static ByteBuffer encode(byte type, long streamId, ByteBuffer data) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + data.remaining());
+        buffer.putInt(data.remaining() + 9).put(type).putLong(streamId).put(data);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 负载已写在buffer的HEADER_SIZE之后（position为负载末尾）时，在开头补写帧头并flip，避免复制负载
+     */
+    public static ByteBuffer encodeInPlace(byte type, long streamId, ByteBuffer buffer) {
+        int length = buffer.position() - HEADER_SIZE;
+        buffer.putInt(0, length + 9).put(4, type).putLong(5, streamId);
+        return buffer.flip();
+    }
+
+    /**
+     * 编码一个WINDOW帧，负载为接收方新增的额度（字节数）
+     */
+    public static ByteBuffer encodeWindow(long streamId, int increment) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4);
+        buffer.putInt(13).put(WINDOW).putLong(streamId).putInt(increment);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * WINDOW帧携带的额度增量
+     */
+    public int getWindowIncrement() {
+        return payload.length >= 4 ? ByteBuffer.wrap(payload).getInt() : 0;
+    }
+
+    /**
+     * 编码一个RESUME帧，received为已收到的该流数据字节数，granted为累计向对端通告的额度（含初始窗口之外的通告）
+     */
+    public static ByteBuffer encodeResume(long streamId, long received, long granted) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 16);
+        buffer.putInt(25).put(RESUME).putLong(streamId).putLong(received).putLong(granted);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * RESUME帧中对端已收到的字节数
+     */
+    public long getResumeReceived() {
+        return payload.length >= 16 ? ByteBuffer.wrap(payload).getLong(0) : 0;
+    }
+
+    /**
+     * RESUME帧中对端累计通告的额度
+     */
+    public long getResumeGranted() {
+        return payload.length >= 16 ? ByteBuffer.wrap(payload).getLong(8) : 0;
+    }
+
+    /**
+     * 编码一个PING帧，sentAt为发送时的System.nanoTime()
+     */
+    public static ByteBuffer encodePing(long sentAt) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8);
+        buffer.putInt(17).put(PING).putLong(0).putLong(sentAt);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * PING或PONG帧是否携带时间戳
+     */
+    public boolean hasTimestamp() {
+        return payload.length >= 8;
+    }
+
+    /**
+     * PING或PONG帧携带的发送时间
+     */
+    public long getTimestamp() {
+        return payload.length >= 8 ? ByteBuffer.wrap(payload).getLong() : 0;
+    }
+
+    /**
+     * 编码一个无负载的帧
+     */
+    public static ByteBuffer encode(byte type, long streamId) {
+        return encode(type, streamId, new byte[0], 0, 0);
+    }
+
+    /**
+     * 从阻塞流中读取一个帧，流结束时返回null
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        checkLength(length);
+        byte type = in.readByte();
+        long streamId = in.readLong();
+        byte[] payload = new byte[length - 9];
+        in.readFully(payload);
+        return new Frame(type, streamId, payload);
+    }
+
+    /**
+     * 从缓冲区中解码一个完整的帧，数据不足时返回null且不移动position
+     */
+    public static Frame decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int length = buffer.getInt(buffer.position());
+        checkLength(length);
+        if (buffer.remaining() < 4 + length) {
+            return null;
+        }
+        buffer.getInt();
+        byte type = buffer.get();
+        long streamId = buffer.getLong();
+        byte[] payload = new byte[length - 9];
+        buffer.get(payload);
+        return new Frame(type, streamId, payload);
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length < 9 || length > MAX_PAYLOAD + 9) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+}
@@ -42,6 +42,15 @@ public class OnlineConfig {
         properties.setProperty("local.address", "127.0.0.1");
         properties.setProperty("local.port", "");
         properties.setProperty("remote.port", "");
+        properties.setProperty("route.hostname", "");
+        properties.setProperty("pool.size", "4");
+        properties.setProperty("virtual.threads", "false");
+        properties.setProperty("compression.enabled", "true");
+        properties.setProperty("compression.threshold", "256");
+        properties.setProperty("compression.level", "1");
+        properties.setProperty("keepalive.interval", "5000");
+        properties.setProperty("reconnect.initial_delay", "1000");
+        properties.setProperty("reconnect.max_delay", "60000");
     }
 
     /**
@@ -51,6 +60,25 @@ public class OnlineConfig {
         return properties.getProperty(key, defaultValue);
     }
 
+    /**
+     * 获取整数配置
+     */
+    public static int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(properties.getProperty(key));
+        } catch (NumberFormatException | NullPointerException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 获取布尔配置
+     */
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
     /**
      * 设置字符串配置
      */
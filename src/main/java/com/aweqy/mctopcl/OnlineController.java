@@ -6,15 +6,9 @@ import javafx.scene.control.*;
 import javafx.stage.Stage;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.*;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class OnlineController {
 
@@ -33,20 +27,25 @@ public class OnlineController {
     @FXML
     private TextField remotePort;
     @FXML
+    private TextField routeHostname;
+    @FXML
     private Button connectButton;
     @FXML
     private Button disconnectButton;
     @FXML
     private Label statusLabel;
+    @FXML
+    private Label compressionLabel;
+    @FXML
+    private Label latencyLabel;
     
     private Stage stage;
-    private Socket serverSocket;
-    private ExecutorService executorService;
+    // 重连成功后换成新的客户端
+    private volatile TunnelClient tunnelClient;
+    // 界面线程写入，转发线程和状态检查线程中的回调读取
+    private volatile ReconnectSupervisor supervisor;
     private ScheduledExecutorService statusCheckExecutor;
-    private boolean isConnected = false;
-    
-    // 维护外部连接的映射：clientId -> localSocket
-    private Map<String, Socket> externalConnections = new ConcurrentHashMap<>();
+    private volatile boolean isConnected = false;
     
     @FXML
     public void initialize() {
@@ -64,6 +63,7 @@ public class OnlineController {
         localAddress.setText(OnlineConfig.getString("local.address", "127.0.0.1"));
         localPort.setText(OnlineConfig.getString("local.port", ""));
         remotePort.setText(OnlineConfig.getString("remote.port", ""));
+        routeHostname.setText(OnlineConfig.getString("route.hostname", ""));
         
         // 初始化按钮状态
         disconnectButton.setDisable(true);
@@ -87,6 +87,8 @@ public class OnlineController {
             String localAddr = localAddress.getText();
             int localPortNum = Integer.parseInt(localPort.getText());
             String remotePortStr = remotePort.getText();
+            // 服务器开启了共享端口时，玩家可以用这个主机名连接共享端口
+            String hostname = routeHostname.getText().trim();
             
             // 验证输入
             if (address.isEmpty() || port <= 0 || port > 65535) {
@@ -102,61 +104,61 @@ public class OnlineController {
             // 开始连接
             statusLabel.setText("连接中...");
             
-            executorService = Executors.newCachedThreadPool();
-            
-            // 连接到公网服务器
-            SocketAddress socketAddress = new InetSocketAddress(address, port);
-            serverSocket = new Socket();
-            // 设置连接超时时间为10秒
-            serverSocket.connect(socketAddress, 10000);
-            
-            // 发送认证信息
-            OutputStream out = serverSocket.getOutputStream();
-            // 构建认证消息，包含远程端口参数
-            String authMessage = "AUTH:" + password + ":" + protocol + ":" + localAddress.getText() + ":" + localPortNum;
-            // 如果用户指定了远程端口，添加到认证消息中
-            if (!remotePortStr.isEmpty()) {
-                authMessage += ":" + remotePortStr;
-            }
-            out.write((authMessage + "\n").getBytes());
-            out.flush();
-            
-            // 读取认证响应
-            InputStream in = serverSocket.getInputStream();
-            byte[] buffer = new byte[1024];
-            int read = in.read(buffer);
-            if (read == -1) {
-                throw new IOException("未收到认证响应，连接已关闭");
-            }
-            String response = new String(buffer, 0, read).trim();
+            // 连接到公网服务器并认证
+            // 工作连接池大小由配置文件的pool.size指定
+            int poolSize = OnlineConfig.getInt("pool.size", 4);
+            // 转发任务是否运行在虚拟线程上由virtual.threads指定
+            boolean virtualThreads = OnlineConfig.getBoolean("virtual.threads", false);
+            // 是否请求压缩由compression.enabled指定，服务器不支持时照常连接
+            boolean compression = OnlineConfig.getBoolean("compression.enabled", true);
+            // 上行压缩的最小负载字节数和Deflate级别（1-9），上行慢时可以调高级别换取更小的数据量
+            int compressionThreshold = OnlineConfig.getInt("compression.threshold", 256);
+            int compressionLevel = OnlineConfig.getInt("compression.level", 1);
+            // 连续三个keepalive.interval没有收到中继的数据时视为断线，与中继的keepalive.interval一致
+            int keepaliveInterval = OnlineConfig.getInt("keepalive.interval", 5000);
+            ReconnectSupervisor.ClientFactory factory = remote -> {
+                TunnelListener listener = new TunnelListener();
+                listener.client = new TunnelClient(address, port, password, protocol, localAddr, localPortNum,
+                        remote, poolSize, virtualThreads, compression, compressionThreshold, compressionLevel,
+                        hostname, keepaliveInterval, listener);
+                return listener.client;
+            };
+            tunnelClient = factory.create(remotePortStr);
+            String response = tunnelClient.connect();
             
             if (response.startsWith("OK")) {
                 isConnected = true;
-                statusLabel.setText("已连接");
+                statusLabel.setText(tunnelClient.getRoutedHostname() != null
+                        ? "已连接，玩家可通过 " + tunnelClient.getRoutedHostname() + " 进入" : "已连接");
+                compressionLabel.setText(tunnelClient.isCompressing() ? "压缩已开启" : "");
                 connectButton.setDisable(true);
                 disconnectButton.setDisable(false);
                 
                 // 保存配置
                 saveConfig();
                 
+                // 连接中断后由重连监督在后台恢复，先开始监督再启动转发，启动后立即断开也不会漏掉回调
+                supervisor = new ReconnectSupervisor(factory, new ReconnectListener(),
+                        OnlineConfig.getInt("reconnect.initial_delay", 1000), OnlineConfig.getInt("reconnect.max_delay", 60000));
+                supervisor.watch(tunnelClient);
+                
                 // 启动连接状态检查
                 startStatusCheck();
                 
                 // 开始处理转发
-                if (protocol.equals("TCP")) {
-                    startTCPForwarding();
-                } else {
-                    startUDPForwarding();
-                }
+                tunnelClient.start();
             } else {
                 showError("连接失败", "认证失败: " + response);
-                serverSocket.close();
+                tunnelClient.close();
                 statusLabel.setText("未连接");
             }
             
         } catch (NumberFormatException e) {
             showError("错误", "端口号必须是数字");
         } catch (IOException e) {
+            if (tunnelClient != null) {
+                tunnelClient.close();
+            }
             showError("连接失败", "无法连接到服务器: " + e.getMessage());
             statusLabel.setText("未连接");
         }
@@ -164,27 +166,25 @@ public class OnlineController {
 
     @FXML
     protected void onDisconnect() {
-        try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-            
-            if (executorService != null && !executorService.isShutdown()) {
-                executorService.shutdown();
-            }
-            
-            if (statusCheckExecutor != null && !statusCheckExecutor.isShutdown()) {
-                statusCheckExecutor.shutdown();
-            }
-            
-            isConnected = false;
-            statusLabel.setText("未连接");
-            connectButton.setDisable(false);
-            disconnectButton.setDisable(true);
-            
-        } catch (IOException e) {
-            // 忽略错误
+        isConnected = false;
+        
+        if (supervisor != null) {
+            supervisor.close();
+        }
+        
+        if (tunnelClient != null) {
+            tunnelClient.close();
         }
+        
+        if (statusCheckExecutor != null && !statusCheckExecutor.isShutdown()) {
+            statusCheckExecutor.shutdown();
+        }
+        
+        statusLabel.setText("未连接");
+        compressionLabel.setText("");
+        latencyLabel.setText("");
+        connectButton.setDisable(false);
+        disconnectButton.setDisable(true);
     }
 
     @FXML
@@ -195,230 +195,6 @@ public class OnlineController {
         }
     }
 
-    private void startTCPForwarding() {
-        executorService.submit(() -> {
-            try {
-                InputStream in = serverSocket.getInputStream();
-                byte[] buffer = new byte[4096];
-                
-                while (isConnected && !serverSocket.isClosed()) {
-                    // 等待服务器发送数据
-                    int read = in.read(buffer);
-                    
-                    if (read == -1) break;
-                    
-                    // 尝试将数据解析为字符串，检查是否是命令
-                    String request = null;
-                    try {
-                        request = new String(buffer, 0, read).trim();
-                    } catch (Exception e) {
-                        // 无法解析为字符串，可能是二进制数据
-                    }
-                    
-                    // 创建一个final副本用于lambda表达式
-                    final String finalRequest = request;
-                    
-                    if (finalRequest != null && finalRequest.startsWith("CONNECT")) {
-                        // 解析连接请求
-                        String[] parts = finalRequest.split(":");
-                        if (parts.length >= 2) {
-                            final String clientId = parts[1];
-                            
-                            // 连接到本地服务
-                            try {
-                                final Socket localSocket = new Socket(localAddress.getText(), Integer.parseInt(localPort.getText()));
-                                
-                                // 将连接添加到映射中
-                                externalConnections.put(clientId, localSocket);
-                                
-                                // 通知服务器连接成功
-                                OutputStream out = serverSocket.getOutputStream();
-                                out.write(("CONNECTED:" + clientId + "\n").getBytes());
-                                out.flush();
-                                
-                                // 连接到本地服务成功
-                                
-                                // 启动从本地服务到服务端的转发
-                                executorService.submit(() -> {
-                                    try {
-                                        InputStream localIn = localSocket.getInputStream();
-                                        OutputStream serverOut = serverSocket.getOutputStream();
-                                        
-                                        byte[] localBuffer = new byte[4096];
-                                        int localRead;
-                                        while ((localRead = localIn.read(localBuffer)) != -1) {
-                                            serverOut.write(localBuffer, 0, localRead);
-                                            serverOut.flush();
-                                        }
-                                    } catch (IOException e) {
-                                        // 忽略错误
-                                    } finally {
-                                        try {
-                                            if (!localSocket.isClosed()) {
-                                                localSocket.close();
-                                            }
-                                            // 从映射中移除连接
-                                            externalConnections.entrySet().removeIf(entry -> entry.getValue() == localSocket);
-                                        } catch (IOException e) {
-                                            // 忽略
-                                        }
-                                    }
-                                });
-                                
-                            } catch (IOException e) {
-                                OutputStream out = serverSocket.getOutputStream();
-                                out.write(("CONNECT_ERROR:" + clientId + ":" + e.getMessage() + "\n").getBytes());
-                                out.flush();
-                                // 连接本地服务失败
-                            }
-                        }
-                    } else if (finalRequest != null && finalRequest.equals("PONG")) {
-                        // 处理服务端的心跳响应
-                        // 这里不需要做特殊处理，心跳包的主要作用是保持连接活跃
-                    } else if (finalRequest != null && finalRequest.startsWith("ERROR")) {
-                        // 处理服务端的错误消息
-                        System.out.println("Server error: " + finalRequest);
-                        Platform.runLater(() -> {
-                            showError("服务端错误", finalRequest.substring(6));
-                            statusLabel.setText("连接异常");
-                        });
-                    } else {
-                        // 处理来自服务端的数据（可能是外部用户的连接数据或二进制数据）
-                        // 由于服务端会为每个外部连接创建一个独立的数据流
-                        // 我们需要将这些数据转发到对应的本地服务
-                        
-                        // 遍历所有外部连接，将数据转发到每个连接
-                        // 注意：这是一个简化的实现，实际的实现应该根据连接ID来转发
-                        for (Map.Entry<String, Socket> entry : externalConnections.entrySet()) {
-                            String clientId = entry.getKey();
-                            Socket localSocket = entry.getValue();
-                            
-                            try {
-                                OutputStream localOut = localSocket.getOutputStream();
-                                localOut.write(buffer, 0, read);
-                                localOut.flush();
-                            } catch (IOException e) {
-                                // 连接失败，移除对应的映射
-                                externalConnections.remove(clientId);
-                                try {
-                                    localSocket.close();
-                                } catch (IOException ex) {
-                                    // 忽略
-                                }
-                            }
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                if (isConnected) {
-                    Platform.runLater(() -> statusLabel.setText("连接断开"));
-                }
-            }
-        });
-    }
-
-    private void startTCPForwardingThread(Socket serverSock, Socket localSock, String clientId) {
-        // 注意：不能直接使用serverSock进行数据读写，因为它会与主startTCPForwarding线程的读取操作冲突
-        // 正确的做法是：
-        // 1. 服务端创建一个新的Socket与外部用户连接
-        // 2. 服务端与客户端之间建立一个新的数据流通道
-        // 3. 客户端与本地服务之间建立数据转发
-        
-        // 但为了简化实现，我们可以使用以下方法：
-        // 1. 客户端连接到本地服务
-        // 2. 客户端通知服务端连接成功
-        // 3. 服务端和客户端之间通过现有的连接进行数据转发
-        
-        // 启动从本地服务到服务端的转发
-        executorService.submit(() -> {
-            try {
-                InputStream localIn = localSock.getInputStream();
-                OutputStream serverOut = serverSock.getOutputStream();
-                
-                byte[] buffer = new byte[4096];
-                int read;
-                while ((read = localIn.read(buffer)) != -1) {
-                    // 发送本地服务的数据到服务端
-                    serverOut.write(buffer, 0, read);
-                    serverOut.flush();
-                }
-            } catch (IOException e) {
-                // 忽略错误
-            } finally {
-                try {
-                    localSock.close();
-                } catch (IOException e) {
-                    // 忽略
-                }
-            }
-        });
-    }
-
-    private void startUDPForwarding() {
-        executorService.submit(() -> {
-            try {
-                DatagramSocket udpSocket = new DatagramSocket();
-                
-                while (isConnected && !serverSocket.isClosed()) {
-                    // 处理UDP数据包
-                    byte[] buffer = new byte[4096];
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                    
-                    // 从服务器接收UDP数据
-                    InputStream in = serverSocket.getInputStream();
-                    int read = in.read(buffer);
-                    if (read == -1) break;
-                    
-                    String data = new String(buffer, 0, read).trim();
-                    if (data.startsWith("UDP_DATA")) {
-                        // 解析UDP数据
-                        String[] parts = data.split(":", 3);
-                        if (parts.length >= 3) {
-                            String clientInfo = parts[1];
-                            byte[] udpData = parts[2].getBytes();
-                            
-                            // 发送到本地服务
-                            DatagramSocket localUdpSocket = new DatagramSocket();
-                            InetAddress localAddr = InetAddress.getByName(localAddress.getText());
-                            DatagramPacket localPacket = new DatagramPacket(
-                                    udpData, udpData.length,
-                                    localAddr, Integer.parseInt(localPort.getText())
-                            );
-                            localUdpSocket.send(localPacket);
-                            
-                            // 接收本地服务的响应
-                            byte[] responseBuffer = new byte[4096];
-                            DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
-                            localUdpSocket.setSoTimeout(5000);
-                            
-                            try {
-                                localUdpSocket.receive(responsePacket);
-                                byte[] responseData = new byte[responsePacket.getLength()];
-                                System.arraycopy(responseBuffer, 0, responseData, 0, responsePacket.getLength());
-                                
-                                // 发送响应到服务器
-                                OutputStream out = serverSocket.getOutputStream();
-                                String response = "UDP_RESPONSE:" + clientInfo + ":" + new String(responseData);
-                                out.write((response + "\n").getBytes());
-                                out.flush();
-                            } catch (SocketTimeoutException e) {
-                                // 忽略超时错误
-                            }
-                            
-                            localUdpSocket.close();
-                        }
-                    }
-                }
-                
-                udpSocket.close();
-            } catch (IOException e) {
-                if (isConnected) {
-                    Platform.runLater(() -> statusLabel.setText("连接断开"));
-                }
-            }
-        });
-    }
-
     private void showError(String title, String message) {
         Alert alert = new Alert(Alert.AlertType.ERROR);
         alert.setTitle(title);
@@ -432,45 +208,137 @@ public class OnlineController {
      */
     private void startStatusCheck() {
         statusCheckExecutor = Executors.newSingleThreadScheduledExecutor();
-        // 每10秒检查一次连接状态
+        // 连接后先发一次心跳，之后每10秒检查一次连接状态
         statusCheckExecutor.scheduleAtFixedRate(() -> {
+            TunnelClient client = tunnelClient;
+            ReconnectSupervisor watcher = supervisor;
+            if (client == null || watcher == null || watcher.isReconnecting()) {
+                // 正在重连，由重连监督处理
+                return;
+            }
+            if (client.isSuspended()) {
+                // 挂起了却没有在恢复，补交给重连监督
+                watcher.onSuspended(client);
+                return;
+            }
             try {
-                if (serverSocket != null && !serverSocket.isClosed()) {
-                    // 尝试发送一个空的心跳包来检查连接
-                    OutputStream out = serverSocket.getOutputStream();
-                    out.write("PING\n".getBytes());
-                    out.flush();
-                    
-                    // 注意：不再在这里读取响应，避免与startTCPForwarding线程冲突
-                    // 心跳包的响应会被startTCPForwarding线程读取并处理
-                    // 这里只负责发送心跳包，确保连接保持活跃
+                if (client.isConnected()) {
+                    // 发送心跳帧来检查连接，响应由转发线程读取并记录往返时间
+                    client.sendPing();
+                    String latency = formatLatency(client.getRtt());
+                    Platform.runLater(() -> latencyLabel.setText(latency));
+                    if (client.isCompressing()) {
+                        String summary = formatCompression(client.getCompressionStats());
+                        Platform.runLater(() -> compressionLabel.setText(summary));
+                    }
                 } else {
                     throw new IOException("连接已关闭");
                 }
             } catch (Exception e) {
-                // 连接异常，更新状态
-                if (isConnected) {
-                    isConnected = false;
-                    Platform.runLater(() -> {
-                        statusLabel.setText("连接断开");
-                        connectButton.setDisable(false);
-                        disconnectButton.setDisable(true);
-                        
-                        // 关闭相关资源
-                        try {
-                            if (serverSocket != null && !serverSocket.isClosed()) {
-                                serverSocket.close();
-                            }
-                            if (executorService != null && !executorService.isShutdown()) {
-                                executorService.shutdown();
-                            }
-                        } catch (IOException ex) {
-                            // 忽略错误
-                        }
-                    });
-                }
+                // 连接异常，在后台重连
+                watcher.onDisconnected(client);
+            }
+        }, 1, 10, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * 连接已不可用，更新状态并释放资源
+     */
+    private void markDisconnected() {
+        if (isConnected) {
+            isConnected = false;
+            supervisor.close();
+            statusCheckExecutor.shutdown();
+            Platform.runLater(() -> {
+                statusLabel.setText("连接断开");
+                connectButton.setDisable(false);
+                disconnectButton.setDisable(true);
+                
+                // 关闭相关资源
+                tunnelClient.close();
+            });
+        }
+    }
+    
+    /**
+     * 客户端的连接状态回调，按所属的客户端转给重连监督，重连后旧客户端的回调被忽略
+     */
+    private class TunnelListener implements TunnelClient.Listener {
+        
+        TunnelClient client;
+        
+        @Override
+        public void onServerError(String message) {
+            // 处理服务端的错误消息
+            System.out.println("Server error: " + message);
+            Platform.runLater(() -> {
+                showError("服务端错误", message);
+                statusLabel.setText("连接异常");
+            });
+        }
+        
+        @Override
+        public void onDisconnected() {
+            if (isConnected && supervisor != null) {
+                Platform.runLater(() -> statusLabel.setText("连接断开，正在重连..."));
+                supervisor.onDisconnected(client);
+            }
+        }
+        
+        @Override
+        public void onSuspended() {
+            if (isConnected && supervisor != null) {
+                Platform.runLater(() -> statusLabel.setText("连接中断，正在恢复..."));
+                supervisor.onSuspended(client);
             }
-        }, 10, 10, TimeUnit.SECONDS);
+        }
+    }
+    
+    /**
+     * 在界面上显示重连的尝试次数和中断时长
+     */
+    private class ReconnectListener implements ReconnectSupervisor.Listener {
+        
+        @Override
+        public void onRetry(int attempt, long downtimeMillis, long delayMillis, String reason) {
+            Platform.runLater(() -> statusLabel.setText(String.format("连接中断 %d 秒，第 %d 次重连失败，%d 秒后重试",
+                    downtimeMillis / 1000, attempt, (delayMillis + 999) / 1000)));
+        }
+        
+        @Override
+        public void onRestored(TunnelClient client, int attempts, long downtimeMillis, boolean resumed) {
+            tunnelClient = client;
+            String status = String.format("%s，中断 %.1f 秒，尝试 %d 次", resumed ? "已恢复" : "已重连",
+                    downtimeMillis / 1000.0, attempts);
+            Platform.runLater(() -> {
+                statusLabel.setText(status);
+                if (!resumed) {
+                    compressionLabel.setText(client.isCompressing() ? "压缩已开启" : "");
+                }
+            });
+        }
+        
+        @Override
+        public void onGaveUp(String reason) {
+            Platform.runLater(() -> showError("重连失败", "服务器拒绝了连接: " + reason));
+            markDisconnected();
+        }
+    }
+    
+    /**
+     * 压缩统计：上行压缩率、节省的流量和压缩解压耗费的CPU时间
+     */
+    private static String formatLatency(RttEstimator rtt) {
+        if (rtt.getSmoothedRtt() < 0) {
+            return "延迟测量中...";
+        }
+        return String.format("延迟 %.0f ms，抖动 %.0f ms", rtt.getSmoothedRtt() / 1e6, rtt.getJitter() / 1e6);
+    }
+    
+    private static String formatCompression(StreamCompressor.Stats stats) {
+        long saved = stats.getDeflateInput() - stats.getDeflateOutput();
+        return String.format("上行压缩率 %.0f%%，节省 %.1f MB，CPU %.0f ms", stats.getUploadRatio() * 100,
+                saved / 1048576.0, stats.getCpuNanos() / 1e6);
     }
     
     /**
@@ -484,6 +352,7 @@ public class OnlineController {
         OnlineConfig.setString("local.address", localAddress.getText());
         OnlineConfig.setString("local.port", localPort.getText());
         OnlineConfig.setString("remote.port", remotePort.getText());
+        OnlineConfig.setString("route.hostname", routeHostname.getText());
         OnlineConfig.save();
     }
 }
@@ -0,0 +1,244 @@
+package com.aweqy.mctopcl;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 断线重连：连接中断后在后台按带抖动的指数退避重试，直到恢复或用户断开
+ * 隧道挂起时先用会话令牌恢复，玩家连接不断开；会话已过期或服务器不支持时重新认证，
+ * 申请原来分配到的远程端口，玩家仍然用原来的地址进入
+ * 所有尝试都在一个后台线程中进行
+ */
+public class ReconnectSupervisor {
+
+    /**
+     * 新建一个未连接的客户端，remotePort为要申请的远程端口
+     */
+    public interface ClientFactory {
+        TunnelClient create(String remotePort);
+    }
+
+    /**
+     * 重连进度回调，在重连线程中调用
+     */
+    public interface Listener {
+        /**
+         * 第attempt次尝试失败，delayMillis后重试；downtimeMillis为连接中断到现在的时间
+         */
+        void onRetry(int attempt, long downtimeMillis, long delayMillis, String reason);
+
+        /**
+         * 连接已恢复，resumed为true时是恢复了原来的会话，否则是新建的隧道
+         */
+        void onRestored(TunnelClient client, int attempts, long downtimeMillis, boolean resumed);
+
+        /**
+         * 服务器拒绝了认证（密码、协议等配置错误），重试也不会成功，不再重连
+         */
+        void onGaveUp(String reason);
+    }
+
+    private final ClientFactory factory;
+    private final Listener listener;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tunnel-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 以下字段只在持有this的锁时访问
+    private TunnelClient current;
+    // 重新认证时申请的远程端口
+    private String remotePort;
+    private boolean reconnecting;
+    // 当前客户端挂起中，先尝试恢复会话
+    private boolean resuming;
+    private int attempts;
+    private long downSince;
+    private boolean closed;
+
+    public ReconnectSupervisor(ClientFactory factory, Listener listener, long initialDelay, long maxDelay) {
+        this.factory = factory;
+        this.listener = listener;
+        this.initialDelay = Math.max(1, initialDelay);
+        this.maxDelay = Math.max(this.initialDelay, maxDelay);
+    }
+
+    /**
+     * 开始监督一个已经连接的客户端，在客户端start之前调用，启动后的断开和挂起才不会被漏掉
+     */
+    public synchronized void watch(TunnelClient client) {
+        current = client;
+        if (client.getAssignedRemotePort() > 0) {
+            remotePort = String.valueOf(client.getAssignedRemotePort());
+        }
+    }
+
+    /**
+     * 客户端挂起，可以恢复会话
+     */
+    public synchronized void onSuspended(TunnelClient client) {
+        lost(client, true);
+    }
+
+    /**
+     * 客户端的连接已关闭，需要重新认证
+     */
+    public synchronized void onDisconnected(TunnelClient client) {
+        lost(client, false);
+    }
+
+    private void lost(TunnelClient client, boolean resumable) {
+        if (closed || client != current || reconnecting) {
+            return;
+        }
+        reconnecting = true;
+        resuming = resumable;
+        attempts = 0;
+        downSince = System.currentTimeMillis();
+        if (!resumable) {
+            client.close();
+        }
+        // 第一次尝试立即进行，网络只是闪断时恢复得最快
+        schedule(0);
+    }
+
+    /**
+     * 正在重连
+     */
+    public synchronized boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    /**
+     * 用户断开，停止重连
+     */
+    public synchronized void close() {
+        closed = true;
+        executor.shutdownNow();
+    }
+
+    private void schedule(long delayMillis) {
+        try {
+            executor.schedule(this::attempt, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // 已经停止
+        }
+    }
+
+    /**
+     * 第attempt次失败后的等待时间：初始间隔每次翻倍，不超过上限，在其一半到全部之间随机取值，
+     * 中继重启后大量客户端不会在同一时刻一起重连
+     */
+    private long backoff(int attempt) {
+        long delay = initialDelay << Math.min(attempt - 1, 30);
+        if (delay <= 0 || delay > maxDelay) {
+            delay = maxDelay;
+        }
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private void attempt() {
+        TunnelClient client;
+        boolean resume;
+        synchronized (this) {
+            if (closed || !reconnecting) {
+                return;
+            }
+            attempts++;
+            client = current;
+            resume = resuming;
+        }
+        String reason;
+        try {
+            if (resume) {
+                String response = client.resume();
+                if (response.startsWith("OK")) {
+                    restored(client, true);
+                    return;
+                }
+                // 会话已过期，原来的隧道已经关闭，改为重新认证
+                client.close();
+                synchronized (this) {
+                    resuming = false;
+                }
+            }
+            TunnelClient fresh = factory.create(currentRemotePort());
+            String response;
+            try {
+                response = fresh.connect();
+            } catch (IOException e) {
+                fresh.close();
+                throw e;
+            }
+            if (response.startsWith("OK")) {
+                synchronized (this) {
+                    if (closed) {
+                        fresh.close();
+                        return;
+                    }
+                    current = fresh;
+                }
+                fresh.start();
+                restored(fresh, false);
+                return;
+            }
+            fresh.close();
+            if (isPermanent(response)) {
+                synchronized (this) {
+                    reconnecting = false;
+                }
+                listener.onGaveUp(response);
+                return;
+            }
+            reason = response;
+        } catch (IOException e) {
+            reason = e.getMessage();
+        }
+        long delay;
+        int attempt;
+        long downtime;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            attempt = attempts;
+            downtime = System.currentTimeMillis() - downSince;
+            delay = backoff(attempt);
+        }
+        listener.onRetry(attempt, downtime, delay, reason);
+        schedule(delay);
+    }
+
+    private synchronized String currentRemotePort() {
+        return remotePort != null ? remotePort : "";
+    }
+
+    private void restored(TunnelClient client, boolean resumed) {
+        int count;
+        long downtime;
+        synchronized (this) {
+            reconnecting = false;
+            count = attempts;
+            downtime = System.currentTimeMillis() - downSince;
+            if (client.getAssignedRemotePort() > 0) {
+                remotePort = String.valueOf(client.getAssignedRemotePort());
+            }
+        }
+        listener.onRestored(client, count, downtime, resumed);
+    }
+
+    /**
+     * 配置错误导致的拒绝，重试不会成功；端口或主机名被占用、服务器已满等都可能随时间恢复
+     */
+    private static boolean isPermanent(String response) {
+        return response.startsWith("ERROR: Invalid") || response.startsWith("ERROR: Insufficient")
+                || response.startsWith("ERROR: Hostname routing requires");
+    }
+}
@@ -0,0 +1,185 @@
+package com.aweqy.mctopcl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 一个流的压缩状态：发往服务器的数据压缩成DEFLATE帧，服务器发来的DEFLATE帧在这里解压
+ * 每帧独立压缩（Deflater每次reset），Deflater和Inflater在流的整个生命周期内复用，第一次用到时才创建
+ * 按抽样的压缩率跳过Minecraft自己压缩过的数据，与服务端com.aweqy.server.StreamCompressor的格式和策略保持一致
+ */
+public class StreamCompressor {
+
+    /** 抽样发现数据不可压缩后原样发送的帧数 */
+    private static final int SKIP_FRAMES = 32;
+    /** 压缩后超过原始大小的这个比例即视为不可压缩 */
+    private static final double INCOMPRESSIBLE_RATIO = 0.9;
+
+    // 值得压缩的最小负载字节数
+    private final int threshold;
+    private final int level;
+    private final Stats stats;
+    private Deflater deflater;
+    private Inflater inflater;
+    private int skip;
+    private boolean ended;
+
+    /**
+     * threshold和level对应online-config.properties中的compression.threshold和compression.level
+     */
+    public StreamCompressor(int threshold, int level, Stats stats) {
+        // 负载至少要比长度前缀和zlib的头尾大，否则不可能变小
+        this.threshold = Math.max(64, threshold);
+        this.level = Math.min(Deflater.BEST_COMPRESSION, Math.max(Deflater.BEST_SPEED, level));
+        this.stats = stats;
+    }
+
+    /**
+     * 压缩payload的剩余字节（不移动其position），值得压缩时返回负载写在HEADER_SIZE之后的帧缓冲区，
+     * 调用方用Frame.encodeInPlace补写DEFLATE帧头；否则返回null，调用方原样发送DATA帧
+     */
+    public synchronized ByteBuffer deflate(ByteBuffer payload) {
+        int length = payload.remaining();
+        stats.deflateInput.add(length);
+        if (ended || length < threshold || skip > 0) {
+            if (skip > 0 && length >= threshold) {
+                skip--;
+                stats.skippedFrames.increment();
+            }
+            stats.deflateOutput.add(length);
+            return null;
+        }
+
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        // 压缩结果加上4字节的原始长度必须比原始数据小，放不下即说明不值得压缩
+        ByteBuffer frame = ByteBuffer.allocate(Frame.HEADER_SIZE + length - 1);
+        frame.position(Frame.HEADER_SIZE + 4);
+        long start = System.nanoTime();
+        deflater.reset();
+        deflater.setInput(payload.duplicate());
+        deflater.finish();
+        while (!deflater.finished() && frame.hasRemaining()) {
+            deflater.deflate(frame);
+        }
+        stats.deflateNanos.add(System.nanoTime() - start);
+
+        int compressed = frame.position() - Frame.HEADER_SIZE;
+        if (!deflater.finished() || compressed > length * INCOMPRESSIBLE_RATIO) {
+            skip = SKIP_FRAMES;
+        }
+        if (!deflater.finished()) {
+            stats.skippedFrames.increment();
+            stats.deflateOutput.add(length);
+            return null;
+        }
+        stats.compressedFrames.increment();
+        stats.deflateOutput.add(compressed);
+        return frame.putInt(Frame.HEADER_SIZE, length);
+    }
+
+    /**
+     * 解压DEFLATE帧的负载，数据损坏时抛出IOException；流已关闭时返回空数组
+     */
+    public synchronized byte[] inflate(byte[] payload) throws IOException {
+        if (ended) {
+            return new byte[0];
+        }
+        if (payload.length < 4) {
+            throw new IOException("压缩帧不完整");
+        }
+        int length = ByteBuffer.wrap(payload).getInt();
+        if (length <= 0 || length > Frame.MAX_PAYLOAD) {
+            throw new IOException("压缩帧长度无效: " + length);
+        }
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        byte[] output = new byte[length];
+        long start = System.nanoTime();
+        try {
+            inflater.reset();
+            inflater.setInput(payload, 4, payload.length - 4);
+            if (inflater.inflate(output) != length || !inflater.finished()) {
+                throw new IOException("压缩帧与声明的长度不一致");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("压缩帧已损坏: " + e.getMessage());
+        } finally {
+            stats.inflateNanos.add(System.nanoTime() - start);
+        }
+        stats.inflateInput.add(payload.length);
+        stats.inflateOutput.add(length);
+        return output;
+    }
+
+    /**
+     * 流关闭时释放zlib的本地内存，之后的调用不再压缩
+     */
+    public synchronized void end() {
+        ended = true;
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 一个隧道所有流的压缩统计
+     */
+    public static final class Stats {
+
+        // 发往服务器方向：进入压缩器的原始字节数和实际发出的负载字节数
+        private final LongAdder deflateInput = new LongAdder();
+        private final LongAdder deflateOutput = new LongAdder();
+        private final LongAdder deflateNanos = new LongAdder();
+        private final LongAdder compressedFrames = new LongAdder();
+        private final LongAdder skippedFrames = new LongAdder();
+        // 服务器发来方向：收到的压缩负载字节数和解压后的字节数
+        private final LongAdder inflateInput = new LongAdder();
+        private final LongAdder inflateOutput = new LongAdder();
+        private final LongAdder inflateNanos = new LongAdder();
+
+        public long getDeflateInput() {
+            return deflateInput.sum();
+        }
+
+        public long getDeflateOutput() {
+            return deflateOutput.sum();
+        }
+
+        public long getInflateInput() {
+            return inflateInput.sum();
+        }
+
+        public long getInflateOutput() {
+            return inflateOutput.sum();
+        }
+
+        /** 压缩和解压耗费的时间（纳秒），二者都是纯计算，近似为CPU时间 */
+        public long getCpuNanos() {
+            return deflateNanos.sum() + inflateNanos.sum();
+        }
+
+        /** 上行（发往服务器）实际发出的字节数占原始字节数的比例 */
+        public double getUploadRatio() {
+            long raw = getDeflateInput();
+            return raw == 0 ? 1 : (double) getDeflateOutput() / raw;
+        }
+
+        public long getCompressedFrames() {
+            return compressedFrames.sum();
+        }
+
+        public long getSkippedFrames() {
+            return skippedFrames.sum();
+        }
+    }
+}
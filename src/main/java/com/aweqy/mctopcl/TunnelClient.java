@@ -0,0 +1,1068 @@
+package com.aweqy.mctopcl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 内网穿透客户端：连接中继服务器，把每个外部连接的流转发到本地服务
+ * 服务器同意会话恢复时，连接意外断开后隧道挂起，由resume()带着会话令牌重连，双方续传没有收到的数据
+ */
+public class TunnelClient {
+
+    /** 每个流的接收窗口，服务器最多发送这么多还没写给本地服务的数据 */
+    private static final int RECEIVE_WINDOW = 256 * 1024;
+
+    /** 每个流为会话恢复保留的最近发出的数据，与服务器默认的接收窗口一致 */
+    private static final int REPLAY_BUFFER = 256 * 1024;
+
+    /** 控制连接连续这么多个心跳间隔没有收到任何数据时视为已断开 */
+    private static final int MISSED_KEEPALIVES = 3;
+
+    // 写出队列的结束标记
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    /**
+     * 连接状态回调，在转发线程中调用
+     */
+    public interface Listener {
+        void onServerError(String message);
+
+        void onDisconnected();
+
+        /**
+         * 连接意外断开，隧道已挂起，可以调用resume()恢复
+         */
+        void onSuspended();
+    }
+
+    private final String serverAddress;
+    private final int serverPort;
+    private final String password;
+    private final String protocol;
+    private final String localAddress;
+    private final int localPort;
+    private final String remotePort;
+    private final int poolSize;
+    private final boolean virtualThreads;
+    private final boolean compression;
+    // 上行压缩的最小负载字节数和Deflate级别
+    private final int compressionThreshold;
+    private final int compressionLevel;
+    // 在服务器共享端口上登记的主机名，空字符串表示不登记
+    private final String hostname;
+    // 控制连接的心跳间隔（毫秒），0表示不检测断开
+    private final int keepaliveInterval;
+    private final Listener listener;
+
+    // 当前的控制连接，会话恢复后换成新的连接
+    private volatile Socket serverSocket;
+    private DataInputStream serverIn;
+    private volatile FrameLink controlLink;
+    private String token;
+    // 会话令牌，服务器没有同意会话恢复时为null
+    private String resumeToken;
+    // 连接断开后挂起，等待resume()
+    private volatile boolean suspended;
+    // 服务器同意了压缩，TCP隧道的每个流各自压缩
+    private boolean compressing;
+    private final StreamCompressor.Stats compressionStats = new StreamCompressor.Stats();
+    // 到服务器的往返时间，由sendPing发出的心跳测得
+    private final RttEstimator rtt = new RttEstimator();
+    // 服务器登记的主机名，服务器没有开启共享端口时为null
+    private String routedHostname;
+    // 服务器分配的远程端口，认证失败时为0
+    private int assignedRemotePort;
+    private ExecutorService executorService;
+    private volatile boolean running;
+
+    // 维护流与本地连接的映射：streamId -> 本地连接
+    private final Map<Long, LocalStream> localConnections = new ConcurrentHashMap<>();
+
+    // UDP隧道中每个玩家地址对应一个连接到本地服务的数据报通道：streamId -> 通道
+    private final Map<Long, DatagramChannel> localDatagrams = new ConcurrentHashMap<>();
+
+    // 空闲（含正在建立）的工作连接数
+    private final AtomicInteger idleWorkConnections = new AtomicInteger();
+
+    // 所有工作连接，挂起时一并关闭
+    private final Set<Socket> workSockets = ConcurrentHashMap.newKeySet();
+
+    public TunnelClient(String serverAddress, int serverPort, String password, String protocol,
+                        String localAddress, int localPort, String remotePort, int poolSize,
+                        boolean virtualThreads, boolean compression, int compressionThreshold, int compressionLevel,
+                        String hostname, int keepaliveInterval, Listener listener) {
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        this.password = password;
+        this.protocol = protocol;
+        this.localAddress = localAddress;
+        this.localPort = localPort;
+        this.remotePort = remotePort;
+        this.poolSize = poolSize;
+        this.virtualThreads = virtualThreads;
+        this.compression = compression;
+        this.compressionThreshold = compressionThreshold;
+        this.compressionLevel = compressionLevel;
+        this.hostname = hostname;
+        this.keepaliveInterval = Math.max(0, keepaliveInterval);
+        this.listener = listener;
+    }
+
+    /**
+     * 连接服务器并认证，返回服务器的认证响应
+     */
+    public String connect() throws IOException {
+        serverSocket = new Socket();
+        // 设置连接超时时间为10秒
+        serverSocket.connect(new InetSocketAddress(serverAddress, serverPort), 10000);
+        InputStream in = new BufferedInputStream(serverSocket.getInputStream());
+        OutputStream serverOut = new BufferedOutputStream(serverSocket.getOutputStream());
+        controlLink = new FrameLink(serverSocket, serverOut);
+
+        // 构建认证消息，包含远程端口参数
+        String authMessage = "AUTH:" + password + ":" + protocol + ":" + localAddress + ":" + localPort;
+        // 如果用户指定了远程端口，添加到认证消息中
+        if (!remotePort.isEmpty()) {
+            authMessage += ":" + remotePort;
+        }
+        // 可选功能：压缩和共享端口的主机名，没有指定远程端口时用0占位；旧版服务器会忽略这一项
+        List<String> options = new ArrayList<>();
+        if (compression && protocol.equals("TCP")) {
+            options.add("deflate");
+        }
+        if (!hostname.isEmpty()) {
+            options.add("host=" + hostname);
+        }
+        options.add("resume");
+        if (!options.isEmpty()) {
+            authMessage += (remotePort.isEmpty() ? ":0" : "") + ":" + String.join(",", options);
+        }
+        serverOut.write((authMessage + "\n").getBytes());
+        serverOut.flush();
+
+        // 逐字节读取认证响应，之后的数据都是帧
+        String response = readLine(in);
+        if (response == null) {
+            throw new IOException("未收到认证响应，连接已关闭");
+        }
+        serverIn = new DataInputStream(in);
+        serverSocket.setSoTimeout(keepaliveInterval);
+
+        // 认证响应末尾携带隧道令牌，用于建立工作连接
+        int tokenIndex = response.indexOf("Token: ");
+        if (tokenIndex != -1) {
+            token = response.substring(tokenIndex + 7).trim();
+        }
+        compressing = response.startsWith("OK") && response.contains(" Compression: deflate");
+        int hostnameIndex = response.indexOf(" Hostname: ");
+        if (response.startsWith("OK") && hostnameIndex != -1) {
+            int end = response.indexOf(' ', hostnameIndex + 11);
+            routedHostname = response.substring(hostnameIndex + 11, end == -1 ? response.length() : end).trim();
+        }
+        int portIndex = response.indexOf("Remote port: ");
+        if (response.startsWith("OK") && portIndex != -1) {
+            int end = response.indexOf(' ', portIndex + 13);
+            try {
+                assignedRemotePort = Integer.parseInt(response.substring(portIndex + 13, end == -1 ? response.length() : end).trim());
+            } catch (NumberFormatException e) {
+                // 旧版服务器的响应格式不同，忽略
+            }
+        }
+        int resumeIndex = response.indexOf(" Resume: ");
+        if (response.startsWith("OK") && resumeIndex != -1) {
+            int end = response.indexOf(' ', resumeIndex + 9);
+            resumeToken = response.substring(resumeIndex + 9, end == -1 ? response.length() : end).trim();
+        }
+        return response.trim();
+    }
+
+    /**
+     * 挂起后带着会话令牌重连，返回服务器的恢复响应；响应不以OK开头时会话已过期，应当关闭后重新连接
+     * 恢复成功后交换每个流已收到的字节数，续传对方没有收到的数据
+     */
+    public synchronized String resume() throws IOException {
+        if (!running || !suspended) {
+            throw new IOException("隧道没有挂起");
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(serverAddress, serverPort), 10000);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            out.write(("RESUME:" + resumeToken + "\n").getBytes());
+            out.flush();
+            String response = readLine(in);
+            if (response == null) {
+                throw new IOException("未收到恢复响应，连接已关闭");
+            }
+            if (!response.startsWith("OK")) {
+                socket.close();
+                return response.trim();
+            }
+            socket.setSoTimeout(keepaliveInterval);
+            FrameLink link = new FrameLink(socket, out);
+            serverSocket = socket;
+            controlLink = link;
+            suspended = false;
+            // 服务器先发来它的流状态，再续传；这边的流状态发出后再开始读取
+            for (LocalStream stream : localConnections.values()) {
+                link.write(stream.resumeFrame());
+            }
+            link.write(Frame.encode(Frame.RESUME, 0));
+            DataInputStream frameIn = new DataInputStream(in);
+            executorService.submit(() -> readFrames(frameIn, link));
+            refillPool();
+            return response.trim();
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+    }
+
+    private String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                return line.toString();
+            }
+            line.write(b);
+        }
+        return null;
+    }
+
+    /**
+     * 认证成功后开始转发
+     */
+    public void start() {
+        running = true;
+        // 虚拟线程模式下每个转发任务一个虚拟线程
+        executorService = virtualThreads ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+        FrameLink link = controlLink;
+        executorService.submit(() -> readFrames(serverIn, link));
+        refillPool();
+    }
+
+    /**
+     * 读取控制连接上服务器发来的帧并按streamId分发
+     * 中继每个心跳间隔都会发来PING，一个间隔内没有收到数据时发出一个心跳探测链路，
+     * 连续MISSED_KEEPALIVES个间隔都没有数据时视为链路已断开（半开连接上读取不会自己结束），挂起隧道等待恢复
+     */
+    private void readFrames(DataInputStream in, FrameLink link) {
+        try {
+            int silent = 0;
+            while (running) {
+                // 读取超时时回到帧的开头，已读到的部分帧不会丢失
+                in.mark(Frame.HEADER_SIZE + Frame.MAX_PAYLOAD);
+                Frame frame;
+                try {
+                    frame = Frame.read(in);
+                } catch (SocketTimeoutException e) {
+                    if (++silent >= MISSED_KEEPALIVES) {
+                        throw e;
+                    }
+                    in.reset();
+                    link.write(Frame.encodePing(System.nanoTime()));
+                    continue;
+                }
+                if (frame == null) {
+                    break;
+                }
+                silent = 0;
+                dispatchFrame(frame, link);
+            }
+        } catch (IOException e) {
+            // 连接断开
+        } finally {
+            onControlLost(link);
+        }
+    }
+
+    /**
+     * 控制连接断开：服务器同意了会话恢复时挂起，否则关闭隧道
+     */
+    private void onControlLost(FrameLink link) {
+        synchronized (this) {
+            if (!running || link != controlLink || suspended) {
+                // 主动关闭，或者已经换成新的连接
+                return;
+            }
+            if (resumeToken != null) {
+                suspend();
+            }
+        }
+        if (resumeToken != null) {
+            listener.onSuspended();
+        } else {
+            close();
+            listener.onDisconnected();
+        }
+    }
+
+    /**
+     * 挂起：关闭控制连接和所有工作连接，流保留到恢复或关闭
+     */
+    private void suspend() {
+        suspended = true;
+        closeQuietly(serverSocket);
+        for (LocalStream stream : localConnections.values()) {
+            stream.suspend();
+        }
+        for (Socket socket : workSockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * 处理控制连接或工作连接上收到的帧
+     */
+    private void dispatchFrame(Frame frame, FrameLink link) throws IOException {
+        switch (frame.getType()) {
+            case Frame.OPEN -> {
+                if (protocol.equals("UDP")) {
+                    openDatagramStream(frame.getStreamId());
+                } else {
+                    openStream(frame.getStreamId(), link);
+                }
+            }
+            case Frame.DATA -> {
+                if (protocol.equals("UDP")) {
+                    forwardDatagram(frame);
+                } else {
+                    forwardToLocal(frame, link);
+                }
+            }
+            case Frame.DEFLATE -> forwardToLocal(frame, link);
+            case Frame.WINDOW -> {
+                LocalStream stream = localConnections.get(frame.getStreamId());
+                if (stream != null) {
+                    stream.grant(link, frame.getWindowIncrement());
+                }
+            }
+            case Frame.CLOSE -> {
+                if (protocol.equals("UDP")) {
+                    closeDatagramStream(frame.getStreamId(), false);
+                } else {
+                    // 写完已排队的数据后关闭
+                    LocalStream stream = localConnections.get(frame.getStreamId());
+                    if (stream != null) {
+                        stream.finish();
+                    }
+                }
+            }
+            case Frame.PING -> {
+                // 服务端的空闲探测，原样回应
+                byte[] payload = frame.getPayload();
+                link.write(Frame.encode(Frame.PONG, 0, payload, 0, payload.length));
+            }
+            case Frame.PONG -> {
+                // 心跳响应，回显的是发出时的时间戳
+                if (frame.hasTimestamp()) {
+                    rtt.sample(System.nanoTime() - frame.getTimestamp());
+                }
+            }
+            case Frame.ERROR -> listener.onServerError(new String(frame.getPayload()));
+            case Frame.RESUME -> resumeStream(frame, link);
+            default -> {
+                // 忽略未知帧
+            }
+        }
+    }
+
+    /**
+     * 服务器恢复会话后发来的流状态：续传服务器也保留着的流；列表结束时关闭服务器已经没有的流
+     */
+    private void resumeStream(Frame frame, FrameLink link) throws IOException {
+        if (frame.getStreamId() == 0) {
+            for (LocalStream stream : localConnections.values()) {
+                if (stream.isSuspended()) {
+                    // 服务器不知道这个流，不需要通知
+                    closeStream(stream.streamId, false);
+                }
+            }
+            return;
+        }
+        LocalStream stream = localConnections.get(frame.getStreamId());
+        if (stream == null || !stream.isSuspended()) {
+            // 这边已经关闭了该流，服务器收到列表后自行关闭
+            return;
+        }
+        if (!stream.resume(link, frame.getResumeReceived(), frame.getResumeGranted())) {
+            // 服务器没有收到的数据已被挤出重发缓冲区
+            link.write(Frame.encode(Frame.CLOSE, frame.getStreamId()));
+            closeStream(frame.getStreamId(), false);
+        }
+    }
+
+    /**
+     * 补足工作连接池，只用于TCP隧道
+     */
+    private synchronized void refillPool() {
+        if (token == null || !protocol.equals("TCP")) {
+            return;
+        }
+        while (running && idleWorkConnections.get() < poolSize) {
+            idleWorkConnections.incrementAndGet();
+            executorService.submit(this::runWorkConnection);
+        }
+    }
+
+    /**
+     * 建立一个工作连接并读取其上的帧，服务器分配流之后该连接专门承载这个流
+     */
+    private void runWorkConnection() {
+        boolean bound = false;
+        long streamId = 0;
+        FrameLink link = null;
+        Socket workSocket = new Socket();
+        workSockets.add(workSocket);
+        try {
+            workSocket.connect(new InetSocketAddress(serverAddress, serverPort), 10000);
+            OutputStream workOut = new BufferedOutputStream(workSocket.getOutputStream());
+            workOut.write(("WORK:" + token + "\n").getBytes());
+            workOut.flush();
+
+            link = new FrameLink(workSocket, workOut);
+            DataInputStream workIn = new DataInputStream(new BufferedInputStream(workSocket.getInputStream()));
+            Frame frame;
+            while (running && (frame = Frame.read(workIn)) != null) {
+                if (!bound && frame.getType() == Frame.OPEN) {
+                    // 连接被占用，后台补充新的空闲连接
+                    bound = true;
+                    streamId = frame.getStreamId();
+                    idleWorkConnections.decrementAndGet();
+                    refillPool();
+                }
+                dispatchFrame(frame, link);
+            }
+        } catch (IOException e) {
+            // 工作连接断开
+        } finally {
+            if (!bound) {
+                idleWorkConnections.decrementAndGet();
+            }
+            workSockets.remove(workSocket);
+            closeQuietly(workSocket);
+            // 流还没结束工作连接就断了，多半是网络中断：关闭控制连接让隧道挂起，恢复后一并续传
+            LocalStream stream = bound ? localConnections.get(streamId) : null;
+            if (running && resumeToken != null && stream != null && !stream.finished && stream.suspend(link)) {
+                closeQuietly(serverSocket);
+            }
+        }
+    }
+
+    /**
+     * 外部用户连接到服务器，连接本地服务并开始转发
+     */
+    private void openStream(long streamId, FrameLink link) throws IOException {
+        Socket localSocket;
+        try {
+            localSocket = new Socket(localAddress, localPort);
+        } catch (IOException e) {
+            // 连接本地服务失败，通知服务器关闭该流
+            link.write(Frame.encode(Frame.CLOSE, streamId));
+            return;
+        }
+        LocalStream stream = new LocalStream(streamId, localSocket, link);
+        localConnections.put(streamId, stream);
+        // 通告比默认初始窗口多出的接收额度
+        stream.sendWindowUpdate(RECEIVE_WINDOW - Frame.INITIAL_WINDOW);
+
+        // 从服务器到本地服务的转发
+        executorService.submit(stream::drain);
+
+        // 启动从本地服务到服务器的转发
+        executorService.submit(() -> {
+            try {
+                InputStream localIn = localSocket.getInputStream();
+                byte[] buffer = new byte[4096];
+                while (true) {
+                    // 服务器的接收窗口用完时停止读取本地服务，等待WINDOW帧
+                    int allowed = stream.sendWindow.acquire(buffer.length);
+                    if (allowed == -1) {
+                        break;
+                    }
+                    int read = localIn.read(buffer, 0, allowed);
+                    if (read == -1) {
+                        break;
+                    }
+                    stream.sendWindow.release(allowed - read);
+                    FrameLink target = stream.record(ByteBuffer.wrap(buffer, 0, read));
+                    if (target == null) {
+                        // 挂起中，数据留在重发缓冲区，恢复后续传
+                        continue;
+                    }
+                    ByteBuffer compressed = stream.compressor != null
+                            ? stream.compressor.deflate(ByteBuffer.wrap(buffer, 0, read)) : null;
+                    if (compressed != null) {
+                        stream.send(target, Frame.encodeInPlace(Frame.DEFLATE, streamId, compressed));
+                    } else {
+                        stream.send(target, Frame.encode(Frame.DATA, streamId, buffer, 0, read));
+                    }
+                }
+            } catch (IOException e) {
+                // 忽略错误
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeStream(streamId, true);
+            }
+        });
+    }
+
+    /**
+     * 服务器发来的数据交给该流的写出线程，慢速的本地连接不会阻塞帧的读取
+     */
+    private void forwardToLocal(Frame frame, FrameLink link) {
+        LocalStream stream = localConnections.get(frame.getStreamId());
+        if (stream == null) {
+            return;
+        }
+        byte[] payload = frame.getPayload();
+        if (frame.getType() == Frame.DEFLATE) {
+            try {
+                if (stream.compressor == null) {
+                    throw new IOException("没有协商压缩");
+                }
+                payload = stream.compressor.inflate(payload);
+            } catch (IOException e) {
+                closeStream(frame.getStreamId(), true);
+                return;
+            }
+        }
+        if (!stream.accept(link, payload)) {
+            // 服务器超出了通告的窗口
+            closeStream(frame.getStreamId(), true);
+        }
+    }
+
+    /**
+     * 新的UDP会话：打开一个连接到本地服务的数据报通道，本地服务的所有响应都回到这个会话
+     */
+    private void openDatagramStream(long streamId) throws IOException {
+        DatagramChannel channel;
+        try {
+            channel = DatagramChannel.open();
+            channel.connect(new InetSocketAddress(localAddress, localPort));
+        } catch (IOException e) {
+            controlLink.write(Frame.encode(Frame.CLOSE, streamId));
+            return;
+        }
+        localDatagrams.put(streamId, channel);
+
+        // 启动从本地服务到服务器的转发
+        executorService.submit(() -> {
+            ByteBuffer buffer = ByteBuffer.allocate(Frame.MAX_PAYLOAD);
+            try {
+                while (channel.isOpen()) {
+                    buffer.clear();
+                    channel.read(buffer);
+                    buffer.flip();
+                    try {
+                        controlLink.write(Frame.encode(Frame.DATA, streamId, buffer));
+                    } catch (IOException e) {
+                        if (resumeToken == null) {
+                            throw e;
+                        }
+                        // 控制连接断开，隧道挂起中，按UDP语义丢弃
+                    }
+                }
+            } catch (IOException e) {
+                // 通道关闭或本地服务不可达
+            } finally {
+                closeDatagramStream(streamId, true);
+            }
+        });
+    }
+
+    /**
+     * 转发UDP数据到本地服务，一个帧对应一个数据报
+     */
+    private void forwardDatagram(Frame frame) {
+        DatagramChannel channel = localDatagrams.get(frame.getStreamId());
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.write(ByteBuffer.wrap(frame.getPayload()));
+        } catch (IOException e) {
+            closeDatagramStream(frame.getStreamId(), true);
+        }
+    }
+
+    /**
+     * 关闭UDP会话的本地通道，notifyServer为true时通知服务器结束会话
+     */
+    private void closeDatagramStream(long streamId, boolean notifyServer) {
+        DatagramChannel channel = localDatagrams.remove(streamId);
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // 忽略
+        }
+        if (notifyServer) {
+            try {
+                controlLink.write(Frame.encode(Frame.CLOSE, streamId));
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+    }
+
+    /**
+     * 关闭本地连接，notifyServer为true时通知服务器关闭对应的流
+     */
+    private void closeStream(long streamId, boolean notifyServer) {
+        LocalStream stream = localConnections.remove(streamId);
+        if (stream == null) {
+            return;
+        }
+        stream.sendWindow.close();
+        stream.discard();
+        if (stream.compressor != null) {
+            stream.compressor.end();
+        }
+        closeQuietly(stream.socket);
+        // 挂起中的流，恢复时服务器从这边的列表中得知它已关闭
+        FrameLink link = stream.link;
+        if (link == null) {
+            return;
+        }
+        if (notifyServer) {
+            try {
+                link.write(Frame.encode(Frame.CLOSE, streamId));
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+        // 工作连接只服务一个流，流结束后关闭
+        if (link != controlLink) {
+            closeQuietly(link.socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // 忽略
+        }
+    }
+
+    /**
+     * 发送带时间戳的心跳，服务器的回应用于估计往返时间
+     */
+    public void sendPing() throws IOException {
+        FrameLink link = controlLink;
+        try {
+            link.write(Frame.encodePing(System.nanoTime()));
+        } catch (IOException e) {
+            if (resumeToken == null) {
+                throw e;
+            }
+            // 连接已断开，关闭控制连接让读取线程挂起隧道
+            closeQuietly(link.socket);
+        }
+    }
+
+    /**
+     * 服务器是否同意了压缩
+     */
+    public boolean isCompressing() {
+        return compressing;
+    }
+
+    /**
+     * 服务器共享端口上登记的主机名，没有登记时返回null
+     */
+    public String getRoutedHostname() {
+        return routedHostname;
+    }
+
+    /**
+     * 服务器分配的远程端口，重连时申请同一个端口；未知时返回0
+     */
+    public int getAssignedRemotePort() {
+        return assignedRemotePort;
+    }
+
+    /**
+     * 所有流累计的压缩统计
+     */
+    public StreamCompressor.Stats getCompressionStats() {
+        return compressionStats;
+    }
+
+    /**
+     * 到服务器的往返时间
+     */
+    public RttEstimator getRtt() {
+        return rtt;
+    }
+
+    public boolean isConnected() {
+        return serverSocket != null && !serverSocket.isClosed();
+    }
+
+    /**
+     * 连接断开后是否正在等待恢复
+     */
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * 断开连接并释放资源，先告诉服务器这是主动断开，不必保留隧道
+     */
+    public void close() {
+        if (running && !suspended) {
+            try {
+                controlLink.write(Frame.encode(Frame.CLOSE, 0));
+            } catch (IOException e) {
+                // 忽略错误
+            }
+        }
+        running = false;
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // 忽略错误
+        }
+        for (LocalStream stream : localConnections.values()) {
+            closeQuietly(stream.socket);
+            FrameLink link = stream.link;
+            if (link != null) {
+                closeQuietly(link.socket);
+            }
+            if (stream.compressor != null) {
+                stream.compressor.end();
+            }
+        }
+        localConnections.clear();
+        for (DatagramChannel channel : localDatagrams.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+        localDatagrams.clear();
+        for (Socket socket : workSockets) {
+            closeQuietly(socket);
+        }
+        if (executorService != null && !executorService.isShutdown()) {
+            executorService.shutdown();
+        }
+    }
+
+    /**
+     * 可写出帧的连接（控制连接或工作连接），多个转发线程共享时需要整帧互斥写出
+     * 使用ReentrantLock而不是synchronized，虚拟线程阻塞在写操作上时不会占住载体线程
+     * 写出时合并：还有线程在等待写出时只写进缓冲区，由最后一个写入者刷新，多个小帧合成一次发送
+     */
+    private static class FrameLink {
+
+        final Socket socket;
+        private final OutputStream out;
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        FrameLink(Socket socket, OutputStream out) {
+            this.socket = socket;
+            this.out = out;
+        }
+
+        void write(ByteBuffer frame) throws IOException {
+            writeLock.lock();
+            try {
+                out.write(frame.array(), 0, frame.limit());
+                if (!writeLock.hasQueuedThreads()) {
+                    out.flush();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 本地连接及承载其数据的连接
+     * 记录发往服务器的数据和两个方向的累计字节数，挂起时link为null，恢复后由新的控制连接承载
+     */
+    private class LocalStream {
+
+        final long streamId;
+        final Socket socket;
+        volatile FrameLink link;
+        // 以下字段在持有lock时访问，保证恢复时交换的状态与换用的连接一致
+        private final ReentrantLock lock = new ReentrantLock();
+        // 会话恢复：发往服务器、服务器可能还没收到的数据，服务器没有同意时为null
+        private final ReplayBuffer replay = resumeToken != null ? new ReplayBuffer(REPLAY_BUFFER) : null;
+        // 从服务器收到的字节数
+        private long received;
+        // 通告给服务器的累计额度（不含初始窗口），其中已经发出的部分
+        private long granted;
+        private long reportedGranted;
+        // 服务器通告的累计额度（不含初始窗口）
+        private long peerGranted;
+        // 服务器已经关闭了流
+        volatile boolean finished;
+        // 发往服务器方向的额度
+        final SendWindow sendWindow = new SendWindow(Frame.INITIAL_WINDOW);
+        // 没有协商压缩时为null
+        final StreamCompressor compressor = compressing
+                ? new StreamCompressor(compressionThreshold, compressionLevel, compressionStats) : null;
+        // 服务器发来、还没有写给本地服务的数据
+        private final BlockingQueue<byte[]> pending = new LinkedBlockingQueue<>();
+        private final AtomicLong pendingBytes = new AtomicLong();
+
+        LocalStream(long streamId, Socket socket, FrameLink link) {
+            this.streamId = streamId;
+            this.socket = socket;
+            this.link = link;
+        }
+
+        /**
+         * 记录即将发给服务器的数据，返回应当写出帧的连接，挂起时返回null
+         */
+        FrameLink record(ByteBuffer data) {
+            lock.lock();
+            try {
+                if (replay != null) {
+                    replay.append(data);
+                }
+                return link;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 写出一个帧，target为null（挂起）时丢弃
+         * 服务器同意了会话恢复时连接断开不算流的错误：数据还在重发缓冲区中，关闭控制连接让隧道挂起
+         */
+        void send(FrameLink target, ByteBuffer frame) throws IOException {
+            if (target == null) {
+                return;
+            }
+            try {
+                target.write(frame);
+            } catch (IOException e) {
+                if (replay == null) {
+                    throw e;
+                }
+                if (suspend(target)) {
+                    closeQuietly(serverSocket);
+                }
+            }
+        }
+
+        /**
+         * 向服务器通告新的额度，挂起时先累计，恢复后补发
+         */
+        void sendWindowUpdate(int increment) throws IOException {
+            FrameLink target;
+            lock.lock();
+            try {
+                granted += increment;
+                target = link;
+                if (target != null) {
+                    reportedGranted = granted;
+                }
+            } finally {
+                lock.unlock();
+            }
+            send(target, Frame.encodeWindow(streamId, increment));
+        }
+
+        /**
+         * 服务器经link发来的数据，来自已经换掉的连接时丢弃，服务器恢复后会重发
+         * 超出通告的窗口时返回false
+         */
+        boolean accept(FrameLink from, byte[] payload) {
+            lock.lock();
+            try {
+                if (from != link) {
+                    return true;
+                }
+                received += payload.length;
+                return enqueue(payload);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 服务器经link通告的额度
+         */
+        void grant(FrameLink from, int increment) {
+            lock.lock();
+            try {
+                if (from != link) {
+                    return;
+                }
+                peerGranted += increment;
+                sendWindow.grant(increment);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 挂起：不再使用当前连接
+         */
+        void suspend() {
+            lock.lock();
+            try {
+                link = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 只在仍由expected承载时挂起，返回是否挂起
+         */
+        boolean suspend(FrameLink expected) {
+            lock.lock();
+            try {
+                if (link != expected) {
+                    return false;
+                }
+                link = null;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isSuspended() {
+            return link == null;
+        }
+
+        /**
+         * 恢复时发给服务器的流状态，之后新增的额度在恢复后补发
+         */
+        ByteBuffer resumeFrame() {
+            lock.lock();
+            try {
+                reportedGranted = granted;
+                return Frame.encodeResume(streamId, received, granted);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 按服务器的流状态续传：重发服务器没有收到的数据，补上丢失的额度通告，之后由link承载
+         * 没收到的数据已被挤出重发缓冲区时返回false
+         */
+        boolean resume(FrameLink newLink, long peerReceived, long peerGrantedTotal) throws IOException {
+            lock.lock();
+            try {
+                ByteBuffer missing = replay != null ? replay.from(peerReceived) : null;
+                if (missing == null) {
+                    return false;
+                }
+                while (missing.hasRemaining()) {
+                    int length = Math.min(missing.remaining(), Frame.MAX_PAYLOAD);
+                    newLink.write(Frame.encode(Frame.DATA, streamId, missing.slice(missing.position(), length)));
+                    missing.position(missing.position() + length);
+                }
+                if (granted > reportedGranted) {
+                    newLink.write(Frame.encodeWindow(streamId, (int) (granted - reportedGranted)));
+                    reportedGranted = granted;
+                }
+                sendWindow.grant((int) (peerGrantedTotal - peerGranted));
+                peerGranted = peerGrantedTotal;
+                link = newLink;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 排队等待写出，服务器发送的数据超出通告的窗口时返回false
+         */
+        boolean enqueue(byte[] payload) {
+            if (pendingBytes.addAndGet(payload.length) > RECEIVE_WINDOW) {
+                return false;
+            }
+            pending.add(payload);
+            return true;
+        }
+
+        /**
+         * 服务器关闭了流，写完已排队的数据后关闭
+         */
+        void finish() {
+            finished = true;
+            pending.add(END_OF_STREAM);
+        }
+
+        /**
+         * 丢弃排队的数据并让写出线程退出
+         */
+        void discard() {
+            pending.clear();
+            pending.add(END_OF_STREAM);
+        }
+
+        /**
+         * 写出线程：按顺序把数据写给本地服务，每写出半个窗口向服务器通告一次额度
+         */
+        void drain() {
+            int consumed = 0;
+            try {
+                // 队列中还有数据时先写进缓冲区，队列取空时再一次性刷新
+                OutputStream localOut = new BufferedOutputStream(socket.getOutputStream(), Frame.MAX_PAYLOAD);
+                byte[] payload;
+                while ((payload = pending.take()) != END_OF_STREAM) {
+                    localOut.write(payload);
+                    if (pending.isEmpty()) {
+                        localOut.flush();
+                    }
+                    pendingBytes.addAndGet(-payload.length);
+                    consumed += payload.length;
+                    if (consumed >= RECEIVE_WINDOW / 2 && !finished) {
+                        sendWindowUpdate(consumed);
+                        consumed = 0;
+                    }
+                }
+                localOut.flush();
+                closeStream(streamId, false);
+            } catch (IOException e) {
+                closeStream(streamId, true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}